@@ -1,6 +1,7 @@
 plugins {
     id("java")
     id("org.jetbrains.intellij") version "1.12.0"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "org.rogmann.llm"
@@ -15,6 +16,18 @@ dependencies {
     testImplementation("org.junit.platform:junit-platform-launcher:1.13.1")
 }
 
+// Benchmarks of the hot paths (src/jmh/java), run by "./gradlew jmh".
+// The benchmarks use the test runtime classpath (includeTests) which contains the IntelliJ Platform.
+jmh {
+    jmhVersion.set("1.37")
+    includeTests.set(true)
+    profilers.set(listOf("gc"))
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+}
+
 // Configure Gradle IntelliJ Plugin
 // Read more: https://plugins.jetbrains.com/docs/intellij/tools-gradle-intellij-plugin.html
 intellij {
@@ -0,0 +1,102 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inputs of the benchmarks which resemble the data of the llama.cpp-server and of the IDE.
+ */
+final class BenchmarkData {
+    /** words of the generated texts */
+    private static final String[] WORDS = {
+            " the", " value", " is", " returned", " by", " a", " method", " which", " reads", " the", " file",
+            "\n", " if", " (", "x", " ==", " null", ")", " {", " }", " Ünicode", " ✓", " `code`", "."
+    };
+
+    private BenchmarkData() {
+        // Utility class.
+    }
+
+    /**
+     * Builds a chunk of chat/completions (stream) containing a content-delta.
+     * @param content content of the delta
+     * @return JSON
+     */
+    static String chatChunk(String content) {
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"choices\":[{\"finish_reason\":null,\"index\":0,\"delta\":{\"content\":");
+        sb.append('"').append(content.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        sb.append("}}],\"created\":1718000000,\"id\":\"chatcmpl-Xo2nJ8Yw4Gq0pQd7\",\"model\":\"qwen2.5-coder-7b-instruct\",")
+                .append("\"system_fingerprint\":\"b4589-1a2b3c4d\",\"object\":\"chat.completion.chunk\"}");
+        return sb.toString();
+    }
+
+    /**
+     * Builds the final chunk of chat/completions containing the finish-reason, timings and usage.
+     * @return JSON
+     */
+    static String chatFinalChunk() {
+        return "{\"choices\":[{\"finish_reason\":\"stop\",\"index\":0,\"delta\":{}}],\"created\":1718000000,"
+                + "\"id\":\"chatcmpl-Xo2nJ8Yw4Gq0pQd7\",\"model\":\"qwen2.5-coder-7b-instruct\","
+                + "\"system_fingerprint\":\"b4589-1a2b3c4d\",\"object\":\"chat.completion.chunk\","
+                + "\"usage\":{\"completion_tokens\":500,\"prompt_tokens\":1834,\"total_tokens\":2334},"
+                + "\"timings\":{\"prompt_n\":210,\"prompt_ms\":95.412,\"prompt_per_token_ms\":0.454,"
+                + "\"prompt_per_second\":2201.0,\"predicted_n\":500,\"predicted_ms\":9123.5,"
+                + "\"predicted_per_token_ms\":18.247,\"predicted_per_second\":54.8,\"cache_n\":1624}}";
+    }
+
+    /**
+     * Builds an event stream of chat/completions as sent by the server.
+     * @param numTokens number of content-chunks
+     * @return bytes of the stream
+     */
+    static byte[] chatEventStream(int numTokens) {
+        final StringBuilder sb = new StringBuilder(numTokens * 300);
+        for (int i = 0; i < numTokens; i++) {
+            sb.append("data: ").append(chatChunk(WORDS[i % WORDS.length])).append("\n\n");
+        }
+        sb.append("data: ").append(chatFinalChunk()).append("\n\n");
+        sb.append("data: [DONE]\n\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a response of the given size.
+     * @param size approximate number of characters
+     * @param withThink <code>true</code> if the response starts with a think-block
+     * @return response containing a markdown-block
+     */
+    static String response(int size, boolean withThink) {
+        final StringBuilder sb = new StringBuilder(size + 100);
+        if (withThink) {
+            sb.append("<think>\n");
+            appendWords(sb, size / 2);
+            sb.append("\n</think>\n\n");
+        }
+        sb.append("Here is the changed code:\n\n```java\n");
+        appendWords(sb, size - sb.length() - 20);
+        sb.append("\n```\n");
+        return sb.toString();
+    }
+
+    /**
+     * Builds lines of source-code.
+     * @param numLines number of lines
+     * @return lines
+     */
+    static List<String> lines(int numLines) {
+        final List<String> lines = new ArrayList<>(numLines);
+        for (int i = 0; i < numLines; i++) {
+            lines.add(String.format("    final String value%d = map.get(\"key-%d\"); // (see %d)", i, i % 97, i / 10));
+        }
+        return lines;
+    }
+
+    private static void appendWords(StringBuilder sb, int len) {
+        final int end = sb.length() + len;
+        for (int i = 0; sb.length() < end; i++) {
+            sb.append(WORDS[i % WORDS.length]);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.rogmann.llm.pluginllm01;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search of the placeholder [Context] in a {@link Bm25Index} of 200 files of 500 lines
+ * and the update of a changed file (after a save).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Bm25IndexBenchmark {
+    /** number of files of the index */
+    private static final int NUM_FILES = 200;
+
+    private Bm25Index index;
+
+    private String source;
+
+    private String query;
+
+    @Setup
+    public void setup() {
+        index = new Bm25Index();
+        final List<String> lines = BenchmarkData.lines(NUM_FILES * 500);
+        for (int i = 0; i < NUM_FILES; i++) {
+            index.updateFile("/p/src/File" + i + ".java", String.join("\n", lines.subList(500 * i, 500 * (i + 1))));
+        }
+        source = String.join("\n", lines.subList(0, 500));
+        query = String.join("\n", lines.subList(12_340, 12_350));
+    }
+
+    @Benchmark
+    public List<Bm25Index.Hit> search() {
+        return index.search(query, LlmCodeIndex.MAX_SNIPPETS, null);
+    }
+
+    @Benchmark
+    public int updateFile() {
+        index.updateFile("/p/src/File0.java", source);
+        return index.getNumDocuments();
+    }
+}
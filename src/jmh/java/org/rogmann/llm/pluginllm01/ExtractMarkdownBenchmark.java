@@ -0,0 +1,54 @@
+package org.rogmann.llm.pluginllm01;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of the markdown-block of a 100 KB response by {@link MainForm#extractMarkdown(String)},
+ * with and without a leading think-block. The streamed variant feeds the response in tokens
+ * of 4 characters into a {@link MarkdownStreamExtractor} like the tasks do while receiving it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExtractMarkdownBenchmark {
+    @Param({ "false", "true" })
+    public boolean withThink;
+
+    private String response;
+
+    private String[] tokens;
+
+    @Setup
+    public void setup() {
+        response = BenchmarkData.response(100_000, withThink);
+        tokens = new String[(response.length() + 3) / 4];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = response.substring(4 * i, Math.min(response.length(), 4 * i + 4));
+        }
+    }
+
+    @Benchmark
+    public String extractMarkdown() {
+        return MainForm.extractMarkdown(response);
+    }
+
+    @Benchmark
+    public String extractStreamed() {
+        final MarkdownStreamExtractor extractor = new MarkdownStreamExtractor();
+        for (String token : tokens) {
+            if (extractor.feed(token)) {
+                break;
+            }
+        }
+        return extractor.getResult();
+    }
+}
@@ -0,0 +1,68 @@
+package org.rogmann.llm.pluginllm01;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and writing of single llama.cpp-chunks by {@link LightweightJsonHandler}
+ * compared to the path-query {@link LightweightJsonPath} used per token.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JsonHandlerBenchmark {
+    /** query of the content of a chunk */
+    private static final LightweightJsonPath QUERY_CONTENT = LightweightJsonPath.compile(
+            "$.choices[0].delta.content", "$.choices[0].finish_reason", "$.timings.prompt_n");
+
+    private String contentChunk;
+    private String finalChunk;
+    private Map<String, Object> mapContentChunk;
+    private LightweightJsonPath.Result result;
+
+    @Setup
+    public void setup() throws IOException {
+        contentChunk = BenchmarkData.chatChunk(" value");
+        finalChunk = BenchmarkData.chatFinalChunk();
+        mapContentChunk = LightweightJsonHandler.parseJsonDict(contentChunk);
+        result = QUERY_CONTENT.newResult();
+    }
+
+    @Benchmark
+    public Map<String, Object> parseContentChunk() throws IOException {
+        return LightweightJsonHandler.parseJsonDict(contentChunk);
+    }
+
+    @Benchmark
+    public Map<String, Object> parseFinalChunk() throws IOException {
+        return LightweightJsonHandler.parseJsonDict(finalChunk);
+    }
+
+    @Benchmark
+    public String scanContentChunk() {
+        QUERY_CONTENT.scan(contentChunk, result);
+        return result.getString(0);
+    }
+
+    @Benchmark
+    public int scanFinalChunk() {
+        QUERY_CONTENT.scan(finalChunk, result);
+        return result.getInt(2, -1);
+    }
+
+    @Benchmark
+    public int dumpContentChunk() {
+        final StringBuilder sb = new StringBuilder(256);
+        LightweightJsonHandler.dumpJson(sb, mapContentChunk);
+        return sb.length();
+    }
+}
@@ -0,0 +1,61 @@
+package org.rogmann.llm.pluginllm01;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of a chat-request with a prompt of 40,000 lines (about 2 MB):
+ * {@link LightweightJsonHandler#dumpJson(StringBuilder, Map)} and UTF-8 byte-array
+ * against the streamed {@link JsonRequestBody} read in chunks of 16 KB (like the HTTP-client).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JsonRequestBodyBenchmark {
+    private Map<String, Object> request;
+    private byte[] chunk;
+
+    @Setup
+    public void setup() {
+        final Map<String, Object> msg = new HashMap<>();
+        msg.put("role", "user");
+        msg.put("content", String.join("\n", BenchmarkData.lines(40_000)));
+        request = new HashMap<>();
+        request.put("cache_prompt", true);
+        request.put("stream", true);
+        request.put("messages", List.of(msg));
+        chunk = new byte[16384];
+    }
+
+    @Benchmark
+    public int dumpJsonToBytes() {
+        final StringBuilder sb = new StringBuilder();
+        LightweightJsonHandler.dumpJson(sb, request);
+        return sb.toString().getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    @Benchmark
+    public long streamRequest() throws IOException {
+        long numBytes = 0;
+        try (InputStream is = JsonRequestBody.of(request).openStream()) {
+            int len;
+            while ((len = is.read(chunk)) > 0) {
+                numBytes += len;
+            }
+        }
+        return numBytes;
+    }
+}
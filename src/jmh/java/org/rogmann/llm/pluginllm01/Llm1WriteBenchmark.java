@@ -0,0 +1,43 @@
+package org.rogmann.llm.pluginllm01;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing of a prompt of 10,000 lines into a request of the LLM1-protocol
+ * by {@link LlmBackgroundable#writeString(java.io.OutputStream, int, LlmBackgroundable.ChunkType, CharSequence)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class Llm1WriteBenchmark {
+    /** protocol-version (big-endian length or varint) */
+    @Param({ "1", "2" })
+    public int version;
+
+    private String prompt;
+    private ByteArrayOutputStream baos;
+
+    @Setup
+    public void setup() {
+        prompt = String.join("\n", BenchmarkData.lines(10_000));
+        baos = new ByteArrayOutputStream(prompt.length() + 16);
+    }
+
+    @Benchmark
+    public int writePrompt() throws IOException {
+        baos.reset();
+        LlmBackgroundable.writeString(baos, version, LlmBackgroundable.ChunkType.PROMPT, prompt);
+        return baos.size();
+    }
+}
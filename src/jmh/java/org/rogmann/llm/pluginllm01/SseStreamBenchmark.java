@@ -0,0 +1,100 @@
+package org.rogmann.llm.pluginllm01;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading of a complete event stream of chat/completions (500 tokens) as done by {@link LlmBackgroundableHttp}:
+ * the {@link SseDecoder} fed by network-sized chunks followed by the path-query of each event,
+ * compared to reading lines and parsing each event into a map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SseStreamBenchmark {
+    /** fields read from a chunk, as in {@link LlmBackgroundableHttp} */
+    private static final LightweightJsonPath QUERY_CHAT = LightweightJsonPath.compile(
+            "$.choices[0].delta.content", "$.choices[0].finish_reason",
+            "$.timings.prompt_n", "$.timings.prompt_ms", "$.timings.cache_n", "$.usage.prompt_tokens",
+            "$.timings.predicted_ms");
+
+    /** size of the chunks fed into the decoder */
+    @Param({ "1400", "16384" })
+    public int chunkSize;
+
+    private byte[] stream;
+    private LightweightJsonPath.Result result;
+
+    @Setup
+    public void setup() {
+        stream = BenchmarkData.chatEventStream(500);
+        result = QUERY_CHAT.newResult();
+    }
+
+    @Benchmark
+    public int decodeAndScan() throws IOException {
+        final StringBuilder sbResponse = new StringBuilder(4096);
+        final SseDecoder decoder = new SseDecoder((eventType, lastEventId, data) -> {
+            if ("[DONE]".contentEquals(data)) {
+                return true;
+            }
+            QUERY_CHAT.scan(data, result);
+            final String content = result.getString(0);
+            if (content != null) {
+                sbResponse.append(content);
+            }
+            return false;
+        });
+        for (int offset = 0; offset < stream.length; offset += chunkSize) {
+            if (decoder.feed(stream, offset, Math.min(chunkSize, stream.length - offset))) {
+                break;
+            }
+        }
+        return sbResponse.length();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public int readLineAndParse() throws IOException {
+        final StringBuilder sbResponse = new StringBuilder(4096);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(stream), StandardCharsets.UTF_8), chunkSize)) {
+            while (true) {
+                final String line = br.readLine();
+                if (line == null) {
+                    break;
+                }
+                if (!line.startsWith("data: ")) {
+                    continue;
+                }
+                final String data = line.substring(6);
+                if ("[DONE]".equals(data)) {
+                    break;
+                }
+                final Map<String, Object> chunk = LightweightJsonHandler.parseJsonDict(data);
+                final List<Object> choices = (List<Object>) chunk.get("choices");
+                final Map<String, Object> delta = (Map<String, Object>) ((Map<String, Object>) choices.get(0)).get("delta");
+                final Object content = delta.get("content");
+                if (content != null) {
+                    sbResponse.append(content);
+                }
+            }
+        }
+        return sbResponse.length();
+    }
+}
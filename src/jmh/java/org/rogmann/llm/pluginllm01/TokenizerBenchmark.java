@@ -0,0 +1,137 @@
+package org.rogmann.llm.pluginllm01;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting and encoding of 100 KB of source-code by the in-process {@link BpeTokenizer}.
+ * <p>
+ * The parameter <code>tokenizer</code> is the path of a <code>tokenizer.json</code> or a GGUF-file,
+ * without it a small byte-level tokenizer with merges of the words of the generated source is used.
+ * If the parameter <code>server</code> (URL of a llama.cpp-server serving the model of the tokenizer) is set,
+ * the setup compares the tokens with the endpoint <code>/tokenize</code> and fails at a mismatch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TokenizerBenchmark {
+    /** words of the generated source which are merged by the built-in tokenizer */
+    private static final String[] WORDS = {
+            "    ", " final", " String", " value", " map", ".get", "(\"", "key", "-", "\");", " //", " (", "see", ")"
+    };
+
+    /** path of the tokenizer, empty for the built-in tokenizer */
+    @Param("")
+    public String tokenizer;
+
+    /** URL of a llama.cpp-server to compare the tokens with, empty for no comparison */
+    @Param("")
+    public String server;
+
+    private BpeTokenizer bpeTokenizer;
+
+    private String text;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        bpeTokenizer = tokenizer.isEmpty() ? createTokenizer() : BpeTokenizer.load(Path.of(tokenizer));
+        text = String.join("\n", BenchmarkData.lines(1_600));
+        if (!server.isEmpty()) {
+            final int[] local = bpeTokenizer.encode(text);
+            final int[] remote = tokenizeOnServer(text);
+            if (!Arrays.equals(local, remote)) {
+                final int idx = Arrays.mismatch(local, remote);
+                throw new IllegalStateException(String.format("Mismatch at token %d: local %s, server %s", idx,
+                        Arrays.toString(Arrays.copyOfRange(local, idx, Math.min(local.length, idx + 8))),
+                        Arrays.toString(Arrays.copyOfRange(remote, idx, Math.min(remote.length, idx + 8)))));
+            }
+        }
+    }
+
+    @Benchmark
+    public int countTokens() {
+        return bpeTokenizer.countTokens(text, 0, text.length());
+    }
+
+    @Benchmark
+    public int[] encode() {
+        return bpeTokenizer.encode(text);
+    }
+
+    /**
+     * Builds a byte-level tokenizer (256 bytes and the words of {@link #WORDS} merged char by char).
+     * @return tokenizer
+     */
+    private static BpeTokenizer createTokenizer() {
+        final char[] byteToChar = new char[256];
+        int n = 0;
+        for (int b = 0; b < 256; b++) {
+            final boolean printable = (b >= '!' && b <= '~') || (b >= 0xa1 && b <= 0xac) || (b >= 0xae);
+            byteToChar[b] = printable ? (char) b : (char) (256 + n++);
+        }
+        final Map<String, Integer> vocab = new LinkedHashMap<>();
+        for (int b = 0; b < 256; b++) {
+            vocab.put(String.valueOf(byteToChar[b]), b);
+        }
+        final List<String[]> merges = new ArrayList<>();
+        for (String word : WORDS) {
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : word.getBytes(StandardCharsets.UTF_8)) {
+                final String token = String.valueOf(byteToChar[b & 0xff]);
+                if (sb.length() > 0 && !vocab.containsKey(sb + token)) {
+                    merges.add(new String[] { sb.toString(), token });
+                    vocab.put(sb + token, vocab.size());
+                }
+                sb.append(token);
+            }
+        }
+        return new BpeTokenizer(vocab.keySet().toArray(new String[0]), merges, new int[0],
+                BpeTokenizer.PATTERN_GPT2, false);
+    }
+
+    private int[] tokenizeOnServer(String content) throws IOException, InterruptedException {
+        final Map<String, Object> request = new HashMap<>();
+        request.put("content", content);
+        request.put("add_special", false);
+        final StringBuilder sb = new StringBuilder();
+        LightweightJsonHandler.dumpJson(sb, request);
+        final URI uriTokenize = URI.create(server + (server.endsWith("/") ? "" : "/") + "tokenize");
+        final HttpRequest httpRequest = HttpRequest.newBuilder(uriTokenize)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(sb.toString(), StandardCharsets.UTF_8))
+                .build();
+        final HttpResponse<String> response = HttpClient.newHttpClient().send(httpRequest,
+                HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        if (response.statusCode() != 200) {
+            throw new IOException("Server error " + response.statusCode() + ": " + response.body());
+        }
+        final List<Object> tokens = LightweightJsonHandler.getJsonArray(
+                LightweightJsonHandler.parseJsonDict(response.body()), "tokens");
+        final int[] ids = new int[tokens.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = (Integer) tokens.get(i);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,36 @@
+package org.rogmann.llm.pluginllm01.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building of a pdf-file of 10,000 lines by {@link TextToPdfMain#buildPdf(int, List)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TextToPdfBenchmark {
+    private List<String> lines;
+
+    @Setup
+    public void setup() {
+        lines = new ArrayList<>(10_000);
+        for (int i = 0; i < 10_000; i++) {
+            lines.add(String.format("    final String value%d = map.get(\"key (%d)\"); // \\ see %d", i, i % 97, i / 10));
+        }
+    }
+
+    @Benchmark
+    public byte[] buildPdf() {
+        return TextToPdfMain.buildPdf(10, lines);
+    }
+}
@@ -0,0 +1,189 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowManager;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An IntelliJ action that executes a prompt-template over the files selected in the project view.
+ * The template is the prompt of the tool-window (editable in a dialog).
+ * The placeholder [Range] of the template is replaced by the content of each file, the files are read in the
+ * background and sent concurrently (see {@link BatchPromptRunner}). The progress and the responses are shown in a tab of the
+ * tool-window, the responses can be reviewed in a multi-file diff.
+ */
+public class BatchPromptAction extends AnAction {
+
+    /** id of the tool-window */
+    private static final String TOOL_WINDOW_ID = "LlmPlugin";
+
+    public BatchPromptAction() {
+        super("Run LLM Prompt on Files...",
+              "Run a prompt-template over each selected file and review the responses in a diff",
+              null);
+    }
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) return;
+
+        VirtualFile[] files = e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY);
+        if (files == null || files.length == 0) {
+            Messages.showInfoMessage(project, "No files selected", "Info");
+            return;
+        }
+
+        final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        final String template = Messages.showMultilineInputDialog(project,
+                "Prompt-template, [Range] is replaced by the content of each file:",
+                "LLM Batch Prompt", getCurrentPrompt(project, llmSettings), null, null);
+        if (template == null) {
+            return;
+        }
+        if (!template.contains("[Range]")) {
+            Messages.showErrorDialog(project, "The prompt-template doesn't contain [Range]", "LLM Batch Prompt");
+            return;
+        }
+
+        final List<VirtualFile> textFiles = new ArrayList<>();
+        for (VirtualFile file : files) {
+            if (file.exists() && !file.isDirectory() && !file.getFileType().isBinary()) {
+                textFiles.add(file);
+            }
+        }
+        if (textFiles.isEmpty()) {
+            Messages.showInfoMessage(project, "No valid files selected", "Info");
+            return;
+        }
+
+        new Task.Backgroundable(project, "LLM batch prompt", true) {
+            /** panel of the batch, <code>null</code> if no file could be read */
+            private BatchPromptPanel batchPanel;
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                // The files are read in the background, a large selection doesn't block the EDT.
+                final List<BatchPromptRunner.Entry> entries = new ArrayList<>();
+                for (VirtualFile file : textFiles) {
+                    indicator.checkCanceled();
+                    indicator.setText("Reading " + file.getName());
+                    final String content = ReadAction.compute(() -> getContent(file));
+                    if (content != null) {
+                        entries.add(new BatchPromptRunner.Entry(file, file.getName(), content));
+                    }
+                }
+                if (entries.isEmpty()) {
+                    ApplicationManager.getApplication().invokeLater(() ->
+                            Messages.showInfoMessage(project, "No valid files selected", "Info"));
+                    return;
+                }
+
+                int concurrency = llmSettings.getBatchConcurrency();
+                if (concurrency <= 0) {
+                    // As many files as the server(s) can process in parallel.
+                    concurrency = LlmRequestScheduler.getInstance().getCapacity(MainForm.getTransport());
+                }
+                final BatchPromptRunner runner = new BatchPromptRunner(entries, concurrency,
+                        (entry, entryIndicator, tokenConsumer, statusConsumer) -> {
+                            final LlmTask llmTask = new LlmTask(LlmTaskType.PROMPT, null,
+                                    template.replace("[Range]", entry.getContent()), null, null);
+                            final AtomicReference<String> response = new AtomicReference<>();
+                            // Without editor: the server chooses the slot, the slots of the editors keep their KV-cache.
+                            MainForm.createTask(project, null, llmTask, tokenConsumer, statusConsumer, response::set,
+                                    null, null, true, LlmRequestScheduler.Priority.BATCH, true).run(entryIndicator);
+                            return response.get();
+                        });
+                ApplicationManager.getApplication().invokeAndWait(() -> {
+                    batchPanel = new BatchPromptPanel(project, runner);
+                    showPanel(project, batchPanel, String.format("Batch (%d files)", entries.size()));
+                });
+                runner.run(indicator);
+            }
+
+            @Override
+            public void onFinished() {
+                if (batchPanel != null) {
+                    batchPanel.refresh();
+                }
+            }
+        }.queue();
+    }
+
+    /**
+     * Gets the prompt of the tool-window (EDT), the default prompt of the settings if the tool-window
+     * hasn't been opened yet.
+     * @param project project
+     * @param llmSettings settings
+     * @return prompt
+     */
+    private static String getCurrentPrompt(Project project, LlmSettings llmSettings) {
+        final ToolWindow toolWindow = ToolWindowManager.getInstance(project).getToolWindow(TOOL_WINDOW_ID);
+        if (toolWindow != null) {
+            for (Content content : toolWindow.getContentManager().getContents()) {
+                final MainForm mainForm = content.getUserData(MainForm.KEY);
+                if (mainForm != null) {
+                    return mainForm.getPrompt();
+                }
+            }
+        }
+        return llmSettings.getDefaultPrompt();
+    }
+
+    /**
+     * Gets the content of a file, unsaved changes of an open document are included (read-action).
+     * @param file file
+     * @return content or <code>null</code> if the file can't be read
+     */
+    private static String getContent(VirtualFile file) {
+        final Document document = FileDocumentManager.getInstance().getDocument(file);
+        if (document != null) {
+            return document.getText();
+        }
+        try {
+            return new String(file.contentsToByteArray(), file.getCharset());
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the panel of the batch as tab of the tool-window.
+     * @param project project
+     * @param batchPanel panel
+     * @param title title of the tab
+     */
+    private static void showPanel(Project project, BatchPromptPanel batchPanel, String title) {
+        final ToolWindow toolWindow = ToolWindowManager.getInstance(project).getToolWindow(TOOL_WINDOW_ID);
+        if (toolWindow == null) {
+            return;
+        }
+        final ContentManager contentManager = toolWindow.getContentManager();
+        final Content content = contentManager.getFactory().createContent(batchPanel, title, true);
+        contentManager.addContent(content);
+        contentManager.setSelectedContent(content);
+        toolWindow.show();
+    }
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        VirtualFile[] files = e.getData(CommonDataKeys.VIRTUAL_FILE_ARRAY);
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null && files != null && files.length > 0);
+    }
+}
@@ -0,0 +1,141 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.diff.DiffContentFactory;
+import com.intellij.diff.DiffDialogHints;
+import com.intellij.diff.DiffManager;
+import com.intellij.diff.chains.SimpleDiffRequestChain;
+import com.intellij.diff.requests.SimpleDiffRequest;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Panel of the tool-window showing the files of a batch-prompt ({@link BatchPromptRunner}).
+ * Single files or the whole batch can be cancelled, the responses are shown in a multi-file diff
+ * against the documents: the user reviews and applies the changes there, nothing is written automatically.
+ */
+public class BatchPromptPanel extends JPanel {
+    /** refresh-interval in milliseconds */
+    private static final int REFRESH_INTERVAL_MS = 500;
+
+    /** columns of the table */
+    private static final String[] COLUMNS = { "File", "State", "Tokens", "Status" };
+
+    /** project */
+    private final Project project;
+    /** batch */
+    private final BatchPromptRunner runner;
+    /** model of the table, one row per file */
+    private final DefaultTableModel tableModel = new DefaultTableModel(COLUMNS, 0) {
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+    };
+    /** table of the files */
+    private final JTable table = new JTable(tableModel);
+    /** timer of the periodic refresh, running while the panel is displayable */
+    private final Timer timer;
+
+    public BatchPromptPanel(Project project, BatchPromptRunner runner) {
+        super(new BorderLayout());
+        this.project = project;
+        this.runner = runner;
+        for (BatchPromptRunner.Entry entry : runner.getEntries()) {
+            tableModel.addRow(new Object[] { entry.getName(), "", "", "" });
+        }
+        add(new JScrollPane(table), BorderLayout.CENTER);
+
+        final JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        final JButton btnCancel = new JButton("Cancel Selected");
+        btnCancel.addActionListener(e -> {
+            for (int row : table.getSelectedRows()) {
+                runner.cancel(runner.getEntries().get(table.convertRowIndexToModel(row)));
+            }
+        });
+        buttons.add(btnCancel);
+        final JButton btnCancelAll = new JButton("Cancel All");
+        btnCancelAll.addActionListener(e -> runner.cancelAll());
+        buttons.add(btnCancelAll);
+        final JButton btnDiff = new JButton("Show Diff...");
+        btnDiff.addActionListener(e -> showDiff());
+        buttons.add(btnDiff);
+        add(buttons, BorderLayout.SOUTH);
+
+        timer = new Timer(REFRESH_INTERVAL_MS, e -> {
+            if (isShowing()) {
+                refresh();
+            }
+        });
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        refresh();
+        timer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
+    /**
+     * Shows the current state of the files.
+     */
+    void refresh() {
+        final List<BatchPromptRunner.Entry> entries = runner.getEntries();
+        for (int i = 0; i < entries.size(); i++) {
+            final BatchPromptRunner.Entry entry = entries.get(i);
+            tableModel.setValueAt(entry.getState(), i, 1);
+            tableModel.setValueAt(entry.getNumTokens(), i, 2);
+            tableModel.setValueAt(entry.getStatus(), i, 3);
+        }
+    }
+
+    /**
+     * Shows the responses of the selected files (all files if none is selected) in a diff against the documents.
+     */
+    private void showDiff() {
+        final List<BatchPromptRunner.Entry> entries = runner.getEntries();
+        final int[] rows = table.getSelectedRows();
+        final List<BatchPromptRunner.Entry> selected = new ArrayList<>();
+        if (rows.length == 0) {
+            selected.addAll(entries);
+        } else {
+            for (int row : rows) {
+                selected.add(entries.get(table.convertRowIndexToModel(row)));
+            }
+        }
+        final DiffContentFactory contentFactory = DiffContentFactory.getInstance();
+        final List<SimpleDiffRequest> requests = new ArrayList<>();
+        for (BatchPromptRunner.Entry entry : selected) {
+            if (entry.getState() != BatchPromptRunner.State.DONE || !entry.getFile().isValid()) {
+                continue;
+            }
+            final Document document = FileDocumentManager.getInstance().getDocument(entry.getFile());
+            if (document == null) {
+                continue;
+            }
+            final String proposal = MainForm.extractMarkdown(entry.getResponse());
+            requests.add(new SimpleDiffRequest(entry.getName(),
+                    contentFactory.create(project, document),
+                    contentFactory.create(project, proposal, entry.getFile().getFileType()),
+                    "Current", "LLM-Response"));
+        }
+        if (requests.isEmpty()) {
+            Messages.showInfoMessage(project, "There is no response to review yet", "LLM Batch Prompt");
+            return;
+        }
+        DiffManager.getInstance().showDiff(project, new SimpleDiffRequestChain(requests), DiffDialogHints.FRAME);
+    }
+}
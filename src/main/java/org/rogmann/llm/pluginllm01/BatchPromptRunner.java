@@ -0,0 +1,262 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Executes a prompt-template over several files concurrently.
+ * <p>
+ * At most <i>concurrency</i> files are sent at the same time, the requests are batch-requests
+ * of the {@link LlmRequestScheduler}: a request of the user is served first. A batch-request cancelled
+ * in favour of the user is sent again. Each file has its own progress-indicator and can be cancelled on its own.
+ */
+final class BatchPromptRunner {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(BatchPromptRunner.class);
+
+    /** interval of the progress-update in milliseconds */
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    /**
+     * State of a file.
+     */
+    enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /**
+     * Executes the request of a file.
+     */
+    interface Executor {
+        /**
+         * Sends the prompt of a file and waits for the response.
+         * @param entry file
+         * @param indicator progress-indicator of the file
+         * @param tokenConsumer consumer of the streamed tokens
+         * @param statusConsumer consumer of status-messages
+         * @return response or <code>null</code> if there is no response
+         * @throws ProcessCanceledException if the request has been cancelled or failed
+         */
+        String execute(Entry entry, ProgressIndicator indicator, Consumer<String> tokenConsumer,
+                       Consumer<String> statusConsumer);
+    }
+
+    /**
+     * File of the batch.
+     */
+    static final class Entry {
+        /** file (<code>null</code> in tests) */
+        private final VirtualFile file;
+        /** display-name */
+        private final String name;
+        /** content of the file when the batch was started */
+        private final String content;
+        /** number of received tokens */
+        private final AtomicInteger numTokens = new AtomicInteger();
+        /** state */
+        private volatile State state = State.QUEUED;
+        /** last status-message */
+        private volatile String status = "";
+        /** response */
+        private volatile String response;
+        /** number of preemptions in favour of a request of the user */
+        private volatile int numPreemptions;
+        /** progress-indicator of the current request */
+        private ProgressIndicator indicator;
+        /** <code>true</code> if the file has been cancelled by the user */
+        private boolean cancelled;
+
+        Entry(VirtualFile file, String name, String content) {
+            this.file = file;
+            this.name = name;
+            this.content = content;
+        }
+
+        VirtualFile getFile() {
+            return file;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getContent() {
+            return content;
+        }
+
+        int getNumTokens() {
+            return numTokens.get();
+        }
+
+        State getState() {
+            return state;
+        }
+
+        String getStatus() {
+            return status;
+        }
+
+        String getResponse() {
+            return response;
+        }
+
+        int getNumPreemptions() {
+            return numPreemptions;
+        }
+    }
+
+    /** files */
+    private final List<Entry> entries;
+    /** maximum number of files in progress */
+    private final int concurrency;
+    /** executor of the requests */
+    private final Executor executor;
+    /** <code>true</code> if the whole batch has been cancelled */
+    private volatile boolean cancelledAll;
+
+    /**
+     * Constructor
+     * @param entries files
+     * @param concurrency maximum number of files in progress
+     * @param executor executor of the requests
+     */
+    BatchPromptRunner(List<Entry> entries, int concurrency, Executor executor) {
+        this.entries = List.copyOf(entries);
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = executor;
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Executes the batch, the method returns when all files are done, failed or cancelled.
+     * @param indicator progress-indicator of the batch, a cancellation cancels all files
+     */
+    void run(ProgressIndicator indicator) {
+        final ExecutorService pool = AppExecutorUtil.createBoundedApplicationPoolExecutor("LLM batch prompt", concurrency);
+        final CountDownLatch latch = new CountDownLatch(entries.size());
+        try {
+            for (Entry entry : entries) {
+                pool.execute(() -> {
+                    try {
+                        process(entry);
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            indicator.setIndeterminate(false);
+            do {
+                if (indicator.isCanceled()) {
+                    cancelAll();
+                }
+                final int numFinished = getNumFinished();
+                indicator.setFraction((double) numFinished / entries.size());
+                indicator.setText(String.format("LLM batch prompt: %d of %d files", numFinished, entries.size()));
+            } while (!latch.await(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancelAll();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Executes the request of a file, a preempted request is sent again.
+     * @param entry file
+     */
+    private void process(Entry entry) {
+        while (true) {
+            final ProgressIndicator indicator = new EmptyProgressIndicator();
+            synchronized (entry) {
+                if (entry.cancelled || cancelledAll) {
+                    entry.state = State.CANCELLED;
+                    return;
+                }
+                entry.indicator = indicator;
+                entry.state = State.RUNNING;
+            }
+            entry.numTokens.set(0);
+            try {
+                final String response = executor.execute(entry, indicator,
+                        token -> entry.numTokens.incrementAndGet(), status -> entry.status = status);
+                entry.response = response;
+                entry.state = (response != null) ? State.DONE : State.FAILED;
+                return;
+            } catch (ProcessCanceledException e) {
+                synchronized (entry) {
+                    if (entry.cancelled || cancelledAll) {
+                        entry.state = State.CANCELLED;
+                        return;
+                    }
+                    if (!indicator.isCanceled()) {
+                        entry.state = State.FAILED;
+                        return;
+                    }
+                }
+                // Cancelled by the scheduler in favour of a request of the user.
+                entry.numPreemptions++;
+                entry.state = State.QUEUED;
+                entry.status = "Preempted, sent again";
+                LOGGER.info("Batch-request of " + entry.name + " preempted, sent again");
+            } catch (RuntimeException e) {
+                LOGGER.warn("Batch-request of " + entry.name + " failed", e);
+                entry.status = e.toString();
+                entry.state = State.FAILED;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cancels a file.
+     * @param entry file
+     */
+    void cancel(Entry entry) {
+        synchronized (entry) {
+            entry.cancelled = true;
+            if (entry.indicator != null) {
+                entry.indicator.cancel();
+            }
+        }
+    }
+
+    /**
+     * Cancels all files not done yet.
+     */
+    void cancelAll() {
+        cancelledAll = true;
+        for (Entry entry : entries) {
+            cancel(entry);
+        }
+    }
+
+    /**
+     * Gets the number of files which are done, failed or cancelled.
+     * @return number of finished files
+     */
+    int getNumFinished() {
+        int numFinished = 0;
+        for (Entry entry : entries) {
+            final State state = entry.state;
+            if (state == State.DONE || state == State.FAILED || state == State.CANCELLED) {
+                numFinished++;
+            }
+        }
+        return numFinished;
+    }
+}
@@ -0,0 +1,478 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Lexical index of the sources of a project: an inverted index with BM25-ranking.
+ * <p>
+ * A file is split into chunks of {@link #CHUNK_LINES} lines, each chunk is a document of the index.
+ * The terms are the identifiers of the source split at camel-case and underscores (e.g. <code>parseIgnorePatterns</code>
+ * gives <code>parseignorepatterns</code>, <code>parse</code>, <code>ignore</code>, <code>patterns</code>).
+ * A postings-list is a primitive array of pairs (document, term-frequency).
+ * <p>
+ * A changed file is updated by removing its documents and appending the new ones: removed documents are
+ * tombstones which are skipped while searching, the postings are compacted when more than half
+ * of the documents are tombstones. The index is thread-safe, searches run in parallel to each other.
+ */
+final class Bm25Index {
+    /** number of lines of a chunk */
+    static final int CHUNK_LINES = 40;
+
+    /** BM25: saturation of the term-frequency */
+    private static final float K1 = 1.2f;
+    /** BM25: normalization of the document-length */
+    private static final float B = 0.75f;
+
+    /** minimum length of a term */
+    private static final int MIN_TERM_LENGTH = 2;
+    /** maximum length of a term */
+    private static final int MAX_TERM_LENGTH = 64;
+    /** minimum number of tombstones before a compaction */
+    private static final int MIN_TOMBSTONES_COMPACTION = 1024;
+
+    /**
+     * Chunk of a file.
+     * @param path path of the file
+     * @param startLine first line (0-based)
+     * @param endLine line after the chunk (0-based, exclusive)
+     * @param text text of the chunk
+     */
+    record Chunk(String path, int startLine, int endLine, String text) {
+        /**
+         * Checks if the chunk overlaps a range of lines of a file.
+         * @param otherPath path of the file
+         * @param otherStart first line (0-based)
+         * @param otherEnd line after the range (exclusive)
+         * @return <code>true</code> if overlapping
+         */
+        boolean overlaps(String otherPath, int otherStart, int otherEnd) {
+            return path.equals(otherPath) && startLine < otherEnd && otherStart < endLine;
+        }
+    }
+
+    /**
+     * Result of a search.
+     * @param chunk chunk
+     * @param score BM25-score
+     */
+    record Hit(Chunk chunk, float score) { }
+
+    /**
+     * Postings of a term: pairs of document-id and term-frequency, ascending by document-id.
+     */
+    private static final class Postings {
+        /** document-ids and frequencies (alternating) */
+        int[] data = new int[4];
+        /** number of used ints */
+        int size;
+        /** number of live documents containing the term */
+        int df;
+
+        void add(int docId, int tf) {
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = docId;
+            data[size++] = tf;
+            df++;
+        }
+    }
+
+    /** lock of the index */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /** postings by term */
+    private final Map<String, Postings> postings = new HashMap<>();
+    /** documents by id, <code>null</code> if removed */
+    private Chunk[] docs = new Chunk[256];
+    /** number of terms of a document */
+    private int[] docLengths = new int[256];
+    /** number of document-ids used */
+    private int numDocIds;
+    /** number of live documents */
+    private int numDocs;
+    /** sum of the lengths of the live documents */
+    private long totalLength;
+    /** document-ids by path */
+    private final Map<String, int[]> docsByPath = new HashMap<>();
+
+    /**
+     * Adds or replaces the documents of a file.
+     * @param path path of the file
+     * @param text content of the file
+     * @return chunks of the file
+     */
+    List<Chunk> updateFile(String path, CharSequence text) {
+        final List<Chunk> chunks = split(path, text);
+        final List<Map<String, Integer>> termFreqs = new ArrayList<>(chunks.size());
+        for (Chunk chunk : chunks) {
+            termFreqs.add(countTerms(chunk.text()));
+        }
+        lock.writeLock().lock();
+        try {
+            removeFileLocked(path);
+            final int[] docIds = new int[chunks.size()];
+            for (int i = 0; i < chunks.size(); i++) {
+                docIds[i] = addDocument(chunks.get(i), termFreqs.get(i));
+            }
+            if (docIds.length > 0) {
+                docsByPath.put(path, docIds);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return chunks;
+    }
+
+    /**
+     * Calls a consumer with the chunks of each indexed file.
+     * @param consumer consumer of path and chunks
+     */
+    void forEachFile(BiConsumer<String, List<Chunk>> consumer) {
+        final Map<String, List<Chunk>> files = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, int[]> entry : docsByPath.entrySet()) {
+                final List<Chunk> chunks = new ArrayList<>(entry.getValue().length);
+                for (int docId : entry.getValue()) {
+                    chunks.add(docs[docId]);
+                }
+                files.put(entry.getKey(), chunks);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        files.forEach(consumer);
+    }
+
+    /**
+     * Removes the documents of a file.
+     * @param path path of the file
+     */
+    void removeFile(String path) {
+        lock.writeLock().lock();
+        try {
+            removeFileLocked(path);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the documents of the files matching a predicate, e.g. the files of a deleted directory.
+     * @param paths predicate of the paths
+     */
+    void removeFiles(Predicate<String> paths) {
+        lock.writeLock().lock();
+        try {
+            for (String path : new ArrayList<>(docsByPath.keySet())) {
+                if (paths.test(path)) {
+                    removeFileLocked(path);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the documents of all files.
+     */
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            docsByPath.clear();
+            Arrays.fill(docs, 0, numDocIds, null);
+            numDocIds = 0;
+            numDocs = 0;
+            totalLength = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of indexed chunks.
+     * @return number of documents
+     */
+    int getNumDocuments() {
+        lock.readLock().lock();
+        try {
+            return numDocs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of indexed files.
+     * @return number of files
+     */
+    int getNumFiles() {
+        lock.readLock().lock();
+        try {
+            return docsByPath.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches the chunks matching a query, e.g. the selected code.
+     * @param query query, tokenized like the documents
+     * @param k maximum number of hits
+     * @param filter filter of the chunks, e.g. to exclude the selection itself
+     * @return hits, best hit first
+     */
+    List<Hit> search(CharSequence query, int k, Predicate<Chunk> filter) {
+        final Set<String> queryTerms = new LinkedHashSet<>(countTerms(query).keySet());
+        if (queryTerms.isEmpty() || k <= 0) {
+            return List.of();
+        }
+        lock.readLock().lock();
+        try {
+            if (numDocs == 0) {
+                return List.of();
+            }
+            final float avgLength = (float) totalLength / numDocs;
+            final float[] scores = new float[numDocIds];
+            final int[] touched = new int[numDocIds];
+            int numTouched = 0;
+            for (String term : queryTerms) {
+                final Postings p = postings.get(term);
+                if (p == null || p.df == 0) {
+                    continue;
+                }
+                final float idf = (float) Math.log(1 + (numDocs - p.df + 0.5) / (p.df + 0.5));
+                final int[] data = p.data;
+                for (int i = 0; i < p.size; i += 2) {
+                    final int docId = data[i];
+                    if (docs[docId] == null) {
+                        continue;
+                    }
+                    final int tf = data[i + 1];
+                    final float norm = K1 * (1 - B + B * docLengths[docId] / avgLength);
+                    if (scores[docId] == 0) {
+                        touched[numTouched++] = docId;
+                    }
+                    scores[docId] += idf * tf * (K1 + 1) / (tf + norm);
+                }
+            }
+
+            // Bounded min-heap of the best k documents.
+            final PriorityQueue<Hit> heap = new PriorityQueue<>(k + 1, (a, b) -> Float.compare(a.score(), b.score()));
+            for (int i = 0; i < numTouched; i++) {
+                final int docId = touched[i];
+                final float score = scores[docId];
+                if (heap.size() == k && score <= heap.peek().score()) {
+                    continue;
+                }
+                final Chunk chunk = docs[docId];
+                if (filter != null && !filter.test(chunk)) {
+                    continue;
+                }
+                heap.add(new Hit(chunk, score));
+                if (heap.size() > k) {
+                    heap.poll();
+                }
+            }
+            final Hit[] hits = new Hit[heap.size()];
+            for (int i = hits.length - 1; i >= 0; i--) {
+                hits[i] = heap.poll();
+            }
+            return List.of(hits);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int addDocument(Chunk chunk, Map<String, Integer> termFreqs) {
+        if (numDocIds == docs.length) {
+            docs = Arrays.copyOf(docs, docs.length * 2);
+            docLengths = Arrays.copyOf(docLengths, docLengths.length * 2);
+        }
+        final int docId = numDocIds++;
+        int length = 0;
+        for (Map.Entry<String, Integer> entry : termFreqs.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), t -> new Postings()).add(docId, entry.getValue());
+            length += entry.getValue();
+        }
+        docs[docId] = chunk;
+        docLengths[docId] = length;
+        numDocs++;
+        totalLength += length;
+        return docId;
+    }
+
+    private void removeFileLocked(String path) {
+        final int[] docIds = docsByPath.remove(path);
+        if (docIds == null) {
+            return;
+        }
+        for (int docId : docIds) {
+            for (String term : countTerms(docs[docId].text()).keySet()) {
+                final Postings p = postings.get(term);
+                if (p != null && --p.df == 0) {
+                    postings.remove(term);
+                }
+            }
+            docs[docId] = null;
+            numDocs--;
+            totalLength -= docLengths[docId];
+        }
+        final int numTombstones = numDocIds - numDocs;
+        if (numTombstones >= MIN_TOMBSTONES_COMPACTION && numTombstones > numDocs) {
+            compact();
+        }
+    }
+
+    /**
+     * Removes the tombstones: the live documents get new ids.
+     */
+    private void compact() {
+        final int[] newIds = new int[numDocIds];
+        int next = 0;
+        for (int docId = 0; docId < numDocIds; docId++) {
+            if (docs[docId] != null) {
+                newIds[docId] = next;
+                docs[next] = docs[docId];
+                docLengths[next] = docLengths[docId];
+                next++;
+            } else {
+                newIds[docId] = -1;
+            }
+        }
+        Arrays.fill(docs, next, numDocIds, null);
+        numDocIds = next;
+        for (Postings p : postings.values()) {
+            int size = 0;
+            for (int i = 0; i < p.size; i += 2) {
+                final int newId = newIds[p.data[i]];
+                if (newId >= 0) {
+                    p.data[size++] = newId;
+                    p.data[size++] = p.data[i + 1];
+                }
+            }
+            p.size = size;
+        }
+        for (int[] docIds : docsByPath.values()) {
+            for (int i = 0; i < docIds.length; i++) {
+                docIds[i] = newIds[docIds[i]];
+            }
+        }
+    }
+
+    /**
+     * Splits a file into chunks of {@link #CHUNK_LINES} lines.
+     * @param path path of the file
+     * @param text content
+     * @return chunks
+     */
+    static List<Chunk> split(String path, CharSequence text) {
+        final List<Chunk> chunks = new ArrayList<>();
+        final int len = text.length();
+        int start = 0;
+        int line = 0;
+        while (start < len) {
+            int end = start;
+            int numLines = 0;
+            while (end < len && numLines < CHUNK_LINES) {
+                if (text.charAt(end++) == '\n') {
+                    numLines++;
+                }
+            }
+            if (end == len && (len == 0 || text.charAt(len - 1) != '\n')) {
+                numLines++;
+            }
+            chunks.add(new Chunk(path, line, line + numLines, text.subSequence(start, end).toString()));
+            line += numLines;
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Counts the terms of a text: identifiers (lower-case) and their parts split at camel-case,
+     * underscores and digits (an identifier consisting of a single part is counted once).
+     * @param text text
+     * @return frequency by term
+     */
+    static Map<String, Integer> countTerms(CharSequence text) {
+        final Map<String, Integer> freqs = new HashMap<>();
+        final int len = text.length();
+        int pos = 0;
+        while (pos < len) {
+            if (!Character.isLetter(text.charAt(pos))) {
+                pos++;
+                continue;
+            }
+            int end = pos;
+            boolean onlyLetters = true;
+            while (end < len && (Character.isLetterOrDigit(text.charAt(end)) || text.charAt(end) == '_')) {
+                onlyLetters &= Character.isLetter(text.charAt(end));
+                end++;
+            }
+            final int numParts = addParts(text, pos, end, freqs);
+            if (numParts > 1 || !onlyLetters) {
+                // The identifier itself, e.g. "getEntry" or "utf8".
+                addTerm(text, pos, end, freqs);
+            }
+            pos = end;
+        }
+        return freqs;
+    }
+
+    /**
+     * Adds the parts of an identifier: <code>HTTPServer_port2</code> gives <code>http</code>,
+     * <code>server</code>, <code>port</code>.
+     * @return number of parts
+     */
+    private static int addParts(CharSequence text, int start, int end, Map<String, Integer> freqs) {
+        int numParts = 0;
+        int partStart = -1;
+        for (int i = start; i <= end; i++) {
+            final char c = (i < end) ? text.charAt(i) : '_';
+            final boolean isLetter = Character.isLetter(c);
+            boolean boundary = !isLetter;
+            if (isLetter && partStart >= 0 && i > partStart && Character.isUpperCase(c)) {
+                final char prev = text.charAt(i - 1);
+                // "aB" starts a part, "ABc" starts a part at "B".
+                boundary = Character.isLowerCase(prev)
+                        || (i + 1 < end && Character.isLowerCase(text.charAt(i + 1)));
+            }
+            if (boundary && partStart >= 0) {
+                if (addTerm(text, partStart, i, freqs)) {
+                    numParts++;
+                }
+                partStart = -1;
+            }
+            if (isLetter && partStart < 0) {
+                partStart = i;
+            }
+        }
+        return numParts;
+    }
+
+    private static boolean addTerm(CharSequence text, int start, int end, Map<String, Integer> freqs) {
+        final int len = end - start;
+        if (len < MIN_TERM_LENGTH || len > MAX_TERM_LENGTH) {
+            return false;
+        }
+        final char[] term = new char[len];
+        for (int i = 0; i < len; i++) {
+            term[i] = Character.toLowerCase(text.charAt(start + i));
+        }
+        freqs.merge(new String(term), 1, Integer::sum);
+        return true;
+    }
+}
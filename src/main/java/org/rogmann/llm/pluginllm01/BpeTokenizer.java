@@ -0,0 +1,831 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Byte-level BPE-tokenizer (GPT-2 style, e.g. Qwen2.5-Coder, Llama 3, StarCoder, DeepSeek-Coder).
+ * <p>
+ * The vocabulary is read from a <code>tokenizer.json</code> (Hugging Face) or from the metadata of a GGUF-file.
+ * The tokens are kept as bytes in one array, the vocabulary and the merges are open-addressing hash-tables
+ * of primitive ints and longs (no boxed maps). A text is split by the pre-tokenizer regex of the model,
+ * the bytes of a piece are merged by a priority-queue of the adjacent pairs (ordered by rank,
+ * then by position), so each merge costs O(log n) instead of a rescan of the piece.
+ * <p>
+ * Special tokens (e.g. <code>&lt;|fim_prefix|&gt;</code>) are matched literally before the pre-tokenizer.
+ * The tokenizer is immutable and thread-safe.
+ */
+class BpeTokenizer implements FimContextExtractor.TokenCounter {
+    /** pre-tokenizer of GPT-2 */
+    static final String PATTERN_GPT2 = "'s|'t|'re|'ve|'m|'ll|'d| ?\\p{L}+| ?\\p{N}+| ?[^\\s\\p{L}\\p{N}]+|\\s+(?!\\S)|\\s+";
+    /** pre-tokenizer of Qwen2 */
+    static final String PATTERN_QWEN2 = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}"
+            + "| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    /** pre-tokenizer of Llama 3 */
+    static final String PATTERN_LLAMA3 = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}"
+            + "| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+
+    /** magic number of a GGUF-file ("GGUF" little-endian) */
+    private static final int GGUF_MAGIC = 0x46554747;
+    /** GGUF value-types */
+    private static final int GGUF_UINT8 = 0;
+    private static final int GGUF_INT8 = 1;
+    private static final int GGUF_UINT16 = 2;
+    private static final int GGUF_INT16 = 3;
+    private static final int GGUF_UINT32 = 4;
+    private static final int GGUF_INT32 = 5;
+    private static final int GGUF_FLOAT32 = 6;
+    private static final int GGUF_BOOL = 7;
+    private static final int GGUF_STRING = 8;
+    private static final int GGUF_ARRAY = 9;
+    private static final int GGUF_UINT64 = 10;
+    private static final int GGUF_INT64 = 11;
+    private static final int GGUF_FLOAT64 = 12;
+    /** GGUF token-types of special tokens (control, user-defined) */
+    private static final int GGUF_TOKEN_CONTROL = 3;
+    private static final int GGUF_TOKEN_USER_DEFINED = 4;
+
+    /** empty slot of the merge-table */
+    private static final long NO_PAIR = -1L;
+
+    /** byte to char of the byte-level encoding */
+    private static final char[] BYTE_TO_CHAR = new char[256];
+    /** char of the byte-level encoding to byte, -1 if not a byte-level char */
+    private static final short[] CHAR_TO_BYTE = new short[512];
+
+    static {
+        Arrays.fill(CHAR_TO_BYTE, (short) -1);
+        int n = 0;
+        for (int b = 0; b < 256; b++) {
+            final boolean printable = (b >= '!' && b <= '~') || (b >= 0xa1 && b <= 0xac) || (b >= 0xae);
+            final char c = printable ? (char) b : (char) (256 + n++);
+            BYTE_TO_CHAR[b] = c;
+            CHAR_TO_BYTE[c] = (short) b;
+        }
+    }
+
+    /** bytes of all tokens */
+    private final byte[] tokenBytes;
+    /** start-offsets of the tokens in tokenBytes (number of tokens + 1 entries) */
+    private final int[] tokenOffsets;
+    /** hash-table of the vocabulary: token-id + 1, 0 = empty */
+    private final int[] vocabSlots;
+    /** token-id of each single byte, -1 if not in the vocabulary */
+    private final int[] byteTokens = new int[256];
+
+    /** hash-table of the merges: pair (left-id, right-id) */
+    private final long[] mergePairs;
+    /** rank of a merge */
+    private final int[] mergeRanks;
+    /** token-id of the result of a merge */
+    private final int[] mergeResults;
+
+    /** pre-tokenizer */
+    private final Pattern preTokenizer;
+    /** <code>true</code> if a piece which is in the vocabulary is used without merging */
+    private final boolean ignoreMerges;
+    /** pattern of the special tokens or <code>null</code> */
+    private final Pattern specialTokens;
+    /** token-ids of the special tokens (in the order of the groups of the pattern) */
+    private final int[] specialIds;
+
+    /**
+     * Constructor
+     * @param vocab tokens in byte-level encoding indexed by id (<code>null</code> for unused ids)
+     * @param merges merges, each one a pair of tokens in byte-level encoding, ordered by rank
+     * @param specials special tokens (ids)
+     * @param regex pre-tokenizer regex
+     * @param ignoreMerges <code>true</code> if a piece which is a token isn't merged (e.g. Llama 3)
+     */
+    BpeTokenizer(String[] vocab, List<String[]> merges, int[] specials, String regex, boolean ignoreMerges) {
+        this.ignoreMerges = ignoreMerges;
+        final int numTokens = vocab.length;
+        tokenOffsets = new int[numTokens + 1];
+        final byte[][] decoded = new byte[numTokens][];
+        int totalLen = 0;
+        for (int id = 0; id < numTokens; id++) {
+            decoded[id] = (vocab[id] != null) ? toBytes(vocab[id]) : new byte[0];
+            tokenOffsets[id] = totalLen;
+            totalLen += decoded[id].length;
+        }
+        tokenOffsets[numTokens] = totalLen;
+        tokenBytes = new byte[totalLen];
+        for (int id = 0; id < numTokens; id++) {
+            System.arraycopy(decoded[id], 0, tokenBytes, tokenOffsets[id], decoded[id].length);
+        }
+
+        vocabSlots = new int[tableSize(numTokens)];
+        for (int id = 0; id < numTokens; id++) {
+            if (vocab[id] != null && lookup(tokenBytes, tokenOffsets[id], decoded[id].length) < 0) {
+                insertToken(id);
+            }
+        }
+        final byte[] singleByte = new byte[1];
+        for (int b = 0; b < 256; b++) {
+            singleByte[0] = (byte) b;
+            byteTokens[b] = lookup(singleByte, 0, 1);
+        }
+
+        final int sizeMerges = tableSize(merges.size());
+        mergePairs = new long[sizeMerges];
+        mergeRanks = new int[sizeMerges];
+        mergeResults = new int[sizeMerges];
+        Arrays.fill(mergePairs, NO_PAIR);
+        byte[] buf = new byte[64];
+        for (int rank = 0; rank < merges.size(); rank++) {
+            final byte[] left = toBytes(merges.get(rank)[0]);
+            final byte[] right = toBytes(merges.get(rank)[1]);
+            final int idLeft = lookup(left, 0, left.length);
+            final int idRight = lookup(right, 0, right.length);
+            if (buf.length < left.length + right.length) {
+                buf = new byte[2 * (left.length + right.length)];
+            }
+            System.arraycopy(left, 0, buf, 0, left.length);
+            System.arraycopy(right, 0, buf, left.length, right.length);
+            final int idResult = lookup(buf, 0, left.length + right.length);
+            if (idLeft >= 0 && idRight >= 0 && idResult >= 0) {
+                insertMerge(idLeft, idRight, rank, idResult);
+            }
+        }
+
+        preTokenizer = Pattern.compile(regex, Pattern.UNICODE_CHARACTER_CLASS);
+        specialIds = specials.clone();
+        final StringBuilder sbSpecials = new StringBuilder();
+        for (int i = 0; i < specials.length; i++) {
+            final String specialText = new String(tokenBytes, tokenOffsets[specials[i]],
+                    tokenOffsets[specials[i] + 1] - tokenOffsets[specials[i]], StandardCharsets.UTF_8);
+            sbSpecials.append((i > 0) ? "|" : "").append('(').append(Pattern.quote(specialText)).append(')');
+        }
+        specialTokens = (specials.length > 0) ? Pattern.compile(sbSpecials.toString()) : null;
+    }
+
+    /**
+     * Loads a tokenizer from a <code>tokenizer.json</code> or a GGUF-file.
+     * @param file file
+     * @return tokenizer
+     * @throws IOException if the file can't be read or doesn't contain a byte-level BPE-tokenizer
+     */
+    static BpeTokenizer load(Path file) throws IOException {
+        final byte[] magic = new byte[4];
+        try (InputStream is = Files.newInputStream(file)) {
+            if (is.readNBytes(magic, 0, 4) == 4 && readIntLe(magic) == GGUF_MAGIC) {
+                return loadGguf(file);
+            }
+        }
+        return loadTokenizerJson(file);
+    }
+
+    /**
+     * Loads the tokenizer of a <code>tokenizer.json</code>.
+     * @param file tokenizer.json
+     * @return tokenizer
+     * @throws IOException in case of an IO-error or an unsupported tokenizer
+     */
+    static BpeTokenizer loadTokenizerJson(Path file) throws IOException {
+        final Map<String, Object> json;
+        try (Reader reader = new BufferedReader(Files.newBufferedReader(file, StandardCharsets.UTF_8), 65536)) {
+            LightweightJsonHandler.readChar(reader, true, '{');
+            json = LightweightJsonHandler.parseJsonDict(reader);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid JSON in " + file + ": " + e.getMessage(), e);
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> model = LightweightJsonHandler.getJsonValue(json, "model", Map.class);
+        if (model == null || !"BPE".equals(model.get("type"))) {
+            throw new IOException("No BPE-model in " + file);
+        }
+        if (!String.valueOf(json.get("pre_tokenizer")).contains("ByteLevel")) {
+            throw new IOException("Only byte-level BPE-tokenizers are supported: " + file);
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> vocabMap = LightweightJsonHandler.getJsonValue(model, "vocab", Map.class);
+        final List<Map<String, Object>> addedTokens = (json.get("added_tokens") instanceof List)
+                ? LightweightJsonHandler.getJsonArrayDicts(json, "added_tokens") : List.of();
+        int maxId = -1;
+        for (Object id : vocabMap.values()) {
+            maxId = Math.max(maxId, (Integer) id);
+        }
+        for (Map<String, Object> addedToken : addedTokens) {
+            maxId = Math.max(maxId, (Integer) addedToken.get("id"));
+        }
+        final String[] vocab = new String[maxId + 1];
+        for (Map.Entry<String, Object> entry : vocabMap.entrySet()) {
+            vocab[(Integer) entry.getValue()] = entry.getKey();
+        }
+        final int[] specials = new int[addedTokens.size()];
+        int numSpecials = 0;
+        for (Map<String, Object> addedToken : addedTokens) {
+            final int id = (Integer) addedToken.get("id");
+            // Added tokens are stored as plain text, not in byte-level encoding.
+            vocab[id] = toByteLevel((String) addedToken.get("content"));
+            if (Boolean.TRUE.equals(addedToken.get("special"))) {
+                specials[numSpecials++] = id;
+            }
+        }
+
+        final List<String[]> merges = new ArrayList<>();
+        for (Object merge : LightweightJsonHandler.getJsonArray(model, "merges")) {
+            if (merge instanceof List<?> pair) {
+                merges.add(new String[] { (String) pair.get(0), (String) pair.get(1) });
+            } else {
+                merges.add(splitMerge((String) merge));
+            }
+        }
+        final String regex = findRegex(json.get("pre_tokenizer"));
+        try {
+            return new BpeTokenizer(vocab, merges, Arrays.copyOf(specials, numSpecials),
+                    (regex != null) ? regex : PATTERN_GPT2, Boolean.TRUE.equals(model.get("ignore_merges")));
+        } catch (PatternSyntaxException e) {
+            throw new IOException("Unsupported pre-tokenizer regex in " + file + ": " + regex, e);
+        }
+    }
+
+    /**
+     * Searches the regex of a split-pre-tokenizer, e.g. <code>{"type":"Split","pattern":{"Regex":"..."}, ...}</code>.
+     * @param preTokenizer pre-tokenizer (JSON-value)
+     * @return regex or <code>null</code>
+     */
+    private static String findRegex(Object preTokenizer) {
+        if (preTokenizer instanceof Map<?, ?> map) {
+            if (map.get("Regex") instanceof String regex) {
+                return regex;
+            }
+            for (Object value : map.values()) {
+                final String regex = findRegex(value);
+                if (regex != null) {
+                    return regex;
+                }
+            }
+        } else if (preTokenizer instanceof List<?> list) {
+            for (Object value : list) {
+                final String regex = findRegex(value);
+                if (regex != null) {
+                    return regex;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads the tokenizer of the metadata of a GGUF-file (the tensors are not read).
+     * @param file GGUF-file
+     * @return tokenizer
+     * @throws IOException in case of an IO-error or an unsupported tokenizer
+     */
+    static BpeTokenizer loadGguf(Path file) throws IOException {
+        String model = null;
+        String pre = null;
+        String[] tokens = null;
+        String[] merges = null;
+        int[] tokenTypes = null;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+            if (Integer.reverseBytes(dis.readInt()) != GGUF_MAGIC) {
+                throw new IOException("No GGUF-file: " + file);
+            }
+            final int version = Integer.reverseBytes(dis.readInt());
+            if (version < 2) {
+                throw new IOException("Unsupported GGUF-version " + version + ": " + file);
+            }
+            Long.reverseBytes(dis.readLong()); // number of tensors
+            final long numKeys = Long.reverseBytes(dis.readLong());
+            for (long i = 0; i < numKeys; i++) {
+                final String key = readGgufString(dis);
+                final int type = Integer.reverseBytes(dis.readInt());
+                switch (key) {
+                    case "tokenizer.ggml.model" -> model = (String) readGgufValue(dis, type);
+                    case "tokenizer.ggml.pre" -> pre = (String) readGgufValue(dis, type);
+                    case "tokenizer.ggml.tokens" -> tokens = (String[]) readGgufValue(dis, type);
+                    case "tokenizer.ggml.merges" -> merges = (String[]) readGgufValue(dis, type);
+                    case "tokenizer.ggml.token_type" -> tokenTypes = (int[]) readGgufValue(dis, type);
+                    default -> skipGgufValue(dis, type);
+                }
+            }
+        } catch (ClassCastException e) {
+            throw new IOException("Unexpected type of tokenizer-metadata in " + file, e);
+        }
+        if (!"gpt2".equals(model) || tokens == null || merges == null) {
+            throw new IOException(String.format("Only byte-level BPE-tokenizers (gpt2) are supported, model=%s: %s", model, file));
+        }
+        int numSpecials = 0;
+        final int[] specials = new int[tokens.length];
+        for (int id = 0; tokenTypes != null && id < tokenTypes.length; id++) {
+            if (tokenTypes[id] == GGUF_TOKEN_CONTROL || tokenTypes[id] == GGUF_TOKEN_USER_DEFINED) {
+                specials[numSpecials++] = id;
+            }
+        }
+        final List<String[]> mergeList = new ArrayList<>(merges.length);
+        for (String merge : merges) {
+            mergeList.add(splitMerge(merge));
+        }
+        final String regex = switch (String.valueOf(pre)) {
+            case "qwen2" -> PATTERN_QWEN2;
+            case "llama3", "llama-bpe", "smaug-bpe" -> PATTERN_LLAMA3;
+            default -> PATTERN_GPT2;
+        };
+        final boolean ignoreMerges = regex.equals(PATTERN_LLAMA3);
+        return new BpeTokenizer(tokens, mergeList, Arrays.copyOf(specials, numSpecials), regex, ignoreMerges);
+    }
+
+    private static String readGgufString(DataInputStream dis) throws IOException {
+        final long len = Long.reverseBytes(dis.readLong());
+        if (len < 0 || len > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length of GGUF-string: " + len);
+        }
+        final byte[] buf = new byte[(int) len];
+        dis.readFully(buf);
+        return new String(buf, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a string, an integer or an array of strings or integers.
+     */
+    private static Object readGgufValue(DataInputStream dis, int type) throws IOException {
+        switch (type) {
+            case GGUF_STRING:
+                return readGgufString(dis);
+            case GGUF_INT32:
+            case GGUF_UINT32:
+                return Integer.reverseBytes(dis.readInt());
+            case GGUF_ARRAY:
+                final int elementType = Integer.reverseBytes(dis.readInt());
+                final long len = Long.reverseBytes(dis.readLong());
+                if (len < 0 || len > Integer.MAX_VALUE) {
+                    throw new IOException("Invalid length of GGUF-array: " + len);
+                }
+                if (elementType == GGUF_STRING) {
+                    final String[] values = new String[(int) len];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = readGgufString(dis);
+                    }
+                    return values;
+                }
+                if (elementType == GGUF_INT32 || elementType == GGUF_UINT32) {
+                    final int[] values = new int[(int) len];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = Integer.reverseBytes(dis.readInt());
+                    }
+                    return values;
+                }
+                for (long i = 0; i < len; i++) {
+                    skipGgufValue(dis, elementType);
+                }
+                return null;
+            default:
+                skipGgufValue(dis, type);
+                return null;
+        }
+    }
+
+    private static void skipGgufValue(DataInputStream dis, int type) throws IOException {
+        final int len = switch (type) {
+            case GGUF_UINT8, GGUF_INT8, GGUF_BOOL -> 1;
+            case GGUF_UINT16, GGUF_INT16 -> 2;
+            case GGUF_UINT32, GGUF_INT32, GGUF_FLOAT32 -> 4;
+            case GGUF_UINT64, GGUF_INT64, GGUF_FLOAT64 -> 8;
+            case GGUF_STRING -> {
+                readGgufString(dis);
+                yield 0;
+            }
+            case GGUF_ARRAY -> {
+                readGgufValue(dis, type);
+                yield 0;
+            }
+            default -> throw new IOException("Unknown GGUF-type " + type);
+        };
+        if (dis.skipBytes(len) != len) {
+            throw new EOFException("Unexpected end of GGUF-file");
+        }
+    }
+
+    private static int readIntLe(byte[] buf) {
+        return (buf[0] & 0xff) | (buf[1] & 0xff) << 8 | (buf[2] & 0xff) << 16 | (buf[3] & 0xff) << 24;
+    }
+
+    private static String[] splitMerge(String merge) {
+        final int idx = merge.indexOf(' ', 1);
+        if (idx < 0) {
+            throw new IllegalArgumentException("Invalid merge: " + merge);
+        }
+        return new String[] { merge.substring(0, idx), merge.substring(idx + 1) };
+    }
+
+    /**
+     * Converts a token in byte-level encoding into its bytes.
+     * Chars which are not part of the byte-level encoding are converted into UTF-8.
+     * @param token token in byte-level encoding
+     * @return bytes
+     */
+    private static byte[] toBytes(String token) {
+        final byte[] buf = new byte[4 * token.length()];
+        int len = 0;
+        for (int i = 0; i < token.length(); i++) {
+            final char c = token.charAt(i);
+            if (c < CHAR_TO_BYTE.length && CHAR_TO_BYTE[c] >= 0) {
+                buf[len++] = (byte) CHAR_TO_BYTE[c];
+            } else {
+                len = encodeUtf8(token, i, buf, len);
+                if (Character.isHighSurrogate(c)) {
+                    i++;
+                }
+            }
+        }
+        return Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * Converts a plain text into the byte-level encoding.
+     * @param text text
+     * @return text in byte-level encoding
+     */
+    private static String toByteLevel(String text) {
+        final byte[] buf = text.getBytes(StandardCharsets.UTF_8);
+        final char[] chars = new char[buf.length];
+        for (int i = 0; i < buf.length; i++) {
+            chars[i] = BYTE_TO_CHAR[buf[i] & 0xff];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Writes the UTF-8 bytes of the code-point at a position.
+     * @return new length of the buffer
+     */
+    private static int encodeUtf8(CharSequence text, int pos, byte[] buf, int len) {
+        final char c = text.charAt(pos);
+        int cp = c;
+        if (Character.isHighSurrogate(c) && pos + 1 < text.length() && Character.isLowSurrogate(text.charAt(pos + 1))) {
+            cp = Character.toCodePoint(c, text.charAt(pos + 1));
+        } else if (Character.isSurrogate(c)) {
+            cp = 0xfffd;
+        }
+        if (cp < 0x80) {
+            buf[len++] = (byte) cp;
+        } else if (cp < 0x800) {
+            buf[len++] = (byte) (0xc0 | (cp >> 6));
+            buf[len++] = (byte) (0x80 | (cp & 0x3f));
+        } else if (cp < 0x10000) {
+            buf[len++] = (byte) (0xe0 | (cp >> 12));
+            buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buf[len++] = (byte) (0x80 | (cp & 0x3f));
+        } else {
+            buf[len++] = (byte) (0xf0 | (cp >> 18));
+            buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buf[len++] = (byte) (0x80 | (cp & 0x3f));
+        }
+        return len;
+    }
+
+    private static int tableSize(int numEntries) {
+        return Integer.highestOneBit(Math.max(16, numEntries) * 2 - 1) << 1;
+    }
+
+    private static int hashBytes(byte[] buf, int off, int len) {
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; i++) {
+            h = (h ^ (buf[i] & 0xff)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hashPair(long pair) {
+        final long h = pair * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void insertToken(int id) {
+        final int mask = vocabSlots.length - 1;
+        int slot = hashBytes(tokenBytes, tokenOffsets[id], tokenOffsets[id + 1] - tokenOffsets[id]) & mask;
+        while (vocabSlots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        vocabSlots[slot] = id + 1;
+    }
+
+    /**
+     * Looks up the token of a byte-sequence.
+     * @return token-id or -1
+     */
+    private int lookup(byte[] buf, int off, int len) {
+        final int mask = vocabSlots.length - 1;
+        int slot = hashBytes(buf, off, len) & mask;
+        while (true) {
+            final int entry = vocabSlots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            final int id = entry - 1;
+            final int start = tokenOffsets[id];
+            if (tokenOffsets[id + 1] - start == len
+                    && Arrays.equals(tokenBytes, start, start + len, buf, off, off + len)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void insertMerge(int left, int right, int rank, int result) {
+        final long pair = ((long) left << 32) | right;
+        final int mask = mergePairs.length - 1;
+        int slot = hashPair(pair) & mask;
+        while (mergePairs[slot] != NO_PAIR) {
+            if (mergePairs[slot] == pair) {
+                // The merge of the lower rank wins.
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mergePairs[slot] = pair;
+        mergeRanks[slot] = rank;
+        mergeResults[slot] = result;
+    }
+
+    /**
+     * Looks up the merge of two tokens.
+     * @return slot in the merge-table or -1
+     */
+    private int findMerge(int left, int right) {
+        if (left < 0 || right < 0) {
+            return -1;
+        }
+        final long pair = ((long) left << 32) | right;
+        final int mask = mergePairs.length - 1;
+        int slot = hashPair(pair) & mask;
+        while (true) {
+            final long entry = mergePairs[slot];
+            if (entry == pair) {
+                return slot;
+            }
+            if (entry == NO_PAIR) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Gets the size of the vocabulary.
+     * @return number of token-ids
+     */
+    int getVocabSize() {
+        return tokenOffsets.length - 1;
+    }
+
+    /**
+     * Encodes a text.
+     * @param text text
+     * @return token-ids
+     */
+    int[] encode(CharSequence text) {
+        final Workspace ws = new Workspace(true);
+        encode(text, 0, text.length(), ws);
+        return Arrays.copyOf(ws.ids, ws.numIds);
+    }
+
+    @Override
+    public int countTokens(CharSequence text, int start, int end) {
+        final Workspace ws = new Workspace(false);
+        encode(text, start, end, ws);
+        return ws.numIds;
+    }
+
+    /**
+     * Decodes token-ids.
+     * @param ids token-ids
+     * @return text
+     */
+    String decode(int[] ids) {
+        int len = 0;
+        for (int id : ids) {
+            len += tokenOffsets[id + 1] - tokenOffsets[id];
+        }
+        final byte[] buf = new byte[len];
+        int pos = 0;
+        for (int id : ids) {
+            final int tokenLen = tokenOffsets[id + 1] - tokenOffsets[id];
+            System.arraycopy(tokenBytes, tokenOffsets[id], buf, pos, tokenLen);
+            pos += tokenLen;
+        }
+        return new String(buf, StandardCharsets.UTF_8);
+    }
+
+    private void encode(CharSequence text, int start, int end, Workspace ws) {
+        if (specialTokens == null) {
+            encodeText(text, start, end, ws);
+            return;
+        }
+        final Matcher m = specialTokens.matcher(text).region(start, end);
+        int pos = start;
+        while (m.find()) {
+            encodeText(text, pos, m.start(), ws);
+            for (int i = 0; i < specialIds.length; i++) {
+                if (m.start(i + 1) >= 0) {
+                    ws.add(specialIds[i]);
+                    break;
+                }
+            }
+            pos = m.end();
+        }
+        encodeText(text, pos, end, ws);
+    }
+
+    /**
+     * Encodes a text without special tokens.
+     */
+    private void encodeText(CharSequence text, int start, int end, Workspace ws) {
+        if (start >= end) {
+            return;
+        }
+        final Matcher m = preTokenizer.matcher(text).region(start, end);
+        while (m.find()) {
+            final int len = ws.setPiece(text, m.start(), m.end());
+            final int id = (ignoreMerges || len == 1) ? lookup(ws.piece, 0, len) : -1;
+            if (id >= 0) {
+                ws.add(id);
+            } else {
+                mergePiece(len, ws);
+            }
+        }
+    }
+
+    /**
+     * Merges the bytes of a piece by a priority-queue of the adjacent pairs.
+     * @param len number of bytes of the piece
+     * @param ws workspace containing the piece
+     */
+    private void mergePiece(int len, Workspace ws) {
+        ws.ensureSymbols(len);
+        final int[] ids = ws.symIds;
+        final int[] prev = ws.symPrev;
+        final int[] next = ws.symNext;
+        for (int i = 0; i < len; i++) {
+            ids[i] = byteTokens[ws.piece[i] & 0xff];
+            prev[i] = i - 1;
+            next[i] = (i + 1 < len) ? i + 1 : -1;
+        }
+        ws.heapSize = 0;
+        for (int i = 0; i + 1 < len; i++) {
+            pushPair(i, ids[i], ids[i + 1], ws);
+        }
+        while (ws.heapSize > 0) {
+            final long entry = ws.pollHeap();
+            final int pos = (int) entry;
+            final int rank = (int) (entry >>> 32);
+            final int right = next[pos];
+            if (ids[pos] < 0 || right < 0) {
+                continue;
+            }
+            final int slot = findMerge(ids[pos], ids[right]);
+            if (slot < 0 || mergeRanks[slot] != rank) {
+                // The pair has been changed by a merge of a neighbour.
+                continue;
+            }
+            ids[pos] = mergeResults[slot];
+            ids[right] = -1;
+            next[pos] = next[right];
+            if (next[pos] >= 0) {
+                prev[next[pos]] = pos;
+                pushPair(pos, ids[pos], ids[next[pos]], ws);
+            }
+            if (prev[pos] >= 0) {
+                pushPair(prev[pos], ids[prev[pos]], ids[pos], ws);
+            }
+        }
+        for (int i = 0; i >= 0; i = next[i]) {
+            ws.add(ids[i]);
+        }
+    }
+
+    private void pushPair(int pos, int left, int right, Workspace ws) {
+        final int slot = findMerge(left, right);
+        if (slot >= 0) {
+            ws.pushHeap(((long) mergeRanks[slot] << 32) | pos);
+        }
+    }
+
+    /**
+     * Buffers of an encoding (not shared between threads).
+     */
+    private static class Workspace {
+        /** <code>true</code> if the ids are collected, <code>false</code> if they are counted only */
+        private final boolean collect;
+        /** token-ids */
+        int[] ids = new int[64];
+        /** number of token-ids */
+        int numIds;
+        /** bytes of the current piece */
+        byte[] piece = new byte[64];
+        /** ids of the symbols of a piece while merging (-1 = merged into the left neighbour) */
+        int[] symIds = new int[0];
+        /** previous symbol */
+        int[] symPrev = new int[0];
+        /** next symbol */
+        int[] symNext = new int[0];
+        /** min-heap of the pairs (rank in the upper 32 bits, position in the lower 32 bits) */
+        long[] heap = new long[16];
+        /** size of the heap */
+        int heapSize;
+
+        Workspace(boolean collect) {
+            this.collect = collect;
+        }
+
+        void add(int id) {
+            if (collect) {
+                if (numIds == ids.length) {
+                    ids = Arrays.copyOf(ids, 2 * numIds);
+                }
+                ids[numIds] = id;
+            }
+            numIds++;
+        }
+
+        /**
+         * Stores the UTF-8 bytes of a piece of text.
+         * @return number of bytes
+         */
+        int setPiece(CharSequence text, int start, int end) {
+            if (piece.length < 4 * (end - start)) {
+                piece = new byte[8 * (end - start)];
+            }
+            int len = 0;
+            for (int i = start; i < end; i++) {
+                final char c = text.charAt(i);
+                if (c < 0x80) {
+                    piece[len++] = (byte) c;
+                } else {
+                    len = encodeUtf8(text, i, piece, len);
+                    if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        i++;
+                    }
+                }
+            }
+            return len;
+        }
+
+        void ensureSymbols(int len) {
+            if (symIds.length < len) {
+                final int size = Math.max(len, 2 * symIds.length);
+                symIds = new int[size];
+                symPrev = new int[size];
+                symNext = new int[size];
+            }
+        }
+
+        void pushHeap(long entry) {
+            if (heapSize == heap.length) {
+                heap = Arrays.copyOf(heap, 2 * heapSize);
+            }
+            int i = heapSize++;
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (heap[parent] <= entry) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = entry;
+        }
+
+        long pollHeap() {
+            final long top = heap[0];
+            final long last = heap[--heapSize];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (last <= heap[child]) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            if (heapSize > 0) {
+                heap[i] = last;
+            }
+            return top;
+        }
+    }
+}
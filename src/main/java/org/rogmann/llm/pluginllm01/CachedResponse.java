@@ -0,0 +1,85 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Response of a LLM including the boundaries of its tokens, so that a cached response
+ * can be replayed token by token.
+ * @param text text of the response
+ * @param tokenEnds end-offsets (exclusive) of the tokens in the text
+ */
+record CachedResponse(String text, int[] tokenEnds) {
+
+    /**
+     * Sends the tokens of the response to a consumer.
+     * @param responseStream consumer of the tokens
+     */
+    void replay(Consumer<String> responseStream) {
+        int start = 0;
+        for (int end : tokenEnds) {
+            responseStream.accept(text.substring(start, end));
+            start = end;
+        }
+    }
+
+    /**
+     * Gets the approximate number of bytes used on the heap.
+     * @return size in bytes
+     */
+    long getHeapSize() {
+        return 64L + 2L * text.length() + 4L * tokenEnds.length;
+    }
+
+    /**
+     * Consumer of tokens which records the tokens before sending them to a delegate.
+     */
+    static class Recorder implements Consumer<String> {
+        /** consumer of the tokens */
+        private final Consumer<String> delegate;
+        /** tokens so far */
+        private final StringBuilder sbText = new StringBuilder();
+        /** end-offsets of the tokens */
+        private int[] tokenEnds = new int[64];
+        /** number of tokens */
+        private int numTokens;
+
+        Recorder(Consumer<String> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void accept(String token) {
+            sbText.append(token);
+            if (numTokens == tokenEnds.length) {
+                tokenEnds = Arrays.copyOf(tokenEnds, 2 * numTokens);
+            }
+            tokenEnds[numTokens++] = sbText.length();
+            delegate.accept(token);
+        }
+
+        /**
+         * Gets the consumer the tokens are sent to.
+         * @return consumer
+         */
+        Consumer<String> getDelegate() {
+            return delegate;
+        }
+
+        /**
+         * Discards the tokens recorded so far.
+         */
+        void reset() {
+            sbText.setLength(0);
+            numTokens = 0;
+        }
+
+        /**
+         * Builds the response of the tokens recorded so far.
+         * @return response
+         */
+        CachedResponse toResponse() {
+            return new CachedResponse(sbText.toString(), Arrays.copyOf(tokenEnds, numTokens));
+        }
+    }
+}
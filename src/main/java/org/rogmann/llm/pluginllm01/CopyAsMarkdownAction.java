@@ -1,30 +1,145 @@
 package org.rogmann.llm.pluginllm01;
 
 import com.intellij.openapi.actionSystem.*;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.GeneratedSourcesFilter;
+import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.StatusBar;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
 import com.intellij.util.PlatformIcons;
-import com.intellij.util.ui.UIUtil;
 import org.jetbrains.annotations.NotNull;
+import org.rogmann.llm.pluginllm01.clipb.ClipboardUtil;
 
-import java.awt.*;
-import java.awt.datatransfer.StringSelection;
-import java.awt.datatransfer.Transferable;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
 
 /**
  * An IntelliJ action that copies the selected files' contents as formatted Markdown to the system clipboard.
- * Each file is represented in a code block with syntax highlighting based on its extension. The action checks
- * for valid files, displays feedback messages, and ensures it is enabled only when applicable files are selected.
+ * Each file is represented in a code block with syntax highlighting based on its extension.
+ * <p>
+ * The export runs in the background: selected directories are traversed (ignored and excluded files are skipped,
+ * see the ignore-rules in the settings), the files are read in parallel by a {@link MarkdownExporter}
+ * which skips binary and generated files and stops at the token-budget of the settings.
+ * <p>
+ * The mode {@link Skeletons} exports Java-files as skeletons (see {@link Skeletonizer}).
  */
 public class CopyAsMarkdownAction extends AnAction {
 
+    /** <code>true</code> if Java-files are exported as skeletons */
+    private final boolean skeletons;
+
     public CopyAsMarkdownAction() {
-        super("Copy Classes as Markdown",
+        this("Copy Classes as Markdown",
               "Copy selected files as markdown to clipboard",
-              PlatformIcons.COPY_ICON); // Use an appropriate icon
+              false);
+    }
+
+    /**
+     * Constructor
+     * @param text text of the action
+     * @param description description
+     * @param skeletons <code>true</code> if Java-files are exported as skeletons
+     */
+    protected CopyAsMarkdownAction(String text, String description, boolean skeletons) {
+        super(text, description, PlatformIcons.COPY_ICON); // Use an appropriate icon
+        this.skeletons = skeletons;
+    }
+
+    /**
+     * Copies the selected files as markdown, Java-files as skeletons: package, imports, signatures and fields
+     * without method-bodies and comments.
+     */
+    public static class Skeletons extends CopyAsMarkdownAction {
+        public Skeletons() {
+            super("Copy Classes as Markdown Skeletons",
+                    "Copy selected files as markdown to clipboard, Java-classes without method-bodies",
+                    true);
+        }
+    }
+
+    /**
+     * File of the project to be exported.
+     * @param file file
+     * @param name name in the heading (path relative to the selected directory)
+     * @param project project
+     * @param skeletonizer skeletonizer of Java-files, <code>null</code> if the source is exported
+     */
+    private record VirtualFileSource(VirtualFile file, String name, Project project, Skeletonizer skeletonizer)
+            implements MarkdownExporter.Source {
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getPath() {
+            // The fragments of skeletons and sources are cached separately.
+            return isSkeleton() ? "skeleton:" + file.getPath() : file.getPath();
+        }
+
+        private boolean isSkeleton() {
+            return skeletonizer != null && "java".equals(file.getExtension());
+        }
+
+        @Override
+        public String getExtension() {
+            final String extension = file.getExtension();
+            return (extension != null) ? extension : "";
+        }
+
+        @Override
+        public long getStamp() {
+            if (isSkeleton()) {
+                // The skeleton is built from the PSI, which includes unsaved changes of the document.
+                final PsiFile psiFile = ReadAction.compute(this::findPsiFile);
+                if (psiFile != null) {
+                    return psiFile.getModificationStamp();
+                }
+            }
+            return file.getModificationStamp();
+        }
+
+        @Override
+        public long getLength() {
+            return file.getLength();
+        }
+
+        @Override
+        public byte[] read() throws IOException {
+            if (isSkeleton()) {
+                final String skeleton = ReadAction.compute(() -> {
+                    final PsiFile psiFile = findPsiFile();
+                    return (psiFile != null) ? skeletonizer.getSkeleton(psiFile) : null;
+                });
+                if (skeleton != null) {
+                    return skeleton.getBytes(StandardCharsets.UTF_8);
+                }
+            }
+            return file.contentsToByteArray();
+        }
+
+        /**
+         * Gets the PSI of the file (read-action).
+         * @return PSI or <code>null</code> if the file isn't valid
+         */
+        private PsiFile findPsiFile() {
+            return file.isValid() ? PsiManager.getInstance(project).findFile(file) : null;
+        }
     }
 
     @Override
@@ -38,56 +153,84 @@ public class CopyAsMarkdownAction extends AnAction {
             return;
         }
 
-        StringBuilder markdown = new StringBuilder();
-
-        for (VirtualFile file : files) {
-            if (!file.exists()) continue; // Skip directories
-            String content = getFileMarkdown(project, file);
-            if (content != null) {
-                markdown.append(content).append("\n\n");
+        final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        final Predicate<String> ignoredNames = MarkdownExporter.parseIgnorePatterns(llmSettings.getExportIgnorePatterns());
+        final Skeletonizer skeletonizer = skeletons ? Skeletonizer.getInstance(project) : null;
+        final MarkdownExporter exporter = new MarkdownExporter(MarkdownFragmentCache.getInstance(),
+                LlmTokenizerService.getInstance().getTokenCounter(), llmSettings.getExportBudgetTokens(),
+                Runtime.getRuntime().availableProcessors());
+        new Task.Backgroundable(project, "Copy as markdown", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setText("Collecting files");
+                final List<VirtualFileSource> sources = ReadAction.compute(
+                        () -> collectFiles(project, files, ignoredNames, skeletonizer, indicator));
+                indicator.setText(String.format("Exporting %d files", sources.size()));
+                final MarkdownExporter.Result result = exporter.export(sources, indicator);
+                if (result.numExported() == 0) {
+                    ApplicationManager.getApplication().invokeLater(() -> StatusBar.Info.set("No valid files selected", project));
+                    return;
+                }
+                final StringBuilder sbInfo = new StringBuilder(String.format(
+                        "Copied %d files as markdown%s (%d tokens, %d files unchanged)",
+                        result.numExported(), skeletons ? " skeletons" : "", result.numTokens(), result.numFromCache()));
+                if (result.numSkipped() > 0) {
+                    sbInfo.append(String.format(", %d binary or generated files skipped", result.numSkipped()));
+                }
+                if (result.numOverBudget() > 0) {
+                    sbInfo.append(String.format(", token-budget reached: %d files omitted", result.numOverBudget()));
+                }
+                ApplicationManager.getApplication().invokeLater(() -> {
+                    ClipboardUtil.copy(result.markdown());
+                    StatusBar.Info.set(sbInfo.toString(), project);
+                });
             }
-        }
-
-        if (markdown.isEmpty()) {
-            Messages.showInfoMessage(project, "No valid files selected", "Info");
-        } else {
-            copyToClipboard(markdown.toString());
-            Messages.showInfoMessage(project, "Copied to clipboard", "Success");
-        }
+        }.queue();
     }
 
-    private String getFileMarkdown(Project project, VirtualFile file) {
-        try {
-            String fileName = file.getName();
-            String extension = fileName.substring(fileName.lastIndexOf('.') + 1);
-
-            // For Java files, extract class name using PSI
-            //if ("java".equals(extension)) {
-            //    PsiFile psiFile = PsiManager.getInstance(project).findFile(file);
-            //    if (psiFile instanceof PsiJavaFile javaFile) {
-            //        PsiClass[] classes = javaFile.getClasses();
-            //        if (classes.length == 0) return null;
-            //        String className = classes[0].getName();
-            //        String source = new String(file.contentsToByteArray(), StandardCharsets.UTF_8);
-            //        return "## " + className + "\n\n```java\n" + source + "\n```\n";
-            //    }
-            //*}
-
-            // For non-Java files, read the entire file
-            byte[] bytes = file.contentsToByteArray();
-            String content = new String(bytes, StandardCharsets.UTF_8);
-            return "## " + fileName + "\n\n```" + extension + "\n" + content + "\n```\n";
-        } catch (IOException ex) {
-            Messages.showErrorDialog(project, "Error reading file: " + file.getName(), "Error");
-            return null;
+    /**
+     * Collects the files of the selection, directories are traversed (read-action).
+     * Files ignored by the IDE, excluded files, generated sources and binary file-types are skipped.
+     * @param project project
+     * @param roots selected files and directories
+     * @param ignoredNames ignore-rules of the settings
+     * @param skeletonizer skeletonizer of Java-files, <code>null</code> if the sources are exported
+     * @param indicator progress-indicator
+     * @return files in order of the selection
+     */
+    private static List<VirtualFileSource> collectFiles(Project project, VirtualFile[] roots,
+                                                        Predicate<String> ignoredNames, Skeletonizer skeletonizer,
+                                                        ProgressIndicator indicator) {
+        final FileTypeManager fileTypeManager = FileTypeManager.getInstance();
+        final ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+        final List<VirtualFileSource> sources = new ArrayList<>();
+        final Set<String> paths = new HashSet<>();
+        for (VirtualFile root : roots) {
+            final Deque<VirtualFileSource> stack = new ArrayDeque<>();
+            stack.push(new VirtualFileSource(root, root.getName(), project, skeletonizer));
+            while (!stack.isEmpty()) {
+                indicator.checkCanceled();
+                final VirtualFileSource source = stack.pop();
+                final VirtualFile file = source.file();
+                if (!file.isValid() || !paths.add(file.getPath())) {
+                    continue;
+                }
+                if (fileTypeManager.isFileIgnored(file) || fileIndex.isExcluded(file)
+                        || ignoredNames.test(file.getName())) {
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    final VirtualFile[] children = file.getChildren();
+                    // Reverse order on the stack: the files are exported in the order of the directory.
+                    for (int i = children.length - 1; i >= 0; i--) {
+                        stack.push(new VirtualFileSource(children[i], source.name() + '/' + children[i].getName(), project, skeletonizer));
+                    }
+                } else if (!file.getFileType().isBinary() && !GeneratedSourcesFilter.isGeneratedSourceByAnyFilter(file, project)) {
+                    sources.add(source);
+                }
+            }
         }
-    }
-
-    private void copyToClipboard(String text) {
-        Transferable transferable = new StringSelection(text);
-        UIUtil.invokeLaterIfNeeded(() -> {
-            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(transferable, null);
-        });
+        return sources;
     }
 
     @Override
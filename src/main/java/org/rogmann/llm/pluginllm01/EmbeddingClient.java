@@ -0,0 +1,210 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Client of the endpoint <code>/embedding</code> of a llama.cpp-server (started with <code>--embeddings</code>).
+ * <p>
+ * Several texts are embedded by one request (<code>{"content": [...]}</code>). The response may be an array
+ * of <code>{"index": i, "embedding": [...]}</code> (an embedding of each token without pooling is averaged),
+ * a single <code>{"embedding": [...]}</code> or the OpenAI-format <code>{"data": [...]}</code>.
+ */
+final class EmbeddingClient {
+    /** path of the endpoint */
+    static final String PATH_EMBEDDING = "embedding";
+
+    /** maximum number of characters of an embedded text (the server rejects inputs larger than its batch) */
+    static final int MAX_TEXT_CHARS = 1500;
+
+    /** interval to check for cancellation while waiting in milliseconds */
+    private static final long AWAIT_INTERVAL_MS = 100;
+
+    /** HTTP-client */
+    private final HttpClient httpClient;
+    /** URL of the endpoint */
+    private final URI uri;
+    /** timeout of a request */
+    private final Duration timeout;
+
+    /**
+     * Constructor
+     * @param httpClient HTTP-client
+     * @param baseUrl base-URL of the server, ending with '/'
+     * @param timeout timeout of a request
+     */
+    EmbeddingClient(HttpClient httpClient, String baseUrl, Duration timeout) {
+        this.httpClient = httpClient;
+        this.uri = URI.create(baseUrl + PATH_EMBEDDING);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Computes the embeddings of texts.
+     * @param texts texts, a text is truncated at {@link #MAX_TEXT_CHARS} characters
+     * @param indicator progress-indicator, the request is cancelled if the indicator is cancelled
+     * @return embeddings in the order of the texts
+     * @throws IOException in case of an IO-error or an invalid response
+     * @throws ProcessCanceledException if the request has been cancelled
+     */
+    List<float[]> embed(List<String> texts, ProgressIndicator indicator) throws IOException {
+        return parseResponse(request(texts, indicator), texts.size());
+    }
+
+    /**
+     * Sends the texts to the server.
+     * @param texts texts, a text is truncated at {@link #MAX_TEXT_CHARS} characters
+     * @param indicator progress-indicator, the request is cancelled if the indicator is cancelled
+     * @return response (JSON)
+     * @throws IOException in case of an IO-error or an HTTP-error
+     * @throws ProcessCanceledException if the request has been cancelled
+     */
+    String request(List<String> texts, ProgressIndicator indicator) throws IOException {
+        final List<Object> content = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            content.add((text.length() > MAX_TEXT_CHARS) ? text.substring(0, MAX_TEXT_CHARS) : text);
+        }
+        final Map<String, Object> request = new HashMap<>();
+        request.put("content", content);
+        final JsonRequestBody body = JsonRequestBody.of(request);
+        final HttpRequest httpRequest = HttpRequest.newBuilder(uri)
+                .version(HttpClient.Version.HTTP_1_1)
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofInputStream(body::openStream))
+                .build();
+        final CompletableFuture<HttpResponse<String>> future = httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> response = null;
+        try {
+            while (response == null) {
+                if (indicator.isCanceled()) {
+                    future.cancel(true);
+                    throw new ProcessCanceledException();
+                }
+                try {
+                    response = future.get(AWAIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    // Check the indicator again.
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new ProcessCanceledException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Embedding-request failed: " + e.getCause(), e.getCause());
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException(String.format("Embedding-request failed: HTTP %d %s", response.statusCode(), response.body()));
+        }
+        return response.body();
+    }
+
+    /**
+     * Parses the response of the server.
+     * @param json response
+     * @param numTexts number of embedded texts
+     * @return embeddings in the order of the index
+     * @throws IOException if the response is invalid
+     */
+    static List<float[]> parseResponse(String json, int numTexts) throws IOException {
+        final List<float[]> embeddings;
+        try {
+            embeddings = parseItems(json.trim());
+        } catch (IllegalArgumentException | IllegalStateException | ArithmeticException e) {
+            throw new IOException("Invalid embedding-response: " + e.getMessage(), e);
+        }
+        if (embeddings.size() != numTexts) {
+            throw new IOException(String.format("Embedding-response contains %d instead of %d embeddings",
+                    embeddings.size(), numTexts));
+        }
+        return embeddings;
+    }
+
+    private static List<float[]> parseItems(String trimmed) throws IOException {
+        final List<Map<String, Object>> items = new ArrayList<>();
+        if (trimmed.startsWith("[")) {
+            for (Object item : LightweightJsonHandler.parseJsonArray(trimmed)) {
+                if (!(item instanceof Map)) {
+                    throw new IOException("Unexpected item in embedding-response: " + item);
+                }
+                @SuppressWarnings("unchecked")
+                final Map<String, Object> map = (Map<String, Object>) item;
+                items.add(map);
+            }
+        } else {
+            final Map<String, Object> map = LightweightJsonHandler.parseJsonDict(trimmed);
+            if (map.containsKey("data")) {
+                items.addAll(LightweightJsonHandler.getJsonArrayDicts(map, "data"));
+            } else {
+                items.add(map);
+            }
+        }
+        final float[][] embeddings = new float[items.size()][];
+        for (int i = 0; i < items.size(); i++) {
+            final Map<String, Object> item = items.get(i);
+            final int index = LightweightJsonHandler.readInt(item, "index", i);
+            if (index < 0 || index >= embeddings.length || embeddings[index] != null) {
+                throw new IOException("Invalid index in embedding-response: " + index);
+            }
+            final List<Object> embedding = LightweightJsonHandler.getJsonArray(item, "embedding");
+            if (embedding == null || embedding.isEmpty()) {
+                throw new IOException("Missing embedding in embedding-response");
+            }
+            embeddings[index] = (embedding.get(0) instanceof List) ? averageVectors(embedding) : toVector(embedding);
+        }
+        return List.of(embeddings);
+    }
+
+    private static float[] toVector(List<?> values) throws IOException {
+        final float[] vector = new float[values.size()];
+        for (int i = 0; i < vector.length; i++) {
+            if (!(values.get(i) instanceof Number number)) {
+                throw new IOException("Unexpected value in embedding: " + values.get(i));
+            }
+            vector[i] = number.floatValue();
+        }
+        return vector;
+    }
+
+    /**
+     * Averages the embeddings of the tokens (server without pooling).
+     */
+    private static float[] averageVectors(List<Object> vectors) throws IOException {
+        float[] sum = null;
+        for (Object o : vectors) {
+            if (!(o instanceof List<?> values)) {
+                throw new IOException("Unexpected value in embedding: " + o);
+            }
+            final float[] vector = toVector(values);
+            if (sum == null) {
+                sum = vector;
+            } else if (sum.length != vector.length) {
+                throw new IOException("Embeddings of different dimensions in a response");
+            } else {
+                for (int i = 0; i < sum.length; i++) {
+                    sum[i] += vector[i];
+                }
+            }
+        }
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] /= vectors.size();
+        }
+        return sum;
+    }
+}
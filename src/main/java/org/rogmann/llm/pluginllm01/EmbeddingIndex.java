@@ -0,0 +1,291 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Semantic index of the chunks of a project: the embeddings of the chunks in an {@link EmbeddingVectorStore}.
+ * <p>
+ * The key of a vector is the hash of the text of the chunk, so a chunk is embedded only if its text is new:
+ * an unchanged chunk of a changed file, a chunk which occurs in several files and the chunks of the last session
+ * (the store is a file) are not embedded again. The chunks to be embedded are queued,
+ * {@link #embedPending(Embedder, int)} embeds a batch of them.
+ * <p>
+ * The index is thread-safe, the embedder is called without holding the lock.
+ */
+final class EmbeddingIndex implements Closeable {
+
+    /**
+     * Computes embeddings, e.g. by a request to the server.
+     */
+    interface Embedder {
+        /**
+         * Computes the embeddings of texts.
+         * @param texts texts
+         * @return embeddings in the order of the texts
+         * @throws IOException in case of an IO-error
+         */
+        List<float[]> embed(List<String> texts) throws IOException;
+    }
+
+    /** store of the vectors */
+    private final EmbeddingVectorStore store;
+    /** chunks by path */
+    private final Map<String, List<Bm25Index.Chunk>> chunksByPath = new HashMap<>();
+    /** chunks by hash of their text */
+    private final Map<Long, List<Bm25Index.Chunk>> chunksByHash = new HashMap<>();
+    /** hashes of the chunks to be embedded */
+    private final Set<Long> pending = new LinkedHashSet<>();
+    /** number of embedded chunks */
+    private long numEmbedded;
+
+    /**
+     * Constructor
+     * @param store store of the vectors
+     */
+    EmbeddingIndex(EmbeddingVectorStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Computes the hash of the text of a chunk (FNV-1a, 64 bit).
+     * @param text text
+     * @return hash, not 0
+     */
+    static long hash(String text) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return (h != 0) ? h : 1;
+    }
+
+    /**
+     * Sets the chunks of a file, new texts are queued to be embedded.
+     * @param path path of the file
+     * @param chunks chunks
+     */
+    synchronized void updateFile(String path, List<Bm25Index.Chunk> chunks) {
+        final Set<Long> orphans = new HashSet<>();
+        removeFileLocked(path, orphans);
+        if (!chunks.isEmpty()) {
+            chunksByPath.put(path, chunks);
+            for (Bm25Index.Chunk chunk : chunks) {
+                final long hash = hash(chunk.text());
+                chunksByHash.computeIfAbsent(hash, h -> new ArrayList<>(1)).add(chunk);
+                if (!store.contains(hash)) {
+                    pending.add(hash);
+                }
+            }
+        }
+        // The vectors of the unchanged chunks are kept.
+        removeOrphans(orphans);
+    }
+
+    /**
+     * Removes the chunks of the files matching a predicate.
+     * @param paths predicate of the paths
+     */
+    synchronized void removeFiles(Predicate<String> paths) {
+        final Set<Long> orphans = new HashSet<>();
+        for (String path : new ArrayList<>(chunksByPath.keySet())) {
+            if (paths.test(path)) {
+                removeFileLocked(path, orphans);
+            }
+        }
+        removeOrphans(orphans);
+    }
+
+    /**
+     * Removes the chunks of a file.
+     * @param path path of the file
+     * @param orphans set of the hashes which don't belong to a chunk any more
+     */
+    private void removeFileLocked(String path, Set<Long> orphans) {
+        final List<Bm25Index.Chunk> chunks = chunksByPath.remove(path);
+        if (chunks == null) {
+            return;
+        }
+        for (Bm25Index.Chunk chunk : chunks) {
+            final long hash = hash(chunk.text());
+            final List<Bm25Index.Chunk> list = chunksByHash.get(hash);
+            if (list != null && list.remove(chunk) && list.isEmpty()) {
+                chunksByHash.remove(hash);
+                orphans.add(hash);
+            }
+        }
+    }
+
+    private void removeOrphans(Set<Long> orphans) {
+        for (Long hash : orphans) {
+            if (!chunksByHash.containsKey(hash)) {
+                pending.remove(hash);
+                store.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * Removes all vectors because the model has been changed, all chunks are queued to be embedded.
+     * @param modelKey key of the new model
+     * @throws IOException in case of an IO-error
+     */
+    synchronized void resetModel(long modelKey) throws IOException {
+        store.reset(modelKey, 0);
+        queueMissing();
+    }
+
+    /**
+     * Gets the key of the model of the vectors.
+     * @return key of the model
+     */
+    synchronized long getModelKey() {
+        return store.getModelKey();
+    }
+
+    private void queueMissing() {
+        for (Long hash : chunksByHash.keySet()) {
+            if (!store.contains(hash)) {
+                pending.add(hash);
+            }
+        }
+    }
+
+    /**
+     * Removes the vectors which don't belong to a current chunk, e.g. vectors of the last session
+     * of files which have been changed while the IDE was closed.
+     * @return number of removed vectors
+     */
+    synchronized int removeUnused() {
+        int numRemoved = 0;
+        for (Long hash : new ArrayList<>(store.keys())) {
+            if (!chunksByHash.containsKey(hash)) {
+                store.remove(hash);
+                numRemoved++;
+            }
+        }
+        return numRemoved;
+    }
+
+    /**
+     * Gets the number of chunks to be embedded.
+     * @return number of chunks
+     */
+    synchronized int getNumPending() {
+        return pending.size();
+    }
+
+    /**
+     * Gets the number of embedded chunks since the start.
+     * @return number of chunks
+     */
+    synchronized long getNumEmbedded() {
+        return numEmbedded;
+    }
+
+    /**
+     * Gets the number of vectors in the store.
+     * @return number of vectors
+     */
+    synchronized int getNumVectors() {
+        return store.size();
+    }
+
+    /**
+     * Embeds a batch of the pending chunks.
+     * @param embedder embedder
+     * @param batchSize maximum number of chunks of the batch
+     * @return number of embedded chunks, 0 if there are no pending chunks
+     * @throws IOException in case of an IO-error, the chunks stay pending
+     */
+    int embedPending(Embedder embedder, int batchSize) throws IOException {
+        final List<Long> hashes = new ArrayList<>(batchSize);
+        final List<String> texts = new ArrayList<>(batchSize);
+        synchronized (this) {
+            final Iterator<Long> it = pending.iterator();
+            while (it.hasNext() && hashes.size() < batchSize) {
+                final Long hash = it.next();
+                hashes.add(hash);
+                texts.add(chunksByHash.get(hash).get(0).text());
+            }
+        }
+        if (hashes.isEmpty()) {
+            return 0;
+        }
+        final List<float[]> vectors = embedder.embed(texts);
+        synchronized (this) {
+            for (int i = 0; i < hashes.size(); i++) {
+                final Long hash = hashes.get(i);
+                // The chunk may have been removed in the meantime.
+                if (pending.remove(hash)) {
+                    final boolean otherDimension = store.getDimension() != 0 && vectors.get(i).length != store.getDimension();
+                    store.put(hash, vectors.get(i));
+                    numEmbedded++;
+                    if (otherDimension) {
+                        // The store has been cleared.
+                        queueMissing();
+                    }
+                }
+            }
+        }
+        return hashes.size();
+    }
+
+    /**
+     * Searches the chunks most similar to a query.
+     * @param queryVector embedding of the query
+     * @param k maximum number of hits
+     * @param filter filter of the chunks or <code>null</code>
+     * @return hits (cosine-similarity), the best hit first
+     */
+    synchronized List<Bm25Index.Hit> search(float[] queryVector, int k, Predicate<Bm25Index.Chunk> filter) {
+        final long[] hashes = new long[k];
+        final float[] scores = new float[k];
+        final Set<Bm25Index.Chunk> accepted = new HashSet<>();
+        final int n = store.search(queryVector, k, hash -> {
+            final List<Bm25Index.Chunk> chunks = chunksByHash.get(hash);
+            if (chunks == null) {
+                return false;
+            }
+            for (Bm25Index.Chunk chunk : chunks) {
+                if (filter == null || filter.test(chunk)) {
+                    accepted.add(chunk);
+                    return true;
+                }
+            }
+            return false;
+        }, hashes, scores);
+        final List<Bm25Index.Hit> hits = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            for (Bm25Index.Chunk chunk : chunksByHash.get(hashes[i])) {
+                if (accepted.contains(chunk)) {
+                    hits.add(new Bm25Index.Hit(chunk, scores[i]));
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Writes the vectors to the disk.
+     */
+    synchronized void flush() {
+        store.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        store.close();
+    }
+}
@@ -0,0 +1,380 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongPredicate;
+
+/**
+ * Memory-mapped store of embedding-vectors, quantized to int8.
+ * <p>
+ * The file starts with a header (magic number, key of the model, dimension, number of slots).
+ * A slot contains the key of the vector (e.g. the hash of the embedded text, 0 if the slot is free),
+ * the scale of the quantization and the components as bytes. A vector is normalized before quantization,
+ * so the dot-product of two vectors is their cosine-similarity. The keys of the slots are scanned when
+ * the store is opened, the file grows by doubling its number of slots.
+ * The file isn't truncated while it is mapped (that fails on Windows), a cleared store reuses the file
+ * and the keys of its slots are cleared when they are allocated again.
+ * <p>
+ * The store isn't thread-safe, it is used while holding the lock of its {@link EmbeddingIndex}.
+ */
+final class EmbeddingVectorStore implements Closeable {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(EmbeddingVectorStore.class);
+
+    /** magic number of the file ("LEV1") */
+    private static final int MAGIC = 0x4c455631;
+    /** length of the header: magic, key of the model, dimension, number of slots */
+    private static final int LEN_HEADER = 4 + 8 + 4 + 4;
+    /** length of the slot-header: key, scale */
+    private static final int LEN_SLOT_HEADER = 8 + 4;
+    /** initial number of slots */
+    private static final int INITIAL_SLOTS = 256;
+
+    /** file of the store */
+    private final Path file;
+    /** channel of the file */
+    private final FileChannel channel;
+    /** mapped file */
+    private MappedByteBuffer buffer;
+    /** key of the model (the vectors of different models can't be compared) */
+    private long modelKey;
+    /** dimension of the vectors, 0 if no vector has been stored yet */
+    private int dim;
+    /** number of slots */
+    private int numSlots;
+    /** slot by key */
+    private final Map<Long, Integer> slotByKey = new HashMap<>();
+    /** free slots (stack) */
+    private int[] freeSlots = new int[16];
+    /** number of free slots */
+    private int numFree;
+
+    /**
+     * Opens a store, a store of another model or an invalid file is cleared.
+     * @param file file of the store
+     * @param modelKey key of the model
+     * @throws IOException in case of an IO-error
+     */
+    EmbeddingVectorStore(Path file, long modelKey) throws IOException {
+        this.file = file;
+        Files.createDirectories(file.getParent());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!load(modelKey)) {
+            reset(modelKey, 0);
+        }
+    }
+
+    private boolean load(long expectedModelKey) throws IOException {
+        final long size = channel.size();
+        if (size < LEN_HEADER) {
+            return false;
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (buffer.getInt(0) != MAGIC || buffer.getLong(4) != expectedModelKey) {
+            LOGGER.info(String.format("Embedding-store (%s) of another model or invalid, store is cleared", file));
+            return false;
+        }
+        modelKey = expectedModelKey;
+        dim = buffer.getInt(12);
+        numSlots = buffer.getInt(16);
+        if (dim < 0 || numSlots < 0 || LEN_HEADER + (long) numSlots * getSlotLength() > size) {
+            LOGGER.info(String.format("Embedding-store (%s) is truncated, store is cleared", file));
+            return false;
+        }
+        for (int slot = numSlots - 1; slot >= 0; slot--) {
+            final long key = buffer.getLong(getSlotOffset(slot));
+            if (key == 0 || slotByKey.putIfAbsent(key, slot) != null) {
+                pushFree(slot);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes all vectors.
+     * @param newModelKey key of the model of the following vectors
+     * @param newDim dimension of the following vectors, 0 if unknown
+     * @throws IOException in case of an IO-error
+     */
+    void reset(long newModelKey, int newDim) throws IOException {
+        slotByKey.clear();
+        numFree = 0;
+        modelKey = newModelKey;
+        dim = newDim;
+        numSlots = 0;
+        if (buffer == null || buffer.capacity() < LEN_HEADER) {
+            remap(LEN_HEADER);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putLong(4, modelKey);
+        buffer.putInt(12, dim);
+        buffer.putInt(16, 0);
+    }
+
+    private void remap(long size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private int getSlotLength() {
+        return LEN_SLOT_HEADER + dim;
+    }
+
+    /**
+     * Gets the offset of a slot, the size of the file is limited to 2 GB (see {@link #grow()}).
+     */
+    private int getSlotOffset(int slot) {
+        return LEN_HEADER + slot * getSlotLength();
+    }
+
+    private void pushFree(int slot) {
+        if (numFree == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, numFree * 2);
+        }
+        freeSlots[numFree++] = slot;
+    }
+
+    /**
+     * Gets the key of the model of the vectors.
+     * @return key of the model
+     */
+    long getModelKey() {
+        return modelKey;
+    }
+
+    /**
+     * Gets the dimension of the vectors.
+     * @return dimension, 0 if unknown
+     */
+    int getDimension() {
+        return dim;
+    }
+
+    /**
+     * Gets the number of vectors.
+     * @return number of vectors
+     */
+    int size() {
+        return slotByKey.size();
+    }
+
+    /**
+     * Checks if the store contains the vector of a key.
+     * @param key key, e.g. hash of the text
+     * @return <code>true</code> if present
+     */
+    boolean contains(long key) {
+        return slotByKey.containsKey(key);
+    }
+
+    /**
+     * Gets the keys of the vectors.
+     * @return keys (view)
+     */
+    Set<Long> keys() {
+        return slotByKey.keySet();
+    }
+
+    /**
+     * Stores a vector. The first vector of an empty store sets the dimension,
+     * a vector of another dimension (i.e. another model) clears the store.
+     * @param key key (not 0)
+     * @param vector vector, it is normalized
+     * @throws IOException in case of an IO-error
+     */
+    void put(long key, float[] vector) throws IOException {
+        if (key == 0) {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+        if (vector.length != dim) {
+            if (dim > 0) {
+                LOGGER.info(String.format("Dimension of embeddings changed from %d to %d, store is cleared", dim, vector.length));
+            }
+            reset(modelKey, vector.length);
+        }
+        Integer slot = slotByKey.get(key);
+        if (slot == null) {
+            if (numFree == 0) {
+                grow();
+            }
+            slot = freeSlots[--numFree];
+            slotByKey.put(key, slot);
+        }
+        final byte[] quantized = new byte[dim];
+        final float scale = quantize(vector, quantized);
+        final int offset = getSlotOffset(slot);
+        buffer.putFloat(offset + 8, scale);
+        buffer.put(offset + LEN_SLOT_HEADER, quantized);
+        // The key is written last, a slot without key is free.
+        buffer.putLong(offset, key);
+    }
+
+    private void grow() throws IOException {
+        final int newSlots = Math.max(INITIAL_SLOTS, numSlots * 2);
+        final long size = LEN_HEADER + (long) newSlots * getSlotLength();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Embedding-store is full: " + numSlots + " vectors");
+        }
+        remap(size);
+        for (int slot = newSlots - 1; slot >= numSlots; slot--) {
+            // The slot may contain a vector of a cleared store.
+            buffer.putLong(getSlotOffset(slot), 0L);
+            pushFree(slot);
+        }
+        numSlots = newSlots;
+        buffer.putInt(16, numSlots);
+    }
+
+    /**
+     * Removes a vector.
+     * @param key key
+     */
+    void remove(long key) {
+        final Integer slot = slotByKey.remove(key);
+        if (slot != null) {
+            buffer.putLong(getSlotOffset(slot), 0L);
+            pushFree(slot);
+        }
+    }
+
+    /**
+     * Normalizes a vector and quantizes it to int8.
+     * @param vector vector
+     * @param quantized array of the components
+     * @return scale of a component
+     */
+    static float quantize(float[] vector, byte[] quantized) {
+        double norm = 0;
+        float maxAbs = 0;
+        for (float v : vector) {
+            norm += v * v;
+            maxAbs = Math.max(maxAbs, Math.abs(v));
+        }
+        if (norm == 0) {
+            Arrays.fill(quantized, (byte) 0);
+            return 0;
+        }
+        final float factor = (float) (127.0 / maxAbs);
+        for (int i = 0; i < vector.length; i++) {
+            quantized[i] = (byte) Math.round(vector[i] * factor);
+        }
+        return (float) (maxAbs / 127.0 / Math.sqrt(norm));
+    }
+
+    /**
+     * Searches the vectors most similar to a query (dot-product of the quantized vectors).
+     * @param query query-vector
+     * @param k maximum number of results
+     * @param filter filter of the keys or <code>null</code>
+     * @param keys array of the keys of the results (length at least k)
+     * @param scores array of the similarities of the results (length at least k)
+     * @return number of results, the best result first
+     */
+    int search(float[] query, int k, LongPredicate filter, long[] keys, float[] scores) {
+        if (query.length != dim || k <= 0 || slotByKey.isEmpty()) {
+            return 0;
+        }
+        final byte[] q = new byte[dim];
+        final float scaleQuery = quantize(query, q);
+        final byte[] v = new byte[dim];
+        final int slotLength = getSlotLength();
+        // Bounded min-heap of the best k slots.
+        final long[] heapKeys = new long[k];
+        final float[] heapScores = new float[k];
+        int heapSize = 0;
+        for (int slot = 0; slot < numSlots; slot++) {
+            final int offset = LEN_HEADER + slot * slotLength;
+            final long key = buffer.getLong(offset);
+            if (key == 0) {
+                continue;
+            }
+            buffer.get(offset + LEN_SLOT_HEADER, v);
+            int dot = 0;
+            for (int i = 0; i < v.length; i++) {
+                dot += q[i] * v[i];
+            }
+            final float score = dot * scaleQuery * buffer.getFloat(offset + 8);
+            if (heapSize == k && score <= heapScores[0]) {
+                continue;
+            }
+            if (filter != null && !filter.test(key)) {
+                continue;
+            }
+            if (heapSize < k) {
+                siftUp(heapKeys, heapScores, heapSize++, key, score);
+            } else {
+                siftDown(heapKeys, heapScores, heapSize, key, score);
+            }
+        }
+        // Extract in descending order.
+        for (int n = heapSize - 1; n >= 0; n--) {
+            keys[n] = heapKeys[0];
+            scores[n] = heapScores[0];
+            siftDown(heapKeys, heapScores, n, heapKeys[n], heapScores[n]);
+        }
+        return heapSize;
+    }
+
+    private static void siftUp(long[] keys, float[] scores, int pos, long key, float score) {
+        while (pos > 0) {
+            final int parent = (pos - 1) >>> 1;
+            if (scores[parent] <= score) {
+                break;
+            }
+            keys[pos] = keys[parent];
+            scores[pos] = scores[parent];
+            pos = parent;
+        }
+        keys[pos] = key;
+        scores[pos] = score;
+    }
+
+    /**
+     * Replaces the root of the heap and restores the heap.
+     */
+    private static void siftDown(long[] keys, float[] scores, int size, long key, float score) {
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && scores[child + 1] < scores[child]) {
+                child++;
+            }
+            if (score <= scores[child]) {
+                break;
+            }
+            keys[pos] = keys[child];
+            scores[pos] = scores[child];
+            pos = child;
+        }
+        if (size > 0) {
+            keys[pos] = key;
+            scores[pos] = score;
+        }
+    }
+
+    /**
+     * Writes the changes to the disk.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+}
@@ -0,0 +1,324 @@
+package org.rogmann.llm.pluginllm01;
+
+/**
+ * Automatic context of a fill-in-middle request around the caret.
+ * <p>
+ * The prefix (before the caret) and the suffix (after the caret) are grown line by line outward
+ * until their share of the token-budget is used, a budget not used by one side (start or end of the document
+ * reached) is given to the other side. If a window has been cut, its outer boundary is moved by at most
+ * a quarter of the window to a blank line or a line of minimal indentation, so the context starts and ends
+ * at a block boundary rather than in the middle of a statement.
+ * <p>
+ * The extractor works on the char-sequence of the document (e.g. {@code Document#getImmutableCharSequence()}),
+ * only the resulting windows are copied.
+ */
+class FimContextExtractor {
+    /** width of a tab when computing the indentation */
+    private static final int TAB_WIDTH = 4;
+
+    /**
+     * Counts (or estimates) the number of tokens of a part of a text.
+     */
+    interface TokenCounter {
+        /**
+         * Counts the tokens of a range.
+         * @param text text
+         * @param start start-offset (inclusive)
+         * @param end end-offset (exclusive)
+         * @return number of tokens
+         */
+        int countTokens(CharSequence text, int start, int end);
+    }
+
+    /**
+     * Estimation of the number of tokens of source-code without a tokenizer:
+     * a word counts one token per 4 chars, a punctuation char one token, a whitespace-run one token.
+     */
+    static final TokenCounter APPROXIMATE = (text, start, end) -> {
+        int numTokens = 0;
+        int i = start;
+        while (i < end) {
+            final char c = text.charAt(i);
+            final int runStart = i;
+            if (Character.isLetterOrDigit(c) || c == '_') {
+                do {
+                    i++;
+                } while (i < end && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_'));
+                numTokens += (i - runStart + 3) / 4;
+            } else if (Character.isWhitespace(c)) {
+                do {
+                    i++;
+                } while (i < end && Character.isWhitespace(text.charAt(i)));
+                numTokens++;
+            } else {
+                i++;
+                numTokens++;
+            }
+        }
+        return numTokens;
+    };
+
+    /**
+     * Extracted context.
+     * @param prefixStart start-offset of the prefix
+     * @param offset caret-offset (end of the prefix, start of the suffix)
+     * @param suffixEnd end-offset of the suffix
+     * @param prefixTokens number of tokens of the prefix
+     * @param suffixTokens number of tokens of the suffix
+     */
+    record FimContext(int prefixStart, int offset, int suffixEnd, int prefixTokens, int suffixTokens) {
+        /**
+         * Copies the prefix.
+         * @param text text of the document
+         * @return text before the caret
+         */
+        String fimBegin(CharSequence text) {
+            return text.subSequence(prefixStart, offset).toString();
+        }
+
+        /**
+         * Copies the suffix.
+         * @param text text of the document
+         * @return text after the caret
+         */
+        String fimEnd(CharSequence text) {
+            return text.subSequence(offset, suffixEnd).toString();
+        }
+    }
+
+    /** text of the document */
+    private final CharSequence text;
+    /** token-counter */
+    private final TokenCounter counter;
+
+    /**
+     * Constructor
+     * @param text text of the document
+     * @param counter token-counter
+     */
+    FimContextExtractor(CharSequence text, TokenCounter counter) {
+        this.text = text;
+        this.counter = counter;
+    }
+
+    /**
+     * Extracts the context around the caret.
+     * @param offset caret-offset
+     * @param tokenBudget maximum number of tokens of prefix and suffix
+     * @param prefixPercent share of the prefix in the budget (0..100)
+     * @return context
+     */
+    FimContext extract(int offset, int tokenBudget, int prefixPercent) {
+        final int len = text.length();
+        final int prefixBudget = tokenBudget * prefixPercent / 100;
+        final int suffixBudget = tokenBudget - prefixBudget;
+
+        // The line of the caret (trimmed if it alone exceeds the budget).
+        final int lineStart = lastIndexOfLf(offset - 1) + 1;
+        final int lineEnd = indexOfLf(offset);
+        final int lineEndIncl = (lineEnd < len) ? lineEnd + 1 : len;
+        int prefixStart = trimStart(lineStart, offset, prefixBudget);
+        int prefixTokens = counter.countTokens(text, prefixStart, offset);
+        int suffixEnd = trimEnd(offset, lineEndIncl, suffixBudget);
+        int suffixTokens = counter.countTokens(text, offset, suffixEnd);
+        final boolean prefixWholeLine = (prefixStart == lineStart);
+        final boolean suffixWholeLine = (suffixEnd == lineEndIncl);
+
+        // Grow both windows by complete lines.
+        if (prefixWholeLine) {
+            prefixStart = growPrefix(prefixStart, prefixBudget - prefixTokens);
+            prefixTokens = counter.countTokens(text, prefixStart, offset);
+        }
+        if (suffixWholeLine) {
+            suffixEnd = growSuffix(suffixEnd, suffixBudget - suffixTokens);
+            suffixTokens = counter.countTokens(text, offset, suffixEnd);
+        }
+        // Give the remaining budget of one side to the other side.
+        if (prefixStart == 0 && suffixWholeLine && suffixEnd < len) {
+            suffixEnd = growSuffix(suffixEnd, tokenBudget - prefixTokens - suffixTokens);
+            suffixTokens = counter.countTokens(text, offset, suffixEnd);
+        } else if (suffixEnd == len && prefixWholeLine && prefixStart > 0) {
+            prefixStart = growPrefix(prefixStart, tokenBudget - prefixTokens - suffixTokens);
+            prefixTokens = counter.countTokens(text, prefixStart, offset);
+        }
+
+        // Snap cut windows to block boundaries.
+        if (prefixStart > 0 && prefixStart < lineStart) {
+            final int snapped = snapPrefixStart(prefixStart, prefixStart + (lineStart - prefixStart) / 4);
+            if (snapped != prefixStart) {
+                prefixStart = snapped;
+                prefixTokens = counter.countTokens(text, prefixStart, offset);
+            }
+        }
+        if (suffixEnd < len && suffixEnd > lineEndIncl) {
+            final int snapped = snapSuffixEnd(suffixEnd, suffixEnd - (suffixEnd - lineEndIncl) / 4);
+            if (snapped != suffixEnd) {
+                suffixEnd = snapped;
+                suffixTokens = counter.countTokens(text, offset, suffixEnd);
+            }
+        }
+        return new FimContext(prefixStart, offset, suffixEnd, prefixTokens, suffixTokens);
+    }
+
+    /**
+     * Adds complete lines before the prefix.
+     * @param prefixStart start of the prefix (start of a line)
+     * @param budget remaining budget
+     * @return new start of the prefix
+     */
+    private int growPrefix(int prefixStart, int budget) {
+        int start = prefixStart;
+        int remaining = budget;
+        while (start > 0) {
+            final int prevLineStart = lastIndexOfLf(start - 2) + 1;
+            final int numTokens = counter.countTokens(text, prevLineStart, start);
+            if (numTokens > remaining) {
+                break;
+            }
+            remaining -= numTokens;
+            start = prevLineStart;
+        }
+        return start;
+    }
+
+    /**
+     * Adds complete lines after the suffix.
+     * @param suffixEnd end of the suffix (start of a line)
+     * @param budget remaining budget
+     * @return new end of the suffix
+     */
+    private int growSuffix(int suffixEnd, int budget) {
+        final int len = text.length();
+        int end = suffixEnd;
+        int remaining = budget;
+        while (end < len) {
+            final int idxLf = indexOfLf(end);
+            final int nextLineEnd = (idxLf < len) ? idxLf + 1 : len;
+            final int numTokens = counter.countTokens(text, end, nextLineEnd);
+            if (numTokens > remaining) {
+                break;
+            }
+            remaining -= numTokens;
+            end = nextLineEnd;
+        }
+        return end;
+    }
+
+    /**
+     * Moves the start of a range forward until the range fits into the budget.
+     */
+    private int trimStart(int start, int end, int budget) {
+        if (counter.countTokens(text, start, end) <= budget) {
+            return start;
+        }
+        int lo = start;
+        int hi = end;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (counter.countTokens(text, mid, end) <= budget) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Moves the end of a range backward until the range fits into the budget.
+     */
+    private int trimEnd(int start, int end, int budget) {
+        if (counter.countTokens(text, start, end) <= budget) {
+            return end;
+        }
+        int lo = start;
+        int hi = end;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (counter.countTokens(text, start, mid) <= budget) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Chooses the first line with the best boundary-score between the start of the prefix and a limit.
+     */
+    private int snapPrefixStart(int prefixStart, int limit) {
+        int best = prefixStart;
+        int bestScore = boundaryScore(prefixStart);
+        int ls = indexOfLf(prefixStart) + 1;
+        while (ls <= limit && ls < text.length()) {
+            final int score = boundaryScore(ls);
+            if (score < bestScore) {
+                best = ls;
+                bestScore = score;
+            }
+            ls = indexOfLf(ls) + 1;
+        }
+        return best;
+    }
+
+    /**
+     * Chooses the last line-start with the best boundary-score between a limit and the end of the suffix.
+     */
+    private int snapSuffixEnd(int suffixEnd, int limit) {
+        int best = suffixEnd;
+        int bestScore = boundaryScore(suffixEnd);
+        int ls = lastIndexOfLf(suffixEnd - 2) + 1;
+        while (ls >= limit && ls > 0) {
+            final int score = boundaryScore(ls);
+            if (score < bestScore) {
+                best = ls;
+                bestScore = score;
+            }
+            ls = lastIndexOfLf(ls - 2) + 1;
+        }
+        return best;
+    }
+
+    /**
+     * Computes the score of a line as boundary of a window: -1 for a blank line, the indentation otherwise.
+     * @param ls start of the line
+     * @return score, lower is better
+     */
+    private int boundaryScore(int ls) {
+        final int len = text.length();
+        int indent = 0;
+        for (int i = ls; i < len; i++) {
+            final char c = text.charAt(i);
+            if (c == ' ') {
+                indent++;
+            } else if (c == '\t') {
+                indent += TAB_WIDTH;
+            } else if (c == '\n' || c == '\r') {
+                return -1;
+            } else {
+                return indent;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfLf(int from) {
+        final int len = text.length();
+        for (int i = Math.max(0, from); i < len; i++) {
+            if (text.charAt(i) == '\n') {
+                return i;
+            }
+        }
+        return len;
+    }
+
+    private int lastIndexOfLf(int from) {
+        for (int i = Math.min(from, text.length() - 1); i >= 0; i--) {
+            if (text.charAt(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
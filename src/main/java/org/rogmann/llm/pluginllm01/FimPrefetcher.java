@@ -0,0 +1,238 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.event.CaretEvent;
+import com.intellij.openapi.editor.event.CaretListener;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.util.Alarm;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.concurrent.CompletionException;
+import java.util.function.IntFunction;
+
+/**
+ * Speculative prefetch of fill-in-middle requests.
+ * <p>
+ * When the caret has been idle inside the marked range for the configured time, the FIM-request
+ * is executed in the background without progress-UI. The result is kept together with the modification-stamp
+ * of the document, the caret-offset and the request. If the user executes the same request afterwards,
+ * the result is served instantly. A change of the document cancels a running prefetch and drops its result.
+ * <p>
+ * There is at most one prefetch at a time, and a running prefetch is cancelled as soon as the user executes
+ * a request which can't be served by it, so the prefetch doesn't compete with the user's request for the server.
+ * A running prefetch of the same request is kept: the prefetch has to be created with the same flags as the
+ * request of the user, so the {@link LlmRequestScheduler} merges the user's request into the prefetch in progress
+ * (raising its priority) instead of sending it again.
+ * All methods are called in the EDT, the request itself is built in a pooled thread (see the request-builder).
+ */
+class FimPrefetcher implements Disposable {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(FimPrefetcher.class);
+
+    /**
+     * Factory of the background-task executing a request.
+     */
+    interface TaskFactory {
+        /**
+         * Creates a task which executes the request.
+         * @param llmTask request
+         * @param resultConsumer consumer of the response
+         * @return task
+         */
+        Task.Backgroundable createTask(LlmTask llmTask, Consumer<String> resultConsumer);
+    }
+
+    /**
+     * Prefetched (or running) request.
+     * @param modificationStamp modification-stamp of the document
+     * @param offset caret-offset
+     * @param llmTask request
+     * @param indicator progress-indicator to cancel the request
+     * @param result response, completed when the request has finished
+     * @param tsStart start of the request (nano-time)
+     */
+    private record Prefetch(long modificationStamp, int offset, LlmTask llmTask,
+                            ProgressIndicator indicator, CompletableFuture<String> result, long tsStart) {
+        boolean matches(long modificationStamp, int offset, LlmTask llmTask) {
+            return this.modificationStamp == modificationStamp && this.offset == offset && this.llmTask.equals(llmTask);
+        }
+    }
+
+    /** editor */
+    private final Editor editor;
+    /** start-offset of the marked range */
+    private final int rangeStart;
+    /** end-offset of the marked range */
+    private final int rangeEnd;
+    /**
+     * builder of the FIM-request at a caret-offset in a pooled thread, throws (or completes exceptionally with)
+     * an {@link IllegalStateException} if not possible
+     */
+    private final IntFunction<CompletableFuture<LlmTask>> requestBuilder;
+    /** factory of the background-task */
+    private final TaskFactory taskFactory;
+    /** settings */
+    private final LlmSettings llmSettings;
+    /** alarm to detect an idle caret */
+    private final Alarm alarm;
+
+    /** current prefetch or <code>null</code> */
+    private Prefetch prefetch;
+    /** request being built for the next prefetch or <code>null</code> */
+    private CompletableFuture<LlmTask> pendingRequest;
+
+    /**
+     * Constructor, the prefetcher listens to the caret and the document of the editor.
+     * @param project project (parent disposable)
+     * @param editor editor
+     * @param rangeStart start-offset of the marked range
+     * @param rangeEnd end-offset of the marked range
+     * @param requestBuilder asynchronous builder of the FIM-request at a caret-offset
+     * @param taskFactory factory of the background-task
+     */
+    FimPrefetcher(Project project, Editor editor, int rangeStart, int rangeEnd,
+                  IntFunction<CompletableFuture<LlmTask>> requestBuilder, TaskFactory taskFactory) {
+        this.editor = editor;
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        this.requestBuilder = requestBuilder;
+        this.taskFactory = taskFactory;
+        this.llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        alarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+        editor.getCaretModel().addCaretListener(new CaretListener() {
+            @Override
+            public void caretPositionChanged(@NotNull CaretEvent event) {
+                scheduleIdleCheck();
+            }
+        }, this);
+        editor.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void documentChanged(@NotNull DocumentEvent event) {
+                alarm.cancelAllRequests();
+                pendingRequest = null;
+                cancelPrefetch();
+            }
+        }, this);
+        Disposer.register(project, this);
+    }
+
+    private void scheduleIdleCheck() {
+        alarm.cancelAllRequests();
+        pendingRequest = null;
+        if (!llmSettings.isFimPrefetch()) {
+            return;
+        }
+        final int offset = editor.getCaretModel().getOffset();
+        if (offset >= rangeStart && offset <= rangeEnd) {
+            alarm.addRequest(this::startPrefetch, llmSettings.getFimPrefetchDelayMillis());
+        }
+    }
+
+    private void startPrefetch() {
+        if (editor.isDisposed()) {
+            return;
+        }
+        final int offset = editor.getCaretModel().getOffset();
+        final long modificationStamp = editor.getDocument().getModificationStamp();
+        final CompletableFuture<LlmTask> request;
+        try {
+            request = requestBuilder.apply(offset);
+        } catch (IllegalStateException e) {
+            LOGGER.debug("No prefetch: " + e.getMessage());
+            return;
+        }
+        pendingRequest = request;
+        request.whenComplete((llmTask, e) -> ApplicationManager.getApplication().invokeLater(() -> {
+            // A request which has been superseded (caret moved, document changed, disposed) is dropped.
+            if (pendingRequest != request) {
+                return;
+            }
+            pendingRequest = null;
+            if (e != null) {
+                final Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+                if (!(cause instanceof IllegalStateException)) {
+                    LOGGER.info("Building the prefetch-request failed", cause);
+                }
+                LOGGER.debug("No prefetch: " + cause.getMessage());
+                return;
+            }
+            if (editor.isDisposed() || editor.getCaretModel().getOffset() != offset
+                    || editor.getDocument().getModificationStamp() != modificationStamp) {
+                return;
+            }
+            startPrefetch(offset, modificationStamp, llmTask);
+        }));
+    }
+
+    private void startPrefetch(int offset, long modificationStamp, LlmTask llmTask) {
+        if (prefetch != null && prefetch.matches(modificationStamp, offset, llmTask)) {
+            return;
+        }
+        cancelPrefetch();
+        final ProgressIndicator indicator = new EmptyProgressIndicator();
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final Prefetch newPrefetch = new Prefetch(modificationStamp, offset, llmTask, indicator, result, System.nanoTime());
+        final Task.Backgroundable task = taskFactory.createTask(llmTask, response -> {
+            LOGGER.info(String.format("Prefetched FIM-response at offset %d in %d ms",
+                    offset, (System.nanoTime() - newPrefetch.tsStart()) / 1_000_000));
+            result.complete(response);
+        });
+        prefetch = newPrefetch;
+        LOGGER.info("Start prefetch of FIM-request at offset " + offset);
+        ProgressManager.getInstance().runProcessWithProgressAsynchronously(task, indicator);
+    }
+
+    /**
+     * Takes the prefetched response of a request. A running prefetch which doesn't match is cancelled
+     * to free the server for the request of the user. A running prefetch which matches keeps running,
+     * the request of the user is merged with it by the scheduler.
+     * @param llmTask request of the user
+     * @param offset caret-offset
+     * @return response or <code>null</code> if there is no prefetched response (yet)
+     */
+    String takeResponse(LlmTask llmTask, int offset) {
+        final Prefetch current = prefetch;
+        if (current == null) {
+            return null;
+        }
+        prefetch = null;
+        final long modificationStamp = editor.getDocument().getModificationStamp();
+        if (!current.matches(modificationStamp, offset, llmTask)) {
+            current.indicator().cancel();
+            return null;
+        }
+        if (current.result().isDone()) {
+            LOGGER.info("Serve prefetched FIM-response at offset " + offset);
+            return current.result().join();
+        }
+        LOGGER.info(String.format("Prefetch at offset %d in progress since %d ms, the request joins it",
+                offset, (System.nanoTime() - current.tsStart()) / 1_000_000));
+        return null;
+    }
+
+    private void cancelPrefetch() {
+        if (prefetch != null) {
+            LOGGER.debug("Cancel prefetch at offset " + prefetch.offset());
+            prefetch.indicator().cancel();
+            prefetch = null;
+        }
+    }
+
+    @Override
+    public void dispose() {
+        pendingRequest = null;
+        cancelPrefetch();
+    }
+}
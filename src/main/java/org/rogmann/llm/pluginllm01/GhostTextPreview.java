@@ -0,0 +1,188 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorCustomElementRenderer;
+import com.intellij.openapi.editor.Inlay;
+import com.intellij.openapi.editor.colors.EditorFontType;
+import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.ui.JBColor;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Preview of generated text which is shown as inlays (ghost text) at an offset of an editor.
+ * <p>
+ * The document isn't modified by the preview: the first line of the text is rendered
+ * as inline-inlay at the offset, the following lines are rendered as block-inlay below.
+ * The methods have to be called in the EDT.
+ */
+class GhostTextPreview implements Disposable {
+    /** color of the ghost text */
+    private static final Color COLOR_GHOST = JBColor.GRAY;
+
+    /** editor */
+    private final Editor editor;
+    /** offset of the preview in the document */
+    private final int offset;
+
+    /** current text */
+    private String text = "";
+    /** lines of the current text */
+    private List<String> lines = List.of("");
+
+    /** inlay of the first line */
+    private Inlay<LineRenderer> inlayInline;
+    /** inlay of the following lines */
+    private Inlay<LineRenderer> inlayBlock;
+
+    /** <code>true</code> if the preview has been disposed */
+    private boolean disposed;
+
+    /**
+     * Constructor
+     * @param editor editor
+     * @param offset offset of the preview
+     */
+    GhostTextPreview(Editor editor, int offset) {
+        this.editor = editor;
+        this.offset = offset;
+    }
+
+    /**
+     * Gets the offset of the preview.
+     * @return offset
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Gets the editor of the preview.
+     * @return editor
+     */
+    Editor getEditor() {
+        return editor;
+    }
+
+    /**
+     * Gets the current text.
+     * @return text
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * Sets the text of the preview, the inlays are created or updated.
+     * @param text text to be shown
+     */
+    void setText(String text) {
+        if (disposed || editor.isDisposed()) {
+            return;
+        }
+        this.text = text;
+        lines = splitLines(text);
+        if (inlayInline == null && !lines.get(0).isEmpty()) {
+            inlayInline = editor.getInlayModel().addInlineElement(offset, true, new LineRenderer(true));
+        } else if (inlayInline != null) {
+            inlayInline.update();
+        }
+        if (lines.size() > 1) {
+            if (inlayBlock == null) {
+                inlayBlock = editor.getInlayModel().addBlockElement(offset, true, false, 0, new LineRenderer(false));
+            } else {
+                inlayBlock.update();
+            }
+        }
+    }
+
+    /**
+     * Splits the text into lines, tabs are expanded.
+     * @param text text
+     * @return lines (at least one)
+     */
+    static List<String> splitLines(String text) {
+        final List<String> result = new ArrayList<>();
+        int start = 0;
+        while (true) {
+            final int idxLf = text.indexOf('\n', start);
+            final int end = (idxLf >= 0) ? idxLf : text.length();
+            final int endLine = (end > start && text.charAt(end - 1) == '\r') ? end - 1 : end;
+            result.add(text.substring(start, endLine).replace("\t", "    "));
+            if (idxLf < 0) {
+                break;
+            }
+            start = idxLf + 1;
+        }
+        return result;
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        if (inlayInline != null) {
+            inlayInline.dispose();
+            inlayInline = null;
+        }
+        if (inlayBlock != null) {
+            inlayBlock.dispose();
+            inlayBlock = null;
+        }
+    }
+
+    /**
+     * Renderer of the first line (inline) or of the following lines (block).
+     */
+    private class LineRenderer implements EditorCustomElementRenderer {
+        /** <code>true</code> in case of the first line */
+        private final boolean firstLine;
+
+        LineRenderer(boolean firstLine) {
+            this.firstLine = firstLine;
+        }
+
+        private Font getFont() {
+            return editor.getColorsScheme().getFont(EditorFontType.ITALIC);
+        }
+
+        @Override
+        public int calcWidthInPixels(@NotNull Inlay inlay) {
+            final FontMetrics fm = editor.getContentComponent().getFontMetrics(getFont());
+            int width = 1;
+            if (firstLine) {
+                width = Math.max(width, fm.stringWidth(lines.get(0)));
+            } else {
+                for (int i = 1; i < lines.size(); i++) {
+                    width = Math.max(width, fm.stringWidth(lines.get(i)));
+                }
+            }
+            return width;
+        }
+
+        @Override
+        public int calcHeightInPixels(@NotNull Inlay inlay) {
+            final int numLines = firstLine ? 1 : Math.max(1, lines.size() - 1);
+            return numLines * editor.getLineHeight();
+        }
+
+        @Override
+        public void paint(@NotNull Inlay inlay, @NotNull Graphics g, @NotNull Rectangle targetRegion, @NotNull TextAttributes textAttributes) {
+            final Font font = getFont();
+            g.setFont(font);
+            g.setColor(COLOR_GHOST);
+            final int ascent = editor.getAscent();
+            final int lineHeight = editor.getLineHeight();
+            if (firstLine) {
+                g.drawString(lines.get(0), targetRegion.x, targetRegion.y + ascent);
+            } else {
+                for (int i = 1; i < lines.size(); i++) {
+                    g.drawString(lines.get(i), targetRegion.x, targetRegion.y + (i - 1) * lineHeight + ascent);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.actionSystem.DataContext;
+import com.intellij.openapi.editor.Caret;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.actionSystem.EditorActionHandler;
+
+/**
+ * Editor-action-handlers of the inline fill-in-middle completion ({@link InlineFimSession}):
+ * Tab accepts the ghost text, Escape dismisses it. Without ghost text the original handler is called.
+ */
+public abstract class InlineFimActionHandler extends EditorActionHandler {
+    /** handler of the platform */
+    private final EditorActionHandler originalHandler;
+
+    protected InlineFimActionHandler(EditorActionHandler originalHandler) {
+        this.originalHandler = originalHandler;
+    }
+
+    /**
+     * Handles the action in the session.
+     * @param session session of the editor
+     * @return <code>true</code> if the action has been handled
+     */
+    protected abstract boolean handle(InlineFimSession session);
+
+    @Override
+    protected boolean isEnabledForCaret(Editor editor, Caret caret, DataContext dataContext) {
+        final InlineFimSession session = editor.getUserData(InlineFimSession.KEY);
+        return (session != null && session.hasGhostText()) || originalHandler.isEnabled(editor, caret, dataContext);
+    }
+
+    @Override
+    protected void doExecute(Editor editor, Caret caret, DataContext dataContext) {
+        final InlineFimSession session = editor.getUserData(InlineFimSession.KEY);
+        if (session != null && handle(session)) {
+            return;
+        }
+        originalHandler.execute(editor, caret, dataContext);
+    }
+
+    /**
+     * Tab: accepts the ghost text.
+     */
+    public static class Accept extends InlineFimActionHandler {
+        public Accept(EditorActionHandler originalHandler) {
+            super(originalHandler);
+        }
+
+        @Override
+        protected boolean handle(InlineFimSession session) {
+            return session.accept();
+        }
+    }
+
+    /**
+     * Escape: dismisses the ghost text and cancels the running request.
+     */
+    public static class Dismiss extends InlineFimActionHandler {
+        public Dismiss(EditorActionHandler originalHandler) {
+            super(originalHandler);
+        }
+
+        @Override
+        protected boolean handle(InlineFimSession session) {
+            return session.dismiss();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.editor.event.EditorFactoryEvent;
+import com.intellij.openapi.editor.event.EditorFactoryListener;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Attaches an {@link InlineFimSession} to each editor of a project.
+ * Registered in {@code plugin.xml} as editor-factory-listener.
+ */
+public class InlineFimEditorListener implements EditorFactoryListener {
+
+    @Override
+    public void editorCreated(@NotNull EditorFactoryEvent event) {
+        InlineFimSession.attach(event.getEditor());
+    }
+
+    @Override
+    public void editorReleased(@NotNull EditorFactoryEvent event) {
+        InlineFimSession.detach(event.getEditor());
+    }
+}
@@ -0,0 +1,246 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.event.CaretEvent;
+import com.intellij.openapi.editor.event.CaretListener;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Key;
+import com.intellij.util.Alarm;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Inline fill-in-middle completion of an editor, shown as ghost text at the caret.
+ * <p>
+ * After a typing pause (debounced by the configured delay) a FIM-request of the text before and after the caret
+ * is executed in the background, the tokens are streamed into a {@link StreamingInsertion}.
+ * Tab accepts the ghost text, Escape or moving the caret dismisses it (see {@link InlineFimActionHandler}).
+ * <p>
+ * A keystroke cancels the running request immediately. There is at most one request per editor in flight:
+ * a new request waits until the cancelled one has finished. The time from the typing pause
+ * to the first ghost character is logged.
+ * <p>
+ * The methods are called in the EDT. The text of the document is taken in the EDT, the context is extracted
+ * (token-budget) and the request is executed in a pooled thread.
+ */
+class InlineFimSession implements Disposable {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(InlineFimSession.class);
+
+    /** key of the session in the user-data of the editor */
+    static final Key<InlineFimSession> KEY = Key.create("pluginllm01.inlineFimSession");
+
+    /** project */
+    private final Project project;
+    /** editor */
+    private final Editor editor;
+    /** settings */
+    private final LlmSettings llmSettings;
+    /** alarm to debounce typing */
+    private final Alarm alarm;
+
+    /** current ghost text or <code>null</code> */
+    private StreamingInsertion ghost;
+    /** indicator of the current request or <code>null</code> */
+    private ProgressIndicator indicator;
+    /** completed when the request in flight has finished */
+    private CompletableFuture<Void> inFlight = CompletableFuture.completedFuture(null);
+    /** <code>true</code> if a request has to be started when the request in flight has finished */
+    private boolean pendingRequest;
+    /** time of the last keystroke (nano-time) */
+    private long tsPause;
+    /** <code>true</code> while the ghost text is written into the document */
+    private boolean accepting;
+    /** <code>true</code> if the session has been disposed */
+    private boolean disposed;
+
+    private InlineFimSession(Project project, Editor editor) {
+        this.project = project;
+        this.editor = editor;
+        this.llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        alarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+        editor.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void documentChanged(@NotNull DocumentEvent event) {
+                onDocumentChanged();
+            }
+        }, this);
+        editor.getCaretModel().addCaretListener(new CaretListener() {
+            @Override
+            public void caretPositionChanged(@NotNull CaretEvent event) {
+                if (ghost != null && editor.getCaretModel().getOffset() != ghost.getOffset()) {
+                    dismiss();
+                }
+            }
+        }, this);
+        Disposer.register(project, this);
+    }
+
+    /**
+     * Attaches a session to an editor of a project.
+     * @param editor editor
+     */
+    static void attach(Editor editor) {
+        final Project project = editor.getProject();
+        if (project == null || editor.isViewer()) {
+            return;
+        }
+        editor.putUserData(KEY, new InlineFimSession(project, editor));
+    }
+
+    /**
+     * Removes the session of an editor.
+     * @param editor editor
+     */
+    static void detach(Editor editor) {
+        final InlineFimSession session = editor.getUserData(KEY);
+        if (session != null) {
+            editor.putUserData(KEY, null);
+            Disposer.dispose(session);
+        }
+    }
+
+    private void onDocumentChanged() {
+        if (accepting) {
+            return;
+        }
+        alarm.cancelAllRequests();
+        dismiss();
+        if (!llmSettings.isInlineCompletion() || !editor.getContentComponent().hasFocus()) {
+            return;
+        }
+        tsPause = System.nanoTime();
+        alarm.addRequest(this::requestCompletion, llmSettings.getInlineCompletionDelayMillis());
+    }
+
+    private void requestCompletion() {
+        if (disposed || editor.isDisposed()) {
+            return;
+        }
+        if (!inFlight.isDone()) {
+            // The superseded request has been cancelled but hasn't finished yet.
+            pendingRequest = true;
+            return;
+        }
+        startRequest();
+    }
+
+    private void startRequest() {
+        pendingRequest = false;
+        if (editor.getSelectionModel().hasSelection()) {
+            return;
+        }
+        final int offset = editor.getCaretModel().getOffset();
+        // Snapshot of the document, the context is extracted in the pooled thread.
+        final CharSequence text = editor.getDocument().getImmutableCharSequence();
+        final int contextTokens = llmSettings.getFimContextTokens();
+        final int prefixPercent = llmSettings.getFimPrefixPercent();
+
+        final StreamingInsertion insertion = new StreamingInsertion(project, editor);
+        final long tsPauseRequest = tsPause;
+        final long tsRequest = System.nanoTime();
+        insertion.setFirstPreviewListener(() -> LOGGER.info(String.format(
+                "Inline FIM at offset %d: first ghost character %d ms after pause (request %d ms)", offset,
+                (System.nanoTime() - tsPauseRequest) / 1_000_000, (System.nanoTime() - tsRequest) / 1_000_000)));
+        ghost = insertion;
+
+        final ProgressIndicator requestIndicator = new EmptyProgressIndicator();
+        indicator = requestIndicator;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        inFlight = done;
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            try {
+                requestIndicator.checkCanceled();
+                final FimContextExtractor.FimContext context = new FimContextExtractor(text, LlmTokenizerService.getInstance().getTokenCounter())
+                        .extract(offset, contextTokens, prefixPercent);
+                final LlmTask llmTask = new LlmTask(LlmTaskType.FILL_IN_MIDDLE, null, null, context.fimBegin(text), context.fimEnd(text));
+                final Task.Backgroundable task = MainForm.createTask(project, editor, llmTask, insertion::append, status -> { },
+                        response -> LOGGER.debug(String.format("Inline FIM at offset %d: %d chars in %d ms",
+                                offset, response.length(), (System.nanoTime() - tsRequest) / 1_000_000)),
+                        null, insertion::reset, true, LlmRequestScheduler.Priority.INTERACTIVE, false);
+                task.run(requestIndicator);
+            } catch (ProcessCanceledException e) {
+                LOGGER.debug("Inline FIM at offset " + offset + " cancelled or failed");
+            } finally {
+                done.complete(null);
+                ApplicationManager.getApplication().invokeLater(() -> onRequestFinished(requestIndicator));
+            }
+        });
+    }
+
+    private void onRequestFinished(ProgressIndicator requestIndicator) {
+        if (indicator == requestIndicator) {
+            indicator = null;
+        }
+        if (!disposed && pendingRequest && inFlight.isDone()) {
+            startRequest();
+        }
+    }
+
+    /**
+     * Checks if ghost text is shown.
+     * @return <code>true</code> if there is ghost text
+     */
+    boolean hasGhostText() {
+        return ghost != null && !ghost.getText().isEmpty();
+    }
+
+    /**
+     * Writes the ghost text (received so far) into the document.
+     * @return <code>true</code> if there was ghost text
+     */
+    boolean accept() {
+        if (!hasGhostText()) {
+            return false;
+        }
+        final String text = ghost.getText();
+        final int offset = ghost.getOffset();
+        dismiss();
+        accepting = true;
+        try {
+            WriteCommandAction.runWriteCommandAction(project, () -> {
+                editor.getDocument().insertString(offset, text);
+                editor.getCaretModel().moveToOffset(offset + text.length());
+            });
+        } finally {
+            accepting = false;
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the current request and removes the ghost text.
+     * @return <code>true</code> if ghost text was shown, a running request without ghost text
+     *     doesn't consume the key (e.g. Escape closing a popup)
+     */
+    boolean dismiss() {
+        final boolean visible = hasGhostText();
+        if (indicator != null) {
+            indicator.cancel();
+            indicator = null;
+        }
+        if (ghost != null) {
+            ghost.close();
+            ghost = null;
+        }
+        return visible;
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        dismiss();
+    }
+}
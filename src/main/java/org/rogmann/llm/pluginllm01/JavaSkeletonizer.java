@@ -0,0 +1,255 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiClassInitializer;
+import com.intellij.psi.PsiCodeBlock;
+import com.intellij.psi.PsiComment;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiEnumConstant;
+import com.intellij.psi.PsiEnumConstantInitializer;
+import com.intellij.psi.PsiExpression;
+import com.intellij.psi.PsiField;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiJavaCodeReferenceElement;
+import com.intellij.psi.PsiJavaFile;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.util.PsiTreeUtil;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compresses Java-sources to their skeleton: package, imports, signatures of the classes, fields and
+ * signatures of the methods. Method-bodies are replaced by <code>{ ... }</code>, comments, initializer-blocks and
+ * multi-line field-initializers are removed. A skeleton is typically 5 to 10 times smaller than the source,
+ * so the API of the classes used by the marked range fits into the prompt.
+ * <p>
+ * The skeletons are cached per file as long as the modification-stamp of its PSI is unchanged.
+ * The methods have to be called in a read-action.
+ * <p>
+ * The skeletonizer is registered in <code>pluginllm01-java.xml</code> if the IDE contains the Java-plugin,
+ * access instance via: {@code Skeletonizer.getInstance(project)}.
+ */
+public final class JavaSkeletonizer implements Skeletonizer {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(JavaSkeletonizer.class);
+
+    /** maximum number of cached skeletons */
+    private static final int MAX_ENTRIES = 1000;
+    /** maximum number of files referenced by a range */
+    static final int MAX_FILES = 20;
+
+    /**
+     * Cached skeleton.
+     * @param stamp modification-stamp of the PSI-file
+     * @param skeleton skeleton
+     */
+    private record Entry(long stamp, String skeleton) { }
+
+    /** project */
+    private final Project project;
+    /** skeletons by path (access-order) */
+    private final Map<String, Entry> cache = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    public JavaSkeletonizer(Project project) {
+        this.project = project;
+    }
+
+    @Override
+    public String getSkeleton(PsiFile file) {
+        return (file instanceof PsiJavaFile javaFile) ? getSkeleton(javaFile) : null;
+    }
+
+    /**
+     * Gets the skeleton of a Java-file (read-action).
+     * @param file Java-file
+     * @return skeleton
+     */
+    String getSkeleton(PsiJavaFile file) {
+        final VirtualFile virtualFile = file.getVirtualFile();
+        if (virtualFile == null) {
+            return computeSkeleton(file);
+        }
+        final String path = virtualFile.getPath();
+        final long stamp = file.getModificationStamp();
+        synchronized (cache) {
+            final Entry entry = cache.get(path);
+            if (entry != null && entry.stamp() == stamp) {
+                return entry.skeleton();
+            }
+        }
+        final String skeleton = computeSkeleton(file);
+        synchronized (cache) {
+            cache.put(path, new Entry(stamp, skeleton));
+        }
+        return skeleton;
+    }
+
+    private static String computeSkeleton(PsiJavaFile file) {
+        final List<TextSkeletonizer.Elision> elisions = new ArrayList<>();
+        collectElisions(file, elisions);
+        return TextSkeletonizer.elide(file.getText(), elisions);
+    }
+
+    /**
+     * Collects the parts of the file or class which aren't part of the skeleton.
+     * @param parent file or class
+     * @param elisions list of the elisions
+     */
+    private static void collectElisions(PsiElement parent, List<TextSkeletonizer.Elision> elisions) {
+        for (PsiElement child : parent.getChildren()) {
+            if (child instanceof PsiComment || child instanceof PsiClassInitializer) {
+                // Comments of the file or class (including the javadoc of the class), static-blocks.
+                addElision(child, "", elisions);
+            } else if (child instanceof PsiClass) {
+                collectElisions(child, elisions);
+            } else if (child instanceof PsiMethod method) {
+                addDocElision(method.getDocComment(), elisions);
+                final PsiCodeBlock body = method.getBody();
+                if (body != null) {
+                    addElision(body, TextSkeletonizer.ELIDED_BODY, elisions);
+                }
+            } else if (child instanceof PsiEnumConstant enumConstant) {
+                addDocElision(enumConstant.getDocComment(), elisions);
+                final PsiEnumConstantInitializer initializingClass = enumConstant.getInitializingClass();
+                if (initializingClass != null) {
+                    addElision(initializingClass, TextSkeletonizer.ELIDED_BODY, elisions);
+                }
+            } else if (child instanceof PsiField field) {
+                addDocElision(field.getDocComment(), elisions);
+                final PsiExpression initializer = field.getInitializer();
+                if (initializer != null && initializer.getText().indexOf('\n') >= 0) {
+                    addElision(initializer, TextSkeletonizer.ELIDED_INITIALIZER, elisions);
+                }
+            }
+        }
+    }
+
+    private static void addDocElision(PsiComment docComment, List<TextSkeletonizer.Elision> elisions) {
+        if (docComment != null) {
+            addElision(docComment, "", elisions);
+        }
+    }
+
+    private static void addElision(PsiElement element, String replacement, List<TextSkeletonizer.Elision> elisions) {
+        final TextRange range = element.getTextRange();
+        elisions.add(new TextSkeletonizer.Elision(range.getStartOffset(), range.getEndOffset(), replacement));
+    }
+
+    /**
+     * Gets the Java-files of the project declaring the classes referenced in a range of a file.
+     * Classes of libraries and the file itself are skipped. Only the PSI-elements intersecting the range are visited,
+     * starting at the common parent of the elements at the start and at the end of the range.
+     * @param file file
+     * @param start start-offset of the range
+     * @param end end-offset of the range
+     * @return referenced files in the order of their first reference, at most {@link #MAX_FILES}
+     */
+    List<PsiJavaFile> findReferencedFiles(PsiFile file, int start, int end) {
+        final ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+        final Map<String, PsiJavaFile> files = new LinkedHashMap<>();
+        final List<PsiJavaCodeReferenceElement> references = new ArrayList<>();
+        final PsiElement first = (end > start) ? file.findElementAt(start) : null;
+        final PsiElement last = (first != null) ? file.findElementAt(end - 1) : null;
+        final PsiElement parent = (last != null) ? PsiTreeUtil.findCommonParent(first, last) : null;
+        // The parent and its ancestors contain the whole range, e.g. a range within a qualified name.
+        for (PsiElement ancestor = parent; ancestor != null && !(ancestor instanceof PsiFile); ancestor = ancestor.getParent()) {
+            if (ancestor instanceof PsiJavaCodeReferenceElement reference) {
+                references.add(0, reference);
+            }
+        }
+        collectReferences((parent != null) ? parent : file, start, end, references);
+        for (PsiJavaCodeReferenceElement reference : references) {
+            if (!(reference.resolve() instanceof PsiClass psiClass)
+                    || !(psiClass.getContainingFile() instanceof PsiJavaFile javaFile) || javaFile.equals(file)) {
+                continue;
+            }
+            final VirtualFile virtualFile = javaFile.getVirtualFile();
+            if (virtualFile == null || !fileIndex.isInContent(virtualFile)) {
+                continue;
+            }
+            files.putIfAbsent(virtualFile.getPath(), javaFile);
+            if (files.size() >= MAX_FILES) {
+                break;
+            }
+        }
+        return new ArrayList<>(files.values());
+    }
+
+    /**
+     * Collects the references of the descendants of an element intersecting a range, in the order of the text.
+     * Children outside the range are skipped without visiting their descendants.
+     * @param element element
+     * @param start start-offset of the range
+     * @param end end-offset of the range
+     * @param references list of the references
+     */
+    private static void collectReferences(PsiElement element, int start, int end, List<PsiJavaCodeReferenceElement> references) {
+        for (PsiElement child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            final TextRange range = child.getTextRange();
+            if (range.getEndOffset() <= start) {
+                continue;
+            }
+            if (range.getStartOffset() >= end) {
+                break;
+            }
+            if (child instanceof PsiJavaCodeReferenceElement reference) {
+                references.add(reference);
+            }
+            collectReferences(child, start, end, references);
+        }
+    }
+
+    /**
+     * Builds the skeletons of the Java-files referenced in a range of a file as markdown
+     * (read-action), see the placeholder <code>[Skeletons]</code>.
+     * @param file file
+     * @param start start-offset of the range
+     * @param end end-offset of the range
+     * @param budgetTokens maximum number of tokens
+     * @param tokenCounter counter of tokens
+     * @return markdown, empty if no project-class is referenced
+     */
+    @Override
+    public String buildSkeletons(PsiFile file, int start, int end, int budgetTokens, FimContextExtractor.TokenCounter tokenCounter) {
+        final long tsStart = System.nanoTime();
+        final StringBuilder sb = new StringBuilder();
+        int numTokens = 0;
+        int numSourceChars = 0;
+        int numFiles = 0;
+        for (PsiJavaFile javaFile : findReferencedFiles(file, start, end)) {
+            final String skeleton = getSkeleton(javaFile);
+            final String fragment = String.format("## %s\n\n```java\n%s```\n",
+                    LlmCodeIndex.getRelativePath(project, javaFile.getVirtualFile().getPath()), skeleton);
+            final int fragmentTokens = tokenCounter.countTokens(fragment, 0, fragment.length());
+            if (numTokens + fragmentTokens > budgetTokens) {
+                // A smaller skeleton may still fit.
+                continue;
+            }
+            if (!sb.isEmpty()) {
+                sb.append('\n');
+            }
+            sb.append(fragment);
+            numTokens += fragmentTokens;
+            numSourceChars += javaFile.getTextRange().getEndOffset();
+            numFiles++;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("Skeletons: %d files, %d chars instead of %d, %d tokens in %d µs",
+                    numFiles, sb.length(), numSourceChars, numTokens, (System.nanoTime() - tsStart) / 1000));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON-request which is serialized while it is sent.
+ * <p>
+ * The structure of the request and short strings are serialized into small byte-arrays, long strings
+ * (e.g. the prompt or the immutable text of a document) are referenced and escaped directly into the buffer
+ * of the reader by a {@link Utf8StreamEncoder}. So the heap needed for sending a request of several megabytes
+ * is independent of the size of the prompt (no JSON-string, no byte-array of the request).
+ * <p>
+ * The supported values are the ones of {@link LightweightJsonHandler#dumpJson(StringBuilder, Map)}
+ * and {@link CharSequence}.
+ */
+final class JsonRequestBody {
+    /** strings of at least this length are referenced instead of being copied */
+    static final int MIN_STREAMED_CHARS = 256;
+
+    /** maximum number of characters of a string in {@link #toString()} */
+    private static final int MAX_LOGGED_CHARS = 200;
+
+    /** segments of the request: byte-array (serialized JSON) or character-sequence (content of a JSON-string) */
+    private final List<Object> segments = new ArrayList<>();
+    /** length of the request in bytes, computed lazily */
+    private long length = -1;
+
+    /**
+     * Creates the body of a JSON-object.
+     * @param map JSON-object
+     * @return body
+     */
+    static JsonRequestBody of(Map<String, ?> map) {
+        final JsonRequestBody body = new JsonRequestBody();
+        final StringBuilder sb = new StringBuilder(256);
+        body.appendValue(sb, map);
+        body.flushLiteral(sb);
+        return body;
+    }
+
+    private void appendValue(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof CharSequence cs) {
+            appendString(sb, cs);
+        } else if (value instanceof Map<?, ?> map) {
+            sb.append('{');
+            String as = "";
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                sb.append(as);
+                appendString(sb, (String) entry.getKey());
+                sb.append(':');
+                appendValue(sb, entry.getValue());
+                as = ",";
+            }
+            sb.append('}');
+        } else if (value instanceof List<?> list) {
+            sb.append('[');
+            String as = "";
+            for (Object element : list) {
+                sb.append(as);
+                appendValue(sb, element);
+                as = ",";
+            }
+            sb.append(']');
+        } else if (value instanceof Boolean || value instanceof Integer || value instanceof Long
+                || value instanceof Float || value instanceof Double || value instanceof BigDecimal) {
+            sb.append(value);
+        } else {
+            throw new IllegalArgumentException("Unexpected value of type " + value.getClass());
+        }
+    }
+
+    private void appendString(StringBuilder sb, CharSequence cs) {
+        sb.append('"');
+        if (cs.length() >= MIN_STREAMED_CHARS) {
+            flushLiteral(sb);
+            segments.add(cs);
+        } else {
+            final Utf8StreamEncoder encoder = new Utf8StreamEncoder(cs, true);
+            final byte[] buf = new byte[(int) Utf8StreamEncoder.encodedLength(cs, true)];
+            encoder.encode(buf, 0, buf.length);
+            // The escaped string is ASCII except non-ASCII characters which are decoded again.
+            sb.append(new String(buf, StandardCharsets.UTF_8));
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Stores the serialized JSON as segment.
+     * @param sb serialized JSON, it is cleared
+     */
+    private void flushLiteral(StringBuilder sb) {
+        if (!sb.isEmpty()) {
+            segments.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+            sb.setLength(0);
+        }
+    }
+
+    /**
+     * Gets the length of the request in bytes. The length of the long strings is computed without encoding them.
+     * @return number of bytes
+     */
+    long getLength() {
+        if (length < 0) {
+            long len = 0;
+            for (Object segment : segments) {
+                len += (segment instanceof byte[] buf) ? buf.length
+                        : Utf8StreamEncoder.encodedLength((CharSequence) segment, true);
+            }
+            length = len;
+        }
+        return length;
+    }
+
+    /**
+     * Opens a new stream of the serialized request, e.g. for each attempt to send the request.
+     * @return input-stream of the UTF-8 bytes
+     */
+    InputStream openStream() {
+        return new SegmentedInputStream(segments, true);
+    }
+
+    /**
+     * Gets the request for logging, long strings are abbreviated.
+     * @return JSON
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Object segment : segments) {
+            if (segment instanceof byte[] buf) {
+                sb.append(new String(buf, StandardCharsets.UTF_8));
+            } else {
+                final CharSequence cs = (CharSequence) segment;
+                sb.append(cs, 0, MAX_LOGGED_CHARS).append(String.format("...(%d chars)", cs.length()));
+            }
+        }
+        return sb.toString();
+    }
+}
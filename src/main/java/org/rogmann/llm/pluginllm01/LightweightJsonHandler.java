@@ -13,6 +13,8 @@ import java.util.Map.Entry;
 /**
  * A simple JSON-implementation to be used in this application only (to skip dependencies).
  * The recommendation is to use org.json or features like JAX-RS using DTOs in own projects.
+ * <p>
+ * Single fields of the streamed chunks are read by {@link LightweightJsonPath} which doesn't build a map.
  */
 class LightweightJsonHandler {
 
@@ -167,6 +169,8 @@ class LightweightJsonHandler {
                     if ((c >= 'a' && c <= 'z') || (c == 'E') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+') {
                         sb.append(c);
                         c = readChar(br, false);
+                    } else if ((c == ' ' || c == '\t' || c == '\r' || c == '\n') && !sb.isEmpty()) {
+                        break;
                     } else {
                         throw new IllegalArgumentException("Illegal value character: " + c);
                     }
@@ -263,6 +267,33 @@ class LightweightJsonHandler {
         return map;
     }
 
+    /**
+     * Parses a JSON-dictionary given as char-sequence, e.g. the data of a server-sent event.
+     * The char-sequence is read in place, it isn't copied into a string.
+     * @param cs char-sequence containing a JSON-dictionary
+     * @return map from key to value
+     * @throws IOException in case of an IO error
+     */
+    static Map<String, Object> parseJsonDict(CharSequence cs) throws IOException {
+        try (Reader reader = new CharSequenceReader(cs)) {
+            readChar(reader, true, '{');
+            return parseJsonDict(reader);
+        }
+    }
+
+    /**
+     * Parses a JSON-array given as char-sequence, e.g. the response of the slots-endpoint.
+     * @param cs char-sequence containing a JSON-array
+     * @return list of values
+     * @throws IOException in case of an IO error
+     */
+    static List<Object> parseJsonArray(CharSequence cs) throws IOException {
+        try (Reader reader = new CharSequenceReader(cs)) {
+            readChar(reader, true, '[');
+            return parseJsonArray(reader);
+        }
+    }
+
     private static Object parseJsonValue(String value) {
         if ("null".equals(value)) {
             return null;
@@ -477,4 +508,38 @@ class LightweightJsonHandler {
         }
         throw new IllegalStateException(String.format("Unexpected type (%s / %s) at key (%s), expected boolean", oValue.getClass(), oValue, key));
     }
+
+    /**
+     * Reader of a char-sequence (without copying the characters).
+     */
+    static class CharSequenceReader extends Reader {
+        private final CharSequence cs;
+        private int pos;
+
+        CharSequenceReader(CharSequence cs) {
+            this.cs = cs;
+        }
+
+        @Override
+        public int read() {
+            return (pos < cs.length()) ? cs.charAt(pos++) : -1;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (pos >= cs.length()) {
+                return -1;
+            }
+            final int n = Math.min(len, cs.length() - pos);
+            for (int i = 0; i < n; i++) {
+                cbuf[off + i] = cs.charAt(pos++);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+    }
 }
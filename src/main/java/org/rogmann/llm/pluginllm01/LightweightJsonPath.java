@@ -0,0 +1,693 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Precompiled set of JSON-paths which are extracted from a JSON-document in a single scan.
+ * <p>
+ * Supported is a small subset of JSONPath: the root {@code $}, member-access {@code .name}
+ * and array-access {@code [n]}, e.g. {@code $.choices[0].delta.content} or {@code $.stop}.
+ * Only the values of the requested paths are materialized, all other values are skipped
+ * without building maps, lists or numbers. The scan stops as soon as all paths have been found,
+ * so the remaining document (e.g. the generation-settings in the last chunk of llama.cpp) isn't checked.
+ * <p>
+ * A query is immutable and may be shared between threads, the values are stored in a {@link Result}
+ * which should be reused by one thread.
+ * <p>
+ * Example:
+ * <pre>
+ *     LightweightJsonPath query = LightweightJsonPath.compile("$.content", "$.tokens", "$.stop");
+ *     LightweightJsonPath.Result result = query.newResult();
+ *     query.scan(json, result);
+ *     String content = result.getString(0);
+ * </pre>
+ */
+final class LightweightJsonPath {
+    /** marker of a completed scan (all paths found) */
+    private static final int DONE = -1;
+
+    /**
+     * Node in the tree of the compiled paths.
+     */
+    private static final class Node {
+        /** key of a member, <code>null</code> in case of an array-element */
+        final String key;
+        /** index of an array-element, -1 in case of a member */
+        final int index;
+        /** child-nodes */
+        final List<Node> children = new ArrayList<>();
+        /** slot of the value if this node is the end of a path, -1 otherwise */
+        int slot = -1;
+
+        Node(String key, int index) {
+            this.key = key;
+            this.index = index;
+        }
+
+        Node getOrAddChild(String childKey, int childIndex) {
+            for (Node child : children) {
+                if (child.index == childIndex && (childKey == null ? child.key == null : childKey.equals(child.key))) {
+                    return child;
+                }
+            }
+            final Node child = new Node(childKey, childIndex);
+            children.add(child);
+            return child;
+        }
+
+        Node findIndex(int idx) {
+            for (Node child : children) {
+                if (child.key == null && child.index == idx) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Values found by a scan. The slot of a value is the index of its path in {@link #compile(String...)}.
+     */
+    static final class Result {
+        static final byte MISSING = 0;
+        static final byte NULL = 1;
+        static final byte STRING = 2;
+        static final byte BOOLEAN = 3;
+        static final byte INTEGER = 4;
+        static final byte DECIMAL = 5;
+        static final byte INT_ARRAY = 6;
+        /** object or array which isn't a list of integers, the value is not materialized */
+        static final byte OTHER = 7;
+
+        private final byte[] kinds;
+        private final String[] strings;
+        private final long[] longs;
+        private final double[] doubles;
+        private final int[][] ints;
+        private final int[] intCounts;
+        /** number of found paths */
+        private int found;
+        /** temporary buffer to decode strings */
+        private final StringBuilder sb = new StringBuilder(64);
+
+        Result(int numSlots) {
+            kinds = new byte[numSlots];
+            strings = new String[numSlots];
+            longs = new long[numSlots];
+            doubles = new double[numSlots];
+            ints = new int[numSlots][];
+            intCounts = new int[numSlots];
+        }
+
+        void reset() {
+            Arrays.fill(kinds, MISSING);
+            Arrays.fill(strings, null);
+            found = 0;
+        }
+
+        /**
+         * Gets the kind of the value.
+         * @param slot slot of the path
+         * @return kind, e.g. {@link #MISSING} or {@link #STRING}
+         */
+        byte getKind(int slot) {
+            return kinds[slot];
+        }
+
+        /**
+         * Checks if the path is present in the document (the value may be <code>null</code>).
+         * @param slot slot of the path
+         * @return <code>true</code> if present
+         */
+        boolean isPresent(int slot) {
+            return kinds[slot] != MISSING;
+        }
+
+        /**
+         * Gets a string-value.
+         * @param slot slot of the path
+         * @return string or <code>null</code> if missing or not a string
+         */
+        String getString(int slot) {
+            return strings[slot];
+        }
+
+        /**
+         * Gets a boolean-value.
+         * @param slot slot of the path
+         * @param defaultValue default-value if missing or not a boolean
+         * @return boolean
+         */
+        boolean getBoolean(int slot, boolean defaultValue) {
+            return (kinds[slot] == BOOLEAN) ? longs[slot] != 0 : defaultValue;
+        }
+
+        /**
+         * Gets an integral value.
+         * @param slot slot of the path
+         * @param defaultValue default-value if missing or not a number
+         * @return number
+         */
+        long getLong(int slot, long defaultValue) {
+            return switch (kinds[slot]) {
+                case INTEGER -> longs[slot];
+                case DECIMAL -> (long) doubles[slot];
+                default -> defaultValue;
+            };
+        }
+
+        /**
+         * Gets an integral value.
+         * @param slot slot of the path
+         * @param defaultValue default-value if missing or not a number
+         * @return number
+         */
+        int getInt(int slot, int defaultValue) {
+            return (int) getLong(slot, defaultValue);
+        }
+
+        /**
+         * Gets a numeric value.
+         * @param slot slot of the path
+         * @param defaultValue default-value if missing or not a number
+         * @return number
+         */
+        double getDouble(int slot, double defaultValue) {
+            return switch (kinds[slot]) {
+                case INTEGER -> longs[slot];
+                case DECIMAL -> doubles[slot];
+                default -> defaultValue;
+            };
+        }
+
+        /**
+         * Gets the number of elements of an array of integers.
+         * @param slot slot of the path
+         * @return number of elements, 0 if missing
+         */
+        int getIntCount(int slot) {
+            return (kinds[slot] == INT_ARRAY) ? intCounts[slot] : 0;
+        }
+
+        /**
+         * Gets an element of an array of integers.
+         * @param slot slot of the path
+         * @param idx index in the array
+         * @return element
+         */
+        int getIntAt(int slot, int idx) {
+            if (idx >= getIntCount(slot)) {
+                throw new IndexOutOfBoundsException(String.format("Index %d of %d", idx, getIntCount(slot)));
+            }
+            return ints[slot][idx];
+        }
+
+        /**
+         * Gets a copy of an array of integers.
+         * @param slot slot of the path
+         * @return array or <code>null</code> if missing or not an array of integers
+         */
+        int[] getIntArray(int slot) {
+            if (kinds[slot] != INT_ARRAY) {
+                return null;
+            }
+            return (ints[slot] != null) ? Arrays.copyOf(ints[slot], intCounts[slot]) : new int[0];
+        }
+
+        private void addInt(int slot, int value) {
+            int[] buf = ints[slot];
+            if (buf == null) {
+                buf = new int[16];
+                ints[slot] = buf;
+            } else if (intCounts[slot] == buf.length) {
+                buf = Arrays.copyOf(buf, 2 * buf.length);
+                ints[slot] = buf;
+            }
+            buf[intCounts[slot]++] = value;
+        }
+    }
+
+    /** root-node */
+    private final Node root = new Node(null, -1);
+    /** paths */
+    private final String[] paths;
+
+    private LightweightJsonPath(String[] paths) {
+        this.paths = paths.clone();
+        for (int slot = 0; slot < paths.length; slot++) {
+            addPath(paths[slot], slot);
+        }
+    }
+
+    /**
+     * Compiles a set of paths.
+     * @param paths paths, e.g. {@code $.choices[0].delta.content}
+     * @return compiled query
+     */
+    static LightweightJsonPath compile(String... paths) {
+        return new LightweightJsonPath(paths);
+    }
+
+    /**
+     * Creates a result-object to be used in {@link #scan(CharSequence, Result)}.
+     * @return result
+     */
+    Result newResult() {
+        return new Result(paths.length);
+    }
+
+    private void addPath(String path, int slot) {
+        if (!path.startsWith("$")) {
+            throw new IllegalArgumentException("Path doesn't start with $: " + path);
+        }
+        Node node = root;
+        int pos = 1;
+        while (pos < path.length()) {
+            if (node.slot >= 0) {
+                throw new IllegalArgumentException("Path has a requested prefix: " + path);
+            }
+            final char c = path.charAt(pos);
+            if (c == '.') {
+                int end = pos + 1;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                if (end == pos + 1) {
+                    throw new IllegalArgumentException(String.format("Missing key at position %d in path (%s)", pos, path));
+                }
+                node = node.getOrAddChild(path.substring(pos + 1, end), -1);
+                pos = end;
+            } else if (c == '[') {
+                final int end = path.indexOf(']', pos);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Missing ] in path: " + path);
+                }
+                final int idx;
+                try {
+                    idx = Integer.parseInt(path.substring(pos + 1, end));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(String.format("Invalid index in path (%s)", path), e);
+                }
+                node = node.getOrAddChild(null, idx);
+                pos = end + 1;
+            } else {
+                throw new IllegalArgumentException(String.format("Unexpected character '%c' at position %d in path (%s)", c, pos, path));
+            }
+        }
+        if (node.slot >= 0 || !node.children.isEmpty()) {
+            throw new IllegalArgumentException("Path is a duplicate or prefix of another path: " + path);
+        }
+        if (node == root) {
+            throw new IllegalArgumentException("The root can't be requested: " + path);
+        }
+        node.slot = slot;
+    }
+
+    /**
+     * Scans a JSON-document and stores the values of the paths into the result.
+     * @param json JSON-document
+     * @param result result (will be reset before the scan)
+     */
+    void scan(CharSequence json, Result result) {
+        result.reset();
+        scanValue(json, 0, root, result);
+    }
+
+    private int scanValue(CharSequence cs, int pos, Node node, Result r) {
+        pos = skipWs(cs, pos);
+        if (node.slot >= 0) {
+            return readValue(cs, pos, node.slot, r);
+        }
+        final char c = charAt(cs, pos);
+        if (c == '{') {
+            return scanObject(cs, pos + 1, node, r);
+        }
+        if (c == '[') {
+            return scanArray(cs, pos + 1, node, r);
+        }
+        return skipValue(cs, pos);
+    }
+
+    private int scanObject(CharSequence cs, int pos, Node node, Result r) {
+        pos = skipWs(cs, pos);
+        if (charAt(cs, pos) == '}') {
+            return pos + 1;
+        }
+        while (true) {
+            if (charAt(cs, pos) != '"') {
+                throw new IllegalArgumentException(String.format("Illegal key at position %d: %c", pos, charAt(cs, pos)));
+            }
+            final int keyStart = pos + 1;
+            final int keyEnd = skipString(cs, keyStart) - 1;
+            final Node child = findKey(cs, keyStart, keyEnd, node, r);
+            pos = skipWs(cs, keyEnd + 1);
+            if (charAt(cs, pos) != ':') {
+                throw new IllegalArgumentException(String.format("Illegal character after key at position %d: %c", pos, charAt(cs, pos)));
+            }
+            pos = (child != null) ? scanValue(cs, pos + 1, child, r) : skipValue(cs, skipWs(cs, pos + 1));
+            if (pos == DONE) {
+                return DONE;
+            }
+            pos = skipWs(cs, pos);
+            final char c = charAt(cs, pos);
+            if (c == '}') {
+                return pos + 1;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException(String.format("Missing comma at position %d: %c", pos, c));
+            }
+            pos = skipWs(cs, pos + 1);
+        }
+    }
+
+    private int scanArray(CharSequence cs, int pos, Node node, Result r) {
+        pos = skipWs(cs, pos);
+        if (charAt(cs, pos) == ']') {
+            return pos + 1;
+        }
+        int idx = 0;
+        while (true) {
+            final Node child = node.findIndex(idx);
+            pos = (child != null) ? scanValue(cs, pos, child, r) : skipValue(cs, skipWs(cs, pos));
+            if (pos == DONE) {
+                return DONE;
+            }
+            pos = skipWs(cs, pos);
+            final char c = charAt(cs, pos);
+            if (c == ']') {
+                return pos + 1;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException(String.format("Missing comma in array at position %d: %c", pos, c));
+            }
+            pos++;
+            idx++;
+        }
+    }
+
+    /**
+     * Looks for a child-node with the given key.
+     * @return child-node or <code>null</code>
+     */
+    private static Node findKey(CharSequence cs, int keyStart, int keyEnd, Node node, Result r) {
+        final List<Node> children = node.children;
+        if (children.isEmpty()) {
+            return null;
+        }
+        boolean hasEscape = false;
+        for (int i = keyStart; i < keyEnd; i++) {
+            if (cs.charAt(i) == '\\') {
+                hasEscape = true;
+                break;
+            }
+        }
+        CharSequence key = cs;
+        int start = keyStart;
+        int len = keyEnd - keyStart;
+        if (hasEscape) {
+            readString(cs, keyStart, r.sb);
+            key = r.sb;
+            start = 0;
+            len = r.sb.length();
+        }
+        for (Node child : children) {
+            final String childKey = child.key;
+            if (childKey == null || childKey.length() != len) {
+                continue;
+            }
+            boolean equal = true;
+            for (int i = 0; i < len; i++) {
+                if (childKey.charAt(i) != key.charAt(start + i)) {
+                    equal = false;
+                    break;
+                }
+            }
+            if (equal) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the value of a requested path.
+     * @return position after the value or {@link #DONE}
+     */
+    private int readValue(CharSequence cs, int pos, int slot, Result r) {
+        final boolean isNew = r.kinds[slot] == Result.MISSING;
+        final char c = charAt(cs, pos);
+        int posEnd;
+        if (c == '"') {
+            posEnd = readString(cs, pos + 1, r.sb);
+            if (isNew) {
+                r.kinds[slot] = Result.STRING;
+                r.strings[slot] = r.sb.toString();
+            }
+        } else if (c == '[') {
+            posEnd = isNew ? readIntArray(cs, pos + 1, slot, r) : skipValue(cs, pos);
+        } else if (c == '{') {
+            posEnd = skipValue(cs, pos);
+            if (isNew) {
+                r.kinds[slot] = Result.OTHER;
+            }
+        } else {
+            posEnd = skipValue(cs, pos);
+            if (isNew) {
+                readLiteral(cs, pos, posEnd, slot, r);
+            }
+        }
+        if (isNew) {
+            r.found++;
+            if (r.found == paths.length) {
+                return DONE;
+            }
+        }
+        return posEnd;
+    }
+
+    private static int readIntArray(CharSequence cs, int pos, int slot, Result r) {
+        r.intCounts[slot] = 0;
+        pos = skipWs(cs, pos);
+        if (charAt(cs, pos) == ']') {
+            r.kinds[slot] = Result.INT_ARRAY;
+            return pos + 1;
+        }
+        while (true) {
+            final int start = pos;
+            long value = 0;
+            boolean negative = false;
+            if (charAt(cs, pos) == '-') {
+                negative = true;
+                pos++;
+            }
+            final int startDigits = pos;
+            while (pos < cs.length() && cs.charAt(pos) >= '0' && cs.charAt(pos) <= '9' && pos - startDigits < 10) {
+                value = 10 * value + (cs.charAt(pos) - '0');
+                pos++;
+            }
+            value = negative ? -value : value;
+            if (pos == startDigits || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE
+                    || (pos < cs.length() && isLiteralChar(cs.charAt(pos)))) {
+                // Not an array of integers: skip the remaining array.
+                r.kinds[slot] = Result.OTHER;
+                int p = start;
+                while (true) {
+                    p = skipWs(cs, skipValue(cs, skipWs(cs, p)));
+                    if (charAt(cs, p) == ']') {
+                        return p + 1;
+                    }
+                    p++;
+                }
+            }
+            r.addInt(slot, (int) value);
+            pos = skipWs(cs, pos);
+            final char c = charAt(cs, pos);
+            if (c == ']') {
+                r.kinds[slot] = Result.INT_ARRAY;
+                return pos + 1;
+            }
+            if (c != ',') {
+                throw new IllegalArgumentException(String.format("Missing comma in array at position %d: %c", pos, c));
+            }
+            pos = skipWs(cs, pos + 1);
+        }
+    }
+
+    private static void readLiteral(CharSequence cs, int start, int end, int slot, Result r) {
+        final int len = end - start;
+        if (matches(cs, start, len, "null")) {
+            r.kinds[slot] = Result.NULL;
+        } else if (matches(cs, start, len, "true")) {
+            r.kinds[slot] = Result.BOOLEAN;
+            r.longs[slot] = 1;
+        } else if (matches(cs, start, len, "false")) {
+            r.kinds[slot] = Result.BOOLEAN;
+            r.longs[slot] = 0;
+        } else {
+            long value = 0;
+            int pos = start;
+            final boolean negative = charAt(cs, pos) == '-';
+            if (negative) {
+                pos++;
+            }
+            boolean integral = pos < end && end - pos <= 18;
+            for (; integral && pos < end; pos++) {
+                final char c = cs.charAt(pos);
+                if (c < '0' || c > '9') {
+                    integral = false;
+                    break;
+                }
+                value = 10 * value + (c - '0');
+            }
+            if (integral) {
+                r.kinds[slot] = Result.INTEGER;
+                r.longs[slot] = negative ? -value : value;
+            } else {
+                try {
+                    r.doubles[slot] = Double.parseDouble(cs.subSequence(start, end).toString());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Illegal value: " + cs.subSequence(start, end), e);
+                }
+                r.kinds[slot] = Result.DECIMAL;
+            }
+        }
+    }
+
+    private static boolean matches(CharSequence cs, int start, int len, String literal) {
+        if (len != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (cs.charAt(start + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skips a value (string, number, literal, object or array) without materializing it.
+     * @param cs JSON-document
+     * @param pos position of the first character of the value
+     * @return position after the value
+     */
+    static int skipValue(CharSequence cs, int pos) {
+        final char c = charAt(cs, pos);
+        if (c == '"') {
+            return skipString(cs, pos + 1);
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (true) {
+                final char cc = charAt(cs, pos);
+                if (cc == '"') {
+                    pos = skipString(cs, pos + 1);
+                    continue;
+                }
+                if (cc == '{' || cc == '[') {
+                    depth++;
+                } else if (cc == '}' || cc == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return pos + 1;
+                    }
+                }
+                pos++;
+            }
+        }
+        final int start = pos;
+        while (pos < cs.length() && isLiteralChar(cs.charAt(pos))) {
+            pos++;
+        }
+        if (pos == start) {
+            throw new IllegalArgumentException(String.format("Illegal value character (\\u%04x, '%c') at position %d", (int) c, c, pos));
+        }
+        return pos;
+    }
+
+    private static boolean isLiteralChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c == 'E') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+';
+    }
+
+    /**
+     * Skips a string.
+     * @param cs JSON-document
+     * @param pos position after the opening quote
+     * @return position after the closing quote
+     */
+    private static int skipString(CharSequence cs, int pos) {
+        while (true) {
+            final char c = charAt(cs, pos);
+            if (c == '"') {
+                return pos + 1;
+            }
+            pos += (c == '\\') ? 2 : 1;
+        }
+    }
+
+    /**
+     * Reads a string into a buffer.
+     * @param cs JSON-document
+     * @param pos position after the opening quote
+     * @param sb buffer (will be cleared)
+     * @return position after the closing quote
+     */
+    private static int readString(CharSequence cs, int pos, StringBuilder sb) {
+        sb.setLength(0);
+        while (true) {
+            char c = charAt(cs, pos++);
+            if (c == '"') {
+                return pos;
+            }
+            if (c == '\\') {
+                c = charAt(cs, pos++);
+                switch (c) {
+                    case '"', '\\', '/' -> { }
+                    case 't' -> c = '\t';
+                    case 'n' -> c = '\n';
+                    case 'r' -> c = '\r';
+                    case 'b' -> c = '\b';
+                    case 'f' -> c = '\f';
+                    case 'u' -> {
+                        int cp = 0;
+                        for (int i = 0; i < 4; i++) {
+                            final int digit = Character.digit(charAt(cs, pos++), 16);
+                            if (digit < 0) {
+                                throw new IllegalArgumentException("Unexpected unicode-escape at position " + (pos - 1));
+                            }
+                            cp = (cp << 4) | digit;
+                        }
+                        c = (char) cp;
+                    }
+                    default -> throw new IllegalArgumentException("Unexpected escape character: " + c);
+                }
+            }
+            sb.append(c);
+        }
+    }
+
+    private static int skipWs(CharSequence cs, int pos) {
+        while (pos < cs.length()) {
+            final char c = cs.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private static char charAt(CharSequence cs, int pos) {
+        if (pos >= cs.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON-document at position " + pos);
+        }
+        return cs.charAt(pos);
+    }
+
+    @Override
+    public String toString() {
+        return "LightweightJsonPath" + Arrays.toString(paths);
+    }
+}
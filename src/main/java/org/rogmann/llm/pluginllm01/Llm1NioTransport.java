@@ -0,0 +1,379 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking transport of the LLM1-protocol.
+ * <p>
+ * A single event-loop thread serves all running requests using a {@link Selector}.
+ * A request is written as soon as the channel is connected: a streamed request is encoded into a pooled
+ * buffer of {@link Utf8StreamEncoder#BUFFER_SIZE} bytes which is refilled whenever the channel is writable,
+ * so the heap needed doesn't depend on the size of the prompt. The response is read into a direct
+ * byte-buffer and decoded by a {@link Llm1ResponseDecoder}. A request can be cancelled at any time
+ * by closing its channel, this doesn't have to wait for a socket-timeout.
+ * <p>
+ * Access instance via: {@code ApplicationManager.getApplication().getService(Llm1NioTransport.class)}.
+ */
+@Service
+public final class Llm1NioTransport implements Disposable {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(Llm1NioTransport.class);
+
+    /** timeout when connecting to the server */
+    private static final long CONNECT_TIMEOUT_MS = 3000;
+    /** maximum time of a select-call, used to check for connect-timeouts */
+    private static final long SELECT_TIMEOUT_MS = 250;
+    /** size of the read-buffer of a connection */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /** requests to be registered by the event-loop */
+    private final Queue<Call> pendingCalls = new ConcurrentLinkedQueue<>();
+
+    /** selector of the event-loop */
+    private Selector selector;
+    /** <code>true</code> if the transport has been disposed */
+    private volatile boolean disposed;
+
+    /**
+     * A request which is executed by the event-loop.
+     */
+    public static final class Call {
+        /** completed when the response is complete, completed exceptionally in case of an error or cancellation */
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        /** server-address */
+        private final InetSocketAddress endpoint;
+        /** decoder of the response */
+        private final Llm1ResponseDecoder decoder;
+        /** bytes to be written */
+        private ByteBuffer bufWrite;
+        /** remaining request to be written after the bytes of the write-buffer, <code>null</code> if none */
+        private InputStream requestStream;
+        /** pooled buffer of the write-buffer of a streamed request, guarded by the call */
+        private byte[] bufPooled;
+        /** read-buffer */
+        private ByteBuffer bufRead;
+        /** deadline of the connect (nano-time) */
+        private final long connectDeadline;
+        /** channel of the request, <code>null</code> before registration */
+        private volatile SocketChannel channel;
+        /** selector of the event-loop */
+        private final Selector selector;
+        /** <code>true</code> if the close-chunk is being written */
+        private boolean closing;
+
+        /** time the request has been started (nano-time) */
+        final long tsStart = System.nanoTime();
+        /** time the channel has been connected (nano-time) */
+        volatile long tsConnected;
+        /** time the request has been written (nano-time) */
+        volatile long tsRequestSent;
+        /** time the first token arrived (nano-time) */
+        volatile long tsFirstToken;
+
+        Call(InetSocketAddress endpoint, ByteBuffer request, InputStream requestStream,
+             Llm1ResponseDecoder decoder, Selector selector) {
+            this.endpoint = endpoint;
+            this.bufWrite = request;
+            this.requestStream = requestStream;
+            this.decoder = decoder;
+            this.selector = selector;
+            this.connectDeadline = System.nanoTime() + CONNECT_TIMEOUT_MS * 1_000_000L;
+        }
+
+        /**
+         * Cancels the request, the channel is closed immediately.
+         */
+        public void cancel() {
+            done.completeExceptionally(new CancellationException("Request cancelled"));
+            closeChannel();
+            selector.wakeup();
+        }
+
+        /**
+         * Gets the decoder of the response.
+         * @return decoder
+         */
+        public Llm1ResponseDecoder getDecoder() {
+            return decoder;
+        }
+
+        /**
+         * Gets the future of the response.
+         * @return future, completed when the response is complete
+         */
+        public CompletableFuture<Void> getDone() {
+            return done;
+        }
+
+        /**
+         * Refills the write-buffer from the request-stream (event-loop).
+         * @return <code>false</code> if the request has been written completely
+         * @throws IOException in case of an error while encoding the request
+         */
+        private synchronized boolean refill() throws IOException {
+            if (requestStream == null) {
+                return false;
+            }
+            if (bufPooled == null) {
+                bufPooled = Utf8StreamEncoder.acquireBuffer();
+            }
+            final int len = requestStream.read(bufPooled, 0, bufPooled.length);
+            if (len < 0) {
+                releaseBuffer();
+                return false;
+            }
+            bufWrite = ByteBuffer.wrap(bufPooled, 0, len);
+            return true;
+        }
+
+        /**
+         * Returns the pooled buffer into the pool, the rest of the request-stream isn't written any more.
+         * This is called at the end of the request-stream or after the channel has been closed
+         * (a closed channel doesn't read the buffer any more).
+         */
+        private synchronized void releaseBuffer() {
+            requestStream = null;
+            if (bufPooled != null) {
+                Utf8StreamEncoder.releaseBuffer(bufPooled);
+                bufPooled = null;
+            }
+        }
+
+        private void fail(Throwable e) {
+            done.completeExceptionally(e);
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            final SocketChannel ch = channel;
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Error while closing channel: " + e);
+                }
+            }
+            // A failed or cancelled request doesn't reach the end of its request-stream.
+            releaseBuffer();
+        }
+    }
+
+    /**
+     * Starts a request. The request is executed by the event-loop.
+     * @param endpoint address of the LLM-server
+     * @param request serialized request
+     * @param decoder decoder of the response (which knows the listener of the tokens)
+     * @return running request
+     * @throws IOException if the event-loop can't be started
+     */
+    public Call start(InetSocketAddress endpoint, ByteBuffer request, Llm1ResponseDecoder decoder) throws IOException {
+        return start(new Call(endpoint, request, null, decoder, ensureEventLoop()));
+    }
+
+    /**
+     * Starts a request which is encoded while it is written. The request is executed by the event-loop.
+     * @param endpoint address of the LLM-server
+     * @param request stream of the request, read by the event-loop
+     * @param decoder decoder of the response (which knows the listener of the tokens)
+     * @return running request
+     * @throws IOException if the event-loop can't be started
+     */
+    public Call start(InetSocketAddress endpoint, InputStream request, Llm1ResponseDecoder decoder) throws IOException {
+        return start(new Call(endpoint, ByteBuffer.allocate(0), request, decoder, ensureEventLoop()));
+    }
+
+    private Call start(Call call) {
+        pendingCalls.add(call);
+        call.selector.wakeup();
+        return call;
+    }
+
+    private synchronized Selector ensureEventLoop() throws IOException {
+        if (disposed) {
+            throw new IOException("LLM1-transport has been disposed");
+        }
+        if (selector == null) {
+            selector = Selector.open();
+            final Thread loopThread = new Thread(this::runEventLoop, "LLM1-NIO-EventLoop");
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+        return selector;
+    }
+
+    private void runEventLoop() {
+        final Selector sel = selector;
+        LOGGER.info("LLM1 event-loop started");
+        while (!disposed) {
+            try {
+                sel.select(SELECT_TIMEOUT_MS);
+                registerPendingCalls(sel);
+                final Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    handleKey(key);
+                }
+                checkTimeouts(sel);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Unexpected error in LLM1 event-loop", e);
+            }
+        }
+        for (SelectionKey key : sel.keys()) {
+            ((Call) key.attachment()).fail(new IOException("LLM1-transport has been disposed"));
+        }
+        try {
+            sel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Error while closing selector: " + e);
+        }
+        LOGGER.info("LLM1 event-loop stopped");
+    }
+
+    private void registerPendingCalls(Selector sel) {
+        while (true) {
+            final Call call = pendingCalls.poll();
+            if (call == null) {
+                break;
+            }
+            if (call.done.isDone()) {
+                continue;
+            }
+            try {
+                final SocketChannel ch = SocketChannel.open();
+                call.channel = ch;
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+                LOGGER.info("Connect to llm-server: " + call.endpoint);
+                final boolean connected = ch.connect(call.endpoint);
+                if (connected) {
+                    call.tsConnected = System.nanoTime();
+                }
+                ch.register(sel, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, call);
+                if (call.done.isDone()) {
+                    // cancelled while registering.
+                    call.closeChannel();
+                }
+            } catch (IOException e) {
+                call.fail(e);
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        final Call call = (Call) key.attachment();
+        final SocketChannel ch = (SocketChannel) key.channel();
+        try {
+            if (!key.isValid() || call.done.isDone() && !call.closing) {
+                call.closeChannel();
+                return;
+            }
+            if (key.isConnectable()) {
+                if (ch.finishConnect()) {
+                    call.tsConnected = System.nanoTime();
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                while (true) {
+                    ch.write(call.bufWrite);
+                    if (call.bufWrite.hasRemaining()) {
+                        // The send-buffer of the socket is full, we wait for the next OP_WRITE.
+                        return;
+                    }
+                    if (call.closing) {
+                        call.closeChannel();
+                        call.done.complete(null);
+                        return;
+                    }
+                    if (!call.refill()) {
+                        break;
+                    }
+                }
+                call.tsRequestSent = System.nanoTime();
+                call.bufWrite = null;
+                call.bufRead = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (key.isReadable()) {
+                readResponse(key, call, ch);
+            }
+        } catch (CancelledKeyException e) {
+            call.fail(new CancellationException("Request cancelled"));
+        } catch (IOException | RuntimeException e) {
+            call.fail(e);
+        }
+    }
+
+    private static void readResponse(SelectionKey key, Call call, SocketChannel ch) throws IOException {
+        final ByteBuffer buf = call.bufRead;
+        final int len = ch.read(buf);
+        if (len == -1) {
+            throw new IOException(String.format("Unexpected end of response after %d tokens", call.decoder.getNumTokens()));
+        }
+        buf.flip();
+        final int numTokensBefore = call.decoder.getNumTokens();
+        final boolean complete = call.decoder.feed(buf);
+        if (call.tsFirstToken == 0 && call.decoder.getNumTokens() > numTokensBefore) {
+            call.tsFirstToken = System.nanoTime();
+        }
+        buf.compact();
+        if (complete) {
+            // Close the connection.
+            call.closing = true;
+            call.bufWrite = ByteBuffer.wrap(new byte[] { LlmBackgroundable.ChunkType.CLOSE_CONNECTION.getId() });
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+        else if (!buf.hasRemaining()) {
+            // An item is larger than the buffer.
+            final ByteBuffer bufLarger = ByteBuffer.allocateDirect(2 * buf.capacity());
+            buf.flip();
+            bufLarger.put(buf);
+            call.bufRead = bufLarger;
+        }
+    }
+
+    private static void checkTimeouts(Selector sel) {
+        final long now = System.nanoTime();
+        for (SelectionKey key : sel.keys()) {
+            final Call call = (Call) key.attachment();
+            if (call.tsConnected == 0 && now - call.connectDeadline > 0) {
+                call.fail(new IOException(String.format("Connect timed out after %d ms: %s", CONNECT_TIMEOUT_MS, call.endpoint)));
+            }
+        }
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        final Selector sel;
+        synchronized (this) {
+            sel = selector;
+        }
+        if (sel != null) {
+            sel.wakeup();
+        }
+        for (Call call : pendingCalls) {
+            call.fail(new IOException("LLM1-transport has been disposed"));
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental decoder of the response-stream of the LLM1-protocol.
+ * <p>
+ * The response starts with an eyecatcher, its last character is the protocol-version chosen by the server.
+ * The server may answer a request of version 2 with version 1, but not the other way round.
+ * <ul>
+ * <li>Version 1 ("LLM1"): each token is sent as unsigned length-byte and the UTF-8 bytes of the token,
+ * a length of zero marks the end of the response.</li>
+ * <li>Version 2 ("LLM2"): the response consists of frames <code>[type][varint length][payload]</code>.
+ * A frame {@link LlmBackgroundable.ChunkType#TOKENS} contains a varint count and the tokens
+ * as <code>[varint length][utf8]</code>, a server may pack several tokens into a frame if the client is slow.
+ * The optional frame {@link LlmBackgroundable.ChunkType#STATS_TRAILER} contains the {@link Stats},
+ * the frame {@link LlmBackgroundable.ChunkType#END_OF_RESPONSE} ends the response.
+ * Frames of unknown type are skipped.</li>
+ * </ul>
+ * <p>
+ * The decoder consumes complete items of the given buffer only, an incomplete item
+ * stays in the buffer and is decoded when more bytes have been read.
+ * The tokens are decoded from the buffer (which may be a direct buffer) into a reused char-buffer.
+ */
+class Llm1ResponseDecoder {
+    /** length of the eyecatcher */
+    static final int LEN_EYECATCHER = 4;
+    /** maximum number of bytes of a varint (64 bits) */
+    static final int MAX_LEN_VARINT = 10;
+    /** maximum length of a frame */
+    static final int MAX_LEN_FRAME = 16 * 1024 * 1024;
+
+    /**
+     * Listener of the decoded tokens.
+     */
+    interface Listener {
+        /**
+         * Called for each token. The char-sequence is valid during the call only.
+         * @param token token
+         */
+        void onToken(CharSequence token);
+    }
+
+    /**
+     * Statistics of the server sent in the trailer of a response of version 2.
+     * @param promptTokens number of tokens of the prompt
+     * @param promptEvalMicros time to evaluate the prompt in microseconds
+     * @param generatedTokens number of generated tokens
+     * @param generationMicros time to generate the tokens in microseconds
+     */
+    record Stats(long promptTokens, long promptEvalMicros, long generatedTokens, long generationMicros) {
+        @Override
+        public String toString() {
+            return String.format("prompt: %d tokens in %d ms, generation: %d tokens in %d ms (%.1f tokens/s)",
+                    promptTokens, promptEvalMicros / 1000, generatedTokens, generationMicros / 1000,
+                    (generationMicros > 0) ? generatedTokens * 1e6 / generationMicros : 0.0);
+        }
+    }
+
+    /** state of the decoder */
+    private enum State {
+        EYECATCHER,
+        TOKEN,
+        FRAME,
+        END
+    }
+
+    /** highest protocol-version requested by the client */
+    private final int maxVersion;
+    /** listener */
+    private final Listener listener;
+    /** UTF-8 decoder */
+    private final CharsetDecoder utf8Decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    /** reused buffer of a decoded token */
+    private CharBuffer tokenChars = CharBuffer.allocate(256);
+
+    /** current state */
+    private State state = State.EYECATCHER;
+    /** protocol-version of the response, 0 before the eyecatcher */
+    private int version;
+    /** number of tokens */
+    private int numTokens;
+    /** number of token-frames (version 2) */
+    private int numFrames;
+    /** number of bytes received */
+    private long numBytes;
+    /** statistics of the server, <code>null</code> if not sent */
+    private Stats stats;
+
+    /**
+     * Constructor of a decoder of a response of version 1.
+     * @param listener listener of the tokens
+     */
+    Llm1ResponseDecoder(Listener listener) {
+        this(1, listener);
+    }
+
+    /**
+     * Constructor
+     * @param maxVersion protocol-version requested by the client
+     * @param listener listener of the tokens
+     */
+    Llm1ResponseDecoder(int maxVersion, Listener listener) {
+        this.maxVersion = maxVersion;
+        this.listener = listener;
+    }
+
+    /**
+     * Decodes the complete items in the buffer.
+     * @param buf buffer in read-mode, the position is moved behind the last complete item
+     * @return <code>true</code> if the end of the response has been reached
+     * @throws IOException in case of an invalid response
+     */
+    boolean feed(ByteBuffer buf) throws IOException {
+        while (state != State.END) {
+            final int posStart = buf.position();
+            final boolean consumed = switch (state) {
+                case EYECATCHER -> readEyecatcher(buf);
+                case TOKEN -> readToken(buf);
+                case FRAME -> readFrame(buf);
+                default -> false;
+            };
+            if (!consumed) {
+                break;
+            }
+            numBytes += buf.position() - posStart;
+        }
+        return state == State.END;
+    }
+
+    private boolean readEyecatcher(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < LEN_EYECATCHER) {
+            return false;
+        }
+        final byte[] bufEyecatcher = new byte[LEN_EYECATCHER];
+        buf.get(bufEyecatcher);
+        final String eyecatcher = new String(bufEyecatcher, StandardCharsets.ISO_8859_1);
+        if ("LLM1".equals(eyecatcher)) {
+            version = 1;
+            state = State.TOKEN;
+        }
+        else if ("LLM2".equals(eyecatcher) && maxVersion >= 2) {
+            version = 2;
+            state = State.FRAME;
+        }
+        else {
+            throw new IOException("Invalid eyecatcher: " + eyecatcher);
+        }
+        return true;
+    }
+
+    private boolean readToken(ByteBuffer buf) {
+        if (!buf.hasRemaining()) {
+            return false;
+        }
+        final int tokenLen = buf.get(buf.position()) & 0xff;
+        if (tokenLen == 0) {
+            buf.get();
+            state = State.END;
+            return true;
+        }
+        if (buf.remaining() < 1 + tokenLen) {
+            return false;
+        }
+        buf.get();
+        decodeToken(buf, tokenLen);
+        return true;
+    }
+
+    private boolean readFrame(ByteBuffer buf) throws IOException {
+        final int posStart = buf.position();
+        if (!buf.hasRemaining()) {
+            return false;
+        }
+        final byte type = buf.get();
+        final long frameLen = readVarint(buf);
+        if (frameLen > MAX_LEN_FRAME) {
+            throw new IOException(String.format("Frame of type %d is too large: %d bytes", type, frameLen));
+        }
+        if (frameLen < 0 || buf.remaining() < frameLen) {
+            buf.position(posStart);
+            return false;
+        }
+        final int frameEnd = buf.position() + (int) frameLen;
+        final int limit = buf.limit();
+        buf.limit(frameEnd);
+        try {
+            if (type == LlmBackgroundable.ChunkType.TOKENS.getId()) {
+                numFrames++;
+                final long count = readFrameVarint(buf);
+                for (long i = 0; i < count; i++) {
+                    final long tokenLen = readFrameVarint(buf);
+                    if (tokenLen > buf.remaining()) {
+                        throw new IOException(String.format("Token of length %d exceeds frame (%d bytes remaining)",
+                                tokenLen, buf.remaining()));
+                    }
+                    decodeToken(buf, (int) tokenLen);
+                }
+            }
+            else if (type == LlmBackgroundable.ChunkType.STATS_TRAILER.getId()) {
+                stats = new Stats(readFrameVarint(buf), readFrameVarint(buf),
+                        readFrameVarint(buf), readFrameVarint(buf));
+            }
+            else if (type == LlmBackgroundable.ChunkType.END_OF_RESPONSE.getId()) {
+                state = State.END;
+            }
+        } finally {
+            buf.limit(limit);
+        }
+        // Unread bytes of the frame (e.g. unknown type or additional fields) are skipped.
+        buf.position(frameEnd);
+        return true;
+    }
+
+    /**
+     * Reads a varint inside a frame.
+     * @param buf buffer limited to the frame
+     * @return value
+     * @throws IOException if the varint exceeds the frame
+     */
+    private static long readFrameVarint(ByteBuffer buf) throws IOException {
+        final long value = readVarint(buf);
+        if (value < 0) {
+            throw new IOException("Truncated varint in frame");
+        }
+        return value;
+    }
+
+    /**
+     * Reads an unsigned varint (7 bits per byte, least significant group first, MSB as continuation bit).
+     * @param buf buffer
+     * @return value or -1 if the varint isn't complete (the position is unchanged in that case)
+     * @throws IOException if the varint is longer than {@value #MAX_LEN_VARINT} bytes
+     */
+    static long readVarint(ByteBuffer buf) throws IOException {
+        final int posStart = buf.position();
+        long value = 0;
+        for (int i = 0; i < MAX_LEN_VARINT; i++) {
+            if (!buf.hasRemaining()) {
+                buf.position(posStart);
+                return -1;
+            }
+            final int b = buf.get();
+            value |= (long) (b & 0x7f) << (7 * i);
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long at position " + posStart);
+    }
+
+    /**
+     * Decodes a token and sends it to the listener.
+     * @param buf buffer positioned at the token
+     * @param len length of the token in bytes
+     */
+    private void decodeToken(ByteBuffer buf, int len) {
+        final int limit = buf.limit();
+        buf.limit(buf.position() + len);
+        if (tokenChars.capacity() < len) {
+            tokenChars = CharBuffer.allocate(Math.max(len, 2 * tokenChars.capacity()));
+        }
+        tokenChars.clear();
+        utf8Decoder.reset();
+        utf8Decoder.decode(buf, tokenChars, true);
+        utf8Decoder.flush(tokenChars);
+        buf.limit(limit);
+        tokenChars.flip();
+        numTokens++;
+        listener.onToken(tokenChars);
+    }
+
+    /**
+     * Checks if the end of the response has been reached.
+     * @return <code>true</code> if complete
+     */
+    boolean isComplete() {
+        return state == State.END;
+    }
+
+    /**
+     * Gets the protocol-version of the response.
+     * @return version, 0 if the eyecatcher hasn't been received yet
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the number of tokens received so far.
+     * @return number of tokens
+     */
+    int getNumTokens() {
+        return numTokens;
+    }
+
+    /**
+     * Gets the number of token-frames received so far (version 2).
+     * @return number of frames
+     */
+    int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Gets the number of bytes decoded so far.
+     * @return number of bytes
+     */
+    long getNumBytes() {
+        return numBytes;
+    }
+
+    /**
+     * Gets the statistics sent by the server.
+     * @return statistics or <code>null</code> (version 1 or no trailer)
+     */
+    Stats getStats() {
+        return stats;
+    }
+}
@@ -1,5 +1,6 @@
 package org.rogmann.llm.pluginllm01;
 
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
@@ -11,23 +12,50 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.net.SocketFactory;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
 /**
- * Task to execute a request to a LLM in the background.
+ * Task to execute a request to a LLM in the background (LLM1-protocol).
+ * <p>
+ * By default the request is executed by the non-blocking {@link Llm1NioTransport}.
+ * The blocking socket can be chosen by the system-property <code>pluginllm01.blockingTransport=true</code>.
+ * <p>
+ * The protocol-version is negotiated by the version-character of the eyecatcher: the client requests
+ * the version given by the system-property <code>pluginllm01.protocolVersion</code> (default 1),
+ * the server answers with the same or a lower version. Version 2 uses varint-lengths, frames
+ * containing several tokens and a trailer containing the timings of the server,
+ * see {@link Llm1ResponseDecoder}.
  */
 public class LlmBackgroundable extends Task.Backgroundable {
     /** logger */
     private static final Logger LOGGER = Logger.getInstance(LlmBackgroundable.class);
 
+    /** address of the LLM-server */
+    private static final InetSocketAddress ENDPOINT = new InetSocketAddress("localhost", 8089);
+
+    /** interval in milliseconds to update the progress while waiting for the response */
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    /** initial size of the read-buffer of the blocking socket */
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    /** highest supported version of the LLM1-protocol */
+    static final int MAX_PROTOCOL_VERSION = 2;
+
     /** Typ of a chunk in TCP/IP message */
     enum ChunkType {
         BEGIN_OF_REQUEST(0x01),
@@ -36,7 +64,13 @@ public class LlmBackgroundable extends Task.Backgroundable {
         SYSTEM_PROMPT(0x04),
         PROMPT(0x05),
         FIM_BEFORE(0x06),
-        FIM_AFTER(0x07);
+        FIM_AFTER(0x07),
+        /** Response-frame containing one or more tokens (version 2) */
+        TOKENS(0x08),
+        /** Response-frame containing timings and token-counts of the server (version 2) */
+        STATS_TRAILER(0x09),
+        /** Response-frame at the end of the response (version 2) */
+        END_OF_RESPONSE(0x0a);
 
         private final byte id;
 
@@ -50,17 +84,61 @@ public class LlmBackgroundable extends Task.Backgroundable {
     }
     /** Consumer to send output-stream */
     private final Consumer<String> responseStream;
+    /** records the tokens sent to the output-stream (response-cache) */
+    private final CachedResponse.Recorder responseRecorder;
     /** Consumer to send the current status */
     private final Consumer<String> outputStatus;
 
     /** result consumer */
     private final Consumer<String> resultConsumer;
 
+    /** optional handler to be called in the EDT if the task has been cancelled or failed */
+    private Runnable cancelHandler;
+
+    /** optional handler which discards the tokens streamed so far (called by the task's thread) */
+    private Runnable resetHandler;
+
+    /** <code>true</code> if the request has been sent by this task (not shared with an identical request) */
+    private boolean requestSent;
+
+    /** <code>true</code> if the result is speculative (prefetch), errors are not reported as IDE-errors */
+    private boolean speculative;
+
+    /** priority of the request in the {@link LlmRequestScheduler} */
+    private LlmRequestScheduler.Priority priority = LlmRequestScheduler.Priority.CHAT;
+    /** consumer of the received tokens which shares them with identical requests (set by the scheduler's thread) */
+    private volatile Consumer<String> tokenPublisher = token -> { };
+
+    /** <code>true</code> if the generation should be stopped after the first code-block */
+    private boolean stopAfterCodeBlock;
+    /** completed by the reason if the generation should be stopped (code-block, stop-sequence or n_predict) */
+    private CompletableFuture<String> generationStopped;
+    /** number of tokens received */
+    private int numTokens;
+    /** number of characters of the response sent to the response-stream */
+    private int numEmitted;
+    /** extractor which detects the end of the first code-block or <code>null</code> */
+    private MarkdownStreamExtractor codeBlockExtractor;
+
+    /** latency-profile of the request (n_predict, stop-sequences, deadline) */
+    private LlmLatencyProfile profile = LlmLatencyProfile.NONE;
+
     /** prompt */
     private final LlmTask llmTask;
 
-    /** input buffer */
-    private final byte[] bufIn = new byte[256];
+    /** <code>true</code> if the blocking socket should be used instead of the non-blocking transport */
+    private final boolean blockingTransport = Boolean.getBoolean("pluginllm01.blockingTransport");
+
+    /** latency-metrics of the current request */
+    private LlmMetrics.Request metrics;
+    /** number of bytes of the current request, 0 if it hasn't been sent */
+    private long bytesSent;
+    /** decoder of the current response or <code>null</code> */
+    private Llm1ResponseDecoder responseDecoder;
+
+    /** protocol-version requested from the server */
+    private final int protocolVersion = Math.max(1, Math.min(MAX_PROTOCOL_VERSION,
+            Integer.getInteger("pluginllm01.protocolVersion", 1)));
 
     public LlmBackgroundable(@Nullable Project project, @NlsContexts.ProgressTitle @NotNull String title,
                              LlmTask llmTask,
@@ -69,129 +147,558 @@ public class LlmBackgroundable extends Task.Backgroundable {
                              Consumer<String> resultConsumer) {
         super(project, title, true);
         this.llmTask = llmTask;
-        this.responseStream = responseStream;
+        this.responseRecorder = new CachedResponse.Recorder(responseStream);
+        this.responseStream = responseRecorder;
         this.outputStatus = outputStatus;
         this.resultConsumer = resultConsumer;
     }
 
+    /**
+     * Sets a handler which is called in the EDT if the task has been cancelled or failed.
+     * @param cancelHandler handler, e.g. to remove a preview
+     * @return this task
+     */
+    public LlmBackgroundable setCancelHandler(Runnable cancelHandler) {
+        this.cancelHandler = cancelHandler;
+        return this;
+    }
+
+    /**
+     * Sets a handler which discards the tokens streamed so far. It is called by the task's thread
+     * if an identical request whose tokens have been shared failed and the request is sent again.
+     * @param resetHandler handler, e.g. to clear a preview
+     * @return this task
+     */
+    public LlmBackgroundable setResetHandler(Runnable resetHandler) {
+        this.resetHandler = resetHandler;
+        return this;
+    }
+
+    /**
+     * Discards the tokens of a failed shared request: the recorded tokens and the tokens shown so far.
+     */
+    private void resetResponse() {
+        responseRecorder.reset();
+        if (resetHandler != null) {
+            resetHandler.run();
+        }
+    }
+
+    /**
+     * Marks the task as speculative request (e.g. a prefetch): errors are logged as info only,
+     * they are not reported as IDE-errors.
+     * @param speculative <code>true</code> if speculative
+     * @return this task
+     */
+    public LlmBackgroundable setSpeculative(boolean speculative) {
+        this.speculative = speculative;
+        return this;
+    }
+
+    /**
+     * Sets the priority of the request: a batch-request is cancelled if a request of the user waits for a slot.
+     * @param priority priority
+     * @return this task
+     */
+    public LlmBackgroundable setPriority(LlmRequestScheduler.Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Stops the generation of the server as soon as the first code-block of the response has been closed,
+     * e.g. if the caller uses the result of {@link MainForm#extractMarkdown(String)} only.
+     * @param stopAfterCodeBlock <code>true</code> to stop after the first code-block
+     * @return this task
+     */
+    public LlmBackgroundable setStopAfterCodeBlock(boolean stopAfterCodeBlock) {
+        this.stopAfterCodeBlock = stopAfterCodeBlock;
+        return this;
+    }
+
+    @Override
+    public void onCancel() {
+        if (cancelHandler != null) {
+            cancelHandler.run();
+        }
+    }
+
+    /**
+     * Replays a cached response of the request, if available.
+     * @param cache response-cache
+     * @param cacheKey key of the request
+     * @return <code>true</code> if the response has been served by the cache
+     */
+    private boolean replayCachedResponse(LlmResponseCache cache, LlmResponseCache.Key cacheKey) {
+        final CachedResponse cached = cache.get(cacheKey);
+        if (cached == null) {
+            return false;
+        }
+        cached.replay(responseRecorder.getDelegate());
+        outputStatus.accept("Cached response");
+        resultConsumer.accept(cached.text());
+        return true;
+    }
+
+    private void logError(String msg) {
+        logError(msg, null);
+    }
+
+    private void logError(String msg, Throwable e) {
+        if (speculative) {
+            LOGGER.info(msg + ((e != null) ? ": " + e : ""));
+        } else {
+            LOGGER.error(msg, e);
+        }
+    }
+
     @Override
     public void run(@NotNull ProgressIndicator indicator) {
         try {
-            SocketFactory factory = SocketFactory.getDefault();
-            try (Socket socket = factory.createSocket()) {
-                socket.setSoTimeout(3000);
-                final SocketAddress endpoint = new InetSocketAddress("localhost", 8089);
-                LOGGER.info("Connect to llm-server: " + endpoint);
-                socket.connect(endpoint, 3000);
-
-                try (OutputStream os = socket.getOutputStream();
-                    BufferedOutputStream bos = new BufferedOutputStream(os)) {
-
-                    byte[] buf = new byte[6];
-                    // Eye-catcher, begin of request and type of LLM-task.
-                    buf[0] = 'L';
-                    buf[1] = 'L';
-                    buf[2] = 'M';
-                    buf[3] = '1';
-                    buf[4] = ChunkType.BEGIN_OF_REQUEST.getId();
-                    buf[5] = llmTask.type().getId();
-                    bos.write(buf);
-
-                    writeString(bos, ChunkType.SYSTEM_PROMPT, llmTask.systemPrompt());
-                    if (llmTask.type() == LlmTaskType.PROMPT) {
-                        writeString(bos, ChunkType.PROMPT, llmTask.prompt());
-                        LOGGER.info("Sent prompt of length " + llmTask.prompt().length());
-                    }
-                    else if (llmTask.type() == LlmTaskType.FILL_IN_MIDDLE) {
-                        writeString(bos, ChunkType.FIM_BEFORE, llmTask.fimBegin());
-                        writeString(bos, ChunkType.FIM_AFTER, llmTask.fimEnd());
-                        LOGGER.info(String.format("Sent FIM of lengths %d and %d",
-                                llmTask.fimBegin().length(), llmTask.fimEnd().length()));
-                    }
+            final LlmResponseCache cache = LlmResponseCache.getInstance();
+            profile = ApplicationManager.getApplication().getService(LlmSettings.class).getLatencyProfile(llmTask.type(), speculative);
+            final LlmResponseCache.Key requestKey = LlmResponseCache.createKey(
+                    "llm1://" + ENDPOINT.getHostString() + ":" + ENDPOINT.getPort()
+                    + (stopAfterCodeBlock ? "#code-block" : "") + '#' + profile, llmTask);
+            final LlmResponseCache.Key cacheKey = cache.isEnabled() ? requestKey : null;
+            if (cacheKey != null && replayCachedResponse(cache, cacheKey)) {
+                return;
+            }
+            requestSent = false;
+            final String response = LlmRequestScheduler.getInstance().execute(LlmMetrics.Transport.LLM1, requestKey,
+                    priority, indicator, responseRecorder, this::resetResponse, outputStatus, publisher -> {
+                tokenPublisher = publisher;
+                requestSent = true;
+                metrics = LlmMetrics.getInstance().startRequest(LlmMetrics.Transport.LLM1, profile);
+                bytesSent = 0;
+                responseDecoder = null;
+                boolean completed = false;
+                try {
+                    final String result = blockingTransport ? runBlocking(indicator) : runNonBlocking(indicator);
+                    completed = true;
+                    return result;
+                } finally {
+                    // Failed, cancelled and timed-out requests are recorded, too.
+                    metrics.finish(bytesSent, (responseDecoder != null) ? responseDecoder.getNumBytes() : 0, completed);
+                }
+            });
+            if (cacheKey != null && requestSent) {
+                // A shared response is cached by the request which received it.
+                cache.put(cacheKey, responseRecorder.toResponse());
+            }
+            resultConsumer.accept(response);
+        }
+        catch (IOException e) {
+            if (indicator.isCanceled()) {
+                LOGGER.info("Request cancelled: " + e.getMessage());
+                throw new ProcessCanceledException();
+            }
+            logError("IO-exception occured when communication with LLM-server", e);
+            outputStatus.accept("IO-error: " + e);
+            throw new ProcessCanceledException();
+        }
+    }
+
+    /**
+     * Executes the request by the event-loop of the {@link Llm1NioTransport}.
+     * This thread waits for the response and updates the progress-indicator only.
+     * @param indicator progress-indicator
+     * @return response
+     * @throws IOException in case of an IO-error
+     */
+    private String runNonBlocking(@NotNull ProgressIndicator indicator) throws IOException {
+        // The request is encoded while it is written by the event-loop (into a pooled buffer).
+        final long lenRequest = requestLength(llmTask, protocolVersion);
+        bytesSent = lenRequest;
+        final InputStream request = openRequestStream(llmTask, protocolVersion);
+        final StringBuilder sbResponse = new StringBuilder();
+        final Llm1ResponseDecoder decoder = createDecoder(sbResponse);
+        final Llm1NioTransport transport = ApplicationManager.getApplication().getService(Llm1NioTransport.class);
+        final Llm1NioTransport.Call call = transport.start(ENDPOINT, request, decoder);
+        final CompletableFuture<Object> done = CompletableFuture.anyOf(call.getDone(), generationStopped);
+        while (true) {
+            if (indicator.isCanceled()) {
+                call.cancel();
+                throw new IOException(String.format("Cancel after %d tokens", decoder.getNumTokens()));
+            }
+            if (metrics.isDeadlineExceeded(profile.deadlineMillis())) {
+                call.cancel();
+                cancelAfterDeadline(decoder);
+            }
+            try {
+                done.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                break;
+            } catch (TimeoutException e) {
+                indicator.setText("#tokens=" + decoder.getNumTokens());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                call.cancel();
+                throw new IOException("Interrupted while waiting for the LLM-server", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioe) {
+                    throw ioe;
+                }
+                throw new IOException("Error while processing the response", e.getCause());
+            }
+        }
+        if (!call.getDone().isDone()) {
+            // The rest of the response isn't needed: closing the connection stops the generation of the server.
+            call.cancel();
+            reportStopped(decoder);
+        }
+        LOGGER.info(String.format("Connected after %d ms, first token after %d ms, %d bytes sent, %d tokens, %d bytes",
+                (call.tsConnected - call.tsStart) / 1_000_000,
+                (call.tsFirstToken > 0) ? (call.tsFirstToken - call.tsStart) / 1_000_000 : -1,
+                lenRequest, decoder.getNumTokens(), decoder.getNumBytes()));
+        metrics.connected(call.tsConnected);
+        metrics.requestSent(call.tsRequestSent);
+        // The held back end of the response isn't a stop-sequence.
+        emitResponse(sbResponse, sbResponse.length());
+        recordStats(decoder);
+        return sbResponse.toString();
+    }
+
+    /**
+     * Creates the decoder of the response. The LLM1-protocol doesn't transfer the latency-profile,
+     * so the stop-sequences and n_predict of the profile are checked by the client.
+     * The end of the response which may be the beginning of a stop-sequence is held back
+     * until the following tokens show that it isn't one.
+     * @param sbResponse response built so far
+     * @return decoder
+     */
+    private Llm1ResponseDecoder createDecoder(StringBuilder sbResponse) {
+        codeBlockExtractor = stopAfterCodeBlock ? new MarkdownStreamExtractor() : null;
+        final int maxStopLength = profile.stop().stream().mapToInt(String::length).max().orElse(0);
+        final CompletableFuture<String> stopped = new CompletableFuture<>();
+        generationStopped = stopped;
+        numTokens = 0;
+        numEmitted = 0;
+        responseDecoder = new Llm1ResponseDecoder(protocolVersion, tokenChars -> {
+            if (stopped.isDone()) {
+                // Token sent before the server noticed the closed connection.
+                return;
+            }
+            metrics.token();
+            numTokens++;
+            final int lenBefore = sbResponse.length();
+            sbResponse.append(tokenChars);
+            final int idxStop = (maxStopLength > 0)
+                    ? profile.indexOfStop(sbResponse, Math.max(0, lenBefore - maxStopLength + 1)) : -1;
+            if (idxStop >= 0) {
+                // The response ends before the stop-sequence.
+                sbResponse.setLength(idxStop);
+                stopped.complete("the stop-sequence");
+                emitResponse(sbResponse, idxStop);
+                return;
+            }
+            if (profile.maxTokens() >= 0 && numTokens >= profile.maxTokens()) {
+                stopped.complete("n_predict=" + profile.maxTokens());
+                emitResponse(sbResponse, sbResponse.length());
+                return;
+            }
+            // A possible beginning of a stop-sequence isn't shown before it is decided.
+            emitResponse(sbResponse, sbResponse.length() - profile.lengthOfStopPrefix(sbResponse));
+        });
+        return responseDecoder;
+    }
+
+    /**
+     * Sends the response up to an end-position to the response-stream, as far as it hasn't been sent.
+     * @param sbResponse response built so far
+     * @param end end-position
+     */
+    private void emitResponse(StringBuilder sbResponse, int end) {
+        if (end <= numEmitted) {
+            return;
+        }
+        final String text = sbResponse.substring(numEmitted, end);
+        numEmitted = end;
+        responseStream.accept(text);
+        tokenPublisher.accept(text);
+        if (codeBlockExtractor != null && codeBlockExtractor.feed(text)) {
+            generationStopped.complete("the code-block");
+        }
+    }
+
+    /**
+     * Reports that the generation has been stopped by the client.
+     * @param decoder decoder of the response
+     */
+    private void reportStopped(Llm1ResponseDecoder decoder) {
+        final String reason = generationStopped.getNow("?");
+        LOGGER.info(String.format("Generation stopped after %s (%d tokens)", reason, decoder.getNumTokens()));
+        outputStatus.accept("Generation stopped after " + reason);
+    }
+
+    /**
+     * Cancels the request because the deadline of the latency-profile has been exceeded.
+     * @param decoder decoder of the response
+     */
+    private void cancelAfterDeadline(Llm1ResponseDecoder decoder) {
+        LOGGER.info(String.format("Request cancelled: deadline of %d ms (profile %s) exceeded after %d tokens",
+                profile.deadlineMillis(), profile.name(), decoder.getNumTokens()));
+        outputStatus.accept(String.format("Deadline of %d ms exceeded, request cancelled", profile.deadlineMillis()));
+        throw new ProcessCanceledException();
+    }
+
+    /**
+     * Logs the statistics of the response and records the timings of the server.
+     * @param decoder decoder of the response
+     */
+    private void recordStats(Llm1ResponseDecoder decoder) {
+        if (decoder.getVersion() >= 2) {
+            LOGGER.info(String.format("Protocol version %d: %d tokens in %d frames",
+                    decoder.getVersion(), decoder.getNumTokens(), decoder.getNumFrames()));
+        }
+        final Llm1ResponseDecoder.Stats stats = decoder.getStats();
+        if (stats != null) {
+            LOGGER.info("Server: " + stats);
+            metrics.serverTimings(stats.promptEvalMicros(), stats.generationMicros());
+        }
+    }
 
-                    bos.write(ChunkType.END_OF_REQUEST.getId());
-                    bos.flush();
-                    final StringBuilder sbResponse = new StringBuilder();
-                    try (InputStream is = socket.getInputStream()) {
-                        readBytes(is, 4, indicator);
-                        final String eyecatcher = new String(bufIn, 0, 4, StandardCharsets.ISO_8859_1);
-                        if (!"LLM1".equals(eyecatcher)) {
-                            throw new IOException("Invalid eyecatcher: " + eyecatcher);
-                        }
-                        while (true) {
-                            readBytes(is, 1, indicator);
-                            final int tokenLen = bufIn[0] & 0xff;
-                            if (tokenLen == 0) {
-                                break;
-                            }
-                            readBytes(is, tokenLen, indicator);
-                            final String token = new String(bufIn, 0, tokenLen, StandardCharsets.UTF_8);
-                            responseStream.accept(token);
-                            LOGGER.debug("Got token: " + token);
-                            sbResponse.append(token);
-                            final int respLen = sbResponse.length();
-                            indicator.setText(String.format("#len=%d [...%s]",
-                                    respLen, sbResponse.subSequence(Math.max(0, respLen - 32), respLen)));
-                        }
+    /**
+     * Executes the request using a blocking socket.
+     * @param indicator progress-indicator
+     * @return response
+     * @throws IOException in case of an IO-error
+     */
+    private String runBlocking(@NotNull ProgressIndicator indicator) throws IOException {
+        SocketFactory factory = SocketFactory.getDefault();
+        try (Socket socket = factory.createSocket()) {
+            socket.setSoTimeout(3000);
+            LOGGER.info("Connect to llm-server: " + ENDPOINT);
+            socket.connect(ENDPOINT, 3000);
+            metrics.connected(System.nanoTime());
+
+            try (OutputStream os = socket.getOutputStream();
+                BufferedOutputStream bos = new BufferedOutputStream(os)) {
+                // The prompts are encoded directly into the buffer of the socket.
+                writeRequest(bos, llmTask, protocolVersion);
+                bos.flush();
+                metrics.requestSent(System.nanoTime());
+                bytesSent = requestLength(llmTask, protocolVersion);
+                final StringBuilder sbResponse = new StringBuilder();
+                final Llm1ResponseDecoder decoder = createDecoder(sbResponse);
+                try (InputStream is = socket.getInputStream()) {
+                    readResponse(is, decoder, indicator);
 
+                    if (generationStopped.isDone()) {
+                        // The server is still generating: the socket is closed without CLOSE_CONNECTION.
+                        reportStopped(decoder);
+                    } else {
                         // Close the connection.
                         bos.write(ChunkType.CLOSE_CONNECTION.getId());
                         bos.flush();
                     }
-                    resultConsumer.accept(sbResponse.toString());
                 }
+                // The held back end of the response isn't a stop-sequence.
+                emitResponse(sbResponse, sbResponse.length());
+                recordStats(decoder);
+                return sbResponse.toString();
             }
         }
-        catch (IOException e) {
-            LOGGER.error("IO-exception occured when communication with LLM-server", e);
-            outputStatus.accept("IO-error: " + e);
-            throw new ProcessCanceledException();
+    }
+
+    /**
+     * Writes the request: eyecatcher, type of the task, prompts and end of request.
+     * @param os output-stream
+     * @param llmTask task
+     * @param version protocol-version to be requested (1 or 2)
+     * @throws IOException in case of an IO-error or a string too long for the protocol-version
+     */
+    static void writeRequest(OutputStream os, LlmTask llmTask, int version) throws IOException {
+        for (Object segment : requestSegments(llmTask, version)) {
+            if (segment instanceof byte[] buf) {
+                os.write(buf);
+            } else {
+                Utf8StreamEncoder.write(os, (CharSequence) segment);
+            }
+        }
+        if (llmTask.type() == LlmTaskType.PROMPT) {
+            LOGGER.info("Sent prompt of length " + llmTask.prompt().length());
+        }
+        else if (llmTask.type() == LlmTaskType.FILL_IN_MIDDLE) {
+            LOGGER.info(String.format("Sent FIM of lengths %d and %d",
+                    llmTask.fimBegin().length(), llmTask.fimEnd().length()));
+        }
+    }
+
+    /**
+     * Opens a stream of the request written by {@link #writeRequest(OutputStream, LlmTask, int)}.
+     * The prompts are encoded while the stream is read, the request isn't copied into a byte-array.
+     * @param llmTask task
+     * @param version protocol-version to be requested (1 or 2)
+     * @return stream of the request
+     * @throws IOException if a string is too long for the protocol-version
+     */
+    static InputStream openRequestStream(LlmTask llmTask, int version) throws IOException {
+        return new SegmentedInputStream(requestSegments(llmTask, version), false);
+    }
+
+    /**
+     * Gets the segments of the request: byte-arrays (eyecatcher, chunk-headers) and the strings
+     * which are encoded in UTF-8 while they are written.
+     * @param llmTask task
+     * @param version protocol-version to be requested (1 or 2)
+     * @return segments
+     * @throws IOException if a string is too long for the protocol-version
+     */
+    private static List<Object> requestSegments(LlmTask llmTask, int version) throws IOException {
+        final List<Object> segments = new ArrayList<>(8);
+        // Eye-catcher (including the requested version), begin of request and type of LLM-task.
+        segments.add(new byte[] { 'L', 'L', 'M', (byte) ('0' + version),
+                ChunkType.BEGIN_OF_REQUEST.getId(), llmTask.type().getId() });
+        addString(segments, version, ChunkType.SYSTEM_PROMPT, llmTask.systemPrompt());
+        if (llmTask.type() == LlmTaskType.PROMPT) {
+            addString(segments, version, ChunkType.PROMPT, llmTask.prompt());
+        }
+        else if (llmTask.type() == LlmTaskType.FILL_IN_MIDDLE) {
+            addString(segments, version, ChunkType.FIM_BEFORE, llmTask.fimBegin());
+            addString(segments, version, ChunkType.FIM_AFTER, llmTask.fimEnd());
+        }
+        segments.add(new byte[] { ChunkType.END_OF_REQUEST.getId() });
+        return segments;
+    }
+
+    private static void addString(List<Object> segments, int version, ChunkType chunkType, CharSequence s) throws IOException {
+        final CharSequence text = (s != null) ? s : "";
+        segments.add(chunkHeader(version, chunkType, Utf8StreamEncoder.encodedLength(text, false)));
+        segments.add(text);
+    }
+
+    /**
+     * Computes the number of bytes of the request written by {@link #writeRequest(OutputStream, LlmTask, int)}.
+     * @param llmTask task
+     * @param version protocol-version
+     * @return number of bytes
+     */
+    static long requestLength(LlmTask llmTask, int version) {
+        long len = 6 + stringLength(version, llmTask.systemPrompt());
+        if (llmTask.type() == LlmTaskType.PROMPT) {
+            len += stringLength(version, llmTask.prompt());
+        }
+        else if (llmTask.type() == LlmTaskType.FILL_IN_MIDDLE) {
+            len += stringLength(version, llmTask.fimBegin()) + stringLength(version, llmTask.fimEnd());
+        }
+        return len + 1;
+    }
+
+    /**
+     * Computes the number of bytes of a chunk written by {@link #writeString(OutputStream, int, ChunkType, CharSequence)}.
+     * @param version protocol-version
+     * @param s string or <code>null</code>
+     * @return number of bytes
+     */
+    private static long stringLength(int version, CharSequence s) {
+        final long len = (s != null) ? Utf8StreamEncoder.encodedLength(s, false) : 0;
+        long lenHeader = 4;
+        if (version >= 2) {
+            lenHeader = 1;
+            for (long value = len; value >= 0x80; value >>>= 7) {
+                lenHeader++;
+            }
+        }
+        return 1 + lenHeader + len;
+    }
+
+    /**
+     * Writes a chunk: type, length and UTF-8 bytes of the string.
+     * The length is encoded in big-endian byte order (version 1) or as varint (version 2).
+     * The length is computed first, the string is encoded into the stream without a copy as byte-array.
+     * @param bos output-stream
+     * @param version protocol-version
+     * @param chunkType type of the chunk
+     * @param s string, <code>null</code> is written as empty string
+     * @throws IOException in case of an IO-error or a string too long for the protocol-version
+     */
+    static void writeString(OutputStream bos, int version, ChunkType chunkType, CharSequence s) throws IOException {
+        final CharSequence text = (s != null) ? s : "";
+        bos.write(chunkHeader(version, chunkType, Utf8StreamEncoder.encodedLength(text, false)));
+        Utf8StreamEncoder.write(bos, text);
+    }
+
+    /**
+     * Encodes the header of a chunk: type and length.
+     * @param version protocol-version
+     * @param chunkType type of the chunk
+     * @param len number of bytes of the string
+     * @return header
+     * @throws IOException if the length exceeds the 32-bit length of version 1
+     */
+    private static byte[] chunkHeader(int version, ChunkType chunkType, long len) throws IOException {
+        if (version >= 2) {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream(10);
+            baos.write(chunkType.getId());
+            writeVarint(baos, len);
+            return baos.toByteArray();
+        }
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException(String.format("The %s of %d bytes exceeds the maximum length of protocol-version 1",
+                    chunkType, len));
         }
+        return new byte[] { chunkType.getId(), (byte) (len >> 24), (byte) (len >> 16), (byte) (len >> 8), (byte) len };
     }
 
-    static void writeString(BufferedOutputStream bos, ChunkType chunkType, String s) throws IOException {
-        final byte[] bufText = (s != null) ? s.getBytes(StandardCharsets.UTF_8) : new byte[0];
-        final byte[] buf = new byte[5];
-        //`Writes a chunk header with length and data to a byte output stream, where length is encoded in big-endian byte order.`
-        final int len = bufText.length;
-        buf[0] = chunkType.getId();
-        buf[1] = (byte) (len >> 24);
-        buf[2] = (byte) (len >> 16);
-        buf[3] = (byte) (len >> 8);
-        buf[4] = (byte) len;
-        bos.write(buf);
-        bos.write(bufText);
+    /**
+     * Writes an unsigned varint (7 bits per byte, least significant group first, MSB as continuation bit).
+     * @param os output-stream
+     * @param value non-negative value
+     * @throws IOException in case of an IO-error
+     */
+    static void writeVarint(OutputStream os, long value) throws IOException {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative varint: " + value);
+        }
+        while (value >= 0x80) {
+            os.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        os.write((int) value);
     }
 
     /**
-     * Read bytes into the input-buffer.
+     * Reads the response and feeds it into the decoder, until the end of the response or until
+     * the generation should be stopped (first code-block, stop-sequence or n_predict of the latency-profile).
      * @param is input-stream
-     * @param n number of bytes to be read
+     * @param decoder decoder of the response
      * @param indicator indicator to check for cancel
      * @throws IOException in case of an IO-error or cancellation
      */
-    private void readBytes(InputStream is, int n, ProgressIndicator indicator) throws IOException {
-        int offset = 0;
-        while (offset < n) {
+    private void readResponse(InputStream is, Llm1ResponseDecoder decoder, ProgressIndicator indicator) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        while (!generationStopped.isDone()) {
             if (indicator.isCanceled()) {
-                throw new IOException(String.format("Cancel while reading %d %s (offset = %d)",
-                        n, (n == 1) ? "byte" : "bytes", offset));
+                throw new IOException(String.format("Cancel after %d tokens", decoder.getNumTokens()));
+            }
+            if (metrics.isDeadlineExceeded(profile.deadlineMillis())) {
+                cancelAfterDeadline(decoder);
             }
             final int len;
             try {
-                len = is.read(bufIn, offset, n - offset);
+                len = is.read(buf.array(), buf.position(), buf.remaining());
             } catch (SocketTimeoutException e) {
-                // We wait for the next character (but check for cancellation).
+                // We wait for the next bytes (but check for cancellation).
                 continue;
             }
             if (len == -1) {
+                throw new IOException(String.format("Unexpected end of response after %d tokens", decoder.getNumTokens()));
+            }
+            buf.position(buf.position() + len);
+            buf.flip();
+            final boolean complete = decoder.feed(buf);
+            buf.compact();
+            if (complete) {
                 break;
             }
-            offset += len;
-        }
-        if (offset < n) {
-            throw new IOException(String.format("Read %d of %d %s only",
-                    offset, n, (n == 1) ? "byte" : "bytes"));
+            if (!buf.hasRemaining()) {
+                // An item is larger than the buffer.
+                final ByteBuffer bufLarger = ByteBuffer.allocate(2 * buf.capacity());
+                buf.flip();
+                bufLarger.put(buf);
+                buf = bufLarger;
+            }
+            indicator.setText("#tokens=" + decoder.getNumTokens());
         }
     }
 }
@@ -7,17 +7,27 @@ import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.NlsContexts;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.*;
-import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Task to execute a request to a LLM in the background.
@@ -26,28 +36,129 @@ public class LlmBackgroundableHttp extends Task.Backgroundable {
     /** logger */
     private static final Logger LOGGER = Logger.getInstance(LlmBackgroundableHttp.class);
 
+    /** interval in milliseconds of the watchdog which checks for cancellation and the deadline */
+    private static final long WATCHDOG_INTERVAL_MS = 100;
+
+    /** fields read from a chunk of chat/completions */
+    private static final LightweightJsonPath QUERY_CHAT = LightweightJsonPath.compile(
+            "$.choices[0].delta.content", "$.choices[0].finish_reason",
+            "$.timings.prompt_n", "$.timings.prompt_ms", "$.timings.cache_n", "$.usage.prompt_tokens",
+            "$.timings.predicted_ms");
+    private static final int SLOT_CHAT_CONTENT = 0;
+    private static final int SLOT_CHAT_FINISH_REASON = 1;
+    private static final int SLOT_CHAT_PROMPT_N = 2;
+    private static final int SLOT_CHAT_PROMPT_MS = 3;
+    private static final int SLOT_CHAT_CACHE_N = 4;
+    private static final int SLOT_CHAT_PROMPT_TOKENS = 5;
+    private static final int SLOT_CHAT_PREDICTED_MS = 6;
+
+    /** fields read from a chunk of infill */
+    private static final LightweightJsonPath QUERY_INFILL = LightweightJsonPath.compile(
+            "$.content", "$.tokens", "$.stop",
+            "$.timings.prompt_n", "$.timings.prompt_ms", "$.timings.cache_n", "$.tokens_evaluated",
+            "$.timings.predicted_ms");
+    private static final int SLOT_INFILL_CONTENT = 0;
+    private static final int SLOT_INFILL_TOKENS = 1;
+    private static final int SLOT_INFILL_STOP = 2;
+    private static final int SLOT_INFILL_PROMPT_N = 3;
+    private static final int SLOT_INFILL_PROMPT_MS = 4;
+    private static final int SLOT_INFILL_CACHE_N = 5;
+    private static final int SLOT_INFILL_TOKENS_EVALUATED = 6;
+    private static final int SLOT_INFILL_PREDICTED_MS = 7;
+
+    /** token &lt;|im_start|&gt; of Qwen2.5-Coder */
+    private static final int TOKEN_IM_START = 151644;
+
     /** Out application settings */
     private final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
 
-    /** URL of chat/completions-endpoint */
-    private final String sUrlChatCompletion = llmSettings.getServerUrl() + "v1/chat/completions";
-    /** URL of infill-endpoint */
-    private final String sUrlInfill = llmSettings.getServerUrl() + "infill";
+    /** path of chat/completions-endpoint */
+    private static final String PATH_CHAT_COMPLETION = "v1/chat/completions";
+    /** path of infill-endpoint */
+    private static final String PATH_INFILL = "infill";
 
     /** optional api-key */
     private final String sApiKey = System.getProperty("pluginllm01.key");
 
     /** Consumer to send output-stream */
     private final Consumer<String> responseStream;
+    /** records the tokens sent to the output-stream (response-cache) */
+    private final CachedResponse.Recorder responseRecorder;
     /** Consumer to send the current status */
     private final Consumer<String> outputStatus;
 
     /** result consumer */
     private final Consumer<String> resultConsumer;
 
+    /** optional handler to be called in the EDT if the task has been cancelled or failed */
+    private Runnable cancelHandler;
+
+    /** optional handler which discards the tokens streamed so far (called by the task's thread) */
+    private Runnable resetHandler;
+
+    /** <code>true</code> if the request has been sent by this task (not shared with an identical request) */
+    private boolean requestSent;
+
+    /** optional handler to be called in the EDT when the task has finished (successful, cancelled or failed) */
+    private Runnable finishedHandler;
+
+    /** <code>true</code> if the result is speculative (prefetch), errors are not reported as IDE-errors */
+    private boolean speculative;
+
+    /** priority of the request in the {@link LlmRequestScheduler} */
+    private LlmRequestScheduler.Priority priority = LlmRequestScheduler.Priority.CHAT;
+    /** consumer of the received tokens which shares them with identical requests (set by the scheduler's thread) */
+    private volatile Consumer<String> tokenPublisher = token -> { };
+
+    /** key to choose the slot of the server (see {@link LlmSlotAffinity}) or <code>null</code> */
+    private String affinityKey;
+    /** slot of the endpoint which executes the request, -1 if the server chooses the slot */
+    private volatile int idSlot = -1;
+
+    /** supplier of the history of a chat-session, called in the background */
+    private Supplier<List<LlmChatSession.Message>> historySupplier = List::of;
+    /** messages of the previous turns of a chat-session, sent between the system-prompt and the prompt */
+    private List<LlmChatSession.Message> history = List.of();
+    /** consumer of the token-counts of the prompt or <code>null</code> */
+    private Consumer<PromptStats> promptStatsConsumer;
+
+    /** <code>true</code> if the generation should be stopped after the first code-block */
+    private boolean stopAfterCodeBlock;
+    /** extractor which detects the end of the first code-block, <code>null</code> if the response is read completely */
+    private MarkdownStreamExtractor codeBlockExtractor;
+    /** <code>true</code> if the generation has been stopped after the first code-block */
+    private volatile boolean generationStopped;
+
+    /** number of prompt-tokens evaluated by the server (timings.prompt_n), -1 if unknown */
+    private int promptTokensEvaluated = -1;
+    /** number of prompt-tokens served from the KV-cache of the slot (timings.cache_n), -1 if unknown */
+    private int promptTokensCached = -1;
+    /** number of tokens of the prompt, -1 if unknown */
+    private int promptTokens = -1;
+    /** time to evaluate the prompt in milliseconds */
+    private double promptMillis;
+    /** time to generate the response in milliseconds */
+    private double predictedMillis;
+
+    /** latency-metrics of the current request */
+    private LlmMetrics.Request metrics;
+    /** latency-profile of the request (n_predict, stop-sequences, sampling, deadline) */
+    private LlmLatencyProfile profile = LlmLatencyProfile.NONE;
+
     /** prompt */
     private final LlmTask llmTask;
 
+    /** values of the current chunk (the chunks are processed sequentially) */
+    private final LightweightJsonPath.Result chunkResult;
+
+    /**
+     * Token-counts of the prompt reported by the server.
+     * @param promptTokens number of tokens of the prompt
+     * @param cachedTokens number of tokens served from the KV-cache of the slot
+     * @param evaluatedTokens number of tokens evaluated
+     */
+    record PromptStats(int promptTokens, int cachedTokens, int evaluatedTokens) { }
+
     public LlmBackgroundableHttp(@Nullable Project project, @NlsContexts.ProgressTitle @NotNull String title,
                                  LlmTask llmTask,
                                  Consumer<String> responseStream,
@@ -55,194 +166,722 @@ public class LlmBackgroundableHttp extends Task.Backgroundable {
                                  Consumer<String> resultConsumer) {
         super(project, title, true);
         this.llmTask = llmTask;
-        this.responseStream = responseStream;
+        this.responseRecorder = new CachedResponse.Recorder(responseStream);
+        this.responseStream = responseRecorder;
         this.outputStatus = outputStatus;
         this.resultConsumer = resultConsumer;
+        this.chunkResult = (llmTask.type() == LlmTaskType.PROMPT) ? QUERY_CHAT.newResult() : QUERY_INFILL.newResult();
+    }
+
+    /**
+     * Sets a handler which is called in the EDT if the task has been cancelled or failed.
+     * @param cancelHandler handler, e.g. to remove a preview
+     * @return this task
+     */
+    public LlmBackgroundableHttp setCancelHandler(Runnable cancelHandler) {
+        this.cancelHandler = cancelHandler;
+        return this;
+    }
+
+    /**
+     * Sets a handler which discards the tokens streamed so far. It is called by the task's thread
+     * if an identical request whose tokens have been shared failed and the request is sent again.
+     * @param resetHandler handler, e.g. to clear a preview
+     * @return this task
+     */
+    public LlmBackgroundableHttp setResetHandler(Runnable resetHandler) {
+        this.resetHandler = resetHandler;
+        return this;
+    }
+
+    /**
+     * Discards the tokens of a failed shared request: the recorded tokens and the tokens shown so far.
+     */
+    private void resetResponse() {
+        responseRecorder.reset();
+        if (resetHandler != null) {
+            resetHandler.run();
+        }
+    }
+
+    /**
+     * Sets a handler which is called in the EDT when the task has finished, after the cancel-handler.
+     * It is called after an unexpected exception, too.
+     * @param finishedHandler handler, e.g. to unlock the UI
+     * @return this task
+     */
+    public LlmBackgroundableHttp setFinishedHandler(Runnable finishedHandler) {
+        this.finishedHandler = finishedHandler;
+        return this;
+    }
+
+    /**
+     * Marks the task as speculative request (e.g. a prefetch): errors are logged as info only,
+     * they are not reported as IDE-errors.
+     * @param speculative <code>true</code> if speculative
+     * @return this task
+     */
+    public LlmBackgroundableHttp setSpeculative(boolean speculative) {
+        this.speculative = speculative;
+        return this;
+    }
+
+    /**
+     * Sets the priority of the request: a batch-request is cancelled if a request of the user waits for a slot.
+     * @param priority priority
+     * @return this task
+     */
+    public LlmBackgroundableHttp setPriority(LlmRequestScheduler.Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Sets the key to choose the slot of the server. Requests of the same key are sent to the same slot,
+     * so the server can reuse the KV-cache of the common prefix of the prompts.
+     * @param affinityKey key, e.g. of the file
+     * @return this task
+     */
+    public LlmBackgroundableHttp setAffinityKey(String affinityKey) {
+        this.affinityKey = affinityKey;
+        return this;
+    }
+
+    /**
+     * Sets the previous turns of a chat-session. The messages are sent between the system-prompt and the prompt,
+     * the history should only be appended so the server can reuse the KV-cache of the previous request.
+     * The supplier is called when the task runs, so the tokens of the turns aren't counted in the EDT.
+     * @param historySupplier supplier of the messages of the previous turns
+     * @return this task
+     */
+    public LlmBackgroundableHttp setHistory(Supplier<List<LlmChatSession.Message>> historySupplier) {
+        this.historySupplier = historySupplier;
+        return this;
+    }
+
+    /**
+     * Sets a consumer of the token-counts of the prompt (prompt-tokens served from the KV-cache and evaluated).
+     * The consumer is called before the result-consumer, if the server reports the timings.
+     * @param promptStatsConsumer consumer
+     * @return this task
+     */
+    public LlmBackgroundableHttp setPromptStatsConsumer(Consumer<PromptStats> promptStatsConsumer) {
+        this.promptStatsConsumer = promptStatsConsumer;
+        return this;
+    }
+
+    /**
+     * Stops the generation of the server as soon as the first code-block of the response has been closed,
+     * e.g. if the caller uses the result of {@link MainForm#extractMarkdown(String)} only.
+     * A think-block is read completely, the text after the code-block isn't generated.
+     * @param stopAfterCodeBlock <code>true</code> to stop after the first code-block
+     * @return this task
+     */
+    public LlmBackgroundableHttp setStopAfterCodeBlock(boolean stopAfterCodeBlock) {
+        this.stopAfterCodeBlock = stopAfterCodeBlock;
+        return this;
+    }
+
+    @Override
+    public void onCancel() {
+        if (cancelHandler != null) {
+            cancelHandler.run();
+        }
+    }
+
+    @Override
+    public void onFinished() {
+        if (finishedHandler != null) {
+            finishedHandler.run();
+        }
+    }
+
+    /**
+     * Replays a cached response of the request, if available.
+     * @param cache response-cache
+     * @param cacheKey key of the request
+     * @return <code>true</code> if the response has been served by the cache
+     */
+    private boolean replayCachedResponse(LlmResponseCache cache, LlmResponseCache.Key cacheKey) {
+        final CachedResponse cached = cache.get(cacheKey);
+        if (cached == null) {
+            return false;
+        }
+        cached.replay(responseRecorder.getDelegate());
+        outputStatus.accept("Cached response");
+        resultConsumer.accept(cached.text());
+        return true;
+    }
+
+    private void logError(String msg) {
+        logError(msg, null);
+    }
+
+    private void logError(String msg, Throwable e) {
+        if (speculative) {
+            LOGGER.info(msg + ((e != null) ? ": " + e : ""));
+        } else {
+            LOGGER.error(msg, e);
+        }
     }
 
    @Override
     public void run(@NotNull ProgressIndicator indicator) {
         try {
-            String sUrl = switch (llmTask.type()) {
-                case PROMPT -> sUrlChatCompletion;
-                case FILL_IN_MIDDLE -> sUrlInfill;
+            final String path = switch (llmTask.type()) {
+                case PROMPT -> PATH_CHAT_COMPLETION;
+                case FILL_IN_MIDDLE -> PATH_INFILL;
             };
-            LOGGER.info("Connect to llm-server: " + sUrl);
-            URL url = new URL(sUrl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestProperty("Content-Type", "text/event-stream");
-            conn.setRequestProperty("Cache-Control", "no-cache");
-            if (sApiKey != null) {
-                conn.setRequestProperty("Authorization", sApiKey);
+            final LlmEndpointPool endpointPool = LlmEndpointPool.getInstance();
+            final LlmResponseCache cache = LlmResponseCache.getInstance();
+            profile = llmSettings.getLatencyProfile(llmTask.type(), speculative);
+            history = historySupplier.get();
+            // The endpoints of the pool serve the same model, so the key contains the primary endpoint only,
+            // and its model: a response of a replaced model mustn't be served from the cache.
+            // A response truncated after the code-block mustn't be shared with a request which needs the complete response,
+            // the profile (e.g. n_predict or the sampling) changes the response, too.
+            final LlmResponseCache.Key requestKey = LlmResponseCache.createKey(endpointPool.getPrimaryUrl() + path
+                    + '#' + endpointPool.getPrimaryModel()
+                    + (stopAfterCodeBlock ? "#code-block" : "") + '#' + profile, llmTask, history);
+            final LlmResponseCache.Key cacheKey = cache.isEnabled() ? requestKey : null;
+            if (cacheKey != null && replayCachedResponse(cache, cacheKey)) {
+                return;
             }
+            final LlmTask sentTask = checkPromptSize(llmTask);
 
             Map<String, Object> request = new HashMap<>();
-            if (llmTask.type() == LlmTaskType.PROMPT) {
+            // The server reuses the KV-cache of the common prefix of the previous prompt of the slot.
+            request.put("cache_prompt", true);
+            if (sentTask.type() == LlmTaskType.PROMPT) {
                 List<Object> messages = new ArrayList<>();
                 request.put("stream", true);
                 request.put("messages", messages);
-                String systemPrompt = llmTask.systemPrompt();
+                String systemPrompt = sentTask.systemPrompt();
                 if (systemPrompt != null && !systemPrompt.isEmpty()) {
                     Map<String, Object> msg = new HashMap<>();
                     msg.put("role", "system");
                     msg.put("content", systemPrompt);
                     messages.add(msg);
                 }
+                for (LlmChatSession.Message message : history) {
+                    Map<String, Object> msgHistory = new HashMap<>();
+                    msgHistory.put("role", message.role());
+                    msgHistory.put("content", message.content());
+                    messages.add(msgHistory);
+                }
                 Map<String, Object> msg = new HashMap<>();
                 msg.put("role", "user");
-                msg.put("content", llmTask.prompt());
+                msg.put("content", sentTask.prompt());
                 messages.add(msg);
             }
-            else if (llmTask.type() == LlmTaskType.FILL_IN_MIDDLE) {
-                request.put("input_prefix", llmTask.fimBegin());
-                request.put("input_suffix", llmTask.fimEnd());
-                if (llmTask.prompt() != null && !llmTask.prompt().isEmpty()) {
-                    request.put("prompt", llmTask.prompt());
+            else if (sentTask.type() == LlmTaskType.FILL_IN_MIDDLE) {
+                request.put("input_prefix", sentTask.fimBegin());
+                request.put("input_suffix", sentTask.fimEnd());
+                if (sentTask.prompt() != null && !sentTask.prompt().isEmpty()) {
+                    request.put("prompt", sentTask.prompt());
                 }
                 request.put("stream", true);
             }
             else {
-                LOGGER.error("Unexpected llm-task type " + llmTask.type());
-                outputStatus.accept("internal error: " + llmTask.type());
-                throw new ProcessCanceledException();
-            }
-            StringBuilder sb = new StringBuilder();
-            LightweightJsonHandler.dumpJson(sb, request);
-
-            conn.setDoOutput(true);
-            conn.setDoInput(true);
-
-            try (OutputStream os = conn.getOutputStream()) {
-                String jsonRequest = sb.toString();
-                System.out.println("JSON-Request: " + jsonRequest);
-                os.write(jsonRequest.getBytes(StandardCharsets.UTF_8));
-            }
-
-            int rc = conn.getResponseCode();
-            if (rc != 200) {
-                LOGGER.error(String.format("Server error: %d - %s ", rc, conn.getResponseMessage()));
-                outputStatus.accept("server error: " + rc);
+                logError("Unexpected llm-task type " + sentTask.type());
+                outputStatus.accept("internal error: " + sentTask.type());
                 throw new ProcessCanceledException();
             }
-
-            try (InputStream is = conn.getInputStream();
-                 InputStreamReader isr = new InputStreamReader(is, StandardCharsets.UTF_8);
-                 BufferedReader br = new BufferedReader(isr)) {
-                final StringBuilder sbResponse = new StringBuilder();
-                while (true) {
-                    if (indicator.isCanceled()) {
-                        break;
+            profile.addToRequest(request, sentTask.type());
+            requestSent = false;
+            final String response = LlmRequestScheduler.getInstance().execute(LlmMetrics.Transport.HTTP, requestKey,
+                    priority, indicator, responseRecorder, this::resetResponse, outputStatus, publisher -> {
+                tokenPublisher = publisher;
+                requestSent = true;
+                return endpointPool.execute(affinityKey, endpoint -> {
+                    // The slots belong to the server, the slot is chosen after the endpoint.
+                    idSlot = endpointPool.getSlot(endpoint, affinityKey);
+                    if (idSlot >= 0) {
+                        request.put("id_slot", idSlot);
+                    } else {
+                        request.remove("id_slot");
                     }
-                    String line = readLine(br, sb, indicator);
+                    // The request is serialized while it is sent, the prompt isn't copied.
+                    final JsonRequestBody body = JsonRequestBody.of(request);
                     if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("Line: " + line.trim());
-                    }
-                    System.out.println("Line: " + line.trim());
-                    if (indicator.isCanceled()) {
-                        break;
-                    }
-                    if (line.startsWith(":")) {
-                        LOGGER.info("Server-side comment: " + line);
-                        continue;
-                    }
-                    if (line.startsWith("data: [DONE]")) {
-                        break;
-                    }
-                    if (!line.startsWith("data: ")) {
-                        LOGGER.error("Unexpected message-line: " + line.trim());
-                        continue;
-                    }
-                    String json = line.substring(6).trim();
-                    Map<String, Object> response;
-                    try (Reader reader = new StringReader(json)) {
-                        LightweightJsonHandler.readChar(reader, true, '{');
-                        response = LightweightJsonHandler.parseJsonDict(reader);
-                    }
-                    String content = null;
-                    if (llmTask.type() == LlmTaskType.PROMPT) {
-                        List<Map<String, Object>> choices = LightweightJsonHandler.getJsonArrayDicts(response, "choices");
-                        if (choices == null || choices.isEmpty()) {
-                            LOGGER.error("Response without choices: " + json);
-                            continue;
-                        }
-                        Map<String, Object> choice = choices.get(0);
-                        Map<String, Object> delta = LightweightJsonHandler.getJsonValue(choice, "delta", Map.class);
-                        content = LightweightJsonHandler.getJsonValue(delta, "content", String.class);
+                        LOGGER.debug("JSON-Request: " + body);
                     }
-                    else if (llmTask.type() == LlmTaskType.FILL_IN_MIDDLE) {
-                        // {"index":0,"content":"Hello","tokens":[9707],"stop":false,"id_slot":-1,"tokens_predicted":6,"tokens_evaluated":23}
-                        // ...
-                        content = LightweightJsonHandler.getJsonValue(response, "content", String.class);
-                        List<Object> tokens = LightweightJsonHandler.getJsonArray(response, "tokens");
-                        if ("".equals(content) && (tokens == null || tokens.isEmpty())) {
-                            break;
-                        }
-                        if ("".equals(content) && tokens != null && !tokens.isEmpty()
-                                && Integer.valueOf(151644).equals(tokens.get(0))) {
-                            // Workaround Qwen2.5-Coder and llama.cpp (2025-02): <|im_start|> instead of STOP.
-                            LOGGER.warn("break because of <|im_start|>: " + response);
-                            break;
-                        }
-                        Boolean stop = LightweightJsonHandler.getJsonValue(response, "stop", Boolean.class);
-                        if (Boolean.TRUE.equals(stop)) {
-                            // {"index":0,"content":"","tokens":[],"id_slot":0,"stop":true,"model":"gpt-3.5-turbo","tokens_predicted":216,"tokens_evaluated":23,"generation_settings":{"n_predict":-1,"seed":4294967295,"temperature":0.800000011920929,"dynatemp_range":0.0,"dynatemp_exponent":1.0,"top_k":40,"top_p":0.9499[...]
-                            break;
-                        }
-                    }
-                    if (content != null) {
-                        responseStream.accept(content);
-                        sbResponse.append(content);
-                    }
-                }
-                this.resultConsumer.accept(sbResponse.toString());
+                    final String sUrl = endpoint.getUrl() + path;
+                    LOGGER.info(String.format("Connect to llm-server: %s (slot %d)", sUrl, idSlot));
+                    return sendRequest(sUrl, body, indicator);
+                });
+            });
+            reportPromptCache(idSlot);
+            if (cacheKey != null && requestSent) {
+                // A shared response is cached by the request which received it.
+                cache.put(cacheKey, responseRecorder.toResponse());
             }
+            this.resultConsumer.accept(response);
         }
         catch (IOException e) {
-            LOGGER.error("IO-exception occured when communication with LLM-server", e);
+            logError("IO-exception occured when communication with LLM-server", e);
             outputStatus.accept("IO-error: " + e);
             throw new ProcessCanceledException();
         }
     }
 
     /**
-     * Reads a message in an event stream (with trailing LF in each line).
-     * @param br event stream
-     * @param sb temporary string-builder
+     * Sends the request to an endpoint and processes the streamed response.
+     * @param sUrl URL of the endpoint
+     * @param body JSON-request
      * @param indicator progress-indicator
-     * @return message
+     * @return response
+     * @throws LlmEndpointPool.FailoverException if the request failed before the first event
      * @throws IOException in case of an IO-error
      */
-    private String readLine(BufferedReader br, StringBuilder sb, @NotNull ProgressIndicator indicator) throws IOException{
-        sb.setLength(0);
-        while (true) {
-            if (indicator.isCanceled()) {
-                LOGGER.info("Request cancelled by user or local system");
-                break;
+    private String sendRequest(String sUrl, JsonRequestBody body, @NotNull ProgressIndicator indicator) throws IOException {
+        metrics = LlmMetrics.getInstance().startRequest(LlmMetrics.Transport.HTTP, profile);
+        codeBlockExtractor = stopAfterCodeBlock ? new MarkdownStreamExtractor() : null;
+        generationStopped = false;
+
+        final LlmHttpClientService httpClientService = ApplicationManager.getApplication().getService(LlmHttpClientService.class);
+        HttpRequest.Builder requestBuilder = httpClientService.newRequestBuilder(URI.create(sUrl))
+                .header("Content-Type", "text/event-stream")
+                .header("Cache-Control", "no-cache")
+                // Unknown content-length: the body is sent with chunked transfer-encoding.
+                .POST(new TimedBodyPublisher(HttpRequest.BodyPublishers.ofInputStream(body::openStream), metrics));
+        if (sApiKey != null) {
+            requestBuilder.header("Authorization", sApiKey);
+        }
+
+        final StringBuilder sbResponse = new StringBuilder();
+        final SseSubscriber subscriber = new SseSubscriber(sbResponse);
+        final long tsStart = metrics.getStart();
+        CompletableFuture<HttpResponse<Void>> futureResponse = httpClientService.sendAsync(requestBuilder.build(), responseInfo -> {
+            subscriber.tsHeaders = System.nanoTime();
+            subscriber.statusCode = responseInfo.statusCode();
+            if (responseInfo.statusCode() != 200) {
+                return HttpResponse.BodySubscribers.discarding();
             }
-            int c = br.read();
-            if (c == -1) {
-                LOGGER.error("Unexpected end of stream: " + sb);
-                outputStatus.accept("Unexpected end of server response");
+            return HttpResponse.BodySubscribers.fromSubscriber(subscriber);
+        });
+        futureResponse.whenComplete((response, e) -> {
+            if (e != null) {
+                subscriber.done.completeExceptionally(e);
+            } else if (response.statusCode() != 200) {
+                subscriber.done.complete(null);
+            }
+        });
+
+        boolean completed = false;
+        try {
+            try {
+                awaitResponse(subscriber, indicator, metrics, profile.deadlineMillis());
+            } catch (IOException e) {
+                if (subscriber.tsFirstEvent == 0 && !indicator.isCanceled()) {
+                    throw new LlmEndpointPool.FailoverException("No response: " + e, e);
+                }
+                throw e;
+            }
+            if (subscriber.deadlineExceeded) {
+                LOGGER.info(String.format("Request cancelled: deadline of %d ms (profile %s) exceeded after %d events",
+                        profile.deadlineMillis(), profile.name(), subscriber.decoder.getNumEvents()));
+                outputStatus.accept(String.format("Deadline of %d ms exceeded, request cancelled", profile.deadlineMillis()));
+                throw new ProcessCanceledException();
+            }
+            if (isRetryableStatus(subscriber.statusCode)) {
+                // The server is overloaded or unavailable (e.g. 503 while loading the model), another one may answer.
+                throw new LlmEndpointPool.FailoverException("Server error " + subscriber.statusCode, null);
+            }
+            if (subscriber.statusCode != 200) {
+                logError(String.format("Server error: %d", subscriber.statusCode));
+                outputStatus.accept("server error: " + subscriber.statusCode);
+                throw new ProcessCanceledException();
+            }
+            LOGGER.info(String.format("Response-headers after %d ms, first event after %d ms, total %d ms",
+                    (subscriber.tsHeaders - tsStart) / 1_000_000,
+                    (subscriber.tsFirstEvent > 0) ? (subscriber.tsFirstEvent - tsStart) / 1_000_000 : -1,
+                    (System.nanoTime() - tsStart) / 1_000_000));
+            if (indicator.isCanceled()) {
                 throw new ProcessCanceledException();
             }
-            sb.append((char) c);
-            if (c != '\n') {
-                continue;
+            if (!subscriber.finished && subscriber.tsFirstEvent == 0) {
+                throw new LlmEndpointPool.FailoverException("End of stream without events", null);
             }
-            c = br.read();
-            if (c == -1) {
-                LOGGER.error("Unexpected end of stream: " + sb);
+            if (!subscriber.finished) {
+                logError("Unexpected end of stream after " + subscriber.decoder.getNumEvents() + " events");
                 outputStatus.accept("Unexpected end of server response");
                 throw new ProcessCanceledException();
             }
-            if (c != '\n') {
-                sb.append((char) c);
-                continue;
+            if (generationStopped) {
+                LOGGER.info(String.format("Generation stopped after the code-block (%d events)", subscriber.decoder.getNumEvents()));
+                outputStatus.accept("Generation stopped after the code-block");
+            }
+            if (promptTokensEvaluated >= 0) {
+                metrics.serverTimings((long) (promptMillis * 1000), (long) (predictedMillis * 1000));
+            }
+            completed = true;
+            return sbResponse.toString();
+        } finally {
+            // Failed, cancelled and timed-out requests are recorded, too.
+            metrics.finish(body.getLength(), subscriber.numBytes, completed);
+        }
+    }
+
+    /**
+     * Checks if a request which failed with the given status-code may be sent to another endpoint.
+     * @param statusCode HTTP status-code
+     * @return <code>true</code> in case of an overloaded or unavailable server
+     */
+    static boolean isRetryableStatus(int statusCode) {
+        return statusCode == 429 || statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * Checks the number of tokens of the request against the maximum prompt size in the settings.
+     * A prompt which is too long is rejected, the prefix and suffix of a fill-in-middle request are trimmed.
+     * The check needs a tokenizer, it is skipped if no tokenizer has been configured.
+     * @param task request
+     * @return request to be sent
+     */
+    private LlmTask checkPromptSize(LlmTask task) {
+        final int maxTokens = llmSettings.getMaxPromptTokens();
+        final BpeTokenizer tokenizer = (maxTokens > 0) ? LlmTokenizerService.getInstance().getTokenizer() : null;
+        if (tokenizer == null) {
+            return task;
+        }
+        final long tsStart = System.nanoTime();
+        int numPromptTokens = countTokens(tokenizer, task.systemPrompt()) + countTokens(tokenizer, task.prompt());
+        for (LlmChatSession.Message message : history) {
+            numPromptTokens += countTokens(tokenizer, message.content());
+        }
+        final int numTokens = numPromptTokens + countTokens(tokenizer, task.fimBegin()) + countTokens(tokenizer, task.fimEnd());
+        LOGGER.info(String.format("Request of %d tokens (counted in %d us)", numTokens, (System.nanoTime() - tsStart) / 1000));
+        if (numTokens <= maxTokens) {
+            return task;
+        }
+        if (task.type() != LlmTaskType.FILL_IN_MIDDLE || numPromptTokens >= maxTokens) {
+            LOGGER.info(String.format("Request rejected: %d tokens, maximum %d", numTokens, maxTokens));
+            outputStatus.accept(String.format("Prompt too long: %d tokens, maximum %d", numTokens, maxTokens));
+            throw new ProcessCanceledException();
+        }
+        final String fimBegin = (task.fimBegin() != null) ? task.fimBegin() : "";
+        final String fimEnd = (task.fimEnd() != null) ? task.fimEnd() : "";
+        final String text = fimBegin + fimEnd;
+        final FimContextExtractor.FimContext context = new FimContextExtractor(text, tokenizer)
+                .extract(fimBegin.length(), maxTokens - numPromptTokens, llmSettings.getFimPrefixPercent());
+        outputStatus.accept(String.format("Context trimmed from %d to %d tokens", numTokens,
+                numPromptTokens + context.prefixTokens() + context.suffixTokens()));
+        return new LlmTask(task.type(), task.systemPrompt(), task.prompt(), context.fimBegin(text), context.fimEnd(text));
+    }
+
+    /**
+     * Logs the number of prompt-tokens served from the KV-cache of the slot.
+     * @param idSlot slot or -1
+     */
+    private void reportPromptCache(int idSlot) {
+        if (promptTokensEvaluated < 0) {
+            return;
+        }
+        // Older servers don't send timings.cache_n, the cached tokens are the tokens of the prompt not evaluated.
+        final int cached = (promptTokensCached >= 0) ? promptTokensCached
+                : Math.max(0, promptTokens - promptTokensEvaluated);
+        final int total = promptTokensEvaluated + cached;
+        LlmSlotAffinity.getInstance().recordPrompt(total, cached);
+        LOGGER.info(String.format("Prompt of %d tokens (slot %d): %d from KV-cache, %d evaluated in %.0f ms",
+                total, idSlot, cached, promptTokensEvaluated, promptMillis));
+        outputStatus.accept(String.format("Prompt: %d tokens, %d cached, %d evaluated in %.0f ms",
+                total, cached, promptTokensEvaluated, promptMillis));
+        if (promptStatsConsumer != null) {
+            promptStatsConsumer.accept(new PromptStats(total, cached, promptTokensEvaluated));
+        }
+    }
+
+    private static int countTokens(BpeTokenizer tokenizer, String text) {
+        return (text != null) ? tokenizer.countTokens(text, 0, text.length()) : 0;
+    }
+
+    /**
+     * Waits until the response has been streamed completely, the user cancels the request
+     * or the deadline of the latency-profile has been exceeded.
+     * The body is processed by the HTTP-client, the response is complete when the subscriber completes.
+     * The waiting thread is parked, the cancellation and the deadline are checked by a watchdog
+     * in the shared scheduled executor which cancels the subscription.
+     * @param subscriber subscriber of the response-body
+     * @param indicator progress-indicator
+     * @param metrics metrics of the request
+     * @param deadlineMillis deadline of the request in milliseconds, 0 if there is no deadline
+     * @throws IOException in case of an IO-error
+     */
+    private static void awaitResponse(SseSubscriber subscriber, @NotNull ProgressIndicator indicator,
+                                      LlmMetrics.Request metrics, long deadlineMillis) throws IOException {
+        final ScheduledFuture<?> watchdog = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(() -> {
+            if (subscriber.done.isDone()) {
+                return;
+            }
+            if (indicator.isCanceled()) {
+                LOGGER.info("Request cancelled by user or local system");
+                subscriber.cancel();
+            } else if (metrics.isDeadlineExceeded(deadlineMillis)) {
+                // Closing the connection releases the slot of the server.
+                subscriber.deadlineExceeded = true;
+                subscriber.cancel();
+            }
+        }, WATCHDOG_INTERVAL_MS, WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        try {
+            subscriber.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            subscriber.cancel();
+            throw new IOException("Interrupted while waiting for the server response", e);
+        } catch (ExecutionException e) {
+            Throwable cause = (e.getCause() instanceof CompletionException) ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException ioe) {
+                throw ioe;
+            }
+            if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IOException("Error while processing the server response", cause);
+        } finally {
+            watchdog.cancel(false);
+        }
+    }
+
+    /**
+     * Processes the data of a server-sent event.
+     * @param json JSON-payload of the event
+     * @param sbResponse response built so far
+     * @return <code>true</code> if the response is complete
+     */
+    private boolean processEvent(CharSequence json, StringBuilder sbResponse) {
+        final LightweightJsonPath.Result chunk = chunkResult;
+        String content = null;
+        if (llmTask.type() == LlmTaskType.PROMPT) {
+            final long tsParse = System.nanoTime();
+            QUERY_CHAT.scan(json, chunk);
+            metrics.chunkParsed(System.nanoTime() - tsParse);
+            if (chunk.isPresent(SLOT_CHAT_PROMPT_N)) {
+                promptTokensEvaluated = chunk.getInt(SLOT_CHAT_PROMPT_N, -1);
+                promptTokensCached = chunk.getInt(SLOT_CHAT_CACHE_N, -1);
+                promptTokens = chunk.getInt(SLOT_CHAT_PROMPT_TOKENS, -1);
+                promptMillis = chunk.getDouble(SLOT_CHAT_PROMPT_MS, 0);
+                predictedMillis = chunk.getDouble(SLOT_CHAT_PREDICTED_MS, 0);
+            }
+            content = chunk.getString(SLOT_CHAT_CONTENT);
+            if (content == null && !chunk.isPresent(SLOT_CHAT_FINISH_REASON)) {
+                logError("Response without choices: " + json);
+                return false;
+            }
+        }
+        else if (llmTask.type() == LlmTaskType.FILL_IN_MIDDLE) {
+            // {"index":0,"content":"Hello","tokens":[9707],"stop":false,"id_slot":-1,"tokens_predicted":6,"tokens_evaluated":23}
+            // ...
+            final long tsParse = System.nanoTime();
+            QUERY_INFILL.scan(json, chunk);
+            metrics.chunkParsed(System.nanoTime() - tsParse);
+            if (chunk.isPresent(SLOT_INFILL_PROMPT_N)) {
+                promptTokensEvaluated = chunk.getInt(SLOT_INFILL_PROMPT_N, -1);
+                promptTokensCached = chunk.getInt(SLOT_INFILL_CACHE_N, -1);
+                promptTokens = chunk.getInt(SLOT_INFILL_TOKENS_EVALUATED, -1);
+                promptMillis = chunk.getDouble(SLOT_INFILL_PROMPT_MS, 0);
+                predictedMillis = chunk.getDouble(SLOT_INFILL_PREDICTED_MS, 0);
+            }
+            content = chunk.getString(SLOT_INFILL_CONTENT);
+            final int numTokens = chunk.getIntCount(SLOT_INFILL_TOKENS);
+            if ("".equals(content) && numTokens == 0) {
+                return true;
+            }
+            if ("".equals(content) && chunk.getIntAt(SLOT_INFILL_TOKENS, 0) == TOKEN_IM_START) {
+                // Workaround Qwen2.5-Coder and llama.cpp (2025-02): <|im_start|> instead of STOP.
+                LOGGER.warn("break because of <|im_start|>: " + json);
+                return true;
+            }
+            if (chunk.getBoolean(SLOT_INFILL_STOP, false)) {
+                // {"index":0,"content":"","tokens":[],"id_slot":0,"stop":true,"model":"gpt-3.5-turbo","tokens_predicted":216,"tokens_evaluated":23,"generation_settings":{"n_predict":-1,"seed":4294967295,"temperature":0.800000011920929,"dynatemp_range":0.0,"dynatemp_exponent":1.0,"top_k":40,"top_p":0.9499[...]
+                return true;
             }
-            // LF LF: End of message.
-            break;
         }
-        return sb.toString();
+        if (content != null) {
+            if (!content.isEmpty()) {
+                metrics.token();
+            }
+            responseStream.accept(content);
+            tokenPublisher.accept(content);
+            sbResponse.append(content);
+            if (codeBlockExtractor != null && codeBlockExtractor.feed(content)) {
+                // The rest of the response isn't needed.
+                generationStopped = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Subscriber which receives the bytes of the event stream (text/event-stream) asynchronously
+     * and decodes the events by an incremental {@link SseDecoder}.
+     */
+    private class SseSubscriber implements Flow.Subscriber<List<ByteBuffer>>, SseDecoder.EventListener {
+        /** completed when the response is complete (or failed) */
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        /** decoder of the event stream */
+        final SseDecoder decoder = new SseDecoder(this);
+        /** response built so far */
+        private final StringBuilder sbResponse;
+        /** HTTP status-code */
+        volatile int statusCode;
+        /** time the response-headers arrived (nano-time) */
+        volatile long tsHeaders;
+        /** time the first event arrived (nano-time) */
+        volatile long tsFirstEvent;
+        /** <code>true</code> if the end of the response has been reached */
+        volatile boolean finished;
+        /** <code>true</code> if the request has been cancelled because of the deadline of the profile */
+        volatile boolean deadlineExceeded;
+        /** number of bytes of the response-body */
+        volatile long numBytes;
+        /** subscription of the response-body */
+        private volatile Flow.Subscription subscription;
+
+        SseSubscriber(StringBuilder sbResponse) {
+            this.sbResponse = sbResponse;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            if (!finished && !done.isDone()) {
+                try {
+                    for (ByteBuffer buffer : buffers) {
+                        numBytes += buffer.remaining();
+                        if (decoder.feed(buffer)) {
+                            break;
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    done.completeExceptionally(e);
+                    subscription.cancel();
+                    return;
+                }
+            }
+            if (generationStopped) {
+                // The connection is closed, the server stops the generation when it fails to send the next chunk.
+                subscription.cancel();
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public boolean onEvent(String eventType, String lastEventId, CharSequence data) throws IOException {
+            if (tsFirstEvent == 0) {
+                tsFirstEvent = System.nanoTime();
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Event: " + data);
+            }
+            if ("[DONE]".contentEquals(data)) {
+                finish();
+                return true;
+            }
+            if (processEvent(data, sbResponse)) {
+                finish();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onUnknownField(String name, String value) {
+            if ("error".equals(name)) {
+                logError("Server-side error: " + value);
+                outputStatus.accept("server error: " + value);
+            } else {
+                LOGGER.info(String.format("Unexpected field (%s) in event stream: %s", name, value));
+            }
+        }
+
+        /**
+         * Marks the response as complete, the rest of the body is drained so that the connection can be reused.
+         */
+        private void finish() {
+            finished = true;
+            done.complete(null);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (!finished && decoder.getPendingBytes() > 0) {
+                logError(String.format("Unexpected end of stream, %d bytes pending", decoder.getPendingBytes()));
+            }
+            decoder.finish();
+            done.complete(null);
+        }
+
+        /**
+         * Cancels the subscription, the connection will be closed.
+         */
+        void cancel() {
+            Flow.Subscription s = subscription;
+            if (s != null) {
+                s.cancel();
+            }
+            done.complete(null);
+        }
+    }
+
+    /**
+     * Body-publisher which records the time the client starts to send the body (connection established,
+     * request-headers sent) and the time the body has been sent.
+     */
+    private static class TimedBodyPublisher implements HttpRequest.BodyPublisher {
+        /** publisher of the body */
+        private final HttpRequest.BodyPublisher delegate;
+        /** metrics of the request */
+        private final LlmMetrics.Request metrics;
+
+        TimedBodyPublisher(HttpRequest.BodyPublisher delegate, LlmMetrics.Request metrics) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            delegate.subscribe(new Flow.Subscriber<ByteBuffer>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    metrics.connected(System.nanoTime());
+                    subscriber.onSubscribe(subscription);
+                }
+
+                @Override
+                public void onNext(ByteBuffer item) {
+                    subscriber.onNext(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    subscriber.onError(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    metrics.requestSent(System.nanoTime());
+                    subscriber.onComplete();
+                }
+            });
+        }
     }
 
 }
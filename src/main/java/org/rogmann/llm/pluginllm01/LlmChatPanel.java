@@ -0,0 +1,228 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.ui.components.JBLabel;
+import com.intellij.ui.components.JBTextArea;
+import com.intellij.ui.components.JBTextField;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Panel of the tool-window with chat-sessions ({@link LlmChatSession}, stored by {@link LlmChatStore}).
+ * <p>
+ * A question is sent with the previous turns of the session. The token-counts of the prompt of each turn
+ * (served from the KV-cache of the slot or evaluated) are shown below the answer.
+ * The requests of a session are sent to the same slot of the server.
+ */
+public class LlmChatPanel extends JPanel {
+    /** project */
+    private final Project project;
+    /** sessions of the project */
+    private final LlmChatStore store;
+
+    /** sessions */
+    private final JComboBox<LlmChatSession> sessionBox = new JComboBox<>();
+    /** system-prompt of a new session */
+    private final JBTextField systemPromptField = new JBTextField(40);
+    /** turns of the session */
+    private final JBTextArea transcriptArea = new JBTextArea();
+    /** question */
+    private final JBTextArea questionArea = new JBTextArea(3, 40);
+    /** button to send the question */
+    private final JButton btnSend = new JButton("Send");
+    /** status */
+    private final JBLabel statusLabel = new JBLabel(" ");
+
+    /** current session, <code>null</code> if the next question starts a new session */
+    private LlmChatSession currentSession;
+    /** <code>true</code> while a request is running (EDT) */
+    private boolean running;
+    /** <code>true</code> while the combo-box is filled */
+    private boolean updatingSessions;
+
+    public LlmChatPanel(Project project) {
+        super(new BorderLayout());
+        this.project = project;
+        this.store = LlmChatStore.getInstance(project);
+
+        final JPanel north = new JPanel(new GridLayout(2, 1));
+        final JPanel sessionPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        sessionPanel.add(new JBLabel("Session: "));
+        sessionBox.setRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                final Object title = (value instanceof LlmChatSession session) ? session.getTitle() : value;
+                return super.getListCellRendererComponent(list, title, index, isSelected, cellHasFocus);
+            }
+        });
+        sessionBox.addActionListener(e -> {
+            if (!updatingSessions && sessionBox.getSelectedItem() instanceof LlmChatSession session) {
+                showSession(session);
+            }
+        });
+        sessionPanel.add(sessionBox);
+        final JButton btnNew = new JButton("New chat");
+        btnNew.addActionListener(e -> showSession(null));
+        sessionPanel.add(btnNew);
+        final JButton btnDelete = new JButton("Delete");
+        btnDelete.addActionListener(e -> {
+            if (currentSession != null && !running) {
+                store.removeSession(currentSession);
+                updateSessions(null);
+                showSession(null);
+            }
+        });
+        sessionPanel.add(btnDelete);
+        north.add(sessionPanel);
+        final JPanel systemPromptPanel = new JPanel(new BorderLayout());
+        systemPromptPanel.add(new JBLabel("System-prompt: "), BorderLayout.WEST);
+        systemPromptPanel.add(systemPromptField, BorderLayout.CENTER);
+        north.add(systemPromptPanel);
+        add(north, BorderLayout.NORTH);
+
+        transcriptArea.setEditable(false);
+        transcriptArea.setLineWrap(true);
+        transcriptArea.setWrapStyleWord(true);
+        add(new JScrollPane(transcriptArea), BorderLayout.CENTER);
+
+        final JPanel south = new JPanel(new BorderLayout());
+        questionArea.setLineWrap(true);
+        questionArea.setWrapStyleWord(true);
+        south.add(new JScrollPane(questionArea), BorderLayout.CENTER);
+        btnSend.addActionListener(e -> send());
+        south.add(btnSend, BorderLayout.EAST);
+        south.add(statusLabel, BorderLayout.SOUTH);
+        add(south, BorderLayout.SOUTH);
+
+        final List<LlmChatSession> sessions = store.getSessions();
+        updateSessions(sessions.isEmpty() ? null : sessions.get(0));
+        showSession(sessions.isEmpty() ? null : sessions.get(0));
+    }
+
+    /**
+     * Fills the combo-box of the sessions.
+     * @param selected selected session or <code>null</code>
+     */
+    private void updateSessions(LlmChatSession selected) {
+        updatingSessions = true;
+        try {
+            sessionBox.setModel(new DefaultComboBoxModel<>(store.getSessions().toArray(new LlmChatSession[0])));
+            sessionBox.setSelectedItem(selected);
+        } finally {
+            updatingSessions = false;
+        }
+    }
+
+    /**
+     * Shows a session.
+     * @param session session or <code>null</code> to start a new session
+     */
+    private void showSession(LlmChatSession session) {
+        if (running) {
+            return;
+        }
+        currentSession = session;
+        if (session == null) {
+            updateSessions(null);
+            transcriptArea.setText("");
+            systemPromptField.setEditable(true);
+        } else {
+            systemPromptField.setText(session.getSystemPrompt());
+            // The system-prompt is the prefix of each request of the session.
+            systemPromptField.setEditable(false);
+            transcriptArea.setText(formatTranscript(session));
+            transcriptArea.setCaretPosition(transcriptArea.getDocument().getLength());
+        }
+    }
+
+    /**
+     * Formats the turns of a session.
+     * @param session session
+     * @return text
+     */
+    static String formatTranscript(LlmChatSession session) {
+        final StringBuilder sb = new StringBuilder();
+        final List<LlmChatSession.Turn> turns = session.getTurns();
+        for (int i = 0; i < turns.size(); i++) {
+            final LlmChatSession.Turn turn = turns.get(i);
+            if (i == LlmChatSession.KEEP_FIRST_TURNS && session.getNumOmitted() > 0) {
+                sb.append(String.format("(the following %d turns are omitted in the prompt)%n%n", session.getNumOmitted()));
+            }
+            sb.append("### You\n").append(turn.user().strip()).append("\n\n");
+            sb.append("### LLM\n").append(turn.assistant().strip()).append("\n\n");
+            if (turn.promptTokens() >= 0) {
+                sb.append(String.format("[prompt: %d tokens, %d cached, %d evaluated]%n%n",
+                        turn.promptTokens(), turn.cachedTokens(), turn.evaluatedTokens()));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sends the question with the history of the session.
+     */
+    private void send() {
+        final String question = questionArea.getText().strip();
+        if (question.isEmpty() || running) {
+            return;
+        }
+        if (currentSession == null) {
+            currentSession = store.createSession(systemPromptField.getText().strip());
+        }
+        final LlmChatSession session = currentSession;
+        final int maxPromptTokens = ApplicationManager.getApplication().getService(LlmSettings.class).getMaxPromptTokens();
+        final LlmTask llmTask = new LlmTask(LlmTaskType.PROMPT, session.getSystemPrompt(), question, null, null);
+
+        running = true;
+        btnSend.setEnabled(false);
+        questionArea.setText("");
+        final String transcriptStart = formatTranscript(session) + "### You\n" + question + "\n\n### LLM\n";
+        transcriptArea.setText(transcriptStart);
+        final AtomicReference<LlmBackgroundableHttp.PromptStats> promptStats = new AtomicReference<>();
+        final Consumer<String> tokenConsumer = token -> ApplicationManager.getApplication().invokeLater(() -> {
+            transcriptArea.append(token);
+            transcriptArea.setCaretPosition(transcriptArea.getDocument().getLength());
+        });
+        final Consumer<String> statusConsumer = status -> ApplicationManager.getApplication().invokeLater(() ->
+                statusLabel.setText(status));
+        final AtomicReference<String> result = new AtomicReference<>();
+        new LlmBackgroundableHttp(project, "LLM-Chat", llmTask, tokenConsumer, statusConsumer, result::set)
+                .setFinishedHandler(() -> {
+                    // The panel is unlocked after a response, a cancellation or an error.
+                    final String response = result.get();
+                    if (response != null) {
+                        final LlmBackgroundableHttp.PromptStats stats = promptStats.get();
+                        session.addTurn(new LlmChatSession.Turn(question, response,
+                                (stats != null) ? stats.promptTokens() : -1,
+                                (stats != null) ? stats.cachedTokens() : -1,
+                                (stats != null) ? stats.evaluatedTokens() : -1));
+                        store.save();
+                    } else {
+                        // The question can be edited and sent again.
+                        questionArea.setText(question);
+                    }
+                    finishRequest(session);
+                })
+                .setResetHandler(() -> ApplicationManager.getApplication().invokeLater(() ->
+                        transcriptArea.setText(transcriptStart)))
+                .setPriority(LlmRequestScheduler.Priority.CHAT)
+                .setAffinityKey(project.getLocationHash() + ":chat:" + session.getId())
+                // The tokens of the turns are counted in the background.
+                .setHistory(() -> session.buildHistory(question, maxPromptTokens,
+                        LlmTokenizerService.getInstance().getTokenCounter()))
+                .setPromptStatsConsumer(promptStats::set)
+                .queue();
+    }
+
+    private void finishRequest(LlmChatSession session) {
+        running = false;
+        btnSend.setEnabled(true);
+        updateSessions(session);
+        showSession(session);
+    }
+}
@@ -0,0 +1,153 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chat-session: the system-prompt and the turns (question and answer) of a conversation.
+ * <p>
+ * The history is appended only, so the messages of a request start with the messages of the previous request:
+ * the server evaluates the new turn only, the prefix is served from the KV-cache of the slot.
+ * If the history doesn't fit into the prompt, turns in the middle are omitted: the system-prompt and the first
+ * turn (which usually states the task) are kept, the oldest of the following turns are dropped. The number of
+ * omitted turns only grows and more turns than necessary are omitted at once, so the prefix stays stable
+ * for the following requests.
+ */
+final class LlmChatSession {
+    /** number of turns at the start which are never omitted */
+    static final int KEEP_FIRST_TURNS = 1;
+    /** estimated number of tokens of the chat-template of a message (role, separators) */
+    static final int TOKENS_PER_MESSAGE = 4;
+    /** size of the prompt after omitting turns in percent of the maximum size (room for the next turns) */
+    static final int TRUNCATION_TARGET_PERCENT = 75;
+
+    /**
+     * Message of a request.
+     * @param role role ("user" or "assistant")
+     * @param content content
+     */
+    record Message(String role, String content) { }
+
+    /**
+     * Turn of a conversation.
+     * @param user question of the user
+     * @param assistant answer of the LLM
+     * @param promptTokens number of tokens of the prompt, -1 if unknown
+     * @param cachedTokens number of prompt-tokens served from the KV-cache, -1 if unknown
+     * @param evaluatedTokens number of prompt-tokens evaluated by the server, -1 if unknown
+     */
+    record Turn(String user, String assistant, int promptTokens, int cachedTokens, int evaluatedTokens) { }
+
+    /** id of the session (time of creation) */
+    private final long id;
+    /** system-prompt */
+    private final String systemPrompt;
+    /** turns */
+    private final List<Turn> turns = new ArrayList<>();
+    /** number of turns after the first turns which are omitted in requests */
+    private int numOmitted;
+
+    /**
+     * Constructor
+     * @param id id of the session
+     * @param systemPrompt system-prompt, may be empty
+     */
+    LlmChatSession(long id, String systemPrompt) {
+        this.id = id;
+        this.systemPrompt = systemPrompt;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    String getSystemPrompt() {
+        return systemPrompt;
+    }
+
+    /**
+     * Gets the turns of the session.
+     * @return turns (unmodifiable)
+     */
+    synchronized List<Turn> getTurns() {
+        return Collections.unmodifiableList(new ArrayList<>(turns));
+    }
+
+    synchronized int getNumOmitted() {
+        return numOmitted;
+    }
+
+    /**
+     * Sets the number of omitted turns (when the session is loaded).
+     * @param numOmitted number of omitted turns
+     */
+    synchronized void setNumOmitted(int numOmitted) {
+        this.numOmitted = numOmitted;
+    }
+
+    /**
+     * Appends a turn.
+     * @param turn turn
+     */
+    synchronized void addTurn(Turn turn) {
+        turns.add(turn);
+    }
+
+    /**
+     * Gets the title of the session: the beginning of the first question.
+     * @return title
+     */
+    synchronized String getTitle() {
+        if (turns.isEmpty()) {
+            return "New chat";
+        }
+        final String question = turns.get(0).user().strip().replaceAll("\\s+", " ");
+        return (question.length() > 40) ? question.substring(0, 40) + "..." : question;
+    }
+
+    /**
+     * Builds the history of a new question: the messages of the turns which fit into the prompt.
+     * Turns in the middle are omitted if the prompt would exceed the maximum number of tokens.
+     * @param question new question
+     * @param maxTokens maximum number of tokens of the prompt, 0 if there is no limit
+     * @param tokenCounter counter of tokens
+     * @return messages between the system-prompt and the question
+     */
+    synchronized List<Message> buildHistory(String question, int maxTokens, FimContextExtractor.TokenCounter tokenCounter) {
+        if (maxTokens > 0) {
+            final int[] turnTokens = new int[turns.size()];
+            int numTokens = countTokens(systemPrompt, tokenCounter) + countTokens(question, tokenCounter);
+            for (int i = 0; i < turns.size(); i++) {
+                final Turn turn = turns.get(i);
+                turnTokens[i] = countTokens(turn.user(), tokenCounter) + countTokens(turn.assistant(), tokenCounter);
+                if (!isOmitted(i)) {
+                    numTokens += turnTokens[i];
+                }
+            }
+            if (numTokens > maxTokens) {
+                final int target = (int) ((long) maxTokens * TRUNCATION_TARGET_PERCENT / 100);
+                while (numTokens > target && KEEP_FIRST_TURNS + numOmitted < turns.size()) {
+                    numTokens -= turnTokens[KEEP_FIRST_TURNS + numOmitted];
+                    numOmitted++;
+                }
+            }
+        }
+        final List<Message> messages = new ArrayList<>(2 * turns.size());
+        for (int i = 0; i < turns.size(); i++) {
+            if (!isOmitted(i)) {
+                messages.add(new Message("user", turns.get(i).user()));
+                messages.add(new Message("assistant", turns.get(i).assistant()));
+            }
+        }
+        return messages;
+    }
+
+    private boolean isOmitted(int idxTurn) {
+        return idxTurn >= KEEP_FIRST_TURNS && idxTurn < KEEP_FIRST_TURNS + numOmitted;
+    }
+
+    private static int countTokens(String text, FimContextExtractor.TokenCounter tokenCounter) {
+        return tokenCounter.countTokens(text, 0, text.length()) + TOKENS_PER_MESSAGE;
+    }
+}
@@ -0,0 +1,210 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Chat-sessions of a project, see {@link LlmChatSession}.
+ * <p>
+ * The sessions are stored in a compressed binary file in the system-directory of the IDE (per project):
+ * the texts of the turns and their token-counts only. The file is written in the background after a change,
+ * at most {@link #MAX_SESSIONS} sessions are kept.
+ * <p>
+ * Access instance via: {@code LlmChatStore.getInstance(project)}.
+ */
+@Service(Service.Level.PROJECT)
+public final class LlmChatStore {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(LlmChatStore.class);
+
+    /** magic number of the file ("LCH1") */
+    private static final int MAGIC = 0x4c434831;
+    /** maximum number of sessions */
+    static final int MAX_SESSIONS = 50;
+
+    /** file of the sessions */
+    private final Path file;
+    /** sessions, the newest first, <code>null</code> if not loaded yet */
+    private List<LlmChatSession> sessions;
+    /** <code>true</code> if writing the file has been scheduled */
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    public LlmChatStore(Project project) {
+        this.file = Path.of(PathManager.getSystemPath(), "pluginllm01", "chat", project.getLocationHash() + ".bin");
+    }
+
+    /**
+     * Gets the chat-sessions of a project.
+     * @param project project
+     * @return store
+     */
+    static LlmChatStore getInstance(Project project) {
+        return project.getService(LlmChatStore.class);
+    }
+
+    /**
+     * Gets the sessions.
+     * @return sessions, the newest first
+     */
+    synchronized List<LlmChatSession> getSessions() {
+        return new ArrayList<>(getLoadedSessions());
+    }
+
+    private List<LlmChatSession> getLoadedSessions() {
+        if (sessions == null) {
+            sessions = new ArrayList<>();
+            try (InputStream is = Files.newInputStream(file)) {
+                sessions.addAll(read(is));
+            } catch (NoSuchFileException e) {
+                // no sessions yet
+            } catch (IOException e) {
+                LOGGER.info(String.format("Chat-sessions (%s) can't be read: %s", file, e.getMessage()));
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Creates a new session.
+     * @param systemPrompt system-prompt of the session
+     * @return session
+     */
+    synchronized LlmChatSession createSession(String systemPrompt) {
+        final List<LlmChatSession> list = getLoadedSessions();
+        final LlmChatSession session = new LlmChatSession(System.currentTimeMillis(), systemPrompt);
+        list.add(0, session);
+        while (list.size() > MAX_SESSIONS) {
+            list.remove(list.size() - 1);
+        }
+        return session;
+    }
+
+    /**
+     * Removes a session.
+     * @param session session
+     */
+    synchronized void removeSession(LlmChatSession session) {
+        getLoadedSessions().remove(session);
+        save();
+    }
+
+    /**
+     * Writes the sessions in the background, e.g. after a turn has been added.
+     */
+    void save() {
+        if (!saveScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        AppExecutorUtil.getAppExecutorService().execute(() -> {
+            saveScheduled.set(false);
+            final List<LlmChatSession> snapshot = getSessions();
+            try {
+                Files.createDirectories(file.getParent());
+                final Path fileTemp = file.resolveSibling(file.getFileName() + ".tmp");
+                try (OutputStream os = Files.newOutputStream(fileTemp)) {
+                    write(snapshot, os);
+                }
+                Files.move(fileTemp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOGGER.info(String.format("Chat-sessions (%s) can't be written: %s", file, e.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Writes sessions, sessions without turns are skipped.
+     * @param sessions sessions
+     * @param os output-stream
+     * @throws IOException in case of an IO-error
+     */
+    static void write(List<LlmChatSession> sessions, OutputStream os) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(os)));
+        dos.writeInt(MAGIC);
+        final List<LlmChatSession> nonEmpty = new ArrayList<>(sessions.size());
+        for (LlmChatSession session : sessions) {
+            if (!session.getTurns().isEmpty()) {
+                nonEmpty.add(session);
+            }
+        }
+        dos.writeInt(nonEmpty.size());
+        for (LlmChatSession session : nonEmpty) {
+            final List<LlmChatSession.Turn> turns = session.getTurns();
+            dos.writeLong(session.getId());
+            writeString(dos, session.getSystemPrompt());
+            dos.writeInt(session.getNumOmitted());
+            dos.writeInt(turns.size());
+            for (LlmChatSession.Turn turn : turns) {
+                writeString(dos, turn.user());
+                writeString(dos, turn.assistant());
+                dos.writeInt(turn.promptTokens());
+                dos.writeInt(turn.cachedTokens());
+                dos.writeInt(turn.evaluatedTokens());
+            }
+        }
+        dos.flush();
+        dos.close();
+    }
+
+    /**
+     * Reads sessions.
+     * @param is input-stream
+     * @return sessions
+     * @throws IOException in case of an IO-error or an invalid file
+     */
+    static List<LlmChatSession> read(InputStream is) throws IOException {
+        final DataInputStream dis = new DataInputStream(new BufferedInputStream(new GZIPInputStream(is)));
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("Unexpected file-format");
+        }
+        final int numSessions = dis.readInt();
+        final List<LlmChatSession> sessions = new ArrayList<>();
+        for (int i = 0; i < numSessions; i++) {
+            final LlmChatSession session = new LlmChatSession(dis.readLong(), readString(dis));
+            session.setNumOmitted(dis.readInt());
+            final int numTurns = dis.readInt();
+            for (int j = 0; j < numTurns; j++) {
+                session.addTurn(new LlmChatSession.Turn(readString(dis), readString(dis),
+                        dis.readInt(), dis.readInt(), dis.readInt()));
+            }
+            sessions.add(session);
+        }
+        return sessions;
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        final byte[] buf = s.getBytes(StandardCharsets.UTF_8);
+        dos.writeInt(buf.length);
+        dos.write(buf);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        final int len = dis.readInt();
+        if (len < 0) {
+            throw new IOException("Invalid length of a string: " + len);
+        }
+        final byte[] buf = new byte[len];
+        dis.readFully(buf);
+        return new String(buf, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,454 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.GeneratedSourcesFilter;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileFilter;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Lexical index ({@link Bm25Index}) of the sources of a project, used to fill the placeholder
+ * <code>[Context]</code> of a prompt with the chunks of the project matching the selected code.
+ * <p>
+ * The index is built in the background on first use (files ignored by the IDE or by the ignore-rules
+ * of the markdown-export, excluded, generated and binary files are skipped). Afterwards it is updated
+ * incrementally by the events of the virtual file system: a changed file is re-indexed when it has been saved.
+ * Further indexes of the chunks (e.g. {@link LlmEmbeddingIndex}) are notified as a {@link Listener}.
+ * <p>
+ * Access instance via: {@code LlmCodeIndex.getInstance(project)}.
+ */
+@Service(Service.Level.PROJECT)
+public final class LlmCodeIndex implements Disposable {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(LlmCodeIndex.class);
+
+    /** maximum number of chunks in the context */
+    static final int MAX_SNIPPETS = 10;
+    /** offset of the rank in the reciprocal rank fusion */
+    private static final int RRF_RANK_OFFSET = 60;
+
+    /**
+     * Listener of the chunks of the indexed files.
+     */
+    interface Listener {
+        /**
+         * A file has been indexed.
+         * @param path path of the file
+         * @param chunks chunks of the file
+         */
+        void fileIndexed(String path, List<Bm25Index.Chunk> chunks);
+
+        /**
+         * Files have been removed from the index.
+         * @param paths predicate of the paths of the removed files
+         */
+        void filesRemoved(Predicate<String> paths);
+
+        /**
+         * The initial build of the index has been finished.
+         */
+        void buildFinished();
+    }
+
+    /** project */
+    private final Project project;
+    /** index */
+    private final Bm25Index index = new Bm25Index();
+    /** <code>true</code> if the build has been started */
+    private final AtomicBoolean started = new AtomicBoolean();
+    /** <code>true</code> if the initial build has been finished */
+    private volatile boolean ready;
+    /** files and directories to be (re-)indexed */
+    private final Set<VirtualFile> pendingFiles = ConcurrentHashMap.newKeySet();
+    /** paths of removed files and directories */
+    private final Set<String> pendingRemovals = ConcurrentHashMap.newKeySet();
+    /** <code>true</code> if an update of the pending files has been scheduled */
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+    /** listeners of the chunks */
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public LlmCodeIndex(Project project) {
+        this.project = project;
+        project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                onFileEvents(events);
+            }
+        });
+    }
+
+    /**
+     * Gets the index of a project.
+     * @param project project
+     * @return index
+     */
+    static LlmCodeIndex getInstance(Project project) {
+        return project.getService(LlmCodeIndex.class);
+    }
+
+    /**
+     * Checks if the initial build of the index has been finished.
+     * @return <code>true</code> if the index can be searched
+     */
+    boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Adds a listener of the chunks, it is called with the files indexed so far.
+     * @param listener listener
+     */
+    void addListener(Listener listener) {
+        listeners.add(listener);
+        index.forEachFile(listener::fileIndexed);
+        if (ready) {
+            listener.buildFinished();
+        }
+    }
+
+    /**
+     * Starts the build of the index in the background, if it hasn't been started yet.
+     */
+    void ensureBuilt() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        new Task.Backgroundable(project, "Indexing project for [Context]", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setText("Collecting files");
+                final Predicate<String> ignoredNames = getIgnoredNames();
+                final List<VirtualFile> files = ReadAction.compute(() -> {
+                    final List<VirtualFile> list = new ArrayList<>();
+                    ProjectFileIndex.getInstance(project).iterateContent(file -> {
+                        indicator.checkCanceled();
+                        if (isSourceFile(file)) {
+                            list.add(file);
+                        }
+                        return true;
+                    }, createFilter(ignoredNames));
+                    return list;
+                });
+                indicator.setIndeterminate(false);
+                for (int i = 0; i < files.size(); i++) {
+                    indicator.checkCanceled();
+                    indicator.setFraction((double) i / files.size());
+                    indexFile(files.get(i));
+                }
+                LOGGER.info(String.format("Project %s: indexed %d chunks of %d files",
+                        project.getName(), index.getNumDocuments(), index.getNumFiles()));
+            }
+
+            @Override
+            public void onSuccess() {
+                ready = true;
+                for (Listener listener : listeners) {
+                    listener.buildFinished();
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                // A later use starts a new build.
+                index.clear();
+                notifyRemoved(path -> true);
+                started.set(false);
+            }
+        }.queue();
+    }
+
+    /**
+     * Searches the chunks of the project matching a query and formats them as markdown.
+     * @param query query, e.g. the selected code
+     * @param filter filter of the chunks, e.g. to exclude the selection itself
+     * @param semanticHits hits of a semantic search (see {@link LlmEmbeddingIndex}) to be merged, may be empty
+     * @param budgetTokens maximum number of tokens of the context
+     * @param tokenCounter counter of tokens
+     * @return context, empty if there are no matching chunks
+     */
+    String buildContext(CharSequence query, Predicate<Bm25Index.Chunk> filter, List<Bm25Index.Hit> semanticHits,
+                        int budgetTokens, FimContextExtractor.TokenCounter tokenCounter) {
+        final long tsStart = System.nanoTime();
+        final List<Bm25Index.Hit> lexicalHits = index.search(query, MAX_SNIPPETS, filter);
+        final List<Bm25Index.Hit> hits = semanticHits.isEmpty() ? lexicalHits : fuse(lexicalHits, semanticHits, MAX_SNIPPETS);
+        final String context = formatSnippets(hits, path -> getRelativePath(project, path), budgetTokens, tokenCounter);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("Context: %d lexical and %d semantic hits in %d µs",
+                    lexicalHits.size(), semanticHits.size(), (System.nanoTime() - tsStart) / 1000));
+        }
+        return context;
+    }
+
+    /**
+     * Merges the hits of two searches by reciprocal rank fusion: the score of a chunk is the sum of
+     * <code>1 / (60 + rank)</code> of both lists, so the scores of BM25 and cosine-similarity needn't be comparable.
+     * @param hitsA hits of the first search, best first
+     * @param hitsB hits of the second search, best first
+     * @param k maximum number of hits
+     * @return merged hits, best first
+     */
+    static List<Bm25Index.Hit> fuse(List<Bm25Index.Hit> hitsA, List<Bm25Index.Hit> hitsB, int k) {
+        final Map<Bm25Index.Chunk, Float> scores = new LinkedHashMap<>();
+        for (List<Bm25Index.Hit> hits : List.of(hitsA, hitsB)) {
+            for (int i = 0; i < hits.size(); i++) {
+                scores.merge(hits.get(i).chunk(), 1.0f / (RRF_RANK_OFFSET + i + 1), Float::sum);
+            }
+        }
+        final List<Bm25Index.Hit> fused = new ArrayList<>(scores.size());
+        scores.forEach((chunk, score) -> fused.add(new Bm25Index.Hit(chunk, score)));
+        fused.sort((a, b) -> Float.compare(b.score(), a.score()));
+        return (fused.size() > k) ? fused.subList(0, k) : fused;
+    }
+
+    /**
+     * Formats chunks as markdown: a heading (path and lines) and a code-block per chunk.
+     * The chunks are added in order as long as they fit into the budget.
+     * @param hits chunks, best first
+     * @param nameFunction function giving the name of a file in the heading
+     * @param budgetTokens maximum number of tokens
+     * @param tokenCounter counter of tokens
+     * @return markdown
+     */
+    static String formatSnippets(List<Bm25Index.Hit> hits, Function<String, String> nameFunction, int budgetTokens,
+                                 FimContextExtractor.TokenCounter tokenCounter) {
+        final StringBuilder sb = new StringBuilder();
+        int numTokens = 0;
+        for (Bm25Index.Hit hit : hits) {
+            final Bm25Index.Chunk chunk = hit.chunk();
+            final String path = chunk.path();
+            final int idxDot = path.lastIndexOf('.');
+            final String extension = (idxDot > path.lastIndexOf('/')) ? path.substring(idxDot + 1) : "";
+            final String text = chunk.text();
+            final String snippet = String.format("## %s (lines %d-%d)\n\n```%s\n%s%s```\n",
+                    nameFunction.apply(path), chunk.startLine() + 1, chunk.endLine(), extension,
+                    text, text.endsWith("\n") ? "" : "\n");
+            final int snippetTokens = tokenCounter.countTokens(snippet, 0, snippet.length());
+            if (numTokens + snippetTokens > budgetTokens) {
+                // A shorter chunk may still fit.
+                continue;
+            }
+            if (!sb.isEmpty()) {
+                sb.append('\n');
+            }
+            sb.append(snippet);
+            numTokens += snippetTokens;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the path of a file relative to the base-directory of the project (heading of a snippet).
+     * @param project project
+     * @param path absolute path
+     * @return relative path, the absolute path if the file is outside the base-directory
+     */
+    static String getRelativePath(Project project, String path) {
+        final String basePath = project.getBasePath();
+        if (basePath != null && path.startsWith(basePath + '/')) {
+            return path.substring(basePath.length() + 1);
+        }
+        return path;
+    }
+
+    private static Predicate<String> getIgnoredNames() {
+        final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        return MarkdownExporter.parseIgnorePatterns(llmSettings.getExportIgnorePatterns());
+    }
+
+    private static VirtualFileFilter createFilter(Predicate<String> ignoredNames) {
+        final FileTypeManager fileTypeManager = FileTypeManager.getInstance();
+        return file -> !fileTypeManager.isFileIgnored(file) && !ignoredNames.test(file.getName());
+    }
+
+    private boolean isSourceFile(VirtualFile file) {
+        return !file.isDirectory() && !file.getFileType().isBinary()
+                && !GeneratedSourcesFilter.isGeneratedSourceByAnyFilter(file, project);
+    }
+
+    /**
+     * Reads a file and adds its chunks to the index, a binary, generated or very large file is removed.
+     * @param file file
+     */
+    private void indexFile(VirtualFile file) {
+        final String path = file.getPath();
+        if (!file.isValid() || file.getLength() > MarkdownExporter.MAX_FILE_BYTES) {
+            removeFile(path);
+            return;
+        }
+        final byte[] content;
+        try {
+            content = file.contentsToByteArray();
+        } catch (IOException e) {
+            LOGGER.info(String.format("Can't read file (%s) to be indexed: %s", path, e.getMessage()));
+            removeFile(path);
+            return;
+        }
+        final String text = MarkdownExporter.isBinary(content) ? null : new String(content, file.getCharset());
+        if (text == null || MarkdownExporter.isGenerated(text)) {
+            removeFile(path);
+            return;
+        }
+        final List<Bm25Index.Chunk> chunks = index.updateFile(path, text);
+        for (Listener listener : listeners) {
+            listener.fileIndexed(path, chunks);
+        }
+    }
+
+    private void removeFile(String path) {
+        index.removeFile(path);
+        notifyRemoved(path::equals);
+    }
+
+    private void notifyRemoved(Predicate<String> paths) {
+        for (Listener listener : listeners) {
+            listener.filesRemoved(paths);
+        }
+    }
+
+    /**
+     * Collects the changes of the file system, the index is updated in the background.
+     * @param events events of the virtual file system
+     */
+    private void onFileEvents(List<? extends VFileEvent> events) {
+        if (!started.get()) {
+            return;
+        }
+        for (VFileEvent event : events) {
+            if (event instanceof VFileDeleteEvent) {
+                pendingRemovals.add(event.getPath());
+            } else if (event instanceof VFileMoveEvent moveEvent) {
+                pendingRemovals.add(moveEvent.getOldPath());
+                addPendingFile(event.getFile());
+            } else if (event instanceof VFilePropertyChangeEvent propertyEvent) {
+                if (propertyEvent.isRename()) {
+                    pendingRemovals.add(propertyEvent.getOldPath());
+                    addPendingFile(event.getFile());
+                }
+            } else if (event instanceof VFileContentChangeEvent || event instanceof VFileCreateEvent) {
+                addPendingFile(event.getFile());
+            }
+        }
+        if ((!pendingFiles.isEmpty() || !pendingRemovals.isEmpty()) && updateScheduled.compareAndSet(false, true)) {
+            AppExecutorUtil.getAppExecutorService().execute(this::processPending);
+        }
+    }
+
+    private void addPendingFile(VirtualFile file) {
+        if (file != null) {
+            pendingFiles.add(file);
+        }
+    }
+
+    /**
+     * Applies the collected changes to the index.
+     * Only one processor runs at a time: the flag is cleared after the queues have been drained
+     * and the processor continues if there are new changes which haven't been scheduled by another one.
+     */
+    private void processPending() {
+        do {
+            try {
+                if (project.isDisposed()) {
+                    return;
+                }
+                applyPending();
+            } finally {
+                updateScheduled.set(false);
+            }
+        } while ((!pendingFiles.isEmpty() || !pendingRemovals.isEmpty()) && updateScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Removes and indexes the pending files.
+     */
+    private void applyPending() {
+        for (Iterator<String> it = pendingRemovals.iterator(); it.hasNext(); ) {
+            final String path = it.next();
+            it.remove();
+            final Predicate<String> paths = p -> p.equals(path) || p.startsWith(path + '/');
+            index.removeFiles(paths);
+            notifyRemoved(paths);
+        }
+        final Predicate<String> ignoredNames = getIgnoredNames();
+        final VirtualFileFilter filter = createFilter(ignoredNames);
+        for (Iterator<VirtualFile> it = pendingFiles.iterator(); it.hasNext(); ) {
+            final VirtualFile fileOrDir = it.next();
+            it.remove();
+            final List<VirtualFile> files = ReadAction.compute(() -> {
+                final List<VirtualFile> list = new ArrayList<>();
+                if (!fileOrDir.isValid() || project.isDisposed()) {
+                    return list;
+                }
+                final ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+                if (fileOrDir.isDirectory()) {
+                    fileIndex.iterateContentUnderDirectory(fileOrDir, file -> {
+                        if (isSourceFile(file)) {
+                            list.add(file);
+                        }
+                        return true;
+                    }, filter);
+                } else if (fileIndex.isInContent(fileOrDir) && isSourceFile(fileOrDir)
+                        && isAccepted(fileOrDir, fileIndex, filter)) {
+                    list.add(fileOrDir);
+                }
+                return list;
+            });
+            if (files.isEmpty() && !fileOrDir.isDirectory()) {
+                // e.g. a file which is ignored now.
+                removeFile(fileOrDir.getPath());
+            }
+            for (VirtualFile file : files) {
+                indexFile(file);
+            }
+        }
+    }
+
+    /**
+     * Checks the file and its directories in the content of the project against the filter.
+     */
+    private static boolean isAccepted(VirtualFile file, ProjectFileIndex fileIndex, VirtualFileFilter filter) {
+        for (VirtualFile f = file; f != null && fileIndex.isInContent(f); f = f.getParent()) {
+            if (!filter.accept(f)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void dispose() {
+        pendingFiles.clear();
+        pendingRemovals.clear();
+        index.clear();
+    }
+}
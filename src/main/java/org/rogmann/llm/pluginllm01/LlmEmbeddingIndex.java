@@ -0,0 +1,257 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Semantic search in the chunks of a project: the chunks of the {@link LlmCodeIndex} are embedded by the
+ * endpoint <code>/embedding</code> of the server, the vectors are kept in an {@link EmbeddingVectorStore}
+ * in the system-directory of the IDE.
+ * <p>
+ * New chunks are embedded in batches in the background. The requests have the priority
+ * {@link LlmRequestScheduler.Priority#BATCH}, so a request of the user preempts them.
+ * The hits of a query are merged into the placeholder <code>[Context]</code> of the prompt.
+ * <p>
+ * Access instance via: {@code LlmEmbeddingIndex.getInstance(project)}.
+ */
+@Service(Service.Level.PROJECT)
+public final class LlmEmbeddingIndex implements LlmCodeIndex.Listener, Disposable {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(LlmEmbeddingIndex.class);
+
+    /** number of chunks embedded by one request */
+    static final int BATCH_SIZE = 16;
+    /** timeout of a batch-request */
+    private static final Duration BATCH_TIMEOUT = Duration.ofMinutes(2);
+    /** timeout of the embedding of a query, the user is waiting for the prompt */
+    private static final Duration QUERY_TIMEOUT = Duration.ofMillis(800);
+
+    /** project */
+    private final Project project;
+    /** <code>true</code> if the index has been started */
+    private final AtomicBoolean started = new AtomicBoolean();
+    /** <code>true</code> if the embedding of the pending chunks is running */
+    private final AtomicBoolean embedding = new AtomicBoolean();
+    /** index, <code>null</code> if the store couldn't be opened */
+    private volatile EmbeddingIndex index;
+
+    public LlmEmbeddingIndex(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Gets the semantic index of a project.
+     * @param project project
+     * @return index
+     */
+    static LlmEmbeddingIndex getInstance(Project project) {
+        return project.getService(LlmEmbeddingIndex.class);
+    }
+
+    /**
+     * Opens the store and starts the embedding of the chunks of the project, if this hasn't been done yet.
+     */
+    void ensureStarted() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        final Path file = Path.of(PathManager.getSystemPath(), "pluginllm01", "embeddings",
+                project.getLocationHash(), "vectors.bin");
+        try {
+            index = new EmbeddingIndex(new EmbeddingVectorStore(file, getModelKey(getBaseUrl())));
+        } catch (IOException e) {
+            LOGGER.warn("Can't open the embedding-store " + file, e);
+            return;
+        }
+        LOGGER.info(String.format("Embedding-store of project %s: %d vectors", project.getName(), index.getNumVectors()));
+        final LlmCodeIndex codeIndex = LlmCodeIndex.getInstance(project);
+        codeIndex.addListener(this);
+        codeIndex.ensureBuilt();
+    }
+
+    /**
+     * Gets the base-URL of the embedding-server: the URL in the settings or the primary endpoint.
+     * @return base-URL ending with '/'
+     */
+    private static String getBaseUrl() {
+        final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        String url = llmSettings.getEmbeddingUrl().trim();
+        if (url.isEmpty()) {
+            url = LlmEndpointPool.getInstance().getPrimaryUrl();
+        }
+        return url.endsWith("/") ? url : url + '/';
+    }
+
+    /**
+     * Gets the key of the model: vectors of another server aren't comparable.
+     * @param baseUrl base-URL of the embedding-server
+     * @return key
+     */
+    private static long getModelKey(String baseUrl) {
+        return EmbeddingIndex.hash(baseUrl);
+    }
+
+    @Override
+    public void fileIndexed(String path, List<Bm25Index.Chunk> chunks) {
+        index.updateFile(path, chunks);
+        scheduleEmbedding();
+    }
+
+    @Override
+    public void filesRemoved(Predicate<String> paths) {
+        index.removeFiles(paths);
+    }
+
+    @Override
+    public void buildFinished() {
+        final int numRemoved = index.removeUnused();
+        LOGGER.info(String.format("Embedding-store of project %s: %d unused vectors removed, %d chunks to be embedded",
+                project.getName(), numRemoved, index.getNumPending()));
+        scheduleEmbedding();
+    }
+
+    /**
+     * Starts the embedding of the pending chunks in the background, if it isn't running already.
+     */
+    private void scheduleEmbedding() {
+        if (index.getNumPending() == 0 || project.isDisposed() || !embedding.compareAndSet(false, true)) {
+            return;
+        }
+        new Task.Backgroundable(project, "Embedding chunks of the project", true) {
+            /** <code>true</code> if the server failed */
+            private boolean failed;
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                failed = !embedPending(indicator);
+            }
+
+            @Override
+            public void onFinished() {
+                embedding.set(false);
+                index.flush();
+            }
+
+            @Override
+            public void onSuccess() {
+                if (!failed) {
+                    // Chunks which have been added after the last batch.
+                    scheduleEmbedding();
+                }
+            }
+        }.queue();
+    }
+
+    /**
+     * Embeds the pending chunks in batches. A batch preempted by a request of the user is sent again.
+     * @param indicator progress-indicator of the task
+     * @return <code>false</code> if the server failed, the chunks are embedded after the next change
+     */
+    private boolean embedPending(ProgressIndicator indicator) {
+        final String baseUrl = getBaseUrl();
+        final long modelKey = getModelKey(baseUrl);
+        try {
+            if (index.getModelKey() != modelKey) {
+                LOGGER.info("Embedding-server changed, the chunks are embedded again: " + baseUrl);
+                index.resetModel(modelKey);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Can't reset the embedding-store", e);
+            return false;
+        }
+        final LlmHttpClientService httpClientService = ApplicationManager.getApplication().getService(LlmHttpClientService.class);
+        final EmbeddingClient client = new EmbeddingClient(httpClientService.getHttpClient(), baseUrl, BATCH_TIMEOUT);
+        final LlmRequestScheduler scheduler = LlmRequestScheduler.getInstance();
+        while (true) {
+            indicator.checkCanceled();
+            final int numPending = index.getNumPending();
+            if (numPending == 0) {
+                return true;
+            }
+            indicator.setText(String.format("%d chunks to be embedded", numPending));
+            // The scheduler cancels the indicator of the request in favour of a request of the user.
+            final ProgressIndicator requestIndicator = new EmptyProgressIndicator() {
+                @Override
+                public boolean isCanceled() {
+                    return super.isCanceled() || indicator.isCanceled();
+                }
+            };
+            try {
+                index.embedPending(texts -> {
+                    final LlmResponseCache.Key key = LlmResponseCache.createKey(baseUrl + EmbeddingClient.PATH_EMBEDDING,
+                            new LlmTask(LlmTaskType.PROMPT, null, String.join("\0", texts), null, null));
+                    final String response = scheduler.execute(LlmMetrics.Transport.HTTP, key,
+                            LlmRequestScheduler.Priority.BATCH, requestIndicator, token -> { }, () -> { }, status -> { },
+                            tokenPublisher -> client.request(texts, requestIndicator));
+                    return EmbeddingClient.parseResponse(response, texts.size());
+                }, BATCH_SIZE);
+            } catch (ProcessCanceledException e) {
+                if (indicator.isCanceled()) {
+                    throw e;
+                }
+                LOGGER.info("Embedding-request preempted, sent again");
+            } catch (IOException e) {
+                LOGGER.info(String.format("Embedding of %d chunks at %s failed: %s", numPending, baseUrl, e.getMessage()));
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Searches the chunks most similar to a query. The query is embedded while the user is waiting,
+     * an empty list is returned if the server doesn't answer in time. This method must not be called in the EDT.
+     * @param query query, e.g. the selected code
+     * @param k maximum number of hits
+     * @param filter filter of the chunks or <code>null</code>
+     * @return hits, best first
+     */
+    List<Bm25Index.Hit> search(String query, int k, Predicate<Bm25Index.Chunk> filter) {
+        final EmbeddingIndex currentIndex = index;
+        if (currentIndex == null || currentIndex.getNumVectors() == 0 || query.isBlank()) {
+            return List.of();
+        }
+        final long tsStart = System.nanoTime();
+        final LlmHttpClientService httpClientService = ApplicationManager.getApplication().getService(LlmHttpClientService.class);
+        final EmbeddingClient client = new EmbeddingClient(httpClientService.getHttpClient(), getBaseUrl(), QUERY_TIMEOUT);
+        final float[] queryVector;
+        try {
+            queryVector = client.embed(List.of(query), new EmptyProgressIndicator()).get(0);
+        } catch (IOException e) {
+            LOGGER.info("Embedding of the query failed: " + e.getMessage());
+            return List.of();
+        }
+        final List<Bm25Index.Hit> hits = currentIndex.search(queryVector, k, filter);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("Semantic search: %d hits in %d ms", hits.size(), (System.nanoTime() - tsStart) / 1_000_000));
+        }
+        return hits;
+    }
+
+    @Override
+    public void dispose() {
+        final EmbeddingIndex currentIndex = index;
+        if (currentIndex != null) {
+            try {
+                currentIndex.close();
+            } catch (IOException e) {
+                LOGGER.info("Can't close the embedding-store: " + e.getMessage());
+            }
+        }
+    }
+}
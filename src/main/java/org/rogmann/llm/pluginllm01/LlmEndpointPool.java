@@ -0,0 +1,754 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Pool of the endpoints (llama.cpp-servers) of the HTTP-transport.
+ * <p>
+ * The endpoints are configured as a weighted list: the server-URL and further endpoints of the settings,
+ * one endpoint "URL [weight]" per line. A request is routed to the endpoint with the least outstanding requests
+ * relative to its weight. The outstanding requests of other clients are taken into account by the number of
+ * idle slots which the endpoints report at <code>/slots</code> (or <code>/health</code> of older servers),
+ * the endpoints are probed periodically if there is more than one endpoint.
+ * <p>
+ * An endpoint which fails repeatedly is ejected by a circuit breaker: it doesn't get requests until the
+ * break-time has elapsed, then a single trial request (or a successful probe) closes the breaker again.
+ * A request which fails before the first token (e.g. connection refused, server busy) is sent to the next endpoint.
+ * If all endpoints are ejected, the endpoint whose break ends first is used, so a single endpoint is never blocked.
+ * <p>
+ * Consecutive requests of the same affinity-key stay at their endpoint as long as it isn't clearly busier
+ * than the best endpoint, so the server can reuse the KV-cache of the slot (see {@link LlmSlotAffinity}).
+ * Each endpoint assigns its own slots to the affinity-keys, limited to the slots which the server reports
+ * (<code>/slots</code> or <code>total_slots</code> of <code>/props</code>).
+ * An endpoint whose slots are all used by this client only gets a request if all endpoints are full,
+ * the number of requests in progress is limited to the capacity of the pool by {@link LlmRequestScheduler}.
+ * <p>
+ * The model of an endpoint (<code>model_path</code> of <code>/props</code>) identifies the responses
+ * in the {@link LlmResponseCache}, it is read again after {@link #PROPS_INTERVAL_MS}.
+ * <p>
+ * Access instance via: {@code ApplicationManager.getApplication().getService(LlmEndpointPool.class)}.
+ */
+@Service
+public final class LlmEndpointPool implements Disposable {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(LlmEndpointPool.class);
+
+    /** interval of the health-probes in milliseconds */
+    private static final long PROBE_INTERVAL_MS = 5000;
+    /** timeout of a health-probe */
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(2);
+    /** number of consecutive failures which open the circuit breaker */
+    static final int FAILURE_THRESHOLD = 3;
+    /** initial break-time of an ejected endpoint in milliseconds */
+    static final long BREAK_MILLIS = 10_000;
+    /** maximum break-time of an ejected endpoint in milliseconds */
+    static final long MAX_BREAK_MILLIS = 120_000;
+    /** number of slots of an endpoint if neither the server nor the settings tell it */
+    static final int DEFAULT_SLOTS = 4;
+    /** maximum number of remembered affinity-keys */
+    private static final int MAX_AFFINITY_KEYS = 256;
+    /** interval in milliseconds after which the properties of an endpoint (e.g. the model) are read again */
+    static final long PROPS_INTERVAL_MS = 5000;
+    /** fields read from <code>/props</code> */
+    private static final LightweightJsonPath QUERY_PROPS = LightweightJsonPath.compile("$.model_path", "$.total_slots");
+
+    /**
+     * An endpoint of the pool.
+     */
+    static final class Endpoint {
+        /** base-URL, ending with '/' */
+        private final String url;
+        /** weight (capacity relative to the other endpoints) */
+        private final int weight;
+        /** number of requests of this client in progress */
+        private final AtomicInteger outstanding = new AtomicInteger();
+        /** number of slots of the server, -1 if unknown */
+        private volatile int totalSlots = -1;
+        /** number of idle slots of the server, -1 if unknown */
+        private volatile int idleSlots = -1;
+        /** <code>false</code> if the last health-probe failed */
+        private volatile boolean healthy = true;
+        /** <code>false</code> if the server doesn't provide <code>/slots</code> */
+        private volatile boolean slotsSupported = true;
+        /** model of the server (<code>/props</code>), empty if unknown */
+        private volatile String model = "";
+        /** time the properties have been read (milliseconds), 0 if not yet */
+        private volatile long tsProps;
+
+        /** number of consecutive failures */
+        private int consecutiveFailures;
+        /** end of the break of an open circuit breaker (milliseconds), 0 if closed */
+        private long openUntil;
+        /** current break-time in milliseconds */
+        private long breakMillis = BREAK_MILLIS;
+        /** <code>true</code> while a trial request of a half-open circuit breaker is in progress */
+        private boolean trialInProgress;
+
+        /** slot of the server by affinity-key (access-order) */
+        private final LinkedHashMap<String, Integer> slotByKey = new LinkedHashMap<>(16, 0.75f, true);
+        /** number of slots of the current assignment */
+        private int numAssignedSlots;
+
+        Endpoint(String url, int weight) {
+            this.url = url;
+            this.weight = weight;
+        }
+
+        /**
+         * Gets the base-URL.
+         * @return URL ending with '/'
+         */
+        String getUrl() {
+            return url;
+        }
+
+        int getWeight() {
+            return weight;
+        }
+
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * Gets the number of slots of the server.
+         * @param defaultSlots number of slots if the server didn't report its slots
+         * @return slots
+         */
+        int getSlots(int defaultSlots) {
+            final int total = totalSlots;
+            return (total > 0) ? total : defaultSlots;
+        }
+
+        int getIdleSlots() {
+            return idleSlots;
+        }
+
+        boolean isHealthy() {
+            return healthy;
+        }
+
+        /**
+         * Gets the model of the server as read by the last request of <code>/props</code>.
+         * @return model, empty if unknown
+         */
+        String getModel() {
+            return model;
+        }
+
+        /**
+         * Gets the slot of an affinity-key at this server, a slot is assigned if necessary.
+         * If all slots are assigned, the slot of the least recently used key is reassigned.
+         * @param key affinity-key
+         * @param configuredSlots number of slots of the settings if the server didn't report its slots, 0 to let the server choose
+         * @return slot or -1 if the server chooses the slot
+         */
+        synchronized int getSlot(String key, int configuredSlots) {
+            final int numSlots = (configuredSlots <= 0) ? 0 : (totalSlots > 0) ? totalSlots : configuredSlots;
+            if (numSlots != numAssignedSlots) {
+                slotByKey.clear();
+                numAssignedSlots = numSlots;
+            }
+            if (numSlots <= 0) {
+                return -1;
+            }
+            final Integer slot = slotByKey.get(key);
+            if (slot != null) {
+                return slot;
+            }
+            final int newSlot;
+            if (slotByKey.size() < numSlots) {
+                final BitSet usedSlots = new BitSet(numSlots);
+                for (Integer usedSlot : slotByKey.values()) {
+                    usedSlots.set(usedSlot);
+                }
+                newSlot = usedSlots.nextClearBit(0);
+            } else {
+                final Iterator<Map.Entry<String, Integer>> it = slotByKey.entrySet().iterator();
+                newSlot = it.next().getValue();
+                it.remove();
+            }
+            slotByKey.put(key, newSlot);
+            return newSlot;
+        }
+
+        /**
+         * Computes the load relative to the weight: the requests of this client
+         * or the busy slots of the server (including other clients) if larger.
+         * @return load per weight
+         */
+        double getLoad() {
+            int load = outstanding.get();
+            final int total = totalSlots;
+            final int idle = idleSlots;
+            if (total > 0 && idle >= 0) {
+                load = Math.max(load, total - idle);
+            }
+            return (load + 1.0) / weight;
+        }
+
+        /**
+         * Checks if the circuit breaker allows a request. A half-open breaker allows a single trial request.
+         * @param now current time in milliseconds
+         * @param reserve <code>true</code> if the trial request of a half-open breaker should be reserved
+         * @return <code>true</code> if the endpoint may get a request
+         */
+        synchronized boolean isAvailable(long now, boolean reserve) {
+            if (openUntil == 0) {
+                return true;
+            }
+            if (now < openUntil || trialInProgress) {
+                return false;
+            }
+            if (reserve) {
+                trialInProgress = true;
+            }
+            return true;
+        }
+
+        /**
+         * Checks if the circuit breaker is open.
+         * @return <code>true</code> if the endpoint has been ejected
+         */
+        synchronized boolean isEjected() {
+            return openUntil != 0;
+        }
+
+        synchronized long getOpenUntil() {
+            return openUntil;
+        }
+
+        /**
+         * Records a successful request or probe, the circuit breaker is closed.
+         */
+        synchronized void recordSuccess() {
+            if (openUntil != 0) {
+                LOGGER.info("Endpoint is available again: " + url);
+            }
+            consecutiveFailures = 0;
+            openUntil = 0;
+            breakMillis = BREAK_MILLIS;
+            trialInProgress = false;
+        }
+
+        /**
+         * Records a failed request. The circuit breaker is opened after {@link #FAILURE_THRESHOLD} consecutive
+         * failures or if a trial request fails, the break-time doubles with each failed trial.
+         * @param now current time in milliseconds
+         */
+        synchronized void recordFailure(long now) {
+            consecutiveFailures++;
+            if (trialInProgress) {
+                trialInProgress = false;
+                breakMillis = Math.min(2 * breakMillis, MAX_BREAK_MILLIS);
+                openUntil = now + breakMillis;
+            } else if (openUntil == 0 && consecutiveFailures >= FAILURE_THRESHOLD) {
+                openUntil = now + breakMillis;
+                LOGGER.info(String.format("Endpoint ejected for %d ms after %d failures: %s", breakMillis, consecutiveFailures, url));
+            }
+        }
+
+        /**
+         * Releases the reserved trial request without a result (e.g. cancelled by the user).
+         */
+        synchronized void releaseTrial() {
+            trialInProgress = false;
+        }
+
+        @Override
+        public String toString() {
+            return url + " (weight " + weight + ')';
+        }
+    }
+
+    /**
+     * A request to be executed at an endpoint.
+     * @param <T> type of the result
+     */
+    interface Call<T> {
+        /**
+         * Executes the request.
+         * @param endpoint endpoint
+         * @return result
+         * @throws FailoverException if the request failed before the first token and may be sent to another endpoint
+         * @throws IOException in case of an error of the endpoint
+         */
+        T call(Endpoint endpoint) throws IOException;
+    }
+
+    /**
+     * Exception of a request which failed before the first token was received,
+     * the request may be sent to another endpoint.
+     */
+    static class FailoverException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FailoverException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /** supplier of the configuration of the endpoints */
+    private final Supplier<String> configSupplier;
+    /** HTTP-client of the health-probes */
+    private final HttpClient httpClient;
+    /** clock in milliseconds */
+    private final LongSupplier clock;
+    /** number of slots of an endpoint which didn't report its slots */
+    private final IntSupplier defaultSlots;
+    /** number of slots of the settings used for the slot-affinity, 0 if the server chooses the slot */
+    private final IntSupplier configuredSlots;
+
+    /** configuration of the current endpoints */
+    private String config;
+    /** current endpoints */
+    private volatile List<Endpoint> endpoints = List.of();
+    /** endpoint of the last request of an affinity-key (access-order) */
+    private final LinkedHashMap<String, Endpoint> endpointByKey = new LinkedHashMap<>(16, 0.75f, true);
+    /** scheduled health-probes or <code>null</code> */
+    private final ScheduledFuture<?> probeFuture;
+
+    public LlmEndpointPool() {
+        final LlmSettings settings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        configSupplier = () -> settings.getServerUrl() + '\n' + settings.getServerEndpoints();
+        httpClient = ApplicationManager.getApplication().getService(LlmHttpClientService.class).getHttpClient();
+        clock = System::currentTimeMillis;
+        defaultSlots = () -> (settings.getServerSlots() > 0) ? settings.getServerSlots() : DEFAULT_SLOTS;
+        configuredSlots = settings::getServerSlots;
+        probeFuture = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(this::probeAll,
+                PROBE_INTERVAL_MS, PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor of a pool without scheduled health-probes.
+     * @param configSupplier supplier of the configuration of the endpoints
+     * @param httpClient HTTP-client of the health-probes
+     * @param clock clock in milliseconds
+     */
+    LlmEndpointPool(Supplier<String> configSupplier, HttpClient httpClient, LongSupplier clock) {
+        this.configSupplier = configSupplier;
+        this.httpClient = httpClient;
+        this.clock = clock;
+        this.defaultSlots = () -> DEFAULT_SLOTS;
+        this.configuredSlots = () -> DEFAULT_SLOTS;
+        this.probeFuture = null;
+    }
+
+    /**
+     * Gets the instance of the service.
+     * @return service
+     */
+    static LlmEndpointPool getInstance() {
+        return ApplicationManager.getApplication().getService(LlmEndpointPool.class);
+    }
+
+    /**
+     * Parses the configuration of the endpoints: one endpoint per line (or separated by comma),
+     * an URL followed by an optional weight (default 1). Duplicate URLs are ignored.
+     * @param config configuration
+     * @return endpoints
+     */
+    static List<Endpoint> parseEndpoints(String config) {
+        final List<Endpoint> list = new ArrayList<>();
+        if (config == null) {
+            return list;
+        }
+        final Set<String> urls = new HashSet<>();
+        for (String entry : config.split("[\r\n,]+")) {
+            final String[] parts = entry.trim().split("\\s+");
+            if (parts[0].isEmpty()) {
+                continue;
+            }
+            final String url = parts[0].endsWith("/") ? parts[0] : parts[0] + '/';
+            int weight = 1;
+            if (parts.length > 1) {
+                try {
+                    weight = Math.max(1, Integer.parseInt(parts[1]));
+                } catch (NumberFormatException e) {
+                    LOGGER.info(String.format("Invalid weight (%s) of endpoint %s", parts[1], url));
+                }
+            }
+            if (urls.add(url)) {
+                list.add(new Endpoint(url, weight));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Gets the current endpoints, the configuration is read again if it has changed.
+     * The state of an endpoint (e.g. its circuit breaker) is kept if it is still configured.
+     * @return endpoints
+     */
+    synchronized List<Endpoint> getEndpoints() {
+        final String currentConfig = configSupplier.get();
+        if (!currentConfig.equals(config)) {
+            final Map<String, Endpoint> oldEndpoints = new LinkedHashMap<>();
+            for (Endpoint endpoint : endpoints) {
+                oldEndpoints.put(endpoint.url, endpoint);
+            }
+            final List<Endpoint> newEndpoints = new ArrayList<>();
+            for (Endpoint endpoint : parseEndpoints(currentConfig)) {
+                final Endpoint oldEndpoint = oldEndpoints.get(endpoint.url);
+                newEndpoints.add((oldEndpoint != null && oldEndpoint.weight == endpoint.weight) ? oldEndpoint : endpoint);
+            }
+            LOGGER.info("Endpoints of the LLM-server: " + newEndpoints);
+            endpoints = Collections.unmodifiableList(newEndpoints);
+            endpointByKey.clear();
+            config = currentConfig;
+        }
+        return endpoints;
+    }
+
+    /**
+     * Gets the URL of the primary endpoint (e.g. as part of a cache-key).
+     * @return base-URL of the first endpoint
+     */
+    String getPrimaryUrl() {
+        final List<Endpoint> list = getEndpoints();
+        return list.isEmpty() ? "" : list.get(0).url;
+    }
+
+    /**
+     * Gets the model of the primary endpoint (e.g. as part of a cache-key), the properties of the endpoint
+     * are read if they are older than {@link #PROPS_INTERVAL_MS}. This method may block (not in the EDT).
+     * @return model or an empty string if the server doesn't tell it
+     */
+    String getPrimaryModel() {
+        final List<Endpoint> list = getEndpoints();
+        if (list.isEmpty()) {
+            return "";
+        }
+        final Endpoint endpoint = list.get(0);
+        if (endpoint.tsProps == 0 || clock.getAsLong() - endpoint.tsProps >= PROPS_INTERVAL_MS) {
+            readProps(endpoint);
+        }
+        return endpoint.model;
+    }
+
+    /**
+     * Reads the properties of an endpoint. The previous model is kept if the server doesn't answer.
+     * @param endpoint endpoint
+     */
+    private void readProps(Endpoint endpoint) {
+        endpoint.tsProps = clock.getAsLong();
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(endpoint.url + "props"))
+                .timeout(PROBE_TIMEOUT).GET().build();
+        try {
+            final HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            processProps(endpoint, response.statusCode(), response.body());
+        } catch (IOException e) {
+            LOGGER.info(String.format("Properties of %s not available: %s", endpoint.url, e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Processes the response of <code>/props</code>.
+     * @param endpoint endpoint
+     * @param statusCode HTTP status-code
+     * @param body response-body
+     */
+    void processProps(Endpoint endpoint, int statusCode, String body) {
+        String model = "";
+        if (statusCode == 200) {
+            final LightweightJsonPath.Result result = QUERY_PROPS.newResult();
+            try {
+                QUERY_PROPS.scan(body, result);
+                final String modelPath = result.getString(0);
+                model = (modelPath != null) ? modelPath : "";
+                final int totalSlots = result.getInt(1, -1);
+                if (totalSlots > 0) {
+                    endpoint.totalSlots = totalSlots;
+                }
+            } catch (IllegalArgumentException e) {
+                LOGGER.info(String.format("Unexpected properties of %s: %s", endpoint.url, e.getMessage()));
+            }
+        }
+        if (!model.equals(endpoint.model)) {
+            LOGGER.info(String.format("Model of %s: %s", endpoint.url, model.isEmpty() ? "unknown" : model));
+            endpoint.model = model;
+        }
+    }
+
+    /**
+     * Gets the slot of an affinity-key at an endpoint (<code>id_slot</code> of the request).
+     * @param endpoint endpoint chosen for the request
+     * @param affinityKey affinity-key or <code>null</code>
+     * @return slot or -1 if the server chooses the slot
+     */
+    int getSlot(Endpoint endpoint, String affinityKey) {
+        return (affinityKey != null) ? endpoint.getSlot(affinityKey, configuredSlots.getAsInt()) : -1;
+    }
+
+    /**
+     * Gets the capacity of the pool: the number of slots of the endpoints which aren't ejected
+     * (at least one, a single ejected endpoint is still used).
+     * @return number of requests which may be in progress
+     */
+    int getCapacity() {
+        final long now = clock.getAsLong();
+        final int slots = defaultSlots.getAsInt();
+        int capacity = 0;
+        for (Endpoint endpoint : getEndpoints()) {
+            if (endpoint.healthy && endpoint.isAvailable(now, false)) {
+                capacity += endpoint.getSlots(slots);
+            }
+        }
+        return Math.max(1, capacity);
+    }
+
+    /**
+     * Chooses the endpoint of a request and reserves the trial request of a half-open circuit breaker.
+     * @param affinityKey affinity-key or <code>null</code>
+     * @param excluded endpoints which failed already
+     * @return endpoint or <code>null</code> if all endpoints have been excluded
+     */
+    synchronized Endpoint choose(String affinityKey, Set<Endpoint> excluded) {
+        final long now = clock.getAsLong();
+        final int slots = defaultSlots.getAsInt();
+        Endpoint best = null;
+        Endpoint bestFull = null;
+        Endpoint fallback = null;
+        for (Endpoint endpoint : getEndpoints()) {
+            if (excluded.contains(endpoint)) {
+                continue;
+            }
+            if (!endpoint.healthy || !endpoint.isAvailable(now, false)) {
+                if (fallback == null || endpoint.getOpenUntil() < fallback.getOpenUntil()) {
+                    fallback = endpoint;
+                }
+                continue;
+            }
+            if (endpoint.getOutstanding() >= endpoint.getSlots(slots)) {
+                // All slots are used by requests of this client.
+                if (bestFull == null || endpoint.getLoad() < bestFull.getLoad()) {
+                    bestFull = endpoint;
+                }
+                continue;
+            }
+            if (best == null || endpoint.getLoad() < best.getLoad()) {
+                best = endpoint;
+            }
+        }
+        if (best != null && affinityKey != null) {
+            final Endpoint sticky = endpointByKey.get(affinityKey);
+            if (sticky != null && sticky != best && !excluded.contains(sticky) && sticky.healthy
+                    && sticky.isAvailable(now, false) && sticky.getOutstanding() < sticky.getSlots(slots)
+                    && sticky.getLoad() <= best.getLoad() + 1.0 / sticky.weight) {
+                best = sticky;
+            }
+        }
+        final Endpoint chosen = (best != null) ? best : (bestFull != null) ? bestFull : fallback;
+        if (chosen == null) {
+            return null;
+        }
+        chosen.isAvailable(now, true);
+        if (affinityKey != null) {
+            endpointByKey.put(affinityKey, chosen);
+            if (endpointByKey.size() > MAX_AFFINITY_KEYS) {
+                final Iterator<Endpoint> it = endpointByKey.values().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Executes a request at the best endpoint. If the request fails before the first token
+     * ({@link FailoverException}) it is sent to the next endpoint.
+     * @param affinityKey affinity-key or <code>null</code>
+     * @param call request
+     * @return result of the request
+     * @param <T> type of the result
+     * @throws IOException if the request failed at all endpoints
+     */
+    <T> T execute(String affinityKey, Call<T> call) throws IOException {
+        final Set<Endpoint> excluded = new HashSet<>();
+        FailoverException lastException = null;
+        while (true) {
+            final Endpoint endpoint = choose(affinityKey, excluded);
+            if (endpoint == null) {
+                if (lastException != null) {
+                    throw lastException;
+                }
+                throw new IOException("No endpoint of the LLM-server has been configured");
+            }
+            endpoint.outstanding.incrementAndGet();
+            boolean completed = false;
+            try {
+                final T result = call.call(endpoint);
+                endpoint.recordSuccess();
+                completed = true;
+                return result;
+            } catch (FailoverException e) {
+                endpoint.recordFailure(clock.getAsLong());
+                completed = true;
+                LOGGER.info(String.format("Request failed at %s before the first token: %s", endpoint.url, e.getMessage()));
+                excluded.add(endpoint);
+                lastException = e;
+            } catch (IOException e) {
+                endpoint.recordFailure(clock.getAsLong());
+                completed = true;
+                throw e;
+            } finally {
+                endpoint.outstanding.decrementAndGet();
+                if (!completed) {
+                    endpoint.releaseTrial();
+                }
+            }
+        }
+    }
+
+    /**
+     * Probes the health and the idle slots of all endpoints, if there is more than one endpoint.
+     * @return future which is completed when all probes are complete
+     */
+    CompletableFuture<Void> probeAll() {
+        final List<Endpoint> list = getEndpoints();
+        if (list.size() <= 1) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[list.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = probe(list.get(i));
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Probes an endpoint: <code>/slots</code> gives the number of idle slots,
+     * <code>/health</code> is used if the server doesn't provide the slots.
+     * @param endpoint endpoint
+     * @return future which is completed when the probe is complete
+     */
+    private CompletableFuture<Void> probe(Endpoint endpoint) {
+        final String path = endpoint.slotsSupported ? "slots" : "health";
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(endpoint.url + path))
+                .timeout(PROBE_TIMEOUT).GET().build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .thenCompose(response -> {
+                    if (endpoint.slotsSupported && (response.statusCode() == 404 || response.statusCode() == 501)) {
+                        // The slots-endpoint is disabled (--no-slots), we ask for the health.
+                        endpoint.slotsSupported = false;
+                        return probe(endpoint);
+                    }
+                    processProbe(endpoint, response.statusCode(), response.body());
+                    return CompletableFuture.<Void>completedFuture(null);
+                })
+                .exceptionally(e -> {
+                    if (endpoint.healthy) {
+                        LOGGER.info(String.format("Health-probe of %s failed: %s", endpoint.url, e));
+                    }
+                    endpoint.healthy = false;
+                    return null;
+                });
+    }
+
+    /**
+     * Processes the response of a health-probe.
+     * @param endpoint endpoint
+     * @param statusCode HTTP status-code
+     * @param body response-body
+     */
+    void processProbe(Endpoint endpoint, int statusCode, String body) {
+        // llama.cpp answers 503 while the model is being loaded.
+        endpoint.healthy = (statusCode == 200);
+        if (!endpoint.healthy) {
+            return;
+        }
+        try {
+            final String json = body.trim();
+            if (json.startsWith("[")) {
+                int total = 0;
+                int idle = 0;
+                for (Object oSlot : LightweightJsonHandler.parseJsonArray(json)) {
+                    if (oSlot instanceof Map<?, ?> slot) {
+                        total++;
+                        // Newer servers send is_processing, older servers a state (0 = idle).
+                        final Object processing = slot.get("is_processing");
+                        final Object state = slot.get("state");
+                        if (Boolean.FALSE.equals(processing) || (processing == null && Integer.valueOf(0).equals(state))) {
+                            idle++;
+                        }
+                    }
+                }
+                endpoint.totalSlots = total;
+                endpoint.idleSlots = idle;
+            } else if (json.startsWith("{")) {
+                final Map<String, Object> health = LightweightJsonHandler.parseJsonDict(json);
+                final int idle = LightweightJsonHandler.readInt(health, "slots_idle", -1);
+                final int processing = LightweightJsonHandler.readInt(health, "slots_processing", -1);
+                endpoint.idleSlots = idle;
+                endpoint.totalSlots = (idle >= 0 && processing >= 0) ? idle + processing : -1;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.info(String.format("Unexpected health-response of %s: %s", endpoint.url, e));
+        }
+        if (endpoint.isEjected() && endpoint.isAvailable(clock.getAsLong(), false)) {
+            // The break is over and the server answers, so the endpoint gets requests again.
+            endpoint.recordSuccess();
+        }
+    }
+
+    /**
+     * Describes the state of the endpoints (settings-page).
+     * @return description
+     */
+    String describe() {
+        final StringBuilder sb = new StringBuilder();
+        for (Endpoint endpoint : getEndpoints()) {
+            if (!sb.isEmpty()) {
+                sb.append(", ");
+            }
+            sb.append(endpoint.url).append(": ");
+            if (endpoint.isEjected()) {
+                sb.append("ejected");
+            } else if (!endpoint.healthy) {
+                sb.append("unavailable");
+            } else {
+                sb.append(endpoint.getOutstanding()).append(" requests");
+                if (endpoint.idleSlots >= 0) {
+                    sb.append(", ").append(endpoint.idleSlots).append(" idle slots");
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void dispose() {
+        if (probeFuture != null) {
+            probeFuture.cancel(false);
+        }
+    }
+}
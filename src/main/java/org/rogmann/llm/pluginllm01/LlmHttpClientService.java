@@ -0,0 +1,76 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Application-wide HTTP client used to talk to the LLM-server.
+ * <p>
+ * The client is shared by all requests so that connections to the server are kept alive and reused.
+ * HTTP/2 is negotiated via ALPN on TLS-connections, plain-text connections use HTTP/1.1 to avoid
+ * the h2c-upgrade round-trip which llama.cpp doesn't support anyway.
+ * The response bodies are consumed asynchronously by a {@link java.net.http.HttpResponse.BodySubscriber},
+ * so no thread is blocked on a socket read while a response is being streamed.
+ * <p>
+ * Access instance via: {@code ApplicationManager.getApplication().getService(LlmHttpClientService.class)}.
+ */
+@Service
+public final class LlmHttpClientService {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(LlmHttpClientService.class);
+
+    /** timeout when connecting to the server */
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(3);
+
+    /** shared HTTP-client */
+    private final HttpClient httpClient;
+
+    public LlmHttpClientService() {
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        LOGGER.info("Created shared HTTP-client for LLM-requests");
+    }
+
+    /**
+     * Creates a request-builder for the given URL.
+     * Plain-text URLs are sent as HTTP/1.1, TLS-URLs may be upgraded to HTTP/2 by ALPN.
+     * @param uri URI of the endpoint
+     * @return request-builder
+     */
+    public HttpRequest.Builder newRequestBuilder(URI uri) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        if ("http".equalsIgnoreCase(uri.getScheme())) {
+            builder.version(HttpClient.Version.HTTP_1_1);
+        }
+        return builder;
+    }
+
+    /**
+     * Sends a request asynchronously, the response-body is pushed into the body-handler's subscriber.
+     * @param request HTTP-request
+     * @param bodyHandler handler which creates the subscriber of the response-body
+     * @return future of the response
+     * @param <T> type of the response-body
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+        return httpClient.sendAsync(request, bodyHandler);
+    }
+
+    /**
+     * Gets the shared HTTP-client.
+     * @return HTTP-client
+     */
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+}
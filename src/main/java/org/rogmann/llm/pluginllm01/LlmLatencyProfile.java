@@ -0,0 +1,202 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Named profile of the generation of a request: maximum number of tokens, stop-sequences, sampling-parameters
+ * and a wall-clock deadline after which the client cancels the request.
+ * <p>
+ * The profiles are configured in the settings, one profile per line:
+ * <pre>
+ * name: n_predict=64 stop=\n\n temperature=0.2 top_k=40 top_p=0.9 deadline_ms=5000
+ * </pre>
+ * Each entry is optional, <code>stop</code> may be given several times. A stop-sequence can't contain a space,
+ * the escapes <code>\n</code>, <code>\r</code>, <code>\t</code>, <code>\s</code> (space) and <code>\\</code> are supported.
+ *
+ * @param name name of the profile
+ * @param maxTokens maximum number of generated tokens (n_predict), -1 if unlimited
+ * @param stop stop-sequences
+ * @param temperature temperature, negative if the server's default is used
+ * @param topK top-k sampling, negative if the server's default is used
+ * @param topP top-p sampling, negative if the server's default is used
+ * @param deadlineMillis wall-clock deadline of the request in milliseconds, 0 if there is no deadline
+ */
+record LlmLatencyProfile(String name, int maxTokens, List<String> stop, double temperature, int topK, double topP,
+                         long deadlineMillis) {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(LlmLatencyProfile.class);
+
+    /** profile without limits and with the sampling of the server */
+    static final LlmLatencyProfile NONE = new LlmLatencyProfile("", -1, List.of(), -1, -1, -1, 0);
+
+    /**
+     * default profiles: chat (without deadline), fill-in-middle (stops at a blank line) and single-line fill-in-middle.
+     * The fill-in-middle profiles are used by the inline and speculative completion only.
+     */
+    static final String DEFAULT_PROFILES = """
+            chat: n_predict=4096
+            fim: n_predict=256 stop=\\n\\n temperature=0.2 top_k=40 top_p=0.9 deadline_ms=10000
+            fim-line: n_predict=64 stop=\\n temperature=0.1 top_k=40 deadline_ms=3000
+            """;
+
+    /**
+     * Parses the configuration of the profiles. Invalid entries are logged and ignored.
+     * @param config configuration, one profile per line
+     * @return profiles by name
+     */
+    static Map<String, LlmLatencyProfile> parseProfiles(String config) {
+        final Map<String, LlmLatencyProfile> profiles = new LinkedHashMap<>();
+        if (config == null) {
+            return profiles;
+        }
+        for (String line : config.split("[\r\n]+")) {
+            final int idxColon = line.indexOf(':');
+            final String name = ((idxColon >= 0) ? line.substring(0, idxColon) : line).trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            int maxTokens = -1;
+            final List<String> stop = new ArrayList<>();
+            double temperature = -1;
+            int topK = -1;
+            double topP = -1;
+            long deadlineMillis = 0;
+            final String entries = (idxColon >= 0) ? line.substring(idxColon + 1).trim() : "";
+            for (String entry : entries.isEmpty() ? new String[0] : entries.split("\\s+")) {
+                final int idxEq = entry.indexOf('=');
+                final String key = (idxEq > 0) ? entry.substring(0, idxEq) : entry;
+                final String value = (idxEq > 0) ? entry.substring(idxEq + 1) : "";
+                try {
+                    switch (key) {
+                        case "n_predict" -> maxTokens = Integer.parseInt(value);
+                        case "stop" -> stop.add(unescape(value));
+                        case "temperature" -> temperature = Double.parseDouble(value);
+                        case "top_k" -> topK = Integer.parseInt(value);
+                        case "top_p" -> topP = Double.parseDouble(value);
+                        case "deadline_ms" -> deadlineMillis = Math.max(0, Long.parseLong(value));
+                        default -> LOGGER.info(String.format("Unknown entry (%s) of latency-profile %s", entry, name));
+                    }
+                } catch (NumberFormatException e) {
+                    LOGGER.info(String.format("Invalid value (%s) of latency-profile %s", entry, name));
+                }
+            }
+            profiles.put(name, new LlmLatencyProfile(name, maxTokens, List.copyOf(stop), temperature, topK, topP,
+                    deadlineMillis));
+        }
+        return profiles;
+    }
+
+    private static String unescape(String value) {
+        final StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c != '\\' || i + 1 == value.length()) {
+                sb.append(c);
+                continue;
+            }
+            final char e = value.charAt(++i);
+            switch (e) {
+                case 'n' -> sb.append('\n');
+                case 'r' -> sb.append('\r');
+                case 't' -> sb.append('\t');
+                case 's' -> sb.append(' ');
+                default -> sb.append(e);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Adds the parameters of the profile to a request of the llama.cpp-server.
+     * @param request JSON-request
+     * @param taskType type of the request (chat/completions uses max_tokens, infill n_predict)
+     */
+    void addToRequest(Map<String, Object> request, LlmTaskType taskType) {
+        if (maxTokens >= 0) {
+            request.put((taskType == LlmTaskType.PROMPT) ? "max_tokens" : "n_predict", maxTokens);
+        }
+        if (!stop.isEmpty()) {
+            request.put("stop", new ArrayList<Object>(stop));
+        }
+        if (temperature >= 0) {
+            request.put("temperature", temperature);
+        }
+        if (topK >= 0) {
+            request.put("top_k", topK);
+        }
+        if (topP >= 0) {
+            request.put("top_p", topP);
+        }
+    }
+
+    /**
+     * Searches the first stop-sequence in a response. The LLM1-server doesn't know the stop-sequences,
+     * so the client checks the response.
+     * @param text response received so far
+     * @param from position from which a new stop-sequence may start
+     * @return position of the first stop-sequence or -1
+     */
+    int indexOfStop(StringBuilder text, int from) {
+        int idxFirst = -1;
+        for (String s : stop) {
+            final int idx = text.indexOf(s, from);
+            if (idx >= 0 && (idxFirst < 0 || idx < idxFirst)) {
+                idxFirst = idx;
+            }
+        }
+        return idxFirst;
+    }
+
+    /**
+     * Computes the length of the longest end of a response which is the beginning of a stop-sequence
+     * (the stop-sequence may be completed by the next token).
+     * @param text response received so far (without a complete stop-sequence)
+     * @return number of characters at the end of the text, 0 if the text can't continue with a stop-sequence
+     */
+    int lengthOfStopPrefix(CharSequence text) {
+        int maxLength = 0;
+        for (String s : stop) {
+            for (int len = Math.min(s.length() - 1, text.length()); len > maxLength; len--) {
+                if (CharSequence.compare(text.subSequence(text.length() - len, text.length()), s.subSequence(0, len)) == 0) {
+                    maxLength = len;
+                    break;
+                }
+            }
+        }
+        return maxLength;
+    }
+
+    /**
+     * Gets the profile as in the configuration.
+     * @return profile
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(name).append(':');
+        if (maxTokens >= 0) {
+            sb.append(" n_predict=").append(maxTokens);
+        }
+        for (String s : stop) {
+            sb.append(" stop=").append(s.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r")
+                    .replace("\t", "\\t").replace(" ", "\\s"));
+        }
+        if (temperature >= 0) {
+            sb.append(" temperature=").append(temperature);
+        }
+        if (topK >= 0) {
+            sb.append(" top_k=").append(topK);
+        }
+        if (topP >= 0) {
+            sb.append(" top_p=").append(topP);
+        }
+        if (deadlineMillis > 0) {
+            sb.append(" deadline_ms=").append(deadlineMillis);
+        }
+        return sb.toString();
+    }
+}
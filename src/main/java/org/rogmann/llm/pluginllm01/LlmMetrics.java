@@ -0,0 +1,327 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency-metrics of the requests to the LLM-server, per latency-profile ({@link LlmLatencyProfile})
+ * and transport (HTTP, LLM1).
+ * <p>
+ * Each metric is a {@link RollingHistogram} of the last hour. The values are recorded by the transports
+ * via a {@link Request}, the percentiles are shown in the metrics-panel of the tool-window ({@link LlmMetricsPanel})
+ * and can be exported as CSV.
+ * <p>
+ * Access instance via: {@code ApplicationManager.getApplication().getService(LlmMetrics.class)}.
+ */
+@Service
+public final class LlmMetrics {
+    /** number of windows of a histogram */
+    private static final int NUM_WINDOWS = 12;
+    /** length of a window in milliseconds (the histograms cover one hour) */
+    private static final long WINDOW_MILLIS = 5 * 60 * 1000L;
+
+    /**
+     * Transport of a request.
+     */
+    enum Transport {
+        HTTP,
+        LLM1
+    }
+
+    /**
+     * Recorded metric.
+     */
+    enum Metric {
+        /** time until the connection is established (HTTP: until the body is sent) in us */
+        CONNECT("connect", "ms", 1000.0),
+        /** time to send the request in us */
+        UPLOAD("request upload", "ms", 1000.0),
+        /** time from the start of the request to the first token in us */
+        TIME_TO_FIRST_TOKEN("time to first token", "ms", 1000.0),
+        /** time between two tokens in us */
+        INTER_TOKEN("inter-token latency", "ms", 1000.0),
+        /** generated tokens per second (times 100) after the first token */
+        TOKENS_PER_SECOND("tokens/s", "1/s", 100.0),
+        /** time of the server to evaluate the prompt in us */
+        SERVER_PROMPT("server prompt_ms", "ms", 1000.0),
+        /** time of the server to generate the response in us */
+        SERVER_PREDICTED("server predicted_ms", "ms", 1000.0),
+        /** bytes of the request */
+        BYTES_SENT("bytes sent", "bytes", 1.0),
+        /** bytes of the response */
+        BYTES_RECEIVED("bytes received", "bytes", 1.0),
+        /** time to parse a chunk of the response in ns */
+        CHUNK_PARSE("parse time per chunk", "us", 1000.0),
+        /** time from the start of the request to the end of the response in us */
+        REQUEST_DURATION("request duration", "ms", 1000.0),
+        /** time from the start of a failed or cancelled request to its end in us */
+        FAILED_REQUEST("failed/cancelled request", "ms", 1000.0),
+        /** number of generated tokens */
+        GENERATED_TOKENS("generated tokens", "tokens", 1.0),
+        /** time when a request has been cancelled because of the deadline of its profile in us */
+        DEADLINE_EXCEEDED("deadline exceeded", "ms", 1000.0);
+
+        private final String label;
+        private final String unit;
+        private final double divisor;
+
+        Metric(String label, String unit, double divisor) {
+            this.label = label;
+            this.unit = unit;
+            this.divisor = divisor;
+        }
+
+        String getLabel() {
+            return label;
+        }
+
+        String getUnit() {
+            return unit;
+        }
+
+        /**
+         * Converts a recorded value into the displayed unit.
+         * @param value recorded value
+         * @return value in the displayed unit
+         */
+        double toUnit(double value) {
+            return value / divisor;
+        }
+    }
+
+    /**
+     * Percentiles of a metric.
+     * @param profile name of the latency-profile, empty if the request had no profile
+     * @param transport transport
+     * @param metric metric
+     * @param count number of values
+     * @param p50 median
+     * @param p95 95th percentile
+     * @param p99 99th percentile
+     * @param max maximum
+     * @param mean mean value
+     */
+    record Row(String profile, Transport transport, Metric metric, long count, double p50, double p95, double p99, double max, double mean) { }
+
+    /** histograms by latency-profile, transport and metric */
+    private final Map<String, RollingHistogram[][]> histograms = new ConcurrentHashMap<>();
+
+    private static RollingHistogram[][] createHistograms() {
+        final RollingHistogram[][] histogramsProfile = new RollingHistogram[Transport.values().length][Metric.values().length];
+        for (RollingHistogram[] histogramsTransport : histogramsProfile) {
+            for (int i = 0; i < histogramsTransport.length; i++) {
+                histogramsTransport[i] = new RollingHistogram(NUM_WINDOWS, WINDOW_MILLIS, System::currentTimeMillis);
+            }
+        }
+        return histogramsProfile;
+    }
+
+    /**
+     * Gets the instance of the service.
+     * @return service
+     */
+    static LlmMetrics getInstance() {
+        return ApplicationManager.getApplication().getService(LlmMetrics.class);
+    }
+
+    /**
+     * Records a value.
+     * @param profile name of the latency-profile, empty if there is no profile
+     * @param transport transport
+     * @param metric metric
+     * @param value value in the unit of the metric
+     */
+    void record(String profile, Transport transport, Metric metric, long value) {
+        histograms.computeIfAbsent(profile, p -> createHistograms())[transport.ordinal()][metric.ordinal()].record(value);
+    }
+
+    /**
+     * Starts the recording of a request.
+     * @param transport transport
+     * @param profile latency-profile of the request
+     * @return request
+     */
+    Request startRequest(Transport transport, LlmLatencyProfile profile) {
+        return new Request(transport, profile.name());
+    }
+
+    /**
+     * Computes the percentiles of all metrics which have values.
+     * @return rows
+     */
+    List<Row> getRows() {
+        final List<Row> rows = new ArrayList<>();
+        for (Map.Entry<String, RollingHistogram[][]> entry : new TreeMap<>(histograms).entrySet()) {
+            for (Transport transport : Transport.values()) {
+                for (Metric metric : Metric.values()) {
+                    final RollingHistogram.Snapshot snapshot = entry.getValue()[transport.ordinal()][metric.ordinal()].snapshot();
+                    if (snapshot.count() == 0) {
+                        continue;
+                    }
+                    rows.add(new Row(entry.getKey(), transport, metric, snapshot.count(),
+                            metric.toUnit(snapshot.percentile(0.50)), metric.toUnit(snapshot.percentile(0.95)),
+                            metric.toUnit(snapshot.percentile(0.99)), metric.toUnit(snapshot.max()),
+                            metric.toUnit(snapshot.mean())));
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Writes the percentiles as CSV.
+     * @param writer writer
+     * @throws IOException in case of an IO-error
+     */
+    void writeCsv(Writer writer) throws IOException {
+        writer.write("profile,transport,metric,unit,count,p50,p95,p99,max,mean\n");
+        for (Row row : getRows()) {
+            writer.write(String.format(Locale.ROOT, "%s,%s,%s,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f%n",
+                    row.profile(), row.transport(), row.metric().getLabel(), row.metric().getUnit(), row.count(),
+                    row.p50(), row.p95(), row.p99(), row.max(), row.mean()));
+        }
+    }
+
+    /**
+     * Removes all values.
+     */
+    void clear() {
+        for (RollingHistogram[][] histogramsProfile : histograms.values()) {
+            for (RollingHistogram[] histogramsTransport : histogramsProfile) {
+                for (RollingHistogram histogram : histogramsTransport) {
+                    histogram.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Timings of a single request. The methods are called by the thread which processes the response,
+     * the values are recorded when the phase is complete.
+     */
+    final class Request {
+        /** transport */
+        private final Transport transport;
+        /** name of the latency-profile */
+        private final String profile;
+        /** start of the request (nano-time) */
+        private final long tsStart = System.nanoTime();
+        /** time the connection has been established (nano-time) */
+        private long tsConnected;
+        /** time the first token arrived (nano-time) */
+        private long tsFirstToken;
+        /** time the last token arrived (nano-time) */
+        private long tsLastToken;
+        /** number of tokens */
+        private int numTokens;
+
+        private Request(Transport transport, String profile) {
+            this.transport = transport;
+            this.profile = profile;
+        }
+
+        private void record(Transport transport, Metric metric, long value) {
+            LlmMetrics.this.record(profile, transport, metric, value);
+        }
+
+        /**
+         * Gets the start of the request.
+         * @return nano-time
+         */
+        long getStart() {
+            return tsStart;
+        }
+
+        /**
+         * Records the time to connect.
+         * @param ts time the connection has been established (nano-time)
+         */
+        void connected(long ts) {
+            tsConnected = ts;
+            record(transport, Metric.CONNECT, (ts - tsStart) / 1000);
+        }
+
+        /**
+         * Records the time to send the request.
+         * @param ts time the request has been sent (nano-time)
+         */
+        void requestSent(long ts) {
+            record(transport, Metric.UPLOAD, (ts - ((tsConnected > 0) ? tsConnected : tsStart)) / 1000);
+        }
+
+        /**
+         * Records the arrival of a token.
+         */
+        void token() {
+            final long now = System.nanoTime();
+            if (numTokens == 0) {
+                tsFirstToken = now;
+                record(transport, Metric.TIME_TO_FIRST_TOKEN, (now - tsStart) / 1000);
+            } else {
+                record(transport, Metric.INTER_TOKEN, (now - tsLastToken) / 1000);
+            }
+            tsLastToken = now;
+            numTokens++;
+        }
+
+        /**
+         * Records the time to parse a chunk.
+         * @param nanos duration in nanoseconds
+         */
+        void chunkParsed(long nanos) {
+            record(transport, Metric.CHUNK_PARSE, nanos);
+        }
+
+        /**
+         * Records the timings reported by the server.
+         * @param promptMicros time to evaluate the prompt in microseconds
+         * @param predictedMicros time to generate the response in microseconds
+         */
+        void serverTimings(long promptMicros, long predictedMicros) {
+            record(transport, Metric.SERVER_PROMPT, promptMicros);
+            record(transport, Metric.SERVER_PREDICTED, predictedMicros);
+        }
+
+        /**
+         * Records the end of the request: bytes and tokens per second. The duration of a completed request
+         * is recorded as {@link Metric#REQUEST_DURATION}, the one of a failed or cancelled request
+         * (e.g. deadline exceeded) as {@link Metric#FAILED_REQUEST}.
+         * @param bytesSent bytes of the request
+         * @param bytesReceived bytes of the response
+         * @param completed <code>true</code> if the response has been received completely
+         */
+        void finish(long bytesSent, long bytesReceived, boolean completed) {
+            record(transport, Metric.BYTES_SENT, bytesSent);
+            record(transport, Metric.BYTES_RECEIVED, bytesReceived);
+            if (numTokens > 1 && tsLastToken > tsFirstToken) {
+                record(transport, Metric.TOKENS_PER_SECOND,
+                        (numTokens - 1) * 100L * 1_000_000_000L / (tsLastToken - tsFirstToken));
+            }
+            record(transport, completed ? Metric.REQUEST_DURATION : Metric.FAILED_REQUEST, (System.nanoTime() - tsStart) / 1000);
+            record(transport, Metric.GENERATED_TOKENS, numTokens);
+        }
+
+        /**
+         * Checks if the deadline of the latency-profile has been exceeded, the exceeded deadline is recorded.
+         * @param deadlineMillis deadline in milliseconds, 0 if there is no deadline
+         * @return <code>true</code> if the request should be cancelled
+         */
+        boolean isDeadlineExceeded(long deadlineMillis) {
+            final long elapsed = System.nanoTime() - tsStart;
+            if (deadlineMillis <= 0 || elapsed < deadlineMillis * 1_000_000L) {
+                return false;
+            }
+            record(transport, Metric.DEADLINE_EXCEEDED, elapsed / 1000);
+            return true;
+        }
+    }
+}
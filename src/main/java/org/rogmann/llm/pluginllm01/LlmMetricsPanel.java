@@ -0,0 +1,111 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * Panel of the tool-window showing the percentiles of the latency-metrics ({@link LlmMetrics}).
+ * The table is refreshed periodically while the panel is visible, the values can be exported as CSV.
+ */
+public class LlmMetricsPanel extends JPanel {
+    /** refresh-interval in milliseconds */
+    private static final int REFRESH_INTERVAL_MS = 2000;
+
+    /** columns of the table */
+    private static final String[] COLUMNS = { "Profile", "Transport", "Metric", "Unit", "Count", "p50", "p95", "p99", "Max", "Mean" };
+
+    /** project */
+    private final Project project;
+    /** model of the table */
+    private final DefaultTableModel tableModel = new DefaultTableModel(COLUMNS, 0) {
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+    };
+    /** timer of the periodic refresh, running while the panel is displayable */
+    private final Timer timer;
+
+    public LlmMetricsPanel(Project project) {
+        super(new BorderLayout());
+        this.project = project;
+        add(new JScrollPane(new JTable(tableModel)), BorderLayout.CENTER);
+
+        final JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        final JButton btnRefresh = new JButton("Refresh");
+        btnRefresh.addActionListener(e -> refresh());
+        buttons.add(btnRefresh);
+        final JButton btnReset = new JButton("Reset");
+        btnReset.addActionListener(e -> {
+            LlmMetrics.getInstance().clear();
+            refresh();
+        });
+        buttons.add(btnReset);
+        final JButton btnExport = new JButton("Export CSV...");
+        btnExport.addActionListener(e -> exportCsv());
+        buttons.add(btnExport);
+        add(buttons, BorderLayout.SOUTH);
+
+        timer = new Timer(REFRESH_INTERVAL_MS, e -> {
+            if (isShowing()) {
+                refresh();
+            }
+        });
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        refresh();
+        timer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
+    /**
+     * Shows the current percentiles.
+     */
+    private void refresh() {
+        tableModel.setRowCount(0);
+        for (LlmMetrics.Row row : LlmMetrics.getInstance().getRows()) {
+            tableModel.addRow(new Object[] { row.profile(), row.transport(), row.metric().getLabel(), row.metric().getUnit(),
+                    row.count(), format(row.p50()), format(row.p95()), format(row.p99()),
+                    format(row.max()), format(row.mean()) });
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, (value >= 100) ? "%.0f" : "%.2f", value);
+    }
+
+    private void exportCsv() {
+        final FileSaverDescriptor descriptor = new FileSaverDescriptor("Export LLM Metrics", "Percentiles as CSV", "csv");
+        final VirtualFileWrapper target = FileChooserFactory.getInstance()
+                .createSaveFileDialog(descriptor, project).save((Path) null, "llm-metrics.csv");
+        if (target == null) {
+            return;
+        }
+        try (Writer writer = Files.newBufferedWriter(target.getFile().toPath(), StandardCharsets.UTF_8)) {
+            LlmMetrics.getInstance().writeCsv(writer);
+        } catch (IOException e) {
+            Messages.showErrorDialog(project, "Can't write " + target.getFile() + ": " + e.getMessage(), "Error");
+        }
+    }
+}
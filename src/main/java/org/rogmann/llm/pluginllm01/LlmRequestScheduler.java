@@ -0,0 +1,383 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Central scheduler of the requests to the LLM-server, used by both transports.
+ * <p>
+ * The number of requests in progress of a transport is limited by its capacity (the slots of the endpoints),
+ * further requests wait in a queue ordered by priority ({@link Priority}) and arrival.
+ * If a request of the user (interactive fill-in-middle or chat) has to wait, a running batch-request is cancelled.
+ * <p>
+ * Identical requests in progress are merged (single-flight): the first request is sent to the server,
+ * a later identical request gets the tokens received so far and then the tokens as they arrive.
+ * If the first request fails or is cancelled, a waiting identical request is sent itself:
+ * the tokens it got from the failed request are discarded by its reset-handler before.
+ * <p>
+ * Access instance via: {@code ApplicationManager.getApplication().getService(LlmRequestScheduler.class)}.
+ */
+@Service
+public final class LlmRequestScheduler {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(LlmRequestScheduler.class);
+
+    /** interval to check for cancellation while waiting in milliseconds */
+    private static final long AWAIT_INTERVAL_MS = 100;
+
+    /**
+     * Priority of a request, the first priority is served first.
+     */
+    enum Priority {
+        /** fill-in-middle while the user is typing or waiting at the caret */
+        INTERACTIVE,
+        /** chat-prompt of the user */
+        CHAT,
+        /** speculative or batch work which may be cancelled in favour of the user */
+        BATCH
+    }
+
+    /**
+     * Request which is sent to the server if there isn't an identical request in progress.
+     */
+    interface Call {
+        /**
+         * Sends the request.
+         * @param tokenPublisher consumer which has to be called with each received token (shared with merged requests)
+         * @return response
+         * @throws IOException in case of an IO-error
+         */
+        String call(Consumer<String> tokenPublisher) throws IOException;
+    }
+
+    /**
+     * Request in progress which may be shared by identical requests.
+     */
+    private static final class Flight {
+        /** tokens received so far */
+        private final List<String> tokens = new ArrayList<>();
+        /** consumers of merged requests */
+        private final List<Consumer<String>> followers = new ArrayList<>();
+        /** priority, raised by merged requests of higher priority */
+        private volatile Priority priority;
+        /** <code>true</code> if the request has been completed or failed */
+        private boolean done;
+        /** response or <code>null</code> if the request failed */
+        private String response;
+
+        Flight(Priority priority) {
+            this.priority = priority;
+        }
+
+        synchronized void publish(String token) {
+            tokens.add(token);
+            for (Consumer<String> follower : followers) {
+                follower.accept(token);
+            }
+        }
+
+        synchronized void finish(String result) {
+            response = result;
+            done = true;
+            followers.clear();
+            notifyAll();
+        }
+
+        /**
+         * Follows the request: the tokens received so far and the following tokens are sent to the consumer.
+         * @param tokenConsumer consumer of the tokens
+         * @param indicator progress-indicator of the merged request
+         * @return response or <code>null</code> if the request failed
+         */
+        synchronized String follow(Consumer<String> tokenConsumer, ProgressIndicator indicator) {
+            for (String token : tokens) {
+                tokenConsumer.accept(token);
+            }
+            followers.add(tokenConsumer);
+            try {
+                while (!done) {
+                    if (indicator.isCanceled()) {
+                        followers.remove(tokenConsumer);
+                        throw new ProcessCanceledException();
+                    }
+                    wait(AWAIT_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                followers.remove(tokenConsumer);
+                throw new ProcessCanceledException(e);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Request waiting for a free slot or in progress.
+     */
+    private static final class Ticket implements Comparable<Ticket> {
+        /** request (priority) */
+        private final Flight flight;
+        /** progress-indicator of the request */
+        private final ProgressIndicator indicator;
+        /** sequence-number of the arrival */
+        private final long seq;
+        /** <code>true</code> if the request has been cancelled in favour of a request of higher priority */
+        private boolean preempted;
+
+        Ticket(Flight flight, ProgressIndicator indicator, long seq) {
+            this.flight = flight;
+            this.indicator = indicator;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            final int cmp = flight.priority.compareTo(o.flight.priority);
+            return (cmp != 0) ? cmp : Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * Queue and requests in progress of a transport.
+     */
+    private static final class Lane {
+        /** capacity (number of requests in progress) */
+        private final IntSupplier capacity;
+        /** waiting requests */
+        private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+        /** requests in progress */
+        private final List<Ticket> running = new ArrayList<>();
+        /** requests in progress by key */
+        private final Map<LlmResponseCache.Key, Flight> flights = new HashMap<>();
+        /** sequence-number of the next request */
+        private long nextSeq;
+
+        Lane(IntSupplier capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    /** lanes by transport */
+    private final Map<LlmMetrics.Transport, Lane> lanes = new EnumMap<>(LlmMetrics.Transport.class);
+
+    public LlmRequestScheduler() {
+        this(() -> LlmEndpointPool.getInstance().getCapacity(),
+                () -> Math.max(1, Integer.getInteger("pluginllm01.llm1Slots", 1)));
+    }
+
+    /**
+     * Constructor
+     * @param capacityHttp capacity of the HTTP-transport
+     * @param capacityLlm1 capacity of the LLM1-transport
+     */
+    LlmRequestScheduler(IntSupplier capacityHttp, IntSupplier capacityLlm1) {
+        lanes.put(LlmMetrics.Transport.HTTP, new Lane(capacityHttp));
+        lanes.put(LlmMetrics.Transport.LLM1, new Lane(capacityLlm1));
+    }
+
+    /**
+     * Gets the instance of the service.
+     * @return service
+     */
+    static LlmRequestScheduler getInstance() {
+        return ApplicationManager.getApplication().getService(LlmRequestScheduler.class);
+    }
+
+    /**
+     * Executes a request: the request is merged with an identical request in progress
+     * or it waits for a free slot and is sent.
+     * @param transport transport
+     * @param key key of the request (see {@link LlmResponseCache#createKey(String, LlmTask)})
+     * @param priority priority
+     * @param indicator progress-indicator of the request
+     * @param tokenConsumer consumer of the tokens of a merged request
+     * @param resetHandler discards the tokens sent to the token-consumer by a failed identical request
+     * @param outputStatus consumer of status-messages
+     * @param call sends the request
+     * @return response
+     * @throws IOException in case of an IO-error of the request
+     * @throws ProcessCanceledException if the request has been cancelled
+     */
+    String execute(LlmMetrics.Transport transport, LlmResponseCache.Key key, Priority priority,
+                   ProgressIndicator indicator, Consumer<String> tokenConsumer, Runnable resetHandler,
+                   Consumer<String> outputStatus, Call call) throws IOException {
+        final Lane lane = lanes.get(transport);
+        while (true) {
+            final Flight flight;
+            final boolean leader;
+            synchronized (lane) {
+                final Flight current = lane.flights.get(key);
+                leader = (current == null);
+                flight = leader ? new Flight(priority) : current;
+                if (leader) {
+                    lane.flights.put(key, flight);
+                } else if (priority.compareTo(flight.priority) < 0) {
+                    // The request in progress mustn't be preempted if the user waits for it.
+                    raisePriority(lane, flight, priority);
+                }
+            }
+            if (!leader) {
+                LOGGER.info("Identical request in progress, the response is shared");
+                outputStatus.accept("Waiting for identical request");
+                final String response = flight.follow(tokenConsumer, indicator);
+                if (response != null) {
+                    return response;
+                }
+                LOGGER.info("Shared request failed, the request is sent itself");
+                // The response starts again, the tokens of the failed request mustn't be part of it.
+                resetHandler.run();
+                continue;
+            }
+            String response = null;
+            try {
+                final Ticket ticket = acquire(lane, flight, indicator, outputStatus);
+                try {
+                    response = call.call(flight::publish);
+                } finally {
+                    release(lane, ticket);
+                }
+                return response;
+            } finally {
+                synchronized (lane) {
+                    lane.flights.remove(key, flight);
+                }
+                flight.finish(response);
+            }
+        }
+    }
+
+    /**
+     * Raises the priority of a request, a waiting request is moved forward in the queue.
+     * @param lane lane of the transport (locked)
+     * @param flight request
+     * @param priority new priority
+     */
+    private static void raisePriority(Lane lane, Flight flight, Priority priority) {
+        final List<Ticket> tickets = new ArrayList<>();
+        lane.waiting.removeIf(ticket -> ticket.flight == flight && tickets.add(ticket));
+        flight.priority = priority;
+        lane.waiting.addAll(tickets);
+    }
+
+    /**
+     * Waits for a free slot. A request of the user preempts a running batch-request if there is no free slot.
+     * @param lane lane of the transport
+     * @param flight request
+     * @param indicator progress-indicator
+     * @param outputStatus consumer of status-messages
+     * @return ticket of the running request
+     */
+    private static Ticket acquire(Lane lane, Flight flight, ProgressIndicator indicator, Consumer<String> outputStatus) {
+        synchronized (lane) {
+            final Ticket ticket = new Ticket(flight, indicator, lane.nextSeq++);
+            lane.waiting.add(ticket);
+            boolean reported = false;
+            try {
+                while (true) {
+                    if (indicator.isCanceled()) {
+                        throw new ProcessCanceledException();
+                    }
+                    final int capacity = Math.max(1, lane.capacity.getAsInt());
+                    if (lane.waiting.peek() == ticket && lane.running.size() < capacity) {
+                        lane.waiting.poll();
+                        lane.running.add(ticket);
+                        return ticket;
+                    }
+                    if (flight.priority != Priority.BATCH && lane.running.size() >= capacity) {
+                        preemptBatch(lane);
+                    }
+                    if (!reported) {
+                        outputStatus.accept(String.format("Waiting for a free slot (%d requests queued)", lane.waiting.size()));
+                        reported = true;
+                    }
+                    lane.wait(AWAIT_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessCanceledException(e);
+            } finally {
+                if (!lane.running.contains(ticket)) {
+                    lane.waiting.remove(ticket);
+                    lane.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the youngest running batch-request, unless a batch-request is being cancelled already.
+     * @param lane lane of the transport (locked)
+     */
+    private static void preemptBatch(Lane lane) {
+        Ticket victim = null;
+        for (Ticket running : lane.running) {
+            if (running.flight.priority != Priority.BATCH) {
+                continue;
+            }
+            if (running.preempted) {
+                return;
+            }
+            if (victim == null || running.seq > victim.seq) {
+                victim = running;
+            }
+        }
+        if (victim != null) {
+            LOGGER.info("Batch-request cancelled in favour of a request of the user");
+            victim.preempted = true;
+            victim.indicator.cancel();
+        }
+    }
+
+    private static void release(Lane lane, Ticket ticket) {
+        synchronized (lane) {
+            lane.running.remove(ticket);
+            lane.notifyAll();
+        }
+    }
+
+    /**
+     * Gets the number of requests which may be in progress at the same time.
+     * @param transport transport
+     * @return capacity
+     */
+    int getCapacity(LlmMetrics.Transport transport) {
+        return Math.max(1, lanes.get(transport).capacity.getAsInt());
+    }
+
+    /**
+     * Gets the number of requests in progress.
+     * @param transport transport
+     * @return requests in progress
+     */
+    int getRunning(LlmMetrics.Transport transport) {
+        final Lane lane = lanes.get(transport);
+        synchronized (lane) {
+            return lane.running.size();
+        }
+    }
+
+    /**
+     * Gets the number of waiting requests.
+     * @param transport transport
+     * @return waiting requests
+     */
+    int getWaiting(LlmMetrics.Transport transport) {
+        final Lane lane = lanes.get(transport);
+        synchronized (lane) {
+            return lane.waiting.size();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the responses of identical requests.
+ * <p>
+ * The key is the SHA-256 of the endpoint (server and protocol) and of all fields of the {@link LlmTask}.
+ * The responses are kept in a size-bounded LRU in memory and in a {@link ResponseSegmentStore}
+ * in the system-directory of the IDE, so they survive a restart. A cached response contains the
+ * boundaries of the tokens, a hit is replayed token by token through the response-stream.
+ * <p>
+ * The cache can be switched off in the settings (bypass).
+ * <p>
+ * Access instance via: {@code ApplicationManager.getApplication().getService(LlmResponseCache.class)}.
+ */
+@Service
+public final class LlmResponseCache implements Disposable {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(LlmResponseCache.class);
+
+    /** maximum size of the responses in memory */
+    private static final long MAX_MEMORY_BYTES = 8L * 1024 * 1024;
+    /** maximum size of a segment on disk */
+    private static final long MAX_SEGMENT_BYTES = 4L * 1024 * 1024;
+    /** maximum number of segments on disk */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Key of a response (SHA-256).
+     */
+    record Key(long h0, long h1, long h2, long h3) {
+        static Key read(ByteBuffer buf) {
+            return new Key(buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong());
+        }
+
+        void write(ByteBuffer buf) {
+            buf.putLong(h0).putLong(h1).putLong(h2).putLong(h3);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016x%016x%016x%016x", h0, h1, h2, h3);
+        }
+    }
+
+    /** responses in memory (access-order) */
+    private final LinkedHashMap<Key, CachedResponse> lru = new LinkedHashMap<>(64, 0.75f, true);
+    /** size of the responses in memory */
+    private long memoryBytes;
+    /** store on disk, opened lazily */
+    private ResponseSegmentStore store;
+    /** <code>true</code> if the store couldn't be opened */
+    private boolean storeFailed;
+
+    /** number of hits */
+    private final AtomicLong hits = new AtomicLong();
+    /** number of hits read from disk */
+    private final AtomicLong diskHits = new AtomicLong();
+    /** number of misses */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Gets the instance of the cache.
+     * @return cache
+     */
+    static LlmResponseCache getInstance() {
+        return ApplicationManager.getApplication().getService(LlmResponseCache.class);
+    }
+
+    /**
+     * Checks if the cache is to be used (not bypassed in the settings).
+     * @return <code>true</code> if enabled
+     */
+    boolean isEnabled() {
+        return ApplicationManager.getApplication().getService(LlmSettings.class).isResponseCache();
+    }
+
+    /**
+     * Computes the key of a request.
+     * @param endpoint identity of the server, e.g. URL of the endpoint
+     * @param llmTask request
+     * @return key
+     */
+    static Key createKey(String endpoint, LlmTask llmTask) {
+        return createKey(endpoint, llmTask, List.of());
+    }
+
+    /**
+     * Computes the key of a request of a chat-session.
+     * @param endpoint identity of the server, e.g. URL of the endpoint
+     * @param llmTask request
+     * @param history messages of the previous turns, empty for a single request
+     * @return key
+     */
+    static Key createKey(String endpoint, LlmTask llmTask, List<LlmChatSession.Message> history) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+        updateDigest(md, endpoint);
+        md.update(llmTask.type().getId());
+        updateDigest(md, llmTask.systemPrompt());
+        updateDigest(md, llmTask.prompt());
+        updateDigest(md, llmTask.fimBegin());
+        updateDigest(md, llmTask.fimEnd());
+        for (LlmChatSession.Message message : history) {
+            updateDigest(md, message.role());
+            updateDigest(md, message.content());
+        }
+        return Key.read(ByteBuffer.wrap(md.digest()));
+    }
+
+    /**
+     * Adds a nullable string with its length (so that the fields can't be shifted).
+     * @param md digest
+     * @param s string or <code>null</code>
+     */
+    private static void updateDigest(MessageDigest md, String s) {
+        final ByteBuffer bufLen = ByteBuffer.allocate(4);
+        if (s == null) {
+            md.update(bufLen.putInt(-1).array());
+            return;
+        }
+        final byte[] buf = s.getBytes(StandardCharsets.UTF_8);
+        md.update(bufLen.putInt(buf.length).array());
+        md.update(buf);
+    }
+
+    /**
+     * Looks up a response.
+     * @param key key of the request
+     * @return response or <code>null</code>
+     */
+    synchronized CachedResponse get(Key key) {
+        CachedResponse response = lru.get(key);
+        if (response == null) {
+            final ResponseSegmentStore diskStore = getStore();
+            if (diskStore != null) {
+                response = diskStore.get(key);
+                if (response != null) {
+                    diskHits.incrementAndGet();
+                    putMemory(key, response);
+                }
+            }
+        }
+        if (response != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        LOGGER.info(String.format("Response-cache %s: %s (hits=%d, disk-hits=%d, misses=%d)",
+                (response != null) ? "hit" : "miss", key, hits.get(), diskHits.get(), misses.get()));
+        return response;
+    }
+
+    /**
+     * Stores a complete response.
+     * @param key key of the request
+     * @param response response
+     */
+    synchronized void put(Key key, CachedResponse response) {
+        putMemory(key, response);
+        final ResponseSegmentStore diskStore = getStore();
+        if (diskStore != null) {
+            try {
+                diskStore.put(key, response);
+            } catch (IOException e) {
+                LOGGER.warn("Can't write response-cache: " + e);
+            }
+        }
+    }
+
+    private void putMemory(Key key, CachedResponse response) {
+        final CachedResponse old = lru.put(key, response);
+        if (old != null) {
+            memoryBytes -= old.getHeapSize();
+        }
+        memoryBytes += response.getHeapSize();
+        final Iterator<Map.Entry<Key, CachedResponse>> it = lru.entrySet().iterator();
+        while (memoryBytes > MAX_MEMORY_BYTES && it.hasNext()) {
+            final Map.Entry<Key, CachedResponse> eldest = it.next();
+            if (eldest.getKey().equals(key)) {
+                break;
+            }
+            memoryBytes -= eldest.getValue().getHeapSize();
+            it.remove();
+        }
+    }
+
+    private ResponseSegmentStore getStore() {
+        if (store == null && !storeFailed) {
+            final Path directory = Path.of(PathManager.getSystemPath(), "pluginllm01", "response-cache");
+            try {
+                store = new ResponseSegmentStore(directory, MAX_SEGMENT_BYTES, MAX_SEGMENTS);
+            } catch (IOException e) {
+                LOGGER.warn("Can't open response-cache in " + directory + ": " + e);
+                storeFailed = true;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Removes all responses in memory and on disk.
+     */
+    synchronized void clear() {
+        lru.clear();
+        memoryBytes = 0;
+        final ResponseSegmentStore diskStore = getStore();
+        if (diskStore != null) {
+            try {
+                diskStore.clear();
+            } catch (IOException e) {
+                LOGGER.warn("Can't clear response-cache: " + e);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of hits.
+     * @return hits
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of hits which have been read from disk.
+     * @return disk-hits
+     */
+    long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Gets the number of misses.
+     * @return misses
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (store != null) {
+            store.close();
+        }
+    }
+}
@@ -8,7 +8,7 @@ import org.jetbrains.annotations.NotNull;
 /**
  * Persistent settings component for the LLM Plugin.
  * <p>
- * Stores configuration data (server URL, default prompt) and handles its serialization/deserialization.
+ * Stores configuration data (server URL, default prompt, editor options) and handles its serialization/deserialization.
  * Uses IntelliJ's {@code @State} annotation to persist settings in {@code llm_settings.xml}.
  * <p>
  * Access instance via: {@code ApplicationManager.getApplication().getService(LlmSettings.class)}.
@@ -22,20 +22,89 @@ import org.jetbrains.annotations.NotNull;
 )
 public final class LlmSettings implements PersistentStateComponent<Element> {
 
+    /** default ignore-rules of the markdown-export */
+    static final String DEFAULT_EXPORT_IGNORE_PATTERNS = ".git, .idea, .gradle, build, target, out, node_modules, *.min.js, *.lock";
+
     private String serverUrl = "http://localhost:7681/";
+    private String serverEndpoints = "";
     private String defaultPrompt = "Look at the following code and implement missing parts, add JavaDoc if it is missing.\n\n[Range]";
+    private boolean streamingInsertion = true;
+    private boolean fimPrefetch = false;
+    private int fimPrefetchDelayMillis = 750;
+    private boolean responseCache = true;
+    private boolean inlineCompletion = false;
+    private int inlineCompletionDelayMillis = 300;
+    private boolean fimAutoContext = true;
+    private int fimContextTokens = 1024;
+    private int fimPrefixPercent = 75;
+    private String tokenizerPath = "";
+    private int maxPromptTokens = 4096;
+    private int serverSlots = 4;
+    private int batchConcurrency = 0;
+    private String exportIgnorePatterns = DEFAULT_EXPORT_IGNORE_PATTERNS;
+    private int exportBudgetTokens = 32768;
+    private String latencyProfiles = LlmLatencyProfile.DEFAULT_PROFILES;
+    private String promptProfile = "chat";
+    private String fimProfile = "fim";
+    private int contextBudgetTokens = 2048;
+    private boolean embeddingSearch = false;
+    private String embeddingUrl = "";
 
     @Override
     public void loadState(@NotNull Element state) {
         serverUrl = state.getAttributeValue("serverUrl");
+        serverEndpoints = state.getAttributeValue("serverEndpoints", "");
         defaultPrompt = state.getAttributeValue("defaultPrompt");
+        streamingInsertion = Boolean.parseBoolean(state.getAttributeValue("streamingInsertion", "true"));
+        fimPrefetch = Boolean.parseBoolean(state.getAttributeValue("fimPrefetch", "false"));
+        fimPrefetchDelayMillis = Integer.parseInt(state.getAttributeValue("fimPrefetchDelayMillis", "750"));
+        responseCache = Boolean.parseBoolean(state.getAttributeValue("responseCache", "true"));
+        inlineCompletion = Boolean.parseBoolean(state.getAttributeValue("inlineCompletion", "false"));
+        inlineCompletionDelayMillis = Integer.parseInt(state.getAttributeValue("inlineCompletionDelayMillis", "300"));
+        fimAutoContext = Boolean.parseBoolean(state.getAttributeValue("fimAutoContext", "true"));
+        fimContextTokens = Integer.parseInt(state.getAttributeValue("fimContextTokens", "1024"));
+        fimPrefixPercent = Integer.parseInt(state.getAttributeValue("fimPrefixPercent", "75"));
+        tokenizerPath = state.getAttributeValue("tokenizerPath", "");
+        maxPromptTokens = Integer.parseInt(state.getAttributeValue("maxPromptTokens", "4096"));
+        serverSlots = Integer.parseInt(state.getAttributeValue("serverSlots", "4"));
+        batchConcurrency = Integer.parseInt(state.getAttributeValue("batchConcurrency", "0"));
+        exportIgnorePatterns = state.getAttributeValue("exportIgnorePatterns", DEFAULT_EXPORT_IGNORE_PATTERNS);
+        exportBudgetTokens = Integer.parseInt(state.getAttributeValue("exportBudgetTokens", "32768"));
+        latencyProfiles = state.getAttributeValue("latencyProfiles", LlmLatencyProfile.DEFAULT_PROFILES);
+        promptProfile = state.getAttributeValue("promptProfile", "chat");
+        fimProfile = state.getAttributeValue("fimProfile", "fim");
+        contextBudgetTokens = Integer.parseInt(state.getAttributeValue("contextBudgetTokens", "2048"));
+        embeddingSearch = Boolean.parseBoolean(state.getAttributeValue("embeddingSearch", "false"));
+        embeddingUrl = state.getAttributeValue("embeddingUrl", "");
     }
 
     @Override
     public @NotNull Element getState() {
         Element element = new Element("state");
         element.setAttribute("serverUrl", serverUrl);
+        element.setAttribute("serverEndpoints", serverEndpoints);
         element.setAttribute("defaultPrompt", defaultPrompt);
+        element.setAttribute("streamingInsertion", Boolean.toString(streamingInsertion));
+        element.setAttribute("fimPrefetch", Boolean.toString(fimPrefetch));
+        element.setAttribute("fimPrefetchDelayMillis", Integer.toString(fimPrefetchDelayMillis));
+        element.setAttribute("responseCache", Boolean.toString(responseCache));
+        element.setAttribute("inlineCompletion", Boolean.toString(inlineCompletion));
+        element.setAttribute("inlineCompletionDelayMillis", Integer.toString(inlineCompletionDelayMillis));
+        element.setAttribute("fimAutoContext", Boolean.toString(fimAutoContext));
+        element.setAttribute("fimContextTokens", Integer.toString(fimContextTokens));
+        element.setAttribute("fimPrefixPercent", Integer.toString(fimPrefixPercent));
+        element.setAttribute("tokenizerPath", tokenizerPath);
+        element.setAttribute("maxPromptTokens", Integer.toString(maxPromptTokens));
+        element.setAttribute("serverSlots", Integer.toString(serverSlots));
+        element.setAttribute("batchConcurrency", Integer.toString(batchConcurrency));
+        element.setAttribute("exportIgnorePatterns", exportIgnorePatterns);
+        element.setAttribute("exportBudgetTokens", Integer.toString(exportBudgetTokens));
+        element.setAttribute("latencyProfiles", latencyProfiles);
+        element.setAttribute("promptProfile", promptProfile);
+        element.setAttribute("fimProfile", fimProfile);
+        element.setAttribute("contextBudgetTokens", Integer.toString(contextBudgetTokens));
+        element.setAttribute("embeddingSearch", Boolean.toString(embeddingSearch));
+        element.setAttribute("embeddingUrl", embeddingUrl);
         return element;
     }
 
@@ -47,6 +116,18 @@ public final class LlmSettings implements PersistentStateComponent<Element> {
         this.serverUrl = serverUrl;
     }
 
+    /**
+     * Gets further endpoints of the LLM-server, one endpoint "URL [weight]" per line.
+     * @return endpoints, empty if the server-URL is the only endpoint
+     */
+    public String getServerEndpoints() {
+        return serverEndpoints;
+    }
+
+    public void setServerEndpoints(String serverEndpoints) {
+        this.serverEndpoints = serverEndpoints;
+    }
+
     public String getDefaultPrompt() {
         return defaultPrompt;
     }
@@ -54,4 +135,208 @@ public final class LlmSettings implements PersistentStateComponent<Element> {
     public void setDefaultPrompt(String defaultPrompt) {
         this.defaultPrompt = defaultPrompt;
     }
+
+    public boolean isStreamingInsertion() {
+        return streamingInsertion;
+    }
+
+    public void setStreamingInsertion(boolean streamingInsertion) {
+        this.streamingInsertion = streamingInsertion;
+    }
+
+    public boolean isFimPrefetch() {
+        return fimPrefetch;
+    }
+
+    public void setFimPrefetch(boolean fimPrefetch) {
+        this.fimPrefetch = fimPrefetch;
+    }
+
+    public int getFimPrefetchDelayMillis() {
+        return fimPrefetchDelayMillis;
+    }
+
+    public void setFimPrefetchDelayMillis(int fimPrefetchDelayMillis) {
+        this.fimPrefetchDelayMillis = fimPrefetchDelayMillis;
+    }
+
+    public boolean isResponseCache() {
+        return responseCache;
+    }
+
+    public void setResponseCache(boolean responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public boolean isInlineCompletion() {
+        return inlineCompletion;
+    }
+
+    public void setInlineCompletion(boolean inlineCompletion) {
+        this.inlineCompletion = inlineCompletion;
+    }
+
+    public int getInlineCompletionDelayMillis() {
+        return inlineCompletionDelayMillis;
+    }
+
+    public void setInlineCompletionDelayMillis(int inlineCompletionDelayMillis) {
+        this.inlineCompletionDelayMillis = inlineCompletionDelayMillis;
+    }
+
+    public boolean isFimAutoContext() {
+        return fimAutoContext;
+    }
+
+    public void setFimAutoContext(boolean fimAutoContext) {
+        this.fimAutoContext = fimAutoContext;
+    }
+
+    public int getFimContextTokens() {
+        return fimContextTokens;
+    }
+
+    public void setFimContextTokens(int fimContextTokens) {
+        this.fimContextTokens = fimContextTokens;
+    }
+
+    public int getFimPrefixPercent() {
+        return fimPrefixPercent;
+    }
+
+    public void setFimPrefixPercent(int fimPrefixPercent) {
+        this.fimPrefixPercent = fimPrefixPercent;
+    }
+
+    public String getTokenizerPath() {
+        return tokenizerPath;
+    }
+
+    public void setTokenizerPath(String tokenizerPath) {
+        this.tokenizerPath = tokenizerPath;
+    }
+
+    public int getMaxPromptTokens() {
+        return maxPromptTokens;
+    }
+
+    public void setMaxPromptTokens(int maxPromptTokens) {
+        this.maxPromptTokens = maxPromptTokens;
+    }
+
+    public int getServerSlots() {
+        return serverSlots;
+    }
+
+    public void setServerSlots(int serverSlots) {
+        this.serverSlots = serverSlots;
+    }
+
+    public int getBatchConcurrency() {
+        return batchConcurrency;
+    }
+
+    public void setBatchConcurrency(int batchConcurrency) {
+        this.batchConcurrency = batchConcurrency;
+    }
+
+    public String getExportIgnorePatterns() {
+        return exportIgnorePatterns;
+    }
+
+    public void setExportIgnorePatterns(String exportIgnorePatterns) {
+        this.exportIgnorePatterns = exportIgnorePatterns;
+    }
+
+    public int getExportBudgetTokens() {
+        return exportBudgetTokens;
+    }
+
+    public void setExportBudgetTokens(int exportBudgetTokens) {
+        this.exportBudgetTokens = exportBudgetTokens;
+    }
+
+    /**
+     * Gets the latency-profiles, one profile per line (see {@link LlmLatencyProfile}).
+     * @return profiles
+     */
+    public String getLatencyProfiles() {
+        return latencyProfiles;
+    }
+
+    public void setLatencyProfiles(String latencyProfiles) {
+        this.latencyProfiles = latencyProfiles;
+    }
+
+    public String getPromptProfile() {
+        return promptProfile;
+    }
+
+    public void setPromptProfile(String promptProfile) {
+        this.promptProfile = promptProfile;
+    }
+
+    public String getFimProfile() {
+        return fimProfile;
+    }
+
+    public void setFimProfile(String fimProfile) {
+        this.fimProfile = fimProfile;
+    }
+
+    /**
+     * Gets the maximum number of tokens of the chunks of the project inserted at the placeholder [Context]
+     * (and of the skeletons at the placeholder [Skeletons]).
+     * @return budget in tokens
+     */
+    public int getContextBudgetTokens() {
+        return contextBudgetTokens;
+    }
+
+    public void setContextBudgetTokens(int contextBudgetTokens) {
+        this.contextBudgetTokens = contextBudgetTokens;
+    }
+
+    /**
+     * Checks if the chunks of the project are searched semantically (embeddings), too.
+     * @return <code>true</code> if the embeddings are used
+     */
+    public boolean isEmbeddingSearch() {
+        return embeddingSearch;
+    }
+
+    public void setEmbeddingSearch(boolean embeddingSearch) {
+        this.embeddingSearch = embeddingSearch;
+    }
+
+    /**
+     * Gets the URL of the server computing the embeddings.
+     * @return URL, empty if the primary server is used
+     */
+    public String getEmbeddingUrl() {
+        return embeddingUrl;
+    }
+
+    public void setEmbeddingUrl(String embeddingUrl) {
+        this.embeddingUrl = embeddingUrl;
+    }
+
+    /**
+     * Gets the latency-profile selected for a type of request. The fill-in-middle profile limits the inline and
+     * speculative completion only, a fill-in-middle request executed by the user gets the complete answer.
+     * @param taskType type of the request
+     * @param speculative <code>true</code> in case of an inline completion or a prefetch
+     * @return profile, {@link LlmLatencyProfile#NONE} if no (or an unknown) profile has been selected
+     */
+    LlmLatencyProfile getLatencyProfile(LlmTaskType taskType, boolean speculative) {
+        if (taskType == LlmTaskType.FILL_IN_MIDDLE && !speculative) {
+            return LlmLatencyProfile.NONE;
+        }
+        final String name = switch (taskType) {
+            case PROMPT -> promptProfile;
+            case FILL_IN_MIDDLE -> fimProfile;
+        };
+        final LlmLatencyProfile profile = LlmLatencyProfile.parseProfiles(latencyProfiles).get(name.trim());
+        return (profile != null) ? profile : LlmLatencyProfile.NONE;
+    }
 }
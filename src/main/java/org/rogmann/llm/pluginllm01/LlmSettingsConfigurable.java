@@ -2,6 +2,7 @@ package org.rogmann.llm.pluginllm01;
 
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.options.Configurable;
+import com.intellij.ui.components.JBCheckBox;
 import com.intellij.ui.components.JBLabel;
 import com.intellij.ui.components.JBTextField;
 import com.intellij.ui.components.JBTextArea;
@@ -11,7 +12,7 @@ import java.awt.*;
 /**
  * Configuration UI for the LLM Plugin settings.
  * <p>
- * Provides a form to edit the server URL and default prompt template.
+ * Provides a form to edit the server URL, the default prompt template and the editor options.
  * Binds to {@link LlmSettings} to save/restore values.
  * Registered in {@code plugin.xml} under the "Tools" settings category.
  *
@@ -22,6 +23,31 @@ public class LlmSettingsConfigurable implements Configurable {
     private JPanel mainPanel;
     private JBTextField serverUrlField;
     private JBTextArea defaultPromptArea;
+    private JBCheckBox streamingInsertionBox;
+    private JBCheckBox fimPrefetchBox;
+    private JSpinner fimPrefetchDelaySpinner;
+    private JBCheckBox responseCacheBox;
+    private JBLabel responseCacheStatsLabel;
+    private JBCheckBox inlineCompletionBox;
+    private JSpinner inlineCompletionDelaySpinner;
+    private JBCheckBox fimAutoContextBox;
+    private JSpinner fimContextTokensSpinner;
+    private JSpinner fimPrefixPercentSpinner;
+    private JBTextField tokenizerPathField;
+    private JSpinner maxPromptTokensSpinner;
+    private JSpinner serverSlotsSpinner;
+    private JBLabel kvCacheStatsLabel;
+    private JBTextArea serverEndpointsArea;
+    private JBLabel endpointsStatusLabel;
+    private JSpinner batchConcurrencySpinner;
+    private JBTextField exportIgnorePatternsField;
+    private JSpinner exportBudgetTokensSpinner;
+    private JBTextArea latencyProfilesArea;
+    private JComboBox<String> promptProfileBox;
+    private JComboBox<String> fimProfileBox;
+    private JSpinner contextBudgetTokensSpinner;
+    private JBCheckBox embeddingSearchBox;
+    private JBTextField embeddingUrlField;
 
     @Override
     public String getDisplayName() {
@@ -55,6 +81,150 @@ public class LlmSettingsConfigurable implements Configurable {
         JScrollPane scroll = new JScrollPane(defaultPromptArea);
         mainPanel.add(scroll, gbc);
 
+        // Live-Vorschau im Editor
+        gbc.gridy = 4;
+        streamingInsertionBox = new JBCheckBox("Show tokens in the editor while generating");
+        mainPanel.add(streamingInsertionBox, gbc);
+
+        // Spekulatives FIM-Prefetch
+        gbc.gridy = 5;
+        fimPrefetchBox = new JBCheckBox("Prefetch fill-in-middle when the caret is idle in the marked range");
+        mainPanel.add(fimPrefetchBox, gbc);
+        gbc.gridy = 6;
+        JPanel delayPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        delayPanel.add(new JBLabel("Idle time before prefetch (ms): "));
+        fimPrefetchDelaySpinner = new JSpinner(new SpinnerNumberModel(750, 100, 10000, 50));
+        delayPanel.add(fimPrefetchDelaySpinner);
+        mainPanel.add(delayPanel, gbc);
+
+        // Antwort-Cache
+        gbc.gridy = 7;
+        responseCacheBox = new JBCheckBox("Reuse cached responses of identical requests");
+        mainPanel.add(responseCacheBox, gbc);
+        gbc.gridy = 8;
+        JPanel cachePanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        responseCacheStatsLabel = new JBLabel();
+        cachePanel.add(responseCacheStatsLabel);
+        JButton clearCacheButton = new JButton("Clear response cache");
+        clearCacheButton.addActionListener(e -> LlmResponseCache.getInstance().clear());
+        cachePanel.add(clearCacheButton);
+        mainPanel.add(cachePanel, gbc);
+
+        // Inline-Vervollständigung (Ghost-Text)
+        gbc.gridy = 9;
+        inlineCompletionBox = new JBCheckBox("Inline fill-in-middle completion while typing (Tab accepts)");
+        mainPanel.add(inlineCompletionBox, gbc);
+        gbc.gridy = 10;
+        JPanel inlineDelayPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        inlineDelayPanel.add(new JBLabel("Typing pause before request (ms): "));
+        inlineCompletionDelaySpinner = new JSpinner(new SpinnerNumberModel(300, 50, 5000, 25));
+        inlineDelayPanel.add(inlineCompletionDelaySpinner);
+        mainPanel.add(inlineDelayPanel, gbc);
+
+        // Automatischer FIM-Kontext
+        gbc.gridy = 11;
+        fimAutoContextBox = new JBCheckBox("Fill-in-middle: use the context around the caret instead of the marked range");
+        mainPanel.add(fimAutoContextBox, gbc);
+        gbc.gridy = 12;
+        JPanel fimContextPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        fimContextPanel.add(new JBLabel("Context budget (tokens): "));
+        fimContextTokensSpinner = new JSpinner(new SpinnerNumberModel(1024, 64, 32768, 64));
+        fimContextPanel.add(fimContextTokensSpinner);
+        fimContextPanel.add(new JBLabel("   prefix share (%): "));
+        fimPrefixPercentSpinner = new JSpinner(new SpinnerNumberModel(75, 0, 100, 5));
+        fimContextPanel.add(fimPrefixPercentSpinner);
+        mainPanel.add(fimContextPanel, gbc);
+
+        // Tokenizer
+        gbc.gridy = 13;
+        mainPanel.add(new JBLabel("Tokenizer of the model (tokenizer.json or GGUF-file, empty = estimation):"), gbc);
+        gbc.gridy = 14;
+        tokenizerPathField = new JBTextField(30);
+        mainPanel.add(tokenizerPathField, gbc);
+        gbc.gridy = 15;
+        JPanel maxPromptPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        maxPromptPanel.add(new JBLabel("Maximum prompt size (tokens, 0 = no check): "));
+        maxPromptTokensSpinner = new JSpinner(new SpinnerNumberModel(4096, 0, 1048576, 256));
+        maxPromptPanel.add(maxPromptTokensSpinner);
+        mainPanel.add(maxPromptPanel, gbc);
+
+        // Slot-Affinität (KV-Cache des Servers)
+        gbc.gridy = 16;
+        JPanel slotsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        slotsPanel.add(new JBLabel("Slots of the server (0 = server chooses the slot): "));
+        serverSlotsSpinner = new JSpinner(new SpinnerNumberModel(4, 0, 256, 1));
+        slotsPanel.add(serverSlotsSpinner);
+        kvCacheStatsLabel = new JBLabel();
+        slotsPanel.add(kvCacheStatsLabel);
+        mainPanel.add(slotsPanel, gbc);
+
+        // Weitere Endpunkte (Lastverteilung)
+        gbc.gridy = 17;
+        mainPanel.add(new JBLabel("Further endpoints (one \"URL [weight]\" per line):"), gbc);
+        gbc.gridy = 18;
+        serverEndpointsArea = new JBTextArea(3, 30);
+        mainPanel.add(new JScrollPane(serverEndpointsArea), gbc);
+        gbc.gridy = 19;
+        endpointsStatusLabel = new JBLabel();
+        mainPanel.add(endpointsStatusLabel, gbc);
+
+        // Batch-Prompt über mehrere Dateien
+        gbc.gridy = 20;
+        JPanel batchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        batchPanel.add(new JBLabel("Files of a batch-prompt in parallel (0 = slots of the endpoints): "));
+        batchConcurrencySpinner = new JSpinner(new SpinnerNumberModel(0, 0, 256, 1));
+        batchPanel.add(batchConcurrencySpinner);
+        mainPanel.add(batchPanel, gbc);
+
+        // Export als Markdown
+        gbc.gridy = 21;
+        mainPanel.add(new JBLabel("Markdown-export: ignored file- and directory-names (glob-patterns, comma-separated):"), gbc);
+        gbc.gridy = 22;
+        exportIgnorePatternsField = new JBTextField(30);
+        mainPanel.add(exportIgnorePatternsField, gbc);
+        gbc.gridy = 23;
+        JPanel exportBudgetPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        exportBudgetPanel.add(new JBLabel("Markdown-export: budget (tokens, 0 = no limit): "));
+        exportBudgetTokensSpinner = new JSpinner(new SpinnerNumberModel(32768, 0, 16777216, 1024));
+        exportBudgetPanel.add(exportBudgetTokensSpinner);
+        mainPanel.add(exportBudgetPanel, gbc);
+
+        // Latenz-Profile (n_predict, Stop-Sequenzen, Sampling, Deadline)
+        gbc.gridy = 24;
+        mainPanel.add(new JBLabel("Latency profiles (\"name: n_predict=.. stop=.. temperature=.. top_k=.. top_p=.. deadline_ms=..\" per line):"), gbc);
+        gbc.gridy = 25;
+        latencyProfilesArea = new JBTextArea(3, 30);
+        mainPanel.add(new JScrollPane(latencyProfilesArea), gbc);
+        gbc.gridy = 26;
+        JPanel profilesPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        profilesPanel.add(new JBLabel("Profile of prompts: "));
+        promptProfileBox = new JComboBox<>();
+        promptProfileBox.setEditable(true);
+        profilesPanel.add(promptProfileBox);
+        profilesPanel.add(new JBLabel("   of inline fill-in-middle: "));
+        fimProfileBox = new JComboBox<>();
+        fimProfileBox.setEditable(true);
+        profilesPanel.add(fimProfileBox);
+        mainPanel.add(profilesPanel, gbc);
+
+        // Kontext aus dem Projekt (BM25-Index) für den Platzhalter [Context]
+        gbc.gridy = 27;
+        JPanel contextPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        contextPanel.add(new JBLabel("Project context [Context], [Skeletons]: budget (tokens): "));
+        contextBudgetTokensSpinner = new JSpinner(new SpinnerNumberModel(2048, 0, 131072, 256));
+        contextPanel.add(contextBudgetTokensSpinner);
+        mainPanel.add(contextPanel, gbc);
+
+        // Semantische Suche (Embeddings) für den Platzhalter [Context]
+        gbc.gridy = 28;
+        JPanel embeddingPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        embeddingSearchBox = new JBCheckBox("Semantic search (embeddings)");
+        embeddingPanel.add(embeddingSearchBox);
+        embeddingPanel.add(new JBLabel("   server (empty = primary server): "));
+        embeddingUrlField = new JBTextField(20);
+        embeddingPanel.add(embeddingUrlField);
+        mainPanel.add(embeddingPanel, gbc);
+
         return mainPanel;
     }
 
@@ -62,7 +232,29 @@ public class LlmSettingsConfigurable implements Configurable {
     public boolean isModified() {
         LlmSettings settings = ApplicationManager.getApplication().getService(LlmSettings.class);
         return !serverUrlField.getText().equals(settings.getServerUrl()) ||
-                !defaultPromptArea.getText().equals(settings.getDefaultPrompt());
+                !defaultPromptArea.getText().equals(settings.getDefaultPrompt()) ||
+                streamingInsertionBox.isSelected() != settings.isStreamingInsertion() ||
+                fimPrefetchBox.isSelected() != settings.isFimPrefetch() ||
+                (Integer) fimPrefetchDelaySpinner.getValue() != settings.getFimPrefetchDelayMillis() ||
+                responseCacheBox.isSelected() != settings.isResponseCache() ||
+                inlineCompletionBox.isSelected() != settings.isInlineCompletion() ||
+                (Integer) inlineCompletionDelaySpinner.getValue() != settings.getInlineCompletionDelayMillis() ||
+                fimAutoContextBox.isSelected() != settings.isFimAutoContext() ||
+                (Integer) fimContextTokensSpinner.getValue() != settings.getFimContextTokens() ||
+                (Integer) fimPrefixPercentSpinner.getValue() != settings.getFimPrefixPercent() ||
+                !tokenizerPathField.getText().equals(settings.getTokenizerPath()) ||
+                (Integer) maxPromptTokensSpinner.getValue() != settings.getMaxPromptTokens() ||
+                (Integer) serverSlotsSpinner.getValue() != settings.getServerSlots() ||
+                !serverEndpointsArea.getText().equals(settings.getServerEndpoints()) ||
+                (Integer) batchConcurrencySpinner.getValue() != settings.getBatchConcurrency() ||
+                !exportIgnorePatternsField.getText().equals(settings.getExportIgnorePatterns()) ||
+                (Integer) exportBudgetTokensSpinner.getValue() != settings.getExportBudgetTokens() ||
+                !latencyProfilesArea.getText().equals(settings.getLatencyProfiles()) ||
+                !getProfileName(promptProfileBox).equals(settings.getPromptProfile()) ||
+                !getProfileName(fimProfileBox).equals(settings.getFimProfile()) ||
+                (Integer) contextBudgetTokensSpinner.getValue() != settings.getContextBudgetTokens() ||
+                embeddingSearchBox.isSelected() != settings.isEmbeddingSearch() ||
+                !embeddingUrlField.getText().equals(settings.getEmbeddingUrl());
     }
 
     @Override
@@ -70,6 +262,28 @@ public class LlmSettingsConfigurable implements Configurable {
         LlmSettings settings = ApplicationManager.getApplication().getService(LlmSettings.class);
         settings.setServerUrl(serverUrlField.getText());
         settings.setDefaultPrompt(defaultPromptArea.getText());
+        settings.setStreamingInsertion(streamingInsertionBox.isSelected());
+        settings.setFimPrefetch(fimPrefetchBox.isSelected());
+        settings.setFimPrefetchDelayMillis((Integer) fimPrefetchDelaySpinner.getValue());
+        settings.setResponseCache(responseCacheBox.isSelected());
+        settings.setInlineCompletion(inlineCompletionBox.isSelected());
+        settings.setInlineCompletionDelayMillis((Integer) inlineCompletionDelaySpinner.getValue());
+        settings.setFimAutoContext(fimAutoContextBox.isSelected());
+        settings.setFimContextTokens((Integer) fimContextTokensSpinner.getValue());
+        settings.setFimPrefixPercent((Integer) fimPrefixPercentSpinner.getValue());
+        settings.setTokenizerPath(tokenizerPathField.getText());
+        settings.setMaxPromptTokens((Integer) maxPromptTokensSpinner.getValue());
+        settings.setServerSlots((Integer) serverSlotsSpinner.getValue());
+        settings.setServerEndpoints(serverEndpointsArea.getText());
+        settings.setBatchConcurrency((Integer) batchConcurrencySpinner.getValue());
+        settings.setExportIgnorePatterns(exportIgnorePatternsField.getText());
+        settings.setExportBudgetTokens((Integer) exportBudgetTokensSpinner.getValue());
+        settings.setLatencyProfiles(latencyProfilesArea.getText());
+        settings.setPromptProfile(getProfileName(promptProfileBox));
+        settings.setFimProfile(getProfileName(fimProfileBox));
+        settings.setContextBudgetTokens((Integer) contextBudgetTokensSpinner.getValue());
+        settings.setEmbeddingSearch(embeddingSearchBox.isSelected());
+        settings.setEmbeddingUrl(embeddingUrlField.getText());
     }
 
     @Override
@@ -77,6 +291,48 @@ public class LlmSettingsConfigurable implements Configurable {
         LlmSettings settings = ApplicationManager.getApplication().getService(LlmSettings.class);
         serverUrlField.setText(settings.getServerUrl());
         defaultPromptArea.setText(settings.getDefaultPrompt());
+        streamingInsertionBox.setSelected(settings.isStreamingInsertion());
+        fimPrefetchBox.setSelected(settings.isFimPrefetch());
+        fimPrefetchDelaySpinner.setValue(settings.getFimPrefetchDelayMillis());
+        responseCacheBox.setSelected(settings.isResponseCache());
+        inlineCompletionBox.setSelected(settings.isInlineCompletion());
+        inlineCompletionDelaySpinner.setValue(settings.getInlineCompletionDelayMillis());
+        fimAutoContextBox.setSelected(settings.isFimAutoContext());
+        fimContextTokensSpinner.setValue(settings.getFimContextTokens());
+        fimPrefixPercentSpinner.setValue(settings.getFimPrefixPercent());
+        tokenizerPathField.setText(settings.getTokenizerPath());
+        maxPromptTokensSpinner.setValue(settings.getMaxPromptTokens());
+        serverSlotsSpinner.setValue(settings.getServerSlots());
+        serverEndpointsArea.setText(settings.getServerEndpoints());
+        batchConcurrencySpinner.setValue(settings.getBatchConcurrency());
+        exportIgnorePatternsField.setText(settings.getExportIgnorePatterns());
+        exportBudgetTokensSpinner.setValue(settings.getExportBudgetTokens());
+        latencyProfilesArea.setText(settings.getLatencyProfiles());
+        final String[] profileNames = LlmLatencyProfile.parseProfiles(settings.getLatencyProfiles()).keySet().toArray(new String[0]);
+        promptProfileBox.setModel(new DefaultComboBoxModel<>(profileNames));
+        promptProfileBox.setSelectedItem(settings.getPromptProfile());
+        fimProfileBox.setModel(new DefaultComboBoxModel<>(profileNames));
+        fimProfileBox.setSelectedItem(settings.getFimProfile());
+        contextBudgetTokensSpinner.setValue(settings.getContextBudgetTokens());
+        embeddingSearchBox.setSelected(settings.isEmbeddingSearch());
+        embeddingUrlField.setText(settings.getEmbeddingUrl());
+        LlmResponseCache cache = LlmResponseCache.getInstance();
+        responseCacheStatsLabel.setText(String.format("Hits: %d (from disk: %d), misses: %d   ",
+                cache.getHits(), cache.getDiskHits(), cache.getMisses()));
+        LlmSlotAffinity slotAffinity = LlmSlotAffinity.getInstance();
+        kvCacheStatsLabel.setText(String.format("   prompt-tokens: %d, served from KV-cache: %d",
+                slotAffinity.getPromptTokens(), slotAffinity.getCachedTokens()));
+        endpointsStatusLabel.setText(LlmEndpointPool.getInstance().describe());
+    }
+
+    /**
+     * Gets the name of the profile chosen or entered in a combo-box.
+     * @param box combo-box
+     * @return name, empty if no profile has been chosen
+     */
+    private static String getProfileName(JComboBox<String> box) {
+        final Object item = box.getEditor().getItem();
+        return (item != null) ? item.toString().trim() : "";
     }
 
     @Override
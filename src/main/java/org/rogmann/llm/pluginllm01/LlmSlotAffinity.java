@@ -0,0 +1,84 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Assignment of requests to the slots of the server (llama.cpp, <code>id_slot</code>).
+ * <p>
+ * The server keeps the KV-cache of the last prompt of each slot. Consecutive requests of the same file
+ * (fill-in-middle) or of the same chat of a project are sent to the same slot, so the server only evaluates
+ * the part of the prompt which differs from the previous prompt (<code>cache_prompt</code>).
+ * The slots are assigned by the endpoint which executes the request (see {@link LlmEndpointPool#getSlot}),
+ * each server has its own slots.
+ * <p>
+ * The service counts the prompt-tokens and the prompt-tokens served from the KV-cache as reported by the server.
+ * <p>
+ * Access instance via: {@code ApplicationManager.getApplication().getService(LlmSlotAffinity.class)}.
+ */
+@Service
+public final class LlmSlotAffinity {
+    /** number of prompt-tokens */
+    private final AtomicLong promptTokens = new AtomicLong();
+    /** number of prompt-tokens served from the KV-cache */
+    private final AtomicLong cachedTokens = new AtomicLong();
+
+    /**
+     * Gets the instance of the service.
+     * @return service
+     */
+    static LlmSlotAffinity getInstance() {
+        return ApplicationManager.getApplication().getService(LlmSlotAffinity.class);
+    }
+
+    /**
+     * Builds the affinity-key of a request: the file of the editor in case of fill-in-middle,
+     * the project in case of a chat-prompt.
+     * @param project project
+     * @param editor editor or <code>null</code>
+     * @param type type of the request
+     * @return affinity-key
+     */
+    static String createKey(Project project, Editor editor, LlmTaskType type) {
+        final String projectKey = (project != null) ? project.getLocationHash() : "default";
+        if (type == LlmTaskType.FILL_IN_MIDDLE && editor != null) {
+            final VirtualFile file = FileDocumentManager.getInstance().getFile(editor.getDocument());
+            if (file != null) {
+                return projectKey + ':' + file.getPath();
+            }
+        }
+        return projectKey + ':' + type;
+    }
+
+    /**
+     * Counts the prompt-tokens of a response.
+     * @param numPromptTokens number of tokens of the prompt
+     * @param numCachedTokens number of tokens of the prompt served from the KV-cache
+     */
+    void recordPrompt(int numPromptTokens, int numCachedTokens) {
+        promptTokens.addAndGet(numPromptTokens);
+        cachedTokens.addAndGet(numCachedTokens);
+    }
+
+    /**
+     * Gets the number of prompt-tokens.
+     * @return prompt-tokens
+     */
+    long getPromptTokens() {
+        return promptTokens.get();
+    }
+
+    /**
+     * Gets the number of prompt-tokens served from the KV-cache.
+     * @return cached tokens
+     */
+    long getCachedTokens() {
+        return cachedTokens.get();
+    }
+}
@@ -0,0 +1,82 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Application-wide tokenizer used to count the tokens of prompts.
+ * <p>
+ * The tokenizer (<code>tokenizer.json</code> or GGUF-file of the model of the server) is configured in the settings,
+ * it is loaded lazily in a pooled thread. As long as no tokenizer is configured or loaded,
+ * {@link #getTokenCounter()} returns the estimation {@link FimContextExtractor#APPROXIMATE}.
+ * <p>
+ * Access instance via: {@code ApplicationManager.getApplication().getService(LlmTokenizerService.class)}.
+ */
+@Service
+public final class LlmTokenizerService {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(LlmTokenizerService.class);
+
+    /** loaded tokenizer or <code>null</code> */
+    private volatile BpeTokenizer tokenizer;
+    /** path of the loaded (or loading or failed) tokenizer */
+    private String tokenizerPath = "";
+
+    /**
+     * Gets the instance of the service.
+     * @return service
+     */
+    static LlmTokenizerService getInstance() {
+        return ApplicationManager.getApplication().getService(LlmTokenizerService.class);
+    }
+
+    /**
+     * Gets the tokenizer configured in the settings. The tokenizer is loaded in the background
+     * if the configuration has been changed.
+     * @return tokenizer or <code>null</code> if there is no tokenizer (yet)
+     */
+    BpeTokenizer getTokenizer() {
+        final String path = ApplicationManager.getApplication().getService(LlmSettings.class).getTokenizerPath();
+        synchronized (this) {
+            if (!path.equals(tokenizerPath)) {
+                tokenizerPath = path;
+                tokenizer = null;
+                if (!path.isBlank()) {
+                    ApplicationManager.getApplication().executeOnPooledThread(() -> load(path));
+                }
+            }
+        }
+        return tokenizer;
+    }
+
+    /**
+     * Gets a token-counter: the tokenizer if available, an estimation otherwise.
+     * @return token-counter
+     */
+    FimContextExtractor.TokenCounter getTokenCounter() {
+        final BpeTokenizer bpeTokenizer = getTokenizer();
+        return (bpeTokenizer != null) ? bpeTokenizer : FimContextExtractor.APPROXIMATE;
+    }
+
+    private void load(String path) {
+        final long tsStart = System.nanoTime();
+        final BpeTokenizer loaded;
+        try {
+            loaded = BpeTokenizer.load(Path.of(path.trim()));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Can't load tokenizer " + path + ": " + e);
+            return;
+        }
+        LOGGER.info(String.format("Tokenizer %s loaded in %d ms, %d tokens",
+                path, (System.nanoTime() - tsStart) / 1_000_000, loaded.getVocabSize()));
+        synchronized (this) {
+            if (path.equals(tokenizerPath)) {
+                tokenizer = loaded;
+            }
+        }
+    }
+}
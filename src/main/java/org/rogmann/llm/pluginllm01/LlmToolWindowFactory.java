@@ -12,6 +12,11 @@ public class LlmToolWindowFactory implements ToolWindowFactory {
         var mainForm = new MainForm();
         var contentManager = toolWindow.getContentManager();
         var content = contentManager.getFactory().createContent(mainForm.getMainPanel(), "Local-LLM (0.3.2)", true);
+        content.putUserData(MainForm.KEY, mainForm);
         contentManager.addContent(content);
+        var chatContent = contentManager.getFactory().createContent(new LlmChatPanel(project), "Chat", false);
+        contentManager.addContent(chatContent);
+        var metricsContent = contentManager.getFactory().createContent(new LlmMetricsPanel(project), "Metrics", false);
+        contentManager.addContent(metricsContent);
     }
 }
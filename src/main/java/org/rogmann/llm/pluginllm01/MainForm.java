@@ -3,23 +3,41 @@ package org.rogmann.llm.pluginllm01;
 import com.intellij.ide.DataManager;
 import com.intellij.openapi.actionSystem.*;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.SelectionModel;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.Alarm;
+import com.intellij.util.concurrency.AppExecutorUtil;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.Predicate;
 
 public class MainForm extends JFrame {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(MainForm.class);
 
-    private final boolean legayProtocol = Boolean.getBoolean("pluginllm01.legacyProtocol");
+    private static final boolean legayProtocol = Boolean.getBoolean("pluginllm01.legacyProtocol");
 
     private JPanel panel;
     private JLabel lblType;
@@ -37,10 +55,27 @@ public class MainForm extends JFrame {
     private JButton btnRange;
     private JButton btnStop;
 
+    /** number of lines before and after the caret used as query of [Context] if no range has been marked */
+    private static final int CONTEXT_QUERY_LINES = 20;
+
     record SelectionRange(String range, int startOffset, int endOffset) { }
 
     private SelectionRange lastRange;
 
+    /** key of the form at the content of the tool-window */
+    static final Key<MainForm> KEY = Key.create("pluginllm01.MainForm");
+
+    private FimPrefetcher fimPrefetcher;
+
+    /** delay of the token-count after a change of the prompt in milliseconds */
+    private static final int TOKEN_COUNT_DELAY_MS = 250;
+
+    /** alarm to count the tokens of the prompt in a pooled thread */
+    private final Alarm tokenCountAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, ApplicationManager.getApplication());
+
+    /** number of the latest token-count, older results are dropped (EDT) */
+    private int tokenCountSeq;
+
     public MainForm() {
         comboboxTyp.setModel(new DefaultComboBoxModel<>(LlmTaskType.values()));
         comboboxTyp.getModel().setSelectedItem(LlmTaskType.PROMPT);
@@ -49,6 +84,27 @@ public class MainForm extends JFrame {
         final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
         txtPrompt.setText(llmSettings.getDefaultPrompt());
 
+        // Live-Anzeige der Token-Anzahl des Prompts
+        final DocumentListener tokenCountListener = new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                updateTokenCount();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                updateTokenCount();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                updateTokenCount();
+            }
+        };
+        txtPrompt.getDocument().addDocumentListener(tokenCountListener);
+        txtSystemPrompt.getDocument().addDocumentListener(tokenCountListener);
+        updateTokenCount();
+
         btnExecute.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent ev) {
@@ -57,37 +113,17 @@ public class MainForm extends JFrame {
                 final Project project = dataContext.getData(PlatformDataKeys.PROJECT);
                 FileEditorManager fem = FileEditorManager.getInstance(project);
                 Editor editor = fem.getSelectedTextEditor();
-                final Document doc = editor.getDocument();
-
-                Consumer<String> tokenConsumer = token -> { };
-                Consumer<String> statusConsumer = status ->
-                    ApplicationManager.getApplication().invokeLater(() ->
-                       textStatus.setText(status)
-                    );
-                int offsetCaret = editor.getCaretModel().getOffset();
-                final LlmTask llmTask = buildPrompt((LlmTaskType) comboboxTyp.getModel().getSelectedItem(), offsetCaret);
-                Consumer<String> resultConsumer = response -> {
-                    ApplicationManager.getApplication().invokeLater(() -> {
-                        WriteCommandAction.runWriteCommandAction(project, () -> {
-                            SelectionModel selectionModel = editor.getSelectionModel();
-                            String text = extractMarkdown(response);
-                            if (selectionModel.hasSelection()) {
-                                doc.replaceString(selectionModel.getSelectionStart(), selectionModel.getSelectionEnd(), text);
-                            } else {
-                                doc.insertString(editor.getCaretModel().getOffset(), text);
+
+                final int offsetCaret = editor.getCaretModel().getOffset();
+                // Der Prompt wird im Hintergrund erstellt ([Context] fragt ggf. den Server nach Embeddings).
+                buildPromptAsync((LlmTaskType) comboboxTyp.getModel().getSelectedItem(), project, editor.getDocument(), offsetCaret)
+                        .whenComplete((llmTask, e) -> ApplicationManager.getApplication().invokeLater(() -> {
+                            if (e != null) {
+                                showBuildError(e);
+                            } else if (!editor.isDisposed()) {
+                                execute(project, editor, llmTask, offsetCaret);
                             }
-                        });
-                    });
-                };
-                if (legayProtocol) {
-                    LlmBackgroundable task = new LlmBackgroundable(project, "LLM-Execution", llmTask,
-                            tokenConsumer, statusConsumer, resultConsumer);
-                    task.setCancelText("Stop LLM Execution").queue();
-                } else {
-                    LlmBackgroundableHttp task = new LlmBackgroundableHttp(project, "LLM-Execution", llmTask,
-                            tokenConsumer, statusConsumer, resultConsumer);
-                    task.setCancelText("Stop LLM Execution").queue();
-                }
+                        }));
             }
         });
         btnRange.addActionListener(new ActionListener() {
@@ -105,6 +141,194 @@ public class MainForm extends JFrame {
                 lastRange = new SelectionRange(selText,
                         selectionModel.getSelectionStart(), selectionModel.getSelectionEnd());
                 txtAusgabe.setText(selText);
+                updateTokenCount();
+
+                // Spekulatives FIM im markierten Bereich, mit denselben Flags wie "Execute",
+                // damit der Scheduler die Anfrage des Nutzers mit einem laufenden Prefetch zusammenführt.
+                if (fimPrefetcher != null) {
+                    Disposer.dispose(fimPrefetcher);
+                }
+                fimPrefetcher = new FimPrefetcher(project, editor, lastRange.startOffset(), lastRange.endOffset(),
+                        offset -> {
+                            if (comboboxTyp.getModel().getSelectedItem() != LlmTaskType.FILL_IN_MIDDLE) {
+                                throw new IllegalStateException("Type of task is not Fill-in-Middle");
+                            }
+                            return buildPromptAsync(LlmTaskType.FILL_IN_MIDDLE, project, editor.getDocument(), offset);
+                        },
+                        (llmTask, resultConsumer) -> createTask(project, editor, llmTask, token -> { }, status -> { },
+                                resultConsumer, null, null, true, LlmRequestScheduler.Priority.BATCH, true));
+            }
+        });
+    }
+
+    /**
+     * Executes a request built by {@link #buildPromptAsync}, a prefetched response is served instantly (EDT).
+     * @param project project
+     * @param editor editor
+     * @param llmTask request
+     * @param offsetCaret offset of the caret the request has been built for
+     */
+    private void execute(Project project, Editor editor, LlmTask llmTask, int offsetCaret) {
+        Consumer<String> statusConsumer = status ->
+            ApplicationManager.getApplication().invokeLater(() ->
+               textStatus.setText(status)
+            );
+        if (fimPrefetcher != null && llmTask.type() == LlmTaskType.FILL_IN_MIDDLE) {
+            final String prefetchedResponse = fimPrefetcher.takeResponse(llmTask, offsetCaret);
+            if (prefetchedResponse != null) {
+                textStatus.setText("Prefetched response");
+                insertResponse(project, editor, prefetchedResponse);
+                return;
+            }
+        }
+        final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        final StreamingInsertion streamingInsertion = llmSettings.isStreamingInsertion()
+                ? new StreamingInsertion(project, editor) : null;
+        Consumer<String> tokenConsumer = (streamingInsertion != null) ? streamingInsertion::append : token -> { };
+        Consumer<String> resultConsumer = response -> {
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (streamingInsertion != null) {
+                    streamingInsertion.close();
+                }
+                insertResponse(project, editor, response);
+            });
+        };
+        Runnable cancelHandler = () -> {
+            if (streamingInsertion != null) {
+                streamingInsertion.close();
+            }
+        };
+        // Eine geteilte, fehlgeschlagene Anfrage wird erneut gesendet: die Vorschau beginnt von vorn.
+        Runnable resetHandler = (streamingInsertion != null) ? streamingInsertion::reset : null;
+        final LlmRequestScheduler.Priority priority = (llmTask.type() == LlmTaskType.FILL_IN_MIDDLE)
+                ? LlmRequestScheduler.Priority.INTERACTIVE : LlmRequestScheduler.Priority.CHAT;
+        // Only the first code-block is inserted (see insertResponse), the text after it isn't generated.
+        createTask(project, editor, llmTask, tokenConsumer, statusConsumer, resultConsumer, cancelHandler, resetHandler,
+                false, priority, true).setCancelText("Stop LLM Execution").queue();
+    }
+
+    /**
+     * Shows the reason why a request couldn't be built (EDT).
+     * @param e exception of {@link #buildPromptAsync}
+     */
+    private void showBuildError(Throwable e) {
+        final Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+        if (!(cause instanceof IllegalStateException)) {
+            LOGGER.error("Building the prompt failed", cause);
+        }
+        textStatus.setText(cause.getMessage());
+    }
+
+    /**
+     * Shows the number of tokens of the system-prompt and the prompt (with the marked range) in the label of the prompt.
+     * The number is estimated if no tokenizer has been configured. The tokens are counted in a pooled thread
+     * after a pause of {@link #TOKEN_COUNT_DELAY_MS}, only the label is set in the EDT.
+     */
+    private void updateTokenCount() {
+        final String systemPrompt = txtSystemPrompt.getText();
+        final String promptTemplate = txtPrompt.getText();
+        final SelectionRange range = lastRange;
+        final int seq = ++tokenCountSeq;
+        // Gezählt wird im Hintergrund, erst nach einer Tipp-Pause.
+        tokenCountAlarm.cancelAllRequests();
+        tokenCountAlarm.addRequest(() -> {
+            final String label = formatTokenCount(systemPrompt, promptTemplate, range);
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (seq == tokenCountSeq) {
+                    lblPrompt.setText(label);
+                }
+            }, ModalityState.any());
+        }, TOKEN_COUNT_DELAY_MS);
+    }
+
+    /**
+     * Counts the tokens of the system-prompt and the prompt (pooled thread).
+     * @param systemPrompt system-prompt
+     * @param promptTemplate prompt
+     * @param range marked range or <code>null</code>
+     * @return text of the label of the prompt
+     */
+    private static String formatTokenCount(String systemPrompt, String promptTemplate, SelectionRange range) {
+        final FimContextExtractor.TokenCounter counter = LlmTokenizerService.getInstance().getTokenCounter();
+        String prompt = promptTemplate;
+        if (range != null) {
+            prompt = prompt.replace("[Range]", range.range());
+        }
+        final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        int contextTokens = 0;
+        for (String placeholder : List.of("[Context]", "[Skeletons]")) {
+            if (prompt.contains(placeholder)) {
+                // Der Kontext wird erst beim Ausführen gesucht, gezählt wird sein Budget.
+                prompt = prompt.replace(placeholder, "");
+                contextTokens += llmSettings.getContextBudgetTokens();
+            }
+        }
+        final int numTokens = counter.countTokens(systemPrompt, 0, systemPrompt.length())
+                + counter.countTokens(prompt, 0, prompt.length()) + contextTokens;
+        final int maxTokens = llmSettings.getMaxPromptTokens();
+        final String sCount = ((contextTokens > 0) ? "≤" : (counter instanceof BpeTokenizer) ? "" : "~")
+                + numTokens + " tokens";
+        return (maxTokens > 0 && numTokens > maxTokens)
+                ? "<html>Prompt<br><font color=red>" + sCount + "</font></html>"
+                : "<html>Prompt<br>" + sCount + "</html>";
+    }
+
+    /**
+     * Creates the background-task which executes a request.
+     * @param project project
+     * @param editor editor of the request (slot-affinity of the server), <code>null</code> if the server chooses the slot
+     * @param llmTask request
+     * @param tokenConsumer consumer of the streamed tokens
+     * @param statusConsumer consumer of status-messages
+     * @param resultConsumer consumer of the complete response
+     * @param cancelHandler optional handler called in the EDT if the task has been cancelled
+     * @param resetHandler optional handler which discards the streamed tokens if the request is sent again
+     * @param speculative <code>true</code> in case of a prefetch or inline completion (no IDE-errors)
+     * @param priority priority of the request in the {@link LlmRequestScheduler}
+     * @param stopAfterCodeBlock <code>true</code> if the caller uses the first code-block only (see {@link #extractMarkdown(String)}):
+     *                           the generation is stopped after it
+     * @return task
+     */
+    static Task.Backgroundable createTask(Project project, Editor editor, LlmTask llmTask, Consumer<String> tokenConsumer,
+                                          Consumer<String> statusConsumer, Consumer<String> resultConsumer,
+                                          Runnable cancelHandler, Runnable resetHandler, boolean speculative,
+                                          LlmRequestScheduler.Priority priority, boolean stopAfterCodeBlock) {
+        if (legayProtocol) {
+            return new LlmBackgroundable(project, "LLM-Execution", llmTask,
+                    tokenConsumer, statusConsumer, resultConsumer)
+                    .setCancelHandler(cancelHandler).setResetHandler(resetHandler).setSpeculative(speculative)
+                    .setPriority(priority).setStopAfterCodeBlock(stopAfterCodeBlock);
+        }
+        return new LlmBackgroundableHttp(project, "LLM-Execution", llmTask,
+                tokenConsumer, statusConsumer, resultConsumer)
+                .setCancelHandler(cancelHandler).setResetHandler(resetHandler).setSpeculative(speculative)
+                .setPriority(priority).setStopAfterCodeBlock(stopAfterCodeBlock)
+                .setAffinityKey((editor != null) ? LlmSlotAffinity.createKey(project, editor, llmTask.type()) : null);
+    }
+
+    /**
+     * Gets the transport used by {@link #createTask}.
+     * @return transport
+     */
+    static LlmMetrics.Transport getTransport() {
+        return legayProtocol ? LlmMetrics.Transport.LLM1 : LlmMetrics.Transport.HTTP;
+    }
+
+    /**
+     * Writes the response into the editor, a selection is replaced (EDT).
+     * @param project project
+     * @param editor editor
+     * @param response response of the LLM
+     */
+    private static void insertResponse(Project project, Editor editor, String response) {
+        final Document doc = editor.getDocument();
+        WriteCommandAction.runWriteCommandAction(project, () -> {
+            SelectionModel selectionModel = editor.getSelectionModel();
+            String text = extractMarkdown(response);
+            if (selectionModel.hasSelection()) {
+                doc.replaceString(selectionModel.getSelectionStart(), selectionModel.getSelectionEnd(), text);
+            } else {
+                doc.insertString(editor.getCaretModel().getOffset(), text);
             }
         });
     }
@@ -114,45 +338,198 @@ public class MainForm extends JFrame {
      * of the response and extracts the content of the first markdown-block (if available).
      * @param response response
      * @return response without thinking, content of first markdown if present
+     * @see MarkdownStreamExtractor
      */
     static String extractMarkdown(String response) {
-        String text = response;
-        Pattern pThink = Pattern.compile("<think>.*?</think>\\s*", Pattern.DOTALL);
-        Matcher mThink = pThink.matcher(response);
-        if (mThink.find()) {
-            text = mThink.replaceFirst("");
+        final MarkdownStreamExtractor extractor = new MarkdownStreamExtractor();
+        extractor.feed(response);
+        return extractor.getResult();
+    }
+
+    /**
+     * Query of the placeholder [Context]: the marked range or the lines around the caret.
+     * @param query query
+     * @param path path of the current file or <code>null</code>
+     * @param startLine first line of the query
+     * @param endLine line after the query
+     */
+    private record ContextQuery(CharSequence query, String path, int startLine, int endLine) { }
+
+    /**
+     * State of the form and of the editor a request is built from, captured in the EDT.
+     * @param type type of the task
+     * @param systemPrompt system-prompt
+     * @param promptTemplate prompt with placeholders
+     * @param range marked range or <code>null</code>
+     * @param document current document
+     * @param text text of the document
+     * @param offsetCaret offset of the caret
+     * @param contextQuery query of [Context] or <code>null</code> if there is no query
+     */
+    private record PromptInput(LlmTaskType type, String systemPrompt, String promptTemplate, SelectionRange range,
+                               Document document, CharSequence text, int offsetCaret, ContextQuery contextQuery) { }
+
+    /**
+     * Builds a request in a pooled thread: the search of [Context] may embed the query at the server
+     * and [Skeletons] needs a read-action. The state of the form and of the editor is captured in the EDT.
+     * @param llmTaskType type of the task
+     * @param project project
+     * @param document current document
+     * @param offsetCaret offset of the caret
+     * @return request, completed exceptionally with an {@link IllegalStateException} if the request can't be built
+     */
+    private CompletableFuture<LlmTask> buildPromptAsync(LlmTaskType llmTaskType, Project project, Document document, int offsetCaret) {
+        final String promptTemplate = txtPrompt.getText();
+        final ContextQuery contextQuery = promptTemplate.contains("[Context]")
+                ? createContextQuery(document, offsetCaret) : null;
+        final PromptInput input = new PromptInput(llmTaskType, txtSystemPrompt.getText().trim(), promptTemplate, lastRange,
+                document, document.getImmutableCharSequence(), offsetCaret, contextQuery);
+        return CompletableFuture.supplyAsync(() -> buildPrompt(project, input), AppExecutorUtil.getAppExecutorService());
+    }
+
+    /**
+     * Determines the query of [Context] (EDT).
+     * @param document current document
+     * @param offsetCaret offset of the caret
+     * @return query or <code>null</code> if the document is empty
+     */
+    private ContextQuery createContextQuery(Document document, int offsetCaret) {
+        final int textLength = document.getTextLength();
+        final CharSequence query;
+        final int startLine;
+        final int endLine;
+        if (lastRange != null) {
+            query = lastRange.range();
+            startLine = document.getLineNumber(Math.min(lastRange.startOffset(), textLength));
+            endLine = document.getLineNumber(Math.min(lastRange.endOffset(), textLength)) + 1;
+        } else if (textLength > 0) {
+            final int caretLine = document.getLineNumber(Math.min(offsetCaret, textLength));
+            startLine = Math.max(0, caretLine - CONTEXT_QUERY_LINES);
+            endLine = Math.min(document.getLineCount(), caretLine + CONTEXT_QUERY_LINES + 1);
+            query = document.getImmutableCharSequence().subSequence(document.getLineStartOffset(startLine),
+                    document.getLineEndOffset(endLine - 1));
+        } else {
+            return null;
+        }
+        final VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        return new ContextQuery(query, (file != null) ? file.getPath() : null, startLine, endLine);
+    }
+
+    /**
+     * Replaces the placeholder [Context] by the chunks of the project matching the marked range
+     * (or the lines around the caret if no range has been marked), see {@link LlmCodeIndex}.
+     * The chunks of the range itself are excluded. This method isn't called in the EDT.
+     * @param promptTemplate prompt
+     * @param project project
+     * @param contextQuery query or <code>null</code>
+     * @return prompt with context
+     */
+    private String replaceContext(String promptTemplate, Project project, ContextQuery contextQuery) {
+        if (!promptTemplate.contains("[Context]")) {
+            return promptTemplate;
+        }
+        if (contextQuery == null) {
+            return promptTemplate.replace("[Context]", "");
         }
-        Pattern pMarkdown = Pattern.compile("```[a-z0-9]+\r?\n(.*?\r?\n)```", Pattern.DOTALL);
-        Matcher mMarkdown = pMarkdown.matcher(response);
-        if (mMarkdown.find()) {
-            text = mMarkdown.group(1);
+        final LlmCodeIndex codeIndex = LlmCodeIndex.getInstance(project);
+        codeIndex.ensureBuilt();
+        if (!codeIndex.isReady()) {
+            ApplicationManager.getApplication().invokeLater(() ->
+                    textStatus.setText("The project is being indexed, [Context] is empty"));
+            return promptTemplate.replace("[Context]", "");
+        }
+        final String path = contextQuery.path();
+        final Predicate<Bm25Index.Chunk> filter = (path != null)
+                ? chunk -> !chunk.overlaps(path, contextQuery.startLine(), contextQuery.endLine()) : null;
+        final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        final List<Bm25Index.Hit> semanticHits;
+        if (llmSettings.isEmbeddingSearch()) {
+            final LlmEmbeddingIndex embeddingIndex = LlmEmbeddingIndex.getInstance(project);
+            embeddingIndex.ensureStarted();
+            semanticHits = embeddingIndex.search(contextQuery.query().toString(), LlmCodeIndex.MAX_SNIPPETS, filter);
+        } else {
+            semanticHits = List.of();
+        }
+        final String context = codeIndex.buildContext(contextQuery.query(), filter, semanticHits,
+                llmSettings.getContextBudgetTokens(), LlmTokenizerService.getInstance().getTokenCounter());
+        return promptTemplate.replace("[Context]", context);
+    }
+
+    /**
+     * Replaces the placeholder [Skeletons] by the skeletons of the Java-classes of the project referenced
+     * in the marked range (or in the current file if no range has been marked), see {@link Skeletonizer}.
+     * The PSI is read in a non-blocking read-action, this method isn't called in the EDT.
+     * @param promptTemplate prompt
+     * @param project project
+     * @param document current document
+     * @param range marked range or <code>null</code>
+     * @return prompt with skeletons
+     */
+    private static String replaceSkeletons(String promptTemplate, Project project, Document document, SelectionRange range) {
+        if (!promptTemplate.contains("[Skeletons]")) {
+            return promptTemplate;
         }
-        return text;
+        final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+        final String skeletons = ReadAction.nonBlocking(() -> {
+            final PsiFile psiFile = PsiDocumentManager.getInstance(project).getPsiFile(document);
+            if (psiFile == null) {
+                return "";
+            }
+            final int textLength = document.getTextLength();
+            final int start = (range != null) ? Math.min(range.startOffset(), textLength) : 0;
+            final int end = (range != null) ? Math.min(range.endOffset(), textLength) : textLength;
+            return Skeletonizer.getInstance(project).buildSkeletons(psiFile, start, end,
+                    llmSettings.getContextBudgetTokens(), LlmTokenizerService.getInstance().getTokenCounter());
+        }).executeSynchronously();
+        return promptTemplate.replace("[Skeletons]", skeletons);
     }
 
-    private LlmTask buildPrompt(LlmTaskType llmTaskType, int offsetCaret) {
-        String systemPrompt = txtSystemPrompt.getText().trim();
-        String promptTemplate = txtPrompt.getText();
+    /**
+     * Builds a request, see {@link #buildPromptAsync} (pooled thread).
+     * @param project project
+     * @param input state of the form and of the editor
+     * @return request
+     * @throws IllegalStateException if the request can't be built
+     */
+    private LlmTask buildPrompt(Project project, PromptInput input) {
+        final LlmTaskType llmTaskType = input.type();
+        final SelectionRange range = input.range();
+        String systemPrompt = input.systemPrompt();
+        String promptTemplate = replaceContext(input.promptTemplate(), project, input.contextQuery());
+        promptTemplate = replaceSkeletons(promptTemplate, project, input.document(), range);
+        final int offsetCaret = input.offsetCaret();
         return switch (llmTaskType) {
             case PROMPT -> {
                 String prompt = promptTemplate;
-                if (lastRange != null) {
-                    prompt = prompt.replace("[Range]", this.lastRange.range());
+                if (range != null) {
+                    prompt = prompt.replace("[Range]", range.range());
                 }
                 yield new LlmTask(llmTaskType,
                         systemPrompt, prompt, null, null);
             }
             case FILL_IN_MIDDLE -> {
-                if (lastRange == null) {
-                    throw new IllegalStateException("Fill-in-Middle needs a marked range");
-                }
-                int offsetInRange = offsetCaret - lastRange.startOffset;
-                if (offsetInRange > lastRange.range().length()) {
-                    throw new IllegalStateException(String.format("Caret-offset %d not in previous range [%d, %d]",
-                            offsetCaret, lastRange.startOffset, lastRange.endOffset));
+                final LlmSettings llmSettings = ApplicationManager.getApplication().getService(LlmSettings.class);
+                String fimBegin;
+                String fimEnd;
+                if (llmSettings.isFimAutoContext()) {
+                    // Kontext um den Cursor, begrenzt durch das Token-Budget.
+                    final CharSequence text = input.text();
+                    final FimContextExtractor.FimContext context = new FimContextExtractor(text, LlmTokenizerService.getInstance().getTokenCounter())
+                            .extract(offsetCaret, llmSettings.getFimContextTokens(), llmSettings.getFimPrefixPercent());
+                    fimBegin = context.fimBegin(text);
+                    fimEnd = context.fimEnd(text);
+                } else {
+                    if (range == null) {
+                        throw new IllegalStateException("Fill-in-Middle needs a marked range");
+                    }
+                    int offsetInRange = offsetCaret - range.startOffset;
+                    if (offsetInRange > range.range().length()) {
+                        throw new IllegalStateException(String.format("Caret-offset %d not in previous range [%d, %d]",
+                                offsetCaret, range.startOffset, range.endOffset));
+                    }
+                    fimBegin = range.range.substring(0, offsetInRange);
+                    fimEnd = range.range.substring(offsetInRange);
                 }
-                String fimBegin = lastRange.range.substring(0, offsetInRange);
-                String fimEnd = lastRange.range.substring(offsetInRange);
                 String prompt = null;
                 if (promptTemplate.contains("[FIM]")) {
                     fimBegin = promptTemplate.replace("[FIM]", fimBegin);
@@ -171,4 +548,12 @@ public class MainForm extends JFrame {
     public JPanel getMainPanel() {
         return panel;
     }
+
+    /**
+     * Gets the current prompt (EDT), e.g. as template of a batch.
+     * @return prompt
+     */
+    String getPrompt() {
+        return txtPrompt.getText();
+    }
 }
@@ -0,0 +1,290 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Export of files as markdown: each file is a code-block with a heading.
+ * <p>
+ * The files are read in parallel, binary files (NUL-byte in the first bytes), generated files
+ * (marker in the header, minified content) and very large files are skipped.
+ * The export stops at a budget of tokens, the fragments of the files are kept in a {@link MarkdownFragmentCache}.
+ */
+final class MarkdownExporter {
+    /** number of bytes checked for NUL-bytes (like git) */
+    static final int BINARY_CHECK_BYTES = 8000;
+    /** number of characters of the header checked for a marker of generated code */
+    static final int GENERATED_CHECK_CHARS = 2048;
+    /** maximum length of the first line of a file which is not minified */
+    static final int MAX_FIRST_LINE_CHARS = 4096;
+    /** maximum size of an exported file */
+    static final long MAX_FILE_BYTES = 1024L * 1024;
+
+    /** interval to check for cancellation while waiting in milliseconds */
+    private static final long AWAIT_INTERVAL_MS = 100;
+
+    /** markers of generated code (lower-case) */
+    private static final String[] GENERATED_MARKERS = {
+            "@generated", "do not edit", "<auto-generated", "this file was generated",
+            "this file is generated", "automatically generated"
+    };
+
+    /**
+     * File to be exported.
+     */
+    interface Source {
+        /** @return name of the file in the heading (e.g. relative path) */
+        String getName();
+        /** @return key of the file in the cache */
+        String getPath();
+        /** @return extension (language of the code-block), empty if unknown */
+        String getExtension();
+        /** @return modification-stamp of the content returned by {@link #read()} */
+        long getStamp();
+        /** @return size in bytes */
+        long getLength();
+        /**
+         * Reads the content.
+         * @return content
+         * @throws IOException in case of an IO-error
+         */
+        byte[] read() throws IOException;
+    }
+
+    /**
+     * Kind of a file.
+     */
+    enum Kind {
+        TEXT, BINARY, GENERATED, TOO_LARGE
+    }
+
+    /**
+     * Markdown-fragment of a file.
+     * @param kind kind of the file, only text-files are exported
+     * @param body code-block of a text-file or <code>null</code>
+     * @param numTokens number of tokens of the code-block
+     */
+    record Fragment(Kind kind, String body, int numTokens) {
+        int length() {
+            return (body != null) ? body.length() : 0;
+        }
+    }
+
+    /**
+     * Result of an export.
+     * @param markdown exported markdown
+     * @param numExported number of exported files
+     * @param numFromCache number of files taken from the cache
+     * @param numSkipped number of skipped binary, generated or large files
+     * @param numOverBudget number of files not exported because of the budget
+     * @param numTokens number of tokens of the exported files
+     */
+    record Result(String markdown, int numExported, int numFromCache, int numSkipped, int numOverBudget, int numTokens) { }
+
+    /** cache of the fragments */
+    private final MarkdownFragmentCache cache;
+    /** counter of tokens */
+    private final FimContextExtractor.TokenCounter tokenCounter;
+    /** maximum number of tokens, 0 = no budget */
+    private final int budgetTokens;
+    /** number of files read in parallel */
+    private final int parallelism;
+
+    /**
+     * Constructor
+     * @param cache cache of the fragments
+     * @param tokenCounter counter of tokens
+     * @param budgetTokens maximum number of tokens, 0 = no budget
+     * @param parallelism number of files read in parallel
+     */
+    MarkdownExporter(MarkdownFragmentCache cache, FimContextExtractor.TokenCounter tokenCounter,
+                     int budgetTokens, int parallelism) {
+        this.cache = cache;
+        this.tokenCounter = tokenCounter;
+        this.budgetTokens = budgetTokens;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Exports files, the order of the files is kept.
+     * @param sources files
+     * @param indicator progress-indicator
+     * @return result
+     * @throws ProcessCanceledException if the export has been cancelled
+     */
+    Result export(List<? extends Source> sources, ProgressIndicator indicator) {
+        final ExecutorService pool = AppExecutorUtil.createBoundedApplicationPoolExecutor("LLM markdown export", parallelism);
+        final AtomicInteger numFromCache = new AtomicInteger();
+        final List<Future<Fragment>> futures = new ArrayList<>(sources.size());
+        try {
+            for (Source source : sources) {
+                futures.add(pool.submit(() -> {
+                    if (indicator.isCanceled()) {
+                        return null;
+                    }
+                    // The stamp is taken before reading: a fragment of a file changed meanwhile is stored as outdated.
+                    final long stamp = source.getStamp();
+                    final Fragment cached = cache.get(source.getPath(), stamp);
+                    if (cached != null) {
+                        numFromCache.incrementAndGet();
+                        return cached;
+                    }
+                    final Fragment fragment = createFragment(source);
+                    cache.put(source.getPath(), stamp, fragment);
+                    return fragment;
+                }));
+            }
+
+            indicator.setIndeterminate(false);
+            final StringBuilder sb = new StringBuilder();
+            int numExported = 0;
+            int numSkipped = 0;
+            int numTokens = 0;
+            for (int i = 0; i < sources.size(); i++) {
+                final Fragment fragment = await(futures.get(i), sources.get(i), indicator);
+                indicator.setFraction((double) (i + 1) / sources.size());
+                if (fragment == null || fragment.kind() != Kind.TEXT) {
+                    numSkipped++;
+                    continue;
+                }
+                if (budgetTokens > 0 && numTokens + fragment.numTokens() > budgetTokens) {
+                    // The export stops at the first file which exceeds the budget.
+                    return new Result(sb.toString(), numExported, numFromCache.get(), numSkipped,
+                            sources.size() - i, numTokens);
+                }
+                if (!sb.isEmpty()) {
+                    sb.append("\n\n");
+                }
+                sb.append("## ").append(sources.get(i).getName()).append("\n\n").append(fragment.body());
+                numExported++;
+                numTokens += fragment.numTokens();
+            }
+            return new Result(sb.toString(), numExported, numFromCache.get(), numSkipped, 0, numTokens);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for the fragment of a file.
+     * @param future fragment in progress
+     * @param source file
+     * @param indicator progress-indicator
+     * @return fragment or <code>null</code> if the file couldn't be read
+     */
+    private static Fragment await(Future<Fragment> future, Source source, ProgressIndicator indicator) {
+        while (true) {
+            indicator.checkCanceled();
+            try {
+                return future.get(AWAIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Check for cancellation.
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    indicator.setText2("Can't read " + source.getName() + ": " + e.getCause().getMessage());
+                    return null;
+                }
+                throw new IllegalStateException("Export of " + source.getName() + " failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessCanceledException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads a file and creates its fragment.
+     * @param source file
+     * @return fragment
+     * @throws IOException in case of an IO-error
+     */
+    Fragment createFragment(Source source) throws IOException {
+        if (source.getLength() > MAX_FILE_BYTES) {
+            return new Fragment(Kind.TOO_LARGE, null, 0);
+        }
+        final byte[] content = source.read();
+        if (isBinary(content)) {
+            return new Fragment(Kind.BINARY, null, 0);
+        }
+        final String text = new String(content, StandardCharsets.UTF_8);
+        if (isGenerated(text)) {
+            return new Fragment(Kind.GENERATED, null, 0);
+        }
+        final String body = "```" + source.getExtension() + "\n" + text + "\n```\n";
+        return new Fragment(Kind.TEXT, body, tokenCounter.countTokens(body, 0, body.length()));
+    }
+
+    /**
+     * Checks for a binary content: a NUL-byte in the first bytes.
+     * @param content content
+     * @return <code>true</code> if binary
+     */
+    static boolean isBinary(byte[] content) {
+        final int len = Math.min(content.length, BINARY_CHECK_BYTES);
+        for (int i = 0; i < len; i++) {
+            if (content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks for generated code: a marker in the header or a minified content (very long first line).
+     * @param text content
+     * @return <code>true</code> if generated
+     */
+    static boolean isGenerated(String text) {
+        final String header = text.substring(0, Math.min(text.length(), GENERATED_CHECK_CHARS)).toLowerCase(Locale.ROOT);
+        for (String marker : GENERATED_MARKERS) {
+            if (header.contains(marker)) {
+                return true;
+            }
+        }
+        final int idxNewline = text.indexOf('\n');
+        return (idxNewline < 0 ? text.length() : idxNewline) > MAX_FIRST_LINE_CHARS;
+    }
+
+    /**
+     * Parses ignore-rules: glob-patterns of file- or directory-names separated by comma or line-break.
+     * @param patterns patterns, e.g. "build, node_modules, *.min.js"
+     * @return predicate of the names to be ignored
+     */
+    static Predicate<String> parseIgnorePatterns(String patterns) {
+        final List<PathMatcher> matchers = new ArrayList<>();
+        if (patterns != null) {
+            for (String pattern : patterns.split("[,\\r\\n]+")) {
+                final String glob = pattern.trim();
+                if (!glob.isEmpty()) {
+                    matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+                }
+            }
+        }
+        return name -> {
+            final Path path = Path.of(name);
+            for (PathMatcher matcher : matchers) {
+                if (matcher.matches(path)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+}
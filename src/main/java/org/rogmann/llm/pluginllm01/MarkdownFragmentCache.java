@@ -0,0 +1,106 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the markdown-fragments of files exported by {@link MarkdownExporter}.
+ * <p>
+ * The key is the path of the file, a fragment is valid as long as the modification-stamp of the file is unchanged.
+ * The fragments are kept in a size-bounded LRU in memory, so a repeated export of a mostly unchanged tree
+ * reads the changed files only.
+ * <p>
+ * Access instance via: {@code ApplicationManager.getApplication().getService(MarkdownFragmentCache.class)}.
+ */
+@Service
+public final class MarkdownFragmentCache {
+    /** default maximum number of characters in memory */
+    private static final long MAX_MEMORY_CHARS = 16L * 1024 * 1024;
+
+    /**
+     * Cached fragment.
+     * @param stamp modification-stamp of the file
+     * @param fragment fragment
+     */
+    private record Entry(long stamp, MarkdownExporter.Fragment fragment) { }
+
+    /** maximum number of characters in memory */
+    private final long maxChars;
+    /** fragments by path (access-order) */
+    private final LinkedHashMap<String, Entry> lru = new LinkedHashMap<>(256, 0.75f, true);
+    /** number of characters in memory */
+    private long numChars;
+
+    /** number of hits */
+    private final AtomicLong hits = new AtomicLong();
+    /** number of misses */
+    private final AtomicLong misses = new AtomicLong();
+
+    public MarkdownFragmentCache() {
+        this(MAX_MEMORY_CHARS);
+    }
+
+    /**
+     * Constructor
+     * @param maxChars maximum number of characters in memory
+     */
+    MarkdownFragmentCache(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * Gets the instance of the cache.
+     * @return cache
+     */
+    static MarkdownFragmentCache getInstance() {
+        return ApplicationManager.getApplication().getService(MarkdownFragmentCache.class);
+    }
+
+    /**
+     * Gets the fragment of a file.
+     * @param path path of the file
+     * @param stamp current modification-stamp of the file
+     * @return fragment or <code>null</code> if there is no fragment of this stamp
+     */
+    synchronized MarkdownExporter.Fragment get(String path, long stamp) {
+        final Entry entry = lru.get(path);
+        if (entry == null || entry.stamp() != stamp) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.fragment();
+    }
+
+    /**
+     * Stores the fragment of a file, least recently used fragments are evicted.
+     * @param path path of the file
+     * @param stamp modification-stamp of the file
+     * @param fragment fragment
+     */
+    synchronized void put(String path, long stamp, MarkdownExporter.Fragment fragment) {
+        final Entry previous = lru.put(path, new Entry(stamp, fragment));
+        if (previous != null) {
+            numChars -= previous.fragment().length();
+        }
+        numChars += fragment.length();
+        final Iterator<Map.Entry<String, Entry>> it = lru.entrySet().iterator();
+        while (numChars > maxChars && it.hasNext()) {
+            numChars -= it.next().getValue().fragment().length();
+            it.remove();
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,302 @@
+package org.rogmann.llm.pluginllm01;
+
+/**
+ * Incremental extractor of the answer of a LLM which is fed token by token while the response is streamed.
+ * <p>
+ * A leading &lt;think&gt;...&lt;/think&gt;-block (and the whitespace after it) is routed aside, the content
+ * of the first markdown-code-block (<code>```lang</code> ... <code>```</code>) is the result. As soon as the closing
+ * fence of this block has been received the rest of the response isn't needed anymore: {@link #feed(CharSequence)}
+ * returns <code>true</code> and the caller may stop the generation of the server.
+ * <p>
+ * The result is the one of the regular expressions <code>&lt;think&gt;.*?&lt;/think&gt;\s*</code> (removed)
+ * and <code>```[a-z0-9]+\r?\n(.*?\r?\n)```</code> (first group), except that a code-block inside
+ * the think-block is ignored. Each character of the response is scanned once, a fence or tag split
+ * between two tokens is completed by the next token.
+ */
+final class MarkdownStreamExtractor {
+    /** start-tag of the thinking */
+    private static final String THINK_START = "<think>";
+    /** end-tag of the thinking */
+    private static final String THINK_END = "</think>";
+    /** fence of a code-block */
+    private static final String FENCE = "```";
+
+    /** result of a match: the text matches */
+    private static final int MATCH = 1;
+    /** result of a match: the text doesn't match */
+    private static final int NO_MATCH = -1;
+    /** result of a match: more characters are needed */
+    private static final int NEED_MORE = -2;
+
+    /** state of the scanner */
+    private enum State {
+        /** text outside of thinking and code, looking for a think-tag or an opening fence */
+        TEXT,
+        /** inside of the think-block, looking for the end-tag */
+        THINK,
+        /** whitespace after the think-block */
+        AFTER_THINK,
+        /** inside of the code-block, looking for the closing fence */
+        CODE,
+        /** the code-block has been closed, further tokens are ignored */
+        DONE
+    }
+
+    /** <code>true</code> if a think-block is routed aside */
+    private final boolean thinkEnabled;
+    /** response received so far (until the closing fence) */
+    private final StringBuilder text = new StringBuilder();
+    /** current state */
+    private State state = State.TEXT;
+    /** position of the next character to be scanned */
+    private int pos;
+    /** position of the think-tag, -1 if there is no think-block */
+    private int thinkStart = -1;
+    /** position of the end-tag of the think-block, -1 if the block hasn't been closed */
+    private int thinkContentEnd = -1;
+    /** end of the think-block including the following whitespace */
+    private int thinkEnd = -1;
+    /** start of the content of the code-block, -1 if there is no opening fence */
+    private int codeStart = -1;
+    /** end of the content of the code-block (after the line-break before the closing fence) */
+    private int codeEnd = -1;
+    /** number of tokens received after the closing fence */
+    private int numTokensAfterBlock;
+
+    /**
+     * Constructor
+     */
+    MarkdownStreamExtractor() {
+        this(true);
+    }
+
+    private MarkdownStreamExtractor(boolean thinkEnabled) {
+        this.thinkEnabled = thinkEnabled;
+    }
+
+    /**
+     * Processes the next token of the response.
+     * @param token token
+     * @return <code>true</code> if the code-block has been closed, the rest of the response isn't needed
+     */
+    boolean feed(CharSequence token) {
+        if (state == State.DONE) {
+            numTokensAfterBlock++;
+            return true;
+        }
+        text.append(token);
+        boolean progress = true;
+        while (progress) {
+            progress = switch (state) {
+                case TEXT -> scanText();
+                case THINK -> scanThink();
+                case AFTER_THINK -> scanAfterThink();
+                case CODE -> scanCode();
+                case DONE -> false;
+            };
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * Scans text for a think-tag or an opening fence.
+     * @return <code>true</code> if the state has changed
+     */
+    private boolean scanText() {
+        final int len = text.length();
+        while (pos < len) {
+            final char c = text.charAt(pos);
+            if (c == '<' && thinkEnabled && thinkStart < 0) {
+                final int match = matchAt(THINK_START, pos);
+                if (match == NEED_MORE) {
+                    return false;
+                }
+                if (match == MATCH) {
+                    thinkStart = pos;
+                    pos += THINK_START.length();
+                    state = State.THINK;
+                    return true;
+                }
+            } else if (c == '`') {
+                final int start = matchOpeningFence(pos);
+                if (start == NEED_MORE) {
+                    return false;
+                }
+                if (start >= 0) {
+                    codeStart = start;
+                    pos = start;
+                    state = State.CODE;
+                    return true;
+                }
+            }
+            pos++;
+        }
+        return false;
+    }
+
+    /**
+     * Scans the think-block for its end-tag.
+     * @return <code>true</code> if the state has changed
+     */
+    private boolean scanThink() {
+        final int idx = text.indexOf(THINK_END, pos);
+        if (idx < 0) {
+            // The end-tag may be split between two tokens.
+            pos = Math.max(pos, text.length() - (THINK_END.length() - 1));
+            return false;
+        }
+        thinkContentEnd = idx;
+        pos = idx + THINK_END.length();
+        thinkEnd = pos;
+        state = State.AFTER_THINK;
+        return true;
+    }
+
+    /**
+     * Skips the whitespace (<code>\s</code>) after the think-block.
+     * @return <code>true</code> if the state has changed
+     */
+    private boolean scanAfterThink() {
+        final int len = text.length();
+        while (pos < len && isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        thinkEnd = pos;
+        if (pos == len) {
+            return false;
+        }
+        state = State.TEXT;
+        return true;
+    }
+
+    /**
+     * Scans the code-block for a line-break followed by the closing fence.
+     * @return <code>true</code> if the state has changed
+     */
+    private boolean scanCode() {
+        final int len = text.length();
+        while (pos < len) {
+            if (text.charAt(pos) == '\n') {
+                final int match = matchAt(FENCE, pos + 1);
+                if (match == NEED_MORE) {
+                    return false;
+                }
+                if (match == MATCH) {
+                    codeEnd = pos + 1;
+                    state = State.DONE;
+                    return true;
+                }
+            }
+            pos++;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the text contains a string at the given position.
+     * @param s string
+     * @param offset position in the text
+     * @return {@link #MATCH}, {@link #NO_MATCH} or {@link #NEED_MORE}
+     */
+    private int matchAt(String s, int offset) {
+        final int len = text.length();
+        for (int i = 0; i < s.length(); i++) {
+            if (offset + i >= len) {
+                return NEED_MORE;
+            }
+            if (text.charAt(offset + i) != s.charAt(i)) {
+                return NO_MATCH;
+            }
+        }
+        return MATCH;
+    }
+
+    /**
+     * Checks if the text contains an opening fence <code>```[a-z0-9]+\r?\n</code> at the given position.
+     * @param offset position in the text
+     * @return start of the content of the code-block, {@link #NO_MATCH} or {@link #NEED_MORE}
+     */
+    private int matchOpeningFence(int offset) {
+        final int match = matchAt(FENCE, offset);
+        if (match != MATCH) {
+            return match;
+        }
+        final int len = text.length();
+        final int startLanguage = offset + FENCE.length();
+        int idx = startLanguage;
+        while (idx < len && isLanguageChar(text.charAt(idx))) {
+            idx++;
+        }
+        if (idx == len) {
+            return NEED_MORE;
+        }
+        if (idx == startLanguage) {
+            return NO_MATCH;
+        }
+        if (text.charAt(idx) == '\r') {
+            idx++;
+            if (idx == len) {
+                return NEED_MORE;
+            }
+        }
+        return (text.charAt(idx) == '\n') ? idx + 1 : NO_MATCH;
+    }
+
+    private static boolean isLanguageChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Checks if the code-block has been closed.
+     * @return <code>true</code> if the closing fence has been received
+     */
+    boolean isBlockClosed() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Gets the number of tokens which have been received after the closing fence (e.g. before the server
+     * noticed the cancellation).
+     * @return number of tokens
+     */
+    int getNumTokensAfterBlock() {
+        return numTokensAfterBlock;
+    }
+
+    /**
+     * Gets the content of the think-block.
+     * @return thinking (so far), <code>null</code> if there is no think-block
+     */
+    String getThinking() {
+        if (thinkStart < 0) {
+            return null;
+        }
+        return text.substring(thinkStart + THINK_START.length(), (thinkContentEnd >= 0) ? thinkContentEnd : text.length());
+    }
+
+    /**
+     * Gets the answer: the content of the first code-block if present, otherwise the response
+     * without the think-block.
+     * @return answer
+     */
+    String getResult() {
+        if (state == State.DONE) {
+            return text.substring(codeStart, codeEnd);
+        }
+        if (state == State.THINK) {
+            // The think-block hasn't been closed: a code-block inside of it is the best answer available.
+            final MarkdownStreamExtractor extractor = new MarkdownStreamExtractor(false);
+            extractor.feed(text);
+            return extractor.getResult();
+        }
+        if (thinkStart >= 0) {
+            return new StringBuilder(text.length() - (thinkEnd - thinkStart))
+                    .append(text, 0, thinkStart).append(text, thinkEnd, text.length()).toString();
+        }
+        return text.toString();
+    }
+}
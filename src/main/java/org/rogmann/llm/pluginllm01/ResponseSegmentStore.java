@@ -0,0 +1,292 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of cached responses on disk.
+ * <p>
+ * The responses are appended to segment-files <code>segment-&lt;n&gt;.bin</code>.
+ * A record consists of the magic number, the key (32 bytes), the length of the payload, the payload
+ * (varint number of tokens, varint lengths of the tokens in chars, UTF-8 text) and the CRC32 of the payload.
+ * The index (key to segment and offset) is built by scanning the record-headers when the store is opened,
+ * a later record of a key replaces an earlier one. A new segment is started when the current segment
+ * is full and after each restart (a truncated record at the end of a segment is ignored).
+ * The oldest segment is deleted when the maximum number of segments has been reached.
+ * <p>
+ * The store isn't thread-safe, it is used by {@link LlmResponseCache} while holding its lock.
+ */
+class ResponseSegmentStore {
+    /** logger */
+    private static final Logger LOGGER = Logger.getInstance(ResponseSegmentStore.class);
+
+    /** magic number of a record ("LRC1") */
+    private static final int MAGIC = 0x4c524331;
+    /** length of a record-header: magic, key, length of payload */
+    private static final int LEN_HEADER = 4 + 32 + 4;
+    /** length of the CRC32 */
+    private static final int LEN_CRC = 4;
+    /** prefix of a segment-file */
+    private static final String PREFIX_SEGMENT = "segment-";
+    /** suffix of a segment-file */
+    private static final String SUFFIX_SEGMENT = ".bin";
+
+    /** directory of the segments */
+    private final Path directory;
+    /** maximum size of a segment in bytes */
+    private final long maxSegmentSize;
+    /** maximum number of segments */
+    private final int maxSegments;
+
+    /** segment-files by number */
+    private final TreeMap<Integer, Path> segments = new TreeMap<>();
+    /** location of a record (segment-number in the upper 32 bits, offset in the lower 32 bits) by key */
+    private final Map<LlmResponseCache.Key, Long> index = new HashMap<>();
+
+    /** number of the segment to be written, -1 if no segment has been opened for writing */
+    private int currentSegment = -1;
+    /** channel of the segment to be written */
+    private FileChannel currentChannel;
+
+    /**
+     * Opens the store and builds the index.
+     * @param directory directory of the segments (created if necessary)
+     * @param maxSegmentSize maximum size of a segment in bytes
+     * @param maxSegments maximum number of segments
+     * @throws IOException if the directory can't be read
+     */
+    ResponseSegmentStore(Path directory, long maxSegmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(directory, PREFIX_SEGMENT + "*" + SUFFIX_SEGMENT)) {
+            for (Path file : ds) {
+                final String name = file.getFileName().toString();
+                try {
+                    final int segmentNo = Integer.parseInt(name.substring(PREFIX_SEGMENT.length(), name.length() - SUFFIX_SEGMENT.length()));
+                    segments.put(segmentNo, file);
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Unexpected file in response-cache: " + file);
+                }
+            }
+        }
+        for (Map.Entry<Integer, Path> entry : segments.entrySet()) {
+            scanSegment(entry.getKey(), entry.getValue());
+        }
+        LOGGER.info(String.format("Response-cache %s: %d segments, %d entries", directory, segments.size(), index.size()));
+    }
+
+    private void scanSegment(int segmentNo, Path file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = fc.size();
+            final ByteBuffer bufHeader = ByteBuffer.allocate(LEN_HEADER);
+            long offset = 0;
+            while (offset + LEN_HEADER <= size) {
+                bufHeader.clear();
+                readFully(fc, bufHeader, offset);
+                bufHeader.flip();
+                if (bufHeader.getInt() != MAGIC) {
+                    LOGGER.warn(String.format("Invalid record in %s at offset %d", file, offset));
+                    break;
+                }
+                final LlmResponseCache.Key key = LlmResponseCache.Key.read(bufHeader);
+                final int lenPayload = bufHeader.getInt();
+                final long offsetNext = offset + LEN_HEADER + lenPayload + LEN_CRC;
+                if (lenPayload < 0 || offsetNext > size) {
+                    LOGGER.info(String.format("Truncated record in %s at offset %d", file, offset));
+                    break;
+                }
+                index.put(key, location(segmentNo, offset));
+                offset = offsetNext;
+            }
+        }
+    }
+
+    /**
+     * Reads a response.
+     * @param key key
+     * @return response or <code>null</code> if the key is unknown or the record is damaged
+     */
+    CachedResponse get(LlmResponseCache.Key key) {
+        final Long location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        final int segmentNo = (int) (location >>> 32);
+        final long offset = location & 0xffffffffL;
+        final Path file = segments.get(segmentNo);
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer bufHeader = ByteBuffer.allocate(LEN_HEADER);
+            readFully(fc, bufHeader, offset);
+            bufHeader.flip();
+            bufHeader.position(LEN_HEADER - 4);
+            final int lenPayload = bufHeader.getInt();
+            final ByteBuffer bufPayload = ByteBuffer.allocate(lenPayload + LEN_CRC);
+            readFully(fc, bufPayload, offset + LEN_HEADER);
+            bufPayload.flip();
+            final CRC32 crc = new CRC32();
+            crc.update(bufPayload.array(), 0, lenPayload);
+            if ((int) crc.getValue() != bufPayload.getInt(lenPayload)) {
+                throw new IOException("CRC-error");
+            }
+            bufPayload.limit(lenPayload);
+            return decodePayload(bufPayload);
+        } catch (IOException e) {
+            LOGGER.warn(String.format("Can't read response-cache-record in %s at offset %d: %s", file, offset, e));
+            index.remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Appends a response.
+     * @param key key
+     * @param response response
+     * @throws IOException in case of an IO-error
+     */
+    void put(LlmResponseCache.Key key, CachedResponse response) throws IOException {
+        final byte[] payload = encodePayload(response);
+        final ByteBuffer buf = ByteBuffer.allocate(LEN_HEADER + payload.length + LEN_CRC);
+        buf.putInt(MAGIC);
+        key.write(buf);
+        buf.putInt(payload.length);
+        buf.put(payload);
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+
+        if (currentChannel == null || currentChannel.size() + buf.remaining() > maxSegmentSize) {
+            startSegment();
+        }
+        final long offset = currentChannel.size();
+        while (buf.hasRemaining()) {
+            currentChannel.write(buf);
+        }
+        index.put(key, location(currentSegment, offset));
+    }
+
+    private void startSegment() throws IOException {
+        closeChannel();
+        currentSegment = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        final Path file = directory.resolve(PREFIX_SEGMENT + currentSegment + SUFFIX_SEGMENT);
+        currentChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segments.put(currentSegment, file);
+        while (segments.size() > maxSegments) {
+            final Map.Entry<Integer, Path> oldest = segments.pollFirstEntry();
+            final long segmentNo = oldest.getKey();
+            for (Iterator<Long> it = index.values().iterator(); it.hasNext(); ) {
+                if ((it.next() >>> 32) == segmentNo) {
+                    it.remove();
+                }
+            }
+            Files.deleteIfExists(oldest.getValue());
+            LOGGER.info("Deleted response-cache segment " + oldest.getValue());
+        }
+    }
+
+    /**
+     * Deletes all segments.
+     * @throws IOException in case of an IO-error
+     */
+    void clear() throws IOException {
+        closeChannel();
+        for (Path file : segments.values()) {
+            Files.deleteIfExists(file);
+        }
+        segments.clear();
+        index.clear();
+    }
+
+    /**
+     * Gets the number of responses in the store.
+     * @return number of responses
+     */
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * Closes the segment being written.
+     */
+    void close() {
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (currentChannel != null) {
+            try {
+                currentChannel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Error while closing segment: " + e);
+            }
+            currentChannel = null;
+        }
+    }
+
+    static byte[] encodePayload(CachedResponse response) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(16 + 2 * response.tokenEnds().length + response.text().length());
+        final int[] tokenEnds = response.tokenEnds();
+        LlmBackgroundable.writeVarint(baos, tokenEnds.length);
+        int start = 0;
+        for (int end : tokenEnds) {
+            LlmBackgroundable.writeVarint(baos, end - start);
+            start = end;
+        }
+        baos.write(response.text().getBytes(StandardCharsets.UTF_8));
+        return baos.toByteArray();
+    }
+
+    static CachedResponse decodePayload(ByteBuffer buf) throws IOException {
+        final int numTokens = (int) readVarint(buf);
+        final int[] tokenEnds = new int[numTokens];
+        int end = 0;
+        for (int i = 0; i < numTokens; i++) {
+            end += (int) readVarint(buf);
+            tokenEnds[i] = end;
+        }
+        final String text = StandardCharsets.UTF_8.decode(buf).toString();
+        if (numTokens > 0 && end != text.length()) {
+            throw new IOException(String.format("Token-lengths (%d) don't match text-length (%d)", end, text.length()));
+        }
+        return new CachedResponse(text, tokenEnds);
+    }
+
+    private static long readVarint(ByteBuffer buf) throws IOException {
+        final long value = Llm1ResponseDecoder.readVarint(buf);
+        if (value < 0) {
+            throw new IOException("Truncated varint");
+        }
+        return value;
+    }
+
+    private static long location(int segmentNo, long offset) {
+        return ((long) segmentNo << 32) | offset;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            final int len = fc.read(buf, pos);
+            if (len < 0) {
+                throw new IOException("Unexpected end of segment at position " + pos);
+            }
+            pos += len;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free histogram of non-negative values (e.g. durations in microseconds) of a rolling time-range.
+ * <p>
+ * The buckets are log-linear: values below 16 have a bucket each, above there are 16 buckets per power of two,
+ * so a percentile has a relative error below 6.25 %. The time-range is a ring of windows,
+ * a window of an expired period is replaced by a new window (compare-and-set), so a recording thread never waits.
+ */
+final class RollingHistogram {
+    /** number of bits of the sub-buckets of a power of two */
+    private static final int SUB_BITS = 4;
+    /** number of sub-buckets of a power of two */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /** number of buckets (covering all non-negative longs) */
+    static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+    /**
+     * Values of a period.
+     */
+    private static final class Window {
+        /** number of the period (time divided by the length of a window) */
+        final long period;
+        /** counts of the buckets */
+        final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+        /** number of values */
+        final AtomicLong count = new AtomicLong();
+        /** sum of the values */
+        final AtomicLong sum = new AtomicLong();
+        /** maximum value */
+        final AtomicLong max = new AtomicLong();
+
+        Window(long period) {
+            this.period = period;
+        }
+    }
+
+    /**
+     * Merged values of the windows of the time-range.
+     * @param count number of values
+     * @param sum sum of the values
+     * @param max maximum value
+     * @param counts counts of the buckets
+     */
+    record Snapshot(long count, long sum, long max, long[] counts) {
+        /**
+         * Computes a percentile.
+         * @param p percentile (0..1), e.g. 0.95
+         * @return approximated value (middle of the bucket), 0 if there are no values
+         */
+        long percentile(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(p * count));
+            long cumulated = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulated += counts[i];
+                if (cumulated >= rank) {
+                    return Math.min(max, bucketMiddle(i));
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Computes the mean value.
+         * @return mean, 0 if there are no values
+         */
+        double mean() {
+            return (count > 0) ? (double) sum / count : 0;
+        }
+    }
+
+    /** windows of the ring, <code>null</code> if unused */
+    private final AtomicReferenceArray<Window> windows;
+    /** length of a window in milliseconds */
+    private final long windowMillis;
+    /** clock in milliseconds */
+    private final LongSupplier clock;
+
+    /**
+     * Constructor
+     * @param numWindows number of windows of the time-range
+     * @param windowMillis length of a window in milliseconds
+     * @param clock clock in milliseconds, e.g. {@code System::currentTimeMillis}
+     */
+    RollingHistogram(int numWindows, long windowMillis, LongSupplier clock) {
+        windows = new AtomicReferenceArray<>(numWindows);
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Computes the bucket of a value.
+     * @param value non-negative value
+     * @return index of the bucket
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_COUNT) {
+            return (int) Math.max(0, value);
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+    }
+
+    /**
+     * Computes the middle of the range of a bucket.
+     * @param index index of the bucket
+     * @return value in the middle of the bucket
+     */
+    static long bucketMiddle(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_COUNT - 1;
+        final long lower = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+
+    /**
+     * Records a value.
+     * @param value non-negative value (negative values are recorded as 0)
+     */
+    void record(long value) {
+        final long v = Math.max(0, value);
+        final long period = clock.getAsLong() / windowMillis;
+        final int index = (int) (period % windows.length());
+        Window window = windows.get(index);
+        while (window == null || window.period != period) {
+            // The empty window of the new period is published at once, a competing thread uses the winner's window.
+            final Window newWindow = new Window(period);
+            if (windows.compareAndSet(index, window, newWindow)) {
+                window = newWindow;
+            } else {
+                window = windows.get(index);
+            }
+        }
+        window.counts.incrementAndGet(bucketIndex(v));
+        window.count.incrementAndGet();
+        window.sum.addAndGet(v);
+        window.max.accumulateAndGet(v, Math::max);
+    }
+
+    /**
+     * Merges the windows of the time-range.
+     * @return snapshot
+     */
+    Snapshot snapshot() {
+        final long period = clock.getAsLong() / windowMillis;
+        final long[] counts = new long[NUM_BUCKETS];
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+        for (int w = 0; w < windows.length(); w++) {
+            final Window window = windows.get(w);
+            if (window == null || window.period <= period - windows.length() || window.period > period) {
+                continue;
+            }
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                counts[i] += window.counts.get(i);
+            }
+            count += window.count.get();
+            sum += window.sum.get();
+            max = Math.max(max, window.max.get());
+        }
+        return new Snapshot(count, sum, max, counts);
+    }
+
+    /**
+     * Removes all values.
+     */
+    void clear() {
+        for (int w = 0; w < windows.length(); w++) {
+            windows.set(w, null);
+        }
+    }
+}
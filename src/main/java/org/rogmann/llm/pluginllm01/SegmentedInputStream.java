@@ -0,0 +1,72 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Input-stream of a request consisting of segments: byte-arrays (e.g. serialized JSON or chunk-headers)
+ * and character-sequences which are encoded into the buffer of the reader by a {@link Utf8StreamEncoder}.
+ * So a large prompt isn't copied into a byte-array before it is sent.
+ */
+final class SegmentedInputStream extends InputStream {
+    /** segments: byte-array or character-sequence */
+    private final List<Object> segments;
+    /** <code>true</code> if the character-sequences are contents of JSON-strings */
+    private final boolean jsonEscape;
+    /** index of the current segment */
+    private int idxSegment;
+    /** offset in the current byte-array segment */
+    private int offset;
+    /** encoder of the current character-sequence segment */
+    private Utf8StreamEncoder encoder;
+
+    /**
+     * Constructor
+     * @param segments segments (byte-array or character-sequence)
+     * @param jsonEscape <code>true</code> if the character-sequences are escaped as contents of JSON-strings
+     */
+    SegmentedInputStream(List<Object> segments, boolean jsonEscape) {
+        this.segments = segments;
+        this.jsonEscape = jsonEscape;
+    }
+
+    @Override
+    public int read() {
+        final byte[] buf = new byte[1];
+        return (read(buf, 0, 1) < 0) ? -1 : (buf[0] & 0xff);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int idx = off;
+        final int end = off + len;
+        while (idx < end && idxSegment < segments.size()) {
+            final Object segment = segments.get(idxSegment);
+            if (segment instanceof byte[] buf) {
+                final int n = Math.min(end - idx, buf.length - offset);
+                System.arraycopy(buf, offset, b, idx, n);
+                idx += n;
+                offset += n;
+                if (offset == buf.length) {
+                    idxSegment++;
+                    offset = 0;
+                }
+            } else {
+                if (encoder == null) {
+                    encoder = new Utf8StreamEncoder((CharSequence) segment, jsonEscape);
+                }
+                final int n = encoder.encode(b, idx, end - idx);
+                if (n < 0) {
+                    idxSegment++;
+                    encoder = null;
+                } else {
+                    idx += n;
+                }
+            }
+        }
+        return (idx == off) ? -1 : idx - off;
+    }
+}
@@ -0,0 +1,43 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.PsiFile;
+
+/**
+ * Compresses sources to their skeleton (signatures without bodies and comments), see the placeholder
+ * <code>[Skeletons]</code> and the action "Copy Classes as Markdown Skeletons".
+ * <p>
+ * The {@link JavaSkeletonizer} based on the Java-PSI is registered in <code>pluginllm01-java.xml</code>
+ * if the IDE contains the Java-plugin, otherwise the {@link TextSkeletonizer} is used.
+ * The methods have to be called in a read-action.
+ */
+public interface Skeletonizer {
+
+    /**
+     * Gets the skeletonizer of a project.
+     * @param project project
+     * @return skeletonizer of the Java-plugin or the text-skeletonizer
+     */
+    static Skeletonizer getInstance(Project project) {
+        final Skeletonizer skeletonizer = project.getService(Skeletonizer.class);
+        return (skeletonizer != null) ? skeletonizer : TextSkeletonizer.INSTANCE;
+    }
+
+    /**
+     * Gets the skeleton of a Java-file (read-action).
+     * @param file file
+     * @return skeleton or <code>null</code> if the file isn't a Java-file
+     */
+    String getSkeleton(PsiFile file);
+
+    /**
+     * Builds the skeletons of the Java-files referenced in a range of a file as markdown (read-action).
+     * @param file file
+     * @param start start-offset of the range
+     * @param end end-offset of the range
+     * @param budgetTokens maximum number of tokens
+     * @param tokenCounter counter of tokens
+     * @return markdown, empty if no project-class is referenced
+     */
+    String buildSkeletons(PsiFile file, int start, int end, int budgetTokens, FimContextExtractor.TokenCounter tokenCounter);
+}
@@ -0,0 +1,403 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental decoder of a server-sent event stream (content-type text/event-stream).
+ * <p>
+ * The decoder is fed with the byte-buffers as they arrive from the network and follows
+ * the <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html#event-stream-interpretation">event-stream interpretation</a>:
+ * lines may be terminated by CR, LF or CR LF, an event may contain several data-fields,
+ * the fields event, id and retry are supported, comments are skipped.
+ * <p>
+ * Line-ends are found by scanning eight bytes at once (SWAR). Only the data-payload is decoded
+ * from UTF-8, into a char-buffer which is reused for all events.
+ * An instance is not thread-safe, it has to be fed by one subscriber.
+ */
+class SseDecoder {
+    /** view of a byte-array as little-endian longs */
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long LFS = ONES * '\n';
+    private static final long CRS = ONES * '\r';
+
+    /** field-names as bytes */
+    private static final byte[] FIELD_DATA = { 'd', 'a', 't', 'a' };
+    private static final byte[] FIELD_EVENT = { 'e', 'v', 'e', 'n', 't' };
+    private static final byte[] FIELD_ID = { 'i', 'd' };
+    private static final byte[] FIELD_RETRY = { 'r', 'e', 't', 'r', 'y' };
+    /** line-feed joining data-fields */
+    private static final byte[] LF = { '\n' };
+    /** UTF-8 byte order mark */
+    private static final byte[] BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+
+    /**
+     * Listener of the decoded events.
+     */
+    interface EventListener {
+        /**
+         * Called for each dispatched event.
+         * The data is valid during the call only, the buffer is reused for the next event.
+         * @param eventType type of the event ("message" if no event-field has been sent)
+         * @param lastEventId last event-id
+         * @param data data of the event, the data-fields are joined by LF
+         * @return <code>true</code> if the stream is complete and further events should be ignored
+         * @throws IOException in case of an error while processing the event
+         */
+        boolean onEvent(String eventType, String lastEventId, CharSequence data) throws IOException;
+
+        /**
+         * Called for a field which is not defined by the specification (e.g. "error" sent by llama.cpp).
+         * @param name name of the field
+         * @param value value of the field
+         */
+        default void onUnknownField(String name, String value) {
+            // Unknown fields are ignored by default.
+        }
+    }
+
+    /** listener */
+    private final EventListener listener;
+
+    /** bytes of an incomplete line at the end of the previous chunk */
+    private byte[] lineBuf = new byte[256];
+    /** number of bytes in the line-buffer */
+    private int lineLen;
+
+    /** UTF-8 bytes of the data of the current event */
+    private byte[] dataBuf = new byte[1024];
+    /** number of bytes in the data-buffer */
+    private int dataLen;
+    /** <code>true</code> if a data-field has been read in the current event */
+    private boolean hasData;
+
+    /** decoded data of the current event */
+    private CharBuffer dataChars = CharBuffer.allocate(1024);
+    /** UTF-8 decoder */
+    private final CharsetDecoder utf8Decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    /** scratch-array used to read buffers without accessible array */
+    private byte[] scratch = new byte[0];
+
+    /** event-type of the current event */
+    private String eventType;
+    /** last event-id */
+    private String lastEventId = "";
+    /** reconnection-time sent by the server, -1 if not sent */
+    private long retryMillis = -1;
+
+    /** <code>true</code> if the previous chunk ended with CR (a following LF belongs to it) */
+    private boolean pendingCr;
+    /** <code>true</code> if the first bytes of the stream have been checked for a BOM */
+    private boolean bomChecked;
+    /** <code>true</code> if the listener signaled the end of the stream */
+    private boolean completed;
+
+    /** number of events dispatched */
+    private long numEvents;
+
+    SseDecoder(EventListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Feeds a chunk of the stream. The buffer's position is moved to its limit.
+     * @param chunk chunk of bytes
+     * @return <code>true</code> if the listener signaled the end of the stream
+     * @throws IOException in case of an error in the listener
+     */
+    boolean feed(ByteBuffer chunk) throws IOException {
+        final int len = chunk.remaining();
+        if (chunk.hasArray()) {
+            final int offset = chunk.arrayOffset() + chunk.position();
+            chunk.position(chunk.limit());
+            return feed(chunk.array(), offset, len);
+        }
+        if (scratch.length < len) {
+            scratch = new byte[Math.max(len, 2 * scratch.length)];
+        }
+        chunk.get(scratch, 0, len);
+        return feed(scratch, 0, len);
+    }
+
+    /**
+     * Feeds a chunk of the stream.
+     * @param buf array containing the chunk
+     * @param offset offset of the chunk
+     * @param len length of the chunk
+     * @return <code>true</code> if the listener signaled the end of the stream
+     * @throws IOException in case of an error in the listener
+     */
+    boolean feed(byte[] buf, int offset, int len) throws IOException {
+        int pos = offset;
+        final int end = offset + len;
+        if (!bomChecked) {
+            // The stream may start with a UTF-8 BOM which has to be skipped.
+            appendLine(buf, offset, len);
+            if (lineLen < BOM.length && isBomPrefix(lineLen)) {
+                return completed;
+            }
+            bomChecked = true;
+            final int skip = isBomPrefix(BOM.length) ? BOM.length : 0;
+            final byte[] head = Arrays.copyOfRange(lineBuf, skip, lineLen);
+            lineLen = 0;
+            return feed(head, 0, head.length);
+        }
+        if (pendingCr && pos < end) {
+            pendingCr = false;
+            if (buf[pos] == '\n') {
+                pos++;
+            }
+        }
+        while (pos < end && !completed) {
+            final int idxEol = indexOfLineEnd(buf, pos, end);
+            if (idxEol < 0) {
+                appendLine(buf, pos, end - pos);
+                break;
+            }
+            if (lineLen > 0) {
+                appendLine(buf, pos, idxEol - pos);
+                processLine(lineBuf, 0, lineLen);
+                lineLen = 0;
+            } else {
+                processLine(buf, pos, idxEol - pos);
+            }
+            pos = idxEol + 1;
+            if (buf[idxEol] == '\r') {
+                if (pos == end) {
+                    pendingCr = true;
+                } else if (buf[pos] == '\n') {
+                    pos++;
+                }
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Searches the next CR or LF in a range of a byte-array.
+     * Eight bytes are compared per step using the has-zero-byte bit-trick.
+     * @param buf byte-array
+     * @param from start-index (inclusive)
+     * @param to end-index (exclusive)
+     * @return index of CR or LF, -1 if not found
+     */
+    static int indexOfLineEnd(byte[] buf, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            final long word = (long) LONG_VIEW.get(buf, i);
+            final long xLf = word ^ LFS;
+            final long xCr = word ^ CRS;
+            final long found = ((xLf - ONES) & ~xLf | (xCr - ONES) & ~xCr) & HIGHS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            final byte b = buf[i];
+            if (b == '\n' || b == '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Processes a line (without line-end).
+     * @param buf array containing the line
+     * @param offset offset of the line
+     * @param len length of the line
+     * @throws IOException in case of an error in the listener
+     */
+    private void processLine(byte[] buf, int offset, int len) throws IOException {
+        if (len == 0) {
+            dispatchEvent();
+            return;
+        }
+        if (buf[offset] == ':') {
+            // Comment, e.g. a keep-alive.
+            return;
+        }
+        int idxColon = -1;
+        for (int i = offset; i < offset + len; i++) {
+            if (buf[i] == ':') {
+                idxColon = i;
+                break;
+            }
+        }
+        final int nameLen = (idxColon >= 0) ? idxColon - offset : len;
+        int valueStart = (idxColon >= 0) ? idxColon + 1 : offset + len;
+        if (valueStart < offset + len && buf[valueStart] == ' ') {
+            valueStart++;
+        }
+        final int valueLen = offset + len - valueStart;
+        if (isField(buf, offset, nameLen, FIELD_DATA)) {
+            if (hasData) {
+                appendData(LF, 0, 1);
+            }
+            appendData(buf, valueStart, valueLen);
+            hasData = true;
+        }
+        else if (isField(buf, offset, nameLen, FIELD_EVENT)) {
+            eventType = new String(buf, valueStart, valueLen, StandardCharsets.UTF_8);
+        }
+        else if (isField(buf, offset, nameLen, FIELD_ID)) {
+            final String id = new String(buf, valueStart, valueLen, StandardCharsets.UTF_8);
+            if (id.indexOf('\0') < 0) {
+                lastEventId = id;
+            }
+        }
+        else if (isField(buf, offset, nameLen, FIELD_RETRY)) {
+            long retry = 0;
+            for (int i = valueStart; i < valueStart + valueLen; i++) {
+                final byte b = buf[i];
+                if (b < '0' || b > '9') {
+                    return;
+                }
+                retry = 10 * retry + (b - '0');
+            }
+            if (valueLen > 0) {
+                retryMillis = retry;
+            }
+        }
+        else {
+            listener.onUnknownField(new String(buf, offset, nameLen, StandardCharsets.UTF_8),
+                    new String(buf, valueStart, valueLen, StandardCharsets.UTF_8));
+        }
+    }
+
+    private boolean isBomPrefix(int len) {
+        if (lineLen < len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (lineBuf[i] != BOM[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isField(byte[] buf, int offset, int len, byte[] name) {
+        if (len != name.length) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (buf[offset + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Dispatches the current event and resets the event-buffers.
+     * An event without data-field has an empty data-buffer and is not dispatched (only the event-type
+     * is reset), an event with an empty data-field ("data:") is dispatched with empty data.
+     * @throws IOException in case of an error in the listener
+     */
+    private void dispatchEvent() throws IOException {
+        final String type = (eventType != null) ? eventType : "message";
+        eventType = null;
+        if (!hasData) {
+            return;
+        }
+        hasData = false;
+        final CharBuffer data = decodeData();
+        dataLen = 0;
+        numEvents++;
+        if (listener.onEvent(type, lastEventId, data)) {
+            completed = true;
+        }
+    }
+
+    /**
+     * Decodes the UTF-8 data of the current event into the reusable char-buffer.
+     * @return char-buffer containing the data (flipped)
+     */
+    private CharBuffer decodeData() {
+        if (dataChars.capacity() < dataLen) {
+            dataChars = CharBuffer.allocate(Math.max(dataLen, 2 * dataChars.capacity()));
+        }
+        dataChars.clear();
+        utf8Decoder.reset();
+        final ByteBuffer bbData = ByteBuffer.wrap(dataBuf, 0, dataLen);
+        CoderResult result = utf8Decoder.decode(bbData, dataChars, true);
+        if (result.isOverflow()) {
+            // Not expected: UTF-8 never needs more chars than bytes.
+            throw new IllegalStateException("Char-buffer overflow while decoding event-data");
+        }
+        utf8Decoder.flush(dataChars);
+        dataChars.flip();
+        return dataChars;
+    }
+
+    private void appendLine(byte[] buf, int offset, int len) {
+        if (lineLen + len > lineBuf.length) {
+            final byte[] bufNew = new byte[Math.max(lineLen + len, 2 * lineBuf.length)];
+            System.arraycopy(lineBuf, 0, bufNew, 0, lineLen);
+            lineBuf = bufNew;
+        }
+        System.arraycopy(buf, offset, lineBuf, lineLen, len);
+        lineLen += len;
+    }
+
+    private void appendData(byte[] buf, int offset, int len) {
+        if (dataLen + len > dataBuf.length) {
+            final byte[] bufNew = new byte[Math.max(dataLen + len, 2 * dataBuf.length)];
+            System.arraycopy(dataBuf, 0, bufNew, 0, dataLen);
+            dataBuf = bufNew;
+        }
+        System.arraycopy(buf, offset, dataBuf, dataLen, len);
+        dataLen += len;
+    }
+
+    /**
+     * Signals the end of the stream. An incomplete event at the end of the stream is discarded (as specified).
+     * @return <code>true</code> if the listener signaled the end of the stream before
+     */
+    boolean finish() {
+        lineLen = 0;
+        dataLen = 0;
+        hasData = false;
+        return completed;
+    }
+
+    /**
+     * Gets the number of bytes of an incomplete line or event which haven't been dispatched yet.
+     * @return number of pending bytes
+     */
+    int getPendingBytes() {
+        return lineLen + dataLen;
+    }
+
+    /**
+     * Gets the reconnection-time sent by the server.
+     * @return retry in milliseconds, -1 if not sent
+     */
+    long getRetryMillis() {
+        return retryMillis;
+    }
+
+    /**
+     * Gets the number of dispatched events.
+     * @return number of events
+     */
+    long getNumEvents() {
+        return numEvents;
+    }
+}
@@ -0,0 +1,138 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.SelectionModel;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.util.Alarm;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Streams the tokens of a running request into the editor.
+ * <p>
+ * While the request is running the tokens are shown as a {@link GhostTextPreview} at the caret
+ * (or at the end of the selection), the document isn't modified. Tokens arriving in the same
+ * UI-frame are coalesced into one update of the preview. When the response is complete,
+ * the preview is removed and the caller writes the final text in a single undoable command.
+ * Cancelling the request removes the preview only, so there is nothing to undo.
+ * <p>
+ * {@link #append(String)} and {@link #reset()} may be called by any thread, the other methods are called in the EDT.
+ */
+class StreamingInsertion implements Disposable {
+    /** delay in milliseconds to coalesce tokens (one update per UI-frame) */
+    private static final int FRAME_MILLIS = 16;
+
+    /** preview of the tokens */
+    private final GhostTextPreview preview;
+    /** alarm to update the preview in the EDT */
+    private final Alarm alarm;
+
+    /** tokens received so far, guarded by itself */
+    private final StringBuilder sbTokens = new StringBuilder();
+    /** <code>true</code> if an update of the preview has been scheduled */
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+    /** <code>true</code> if the insertion has been finished or cancelled */
+    private volatile boolean closed;
+    /** optional callback called in the EDT when the first text has been shown */
+    private Runnable firstPreviewListener;
+
+    /**
+     * Starts a streaming insertion at the caret or the selection of the editor (EDT).
+     * @param project project
+     * @param editor editor
+     */
+    StreamingInsertion(Project project, Editor editor) {
+        final SelectionModel selectionModel = editor.getSelectionModel();
+        final int offset = selectionModel.hasSelection() ? selectionModel.getSelectionEnd() : editor.getCaretModel().getOffset();
+        preview = new GhostTextPreview(editor, offset);
+        alarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+        Disposer.register(this, preview);
+        Disposer.register(project, this);
+    }
+
+    /**
+     * Appends a token, the preview will be updated in the next UI-frame.
+     * @param token token
+     */
+    void append(String token) {
+        if (closed) {
+            return;
+        }
+        synchronized (sbTokens) {
+            sbTokens.append(token);
+        }
+        if (updateScheduled.compareAndSet(false, true)) {
+            alarm.addRequest(this::updatePreview, FRAME_MILLIS);
+        }
+    }
+
+    /**
+     * Discards the tokens received so far, e.g. if the request is sent again (any thread).
+     */
+    void reset() {
+        synchronized (sbTokens) {
+            sbTokens.setLength(0);
+        }
+        if (!closed && updateScheduled.compareAndSet(false, true)) {
+            alarm.addRequest(this::updatePreview, FRAME_MILLIS);
+        }
+    }
+
+    private void updatePreview() {
+        updateScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        final String text;
+        synchronized (sbTokens) {
+            text = sbTokens.toString();
+        }
+        preview.setText(text);
+        if (firstPreviewListener != null && !text.isEmpty()) {
+            firstPreviewListener.run();
+            firstPreviewListener = null;
+        }
+    }
+
+    /**
+     * Sets a callback which is called in the EDT when the first text has been shown.
+     * @param firstPreviewListener callback, e.g. to measure the latency
+     */
+    void setFirstPreviewListener(Runnable firstPreviewListener) {
+        this.firstPreviewListener = firstPreviewListener;
+    }
+
+    /**
+     * Gets the offset of the preview in the document.
+     * @return offset
+     */
+    int getOffset() {
+        return preview.getOffset();
+    }
+
+    /**
+     * Gets the tokens received so far.
+     * @return text
+     */
+    String getText() {
+        synchronized (sbTokens) {
+            return sbTokens.toString();
+        }
+    }
+
+    /**
+     * Removes the preview (EDT). This is called when the response is complete
+     * (before the final text is written) or when the request has been cancelled.
+     */
+    void close() {
+        Disposer.dispose(this);
+    }
+
+    @Override
+    public void dispose() {
+        closed = true;
+        alarm.cancelAllRequests();
+    }
+}
@@ -0,0 +1,167 @@
+package org.rogmann.llm.pluginllm01;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Skeletons of Java-sources without the Java-PSI (IDE without the Java-plugin): comments outside of bodies are removed
+ * and blocks inside the top-level classes (method-bodies, but nested classes too) are replaced by <code>{ ... }</code>.
+ * The blocks are found by their braces, string- and char-literals and comments are skipped.
+ * <p>
+ * The referenced classes of a range can't be resolved without the Java-PSI, so {@link #buildSkeletons} is empty.
+ */
+final class TextSkeletonizer implements Skeletonizer {
+    /** instance (the skeletonizer has no state) */
+    static final TextSkeletonizer INSTANCE = new TextSkeletonizer();
+
+    /** replacement of a method-body */
+    static final String ELIDED_BODY = "{ ... }";
+    /** replacement of a multi-line field-initializer */
+    static final String ELIDED_INITIALIZER = "...";
+
+    /**
+     * Part of the source to be replaced.
+     * @param start start-offset
+     * @param end end-offset (exclusive)
+     * @param replacement replacement, empty to remove the part
+     */
+    record Elision(int start, int end, String replacement) { }
+
+    private TextSkeletonizer() {
+    }
+
+    @Override
+    public String getSkeleton(PsiFile file) {
+        final VirtualFile virtualFile = file.getVirtualFile();
+        if (virtualFile == null || !"java".equals(virtualFile.getExtension())) {
+            return null;
+        }
+        return computeSkeleton(file.getText());
+    }
+
+    @Override
+    public String buildSkeletons(PsiFile file, int start, int end, int budgetTokens, FimContextExtractor.TokenCounter tokenCounter) {
+        return "";
+    }
+
+    /**
+     * Computes the skeleton of a Java-source by its braces.
+     * @param text source
+     * @return skeleton
+     */
+    static String computeSkeleton(CharSequence text) {
+        final List<Elision> elisions = new ArrayList<>();
+        final int len = text.length();
+        int depth = 0;
+        int startBlock = -1;
+        int i = 0;
+        while (i < len) {
+            final char c = text.charAt(i);
+            final char next = (i + 1 < len) ? text.charAt(i + 1) : 0;
+            int end = i + 1;
+            if (c == '/' && (next == '*' || next == '/')) {
+                final int idx = indexOf(text, (next == '*') ? "*/" : "\n", i + 2);
+                end = (idx < 0) ? len : (next == '*') ? idx + 2 : idx;
+                if (depth < 2) {
+                    elisions.add(new Elision(i, end, ""));
+                }
+            } else if (c == '"' || c == '\'') {
+                end = skipLiteral(text, i);
+            } else if (c == '{') {
+                if (depth == 1) {
+                    startBlock = i;
+                }
+                depth++;
+            } else if (c == '}' && depth > 0) {
+                depth--;
+                if (depth == 1 && startBlock >= 0) {
+                    elisions.add(new Elision(startBlock, i + 1, ELIDED_BODY));
+                    startBlock = -1;
+                }
+            }
+            i = end;
+        }
+        return elide(text, elisions);
+    }
+
+    /**
+     * Skips a string-, char- or text-block-literal.
+     * @param text source
+     * @param start offset of the opening quote
+     * @return offset after the closing quote
+     */
+    private static int skipLiteral(CharSequence text, int start) {
+        final char quote = text.charAt(start);
+        if (quote == '"' && startsWith(text, "\"\"\"", start)) {
+            final int idx = indexOf(text, "\"\"\"", start + 3);
+            return (idx >= 0) ? idx + 3 : text.length();
+        }
+        for (int i = start + 1; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote || c == '\n') {
+                return i + 1;
+            }
+        }
+        return text.length();
+    }
+
+    private static boolean startsWith(CharSequence text, String prefix, int offset) {
+        return offset + prefix.length() <= text.length()
+                && CharSequence.compare(text.subSequence(offset, offset + prefix.length()), prefix) == 0;
+    }
+
+    private static int indexOf(CharSequence text, String s, int fromIndex) {
+        for (int i = fromIndex; i + s.length() <= text.length(); i++) {
+            if (startsWith(text, s, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Applies elisions to a source. Trailing whitespace is removed, consecutive blank lines
+     * and blank lines at the begin or end of a block are dropped.
+     * @param text source
+     * @param elisions elisions, an elision inside a preceding one is ignored
+     * @return skeleton
+     */
+    static String elide(CharSequence text, List<Elision> elisions) {
+        final List<Elision> sorted = new ArrayList<>(elisions);
+        sorted.sort(Comparator.comparingInt(Elision::start));
+        final StringBuilder sb = new StringBuilder(text.length());
+        int pos = 0;
+        for (Elision elision : sorted) {
+            if (elision.start() < pos) {
+                continue;
+            }
+            sb.append(text, pos, elision.start()).append(elision.replacement());
+            pos = elision.end();
+        }
+        sb.append(text, pos, text.length());
+
+        final StringBuilder result = new StringBuilder(sb.length());
+        boolean blankPending = false;
+        String lastLine = null;
+        for (String line : sb.toString().split("\n")) {
+            line = line.stripTrailing();
+            if (line.isEmpty()) {
+                blankPending = (lastLine != null);
+                continue;
+            }
+            if (blankPending && !lastLine.endsWith("{") && !line.stripLeading().startsWith("}")) {
+                result.append('\n');
+            }
+            result.append(line).append('\n');
+            blankPending = false;
+            lastLine = line;
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,216 @@
+package org.rogmann.llm.pluginllm01;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Resumable UTF-8 encoder of a character-sequence, optionally with the escaping of a JSON-string.
+ * <p>
+ * The characters are encoded directly into the buffer of the caller (e.g. the buffer of the HTTP-client),
+ * so a large prompt isn't copied into a byte-array or a string before it is sent.
+ * Unpaired surrogates are encoded as '?' like {@link String#getBytes(java.nio.charset.Charset)}, a JSON-string
+ * contains them as unicode-escape.
+ */
+final class Utf8StreamEncoder {
+    /** size of a pooled buffer */
+    static final int BUFFER_SIZE = 8192;
+
+    /** maximum number of bytes of a single encoded character (a JSON-escaped surrogate-pair) */
+    private static final int MAX_CHAR_BYTES = 12;
+
+    /** pool of buffers */
+    private static final ArrayBlockingQueue<byte[]> BUFFER_POOL = new ArrayBlockingQueue<>(8);
+
+    /** hex-digits */
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    /** text to be encoded */
+    private final CharSequence text;
+    /** <code>true</code> if the text is the content of a JSON-string */
+    private final boolean jsonEscape;
+    /** index of the next character */
+    private int pos;
+    /** encoded bytes of a character which didn't fit into the buffer */
+    private final byte[] pending = new byte[MAX_CHAR_BYTES];
+    /** offset of the next pending byte */
+    private int pendingOffset;
+    /** end of the pending bytes */
+    private int pendingEnd;
+
+    /**
+     * Constructor
+     * @param text text to be encoded
+     * @param jsonEscape <code>true</code> if the text is the content of a JSON-string (without quotes)
+     */
+    Utf8StreamEncoder(CharSequence text, boolean jsonEscape) {
+        this.text = text;
+        this.jsonEscape = jsonEscape;
+    }
+
+    /**
+     * Encodes the next characters into a buffer.
+     * @param buf buffer
+     * @param off offset in the buffer
+     * @param len maximum number of bytes
+     * @return number of bytes written, -1 if the text has been encoded completely
+     */
+    int encode(byte[] buf, int off, int len) {
+        if (pendingOffset == pendingEnd && pos == text.length()) {
+            return -1;
+        }
+        int idx = off;
+        final int end = off + len;
+        while (pendingOffset < pendingEnd && idx < end) {
+            buf[idx++] = pending[pendingOffset++];
+        }
+        final int length = text.length();
+        while (pos < length) {
+            if (end - idx >= MAX_CHAR_BYTES) {
+                idx = encodeChar(buf, idx);
+            } else if (idx < end) {
+                // Encode the character into the pending-buffer and copy the bytes which fit.
+                pendingEnd = encodeChar(pending, 0);
+                pendingOffset = 0;
+                while (pendingOffset < pendingEnd && idx < end) {
+                    buf[idx++] = pending[pendingOffset++];
+                }
+            } else {
+                break;
+            }
+        }
+        return idx - off;
+    }
+
+    /**
+     * Encodes the next character (or surrogate-pair).
+     * @param buf buffer with at least {@link #MAX_CHAR_BYTES} bytes free
+     * @param idx offset in the buffer
+     * @return offset after the encoded bytes
+     */
+    private int encodeChar(byte[] buf, int idx) {
+        final char c = text.charAt(pos++);
+        if (c < 0x80) {
+            if (!jsonEscape || (c >= ' ' && c != '"' && c != '\\' && c != 0x7f)) {
+                buf[idx++] = (byte) c;
+                return idx;
+            }
+            buf[idx++] = '\\';
+            switch (c) {
+                case '"' -> buf[idx++] = '"';
+                case '\\' -> buf[idx++] = '\\';
+                case '\n' -> buf[idx++] = 'n';
+                case '\r' -> buf[idx++] = 'r';
+                case '\t' -> buf[idx++] = 't';
+                default -> idx = writeHexEscape(buf, idx, c);
+            }
+            return idx;
+        }
+        if (c < 0x800) {
+            if (jsonEscape && c < 0xa0) {
+                // C1 control-characters
+                buf[idx++] = '\\';
+                return writeHexEscape(buf, idx, c);
+            }
+            buf[idx++] = (byte) (0xc0 | (c >> 6));
+            buf[idx++] = (byte) (0x80 | (c & 0x3f));
+            return idx;
+        }
+        if (Character.isHighSurrogate(c) && pos < text.length() && Character.isLowSurrogate(text.charAt(pos))) {
+            final int cp = Character.toCodePoint(c, text.charAt(pos++));
+            buf[idx++] = (byte) (0xf0 | (cp >> 18));
+            buf[idx++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buf[idx++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buf[idx++] = (byte) (0x80 | (cp & 0x3f));
+            return idx;
+        }
+        if (Character.isSurrogate(c)) {
+            if (jsonEscape) {
+                buf[idx++] = '\\';
+                return writeHexEscape(buf, idx, c);
+            }
+            buf[idx++] = '?';
+            return idx;
+        }
+        buf[idx++] = (byte) (0xe0 | (c >> 12));
+        buf[idx++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[idx++] = (byte) (0x80 | (c & 0x3f));
+        return idx;
+    }
+
+    private static int writeHexEscape(byte[] buf, int idx, char c) {
+        buf[idx++] = 'u';
+        buf[idx++] = HEX[(c >> 12) & 0xf];
+        buf[idx++] = HEX[(c >> 8) & 0xf];
+        buf[idx++] = HEX[(c >> 4) & 0xf];
+        buf[idx++] = HEX[c & 0xf];
+        return idx;
+    }
+
+    /**
+     * Computes the number of bytes of the encoded text without encoding it.
+     * @param text text
+     * @param jsonEscape <code>true</code> if the text is the content of a JSON-string
+     * @return number of bytes
+     */
+    static long encodedLength(CharSequence text, boolean jsonEscape) {
+        long len = 0;
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                if (!jsonEscape || (c >= ' ' && c != '"' && c != '\\' && c != 0x7f)) {
+                    len++;
+                } else {
+                    len += (c == '"' || c == '\\' || c == '\n' || c == '\r' || c == '\t') ? 2 : 6;
+                }
+            } else if (c < 0x800) {
+                len += (jsonEscape && c < 0xa0) ? 6 : 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                len += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                len += jsonEscape ? 6 : 1;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Writes a text in UTF-8 using a pooled buffer.
+     * @param os output-stream
+     * @param text text
+     * @throws IOException in case of an IO-error
+     */
+    static void write(OutputStream os, CharSequence text) throws IOException {
+        final Utf8StreamEncoder encoder = new Utf8StreamEncoder(text, false);
+        final byte[] buf = acquireBuffer();
+        try {
+            int len;
+            while ((len = encoder.encode(buf, 0, buf.length)) >= 0) {
+                os.write(buf, 0, len);
+            }
+        } finally {
+            releaseBuffer(buf);
+        }
+    }
+
+    /**
+     * Gets a buffer of the pool.
+     * @return buffer of {@link #BUFFER_SIZE} bytes
+     */
+    static byte[] acquireBuffer() {
+        final byte[] buf = BUFFER_POOL.poll();
+        return (buf != null) ? buf : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Returns a buffer into the pool.
+     * @param buf buffer
+     */
+    static void releaseBuffer(byte[] buf) {
+        BUFFER_POOL.offer(buf);
+    }
+}
@@ -0,0 +1,120 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+public class BatchPromptRunnerTest {
+
+    private static List<BatchPromptRunner.Entry> createEntries(int numFiles) {
+        final List<BatchPromptRunner.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < numFiles; i++) {
+            entries.add(new BatchPromptRunner.Entry(null, "File" + i + ".java", "class File" + i + " { }"));
+        }
+        return entries;
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        final long tsEnd = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < tsEnd, "timeout");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void testBoundedConcurrency() {
+        final AtomicInteger inProgress = new AtomicInteger();
+        final AtomicInteger maxInProgress = new AtomicInteger();
+        final BatchPromptRunner runner = new BatchPromptRunner(createEntries(12), 3,
+                (entry, indicator, tokenConsumer, statusConsumer) -> {
+                    maxInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        throw new ProcessCanceledException(e);
+                    }
+                    tokenConsumer.accept("a");
+                    tokenConsumer.accept("b");
+                    inProgress.decrementAndGet();
+                    return "Response of " + entry.getName();
+                });
+        runner.run(new EmptyProgressIndicator());
+        assertTrue(maxInProgress.get() <= 3, "in progress: " + maxInProgress.get());
+        assertEquals(12, runner.getNumFinished());
+        for (BatchPromptRunner.Entry entry : runner.getEntries()) {
+            assertEquals(BatchPromptRunner.State.DONE, entry.getState());
+            assertEquals("Response of " + entry.getName(), entry.getResponse());
+            assertEquals(2, entry.getNumTokens());
+        }
+    }
+
+    @Test
+    void testCancelSingleFile() throws Exception {
+        final BatchPromptRunner runner = new BatchPromptRunner(createEntries(3), 3,
+                (entry, indicator, tokenConsumer, statusConsumer) -> {
+                    if (!entry.getName().equals("File1.java")) {
+                        return "ok";
+                    }
+                    while (!indicator.isCanceled()) {
+                        Thread.onSpinWait();
+                    }
+                    throw new ProcessCanceledException();
+                });
+        final CompletableFuture<Void> batch = CompletableFuture.runAsync(() -> runner.run(new EmptyProgressIndicator()));
+        final BatchPromptRunner.Entry entry1 = runner.getEntries().get(1);
+        waitUntil(() -> entry1.getState() == BatchPromptRunner.State.RUNNING);
+        runner.cancel(entry1);
+        batch.get(10, TimeUnit.SECONDS);
+        assertEquals(BatchPromptRunner.State.DONE, runner.getEntries().get(0).getState());
+        assertEquals(BatchPromptRunner.State.CANCELLED, entry1.getState());
+        assertNull(entry1.getResponse());
+        assertEquals(BatchPromptRunner.State.DONE, runner.getEntries().get(2).getState());
+    }
+
+    @Test
+    void testPreemptedFileIsSentAgain() {
+        final AtomicInteger numCalls = new AtomicInteger();
+        final BatchPromptRunner runner = new BatchPromptRunner(createEntries(1), 1,
+                (entry, indicator, tokenConsumer, statusConsumer) -> {
+                    if (numCalls.incrementAndGet() == 1) {
+                        // The scheduler cancels the indicator in favour of a request of the user.
+                        indicator.cancel();
+                        throw new ProcessCanceledException();
+                    }
+                    return "ok";
+                });
+        runner.run(new EmptyProgressIndicator());
+        final BatchPromptRunner.Entry entry = runner.getEntries().get(0);
+        assertEquals(BatchPromptRunner.State.DONE, entry.getState());
+        assertEquals(1, entry.getNumPreemptions());
+        assertEquals(2, numCalls.get());
+    }
+
+    @Test
+    void testFailedFile() {
+        final BatchPromptRunner runner = new BatchPromptRunner(createEntries(2), 2,
+                (entry, indicator, tokenConsumer, statusConsumer) -> {
+                    if (entry.getName().equals("File0.java")) {
+                        statusConsumer.accept("Server error: 500");
+                        throw new ProcessCanceledException();
+                    }
+                    return "ok";
+                });
+        runner.run(new EmptyProgressIndicator());
+        assertEquals(BatchPromptRunner.State.FAILED, runner.getEntries().get(0).getState());
+        assertEquals("Server error: 500", runner.getEntries().get(0).getStatus());
+        assertEquals(BatchPromptRunner.State.DONE, runner.getEntries().get(1).getState());
+    }
+}
@@ -0,0 +1,130 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+public class Bm25IndexTest {
+
+    @Test
+    void testTerms() {
+        final Map<String, Integer> terms = Bm25Index.countTerms("HTTPServer_port2 = parseIgnorePatterns(a, x1); // parse it");
+        assertEquals(Map.of("http", 1, "server", 1, "port", 1, "httpserver_port2", 1,
+                "parse", 2, "ignore", 1, "patterns", 1, "parseignorepatterns", 1, "x1", 1, "it", 1), terms);
+    }
+
+    @Test
+    void testSplit() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < Bm25Index.CHUNK_LINES + 5; i++) {
+            sb.append("line").append(i).append('\n');
+        }
+        final List<Bm25Index.Chunk> chunks = Bm25Index.split("A.java", sb);
+        assertEquals(2, chunks.size());
+        assertEquals(0, chunks.get(0).startLine());
+        assertEquals(Bm25Index.CHUNK_LINES, chunks.get(0).endLine());
+        assertEquals(Bm25Index.CHUNK_LINES + 5, chunks.get(1).endLine());
+        assertEquals(sb.toString(), chunks.get(0).text() + chunks.get(1).text());
+        assertEquals(List.of(new Bm25Index.Chunk("B.java", 0, 2, "a\nb")), Bm25Index.split("B.java", "a\nb"));
+        assertTrue(chunks.get(1).overlaps("A.java", 44, 50));
+        assertFalse(chunks.get(1).overlaps("A.java", 45, 50));
+    }
+
+    @Test
+    void testSearchAndUpdate() {
+        final Bm25Index index = new Bm25Index();
+        index.updateFile("/p/Cache.java", "class ResponseCache {\n  Entry getEntry(String key) { return lru.get(key); }\n}\n");
+        index.updateFile("/p/Pool.java", "class EndpointPool {\n  Endpoint select() { return endpoints.get(0); }\n}\n");
+        index.updateFile("/p/Main.java", "class Main {\n  void run() { cache.getEntry(key); pool.select(); }\n}\n");
+
+        List<Bm25Index.Hit> hits = index.search("Entry entry = responseCache.getEntry(key);", 2, null);
+        assertEquals(2, hits.size());
+        assertEquals("/p/Cache.java", hits.get(0).chunk().path());
+        assertEquals("/p/Main.java", hits.get(1).chunk().path());
+        assertTrue(hits.get(0).score() > hits.get(1).score());
+
+        // "getEntry" matches "get" of the pool, too.
+        hits = index.search("getEntry", 5, chunk -> !chunk.path().equals("/p/Cache.java"));
+        assertEquals(List.of("/p/Main.java", "/p/Pool.java"), hits.stream().map(h -> h.chunk().path()).toList());
+
+        index.updateFile("/p/Cache.java", "class ResponseCache {\n  void clear() { }\n}\n");
+        hits = index.search("getEntry", 5, null);
+        assertEquals(List.of("/p/Main.java", "/p/Pool.java"), hits.stream().map(h -> h.chunk().path()).toList());
+
+        index.removeFiles(path -> path.startsWith("/p/M"));
+        assertEquals(List.of("/p/Pool.java"), index.search("getEntry", 5, null).stream().map(h -> h.chunk().path()).toList());
+        assertEquals(2, index.getNumFiles());
+        assertTrue(index.search("", 5, null).isEmpty());
+    }
+
+    @Test
+    void testCompaction() {
+        final Bm25Index index = new Bm25Index();
+        index.updateFile("/p/Stable.java", "class Stable { int counter; }\n");
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100 * Bm25Index.CHUNK_LINES; i++) {
+            sb.append("int value").append(i).append(" = counter;\n");
+        }
+        for (int i = 0; i < 30; i++) {
+            index.updateFile("/p/Changing.java", sb);
+        }
+        assertEquals(101, index.getNumDocuments());
+        final List<Bm25Index.Hit> hits = index.search("stable counter", 3, null);
+        assertEquals("/p/Stable.java", hits.get(0).chunk().path());
+        assertEquals(3, hits.size());
+        assertTrue(index.search("value3210", 3, null).get(0).chunk().text().contains("int value3210 ="));
+    }
+
+    @Test
+    void testFormatSnippets() {
+        final List<Bm25Index.Hit> hits = List.of(
+                new Bm25Index.Hit(new Bm25Index.Chunk("/p/src/A.java", 0, 2, "int a;\nint b;\n"), 2f),
+                new Bm25Index.Hit(new Bm25Index.Chunk("/p/src/Large.java", 40, 80, "x ".repeat(1000)), 1.5f),
+                new Bm25Index.Hit(new Bm25Index.Chunk("/p/README", 4, 5, "text"), 1f));
+        final FimContextExtractor.TokenCounter counter = (text, start, end) -> (end - start) / 4;
+        final String context = LlmCodeIndex.formatSnippets(hits, path -> path.substring(3), 100, counter);
+        assertEquals("## src/A.java (lines 1-2)\n\n```java\nint a;\nint b;\n```\n\n## README (lines 5-5)\n\n```\ntext\n```\n",
+                context);
+        assertEquals("", LlmCodeIndex.formatSnippets(hits, path -> path, 5, counter));
+    }
+
+    /**
+     * Searches the declaration of a method called in the query, the file of the query itself is excluded.
+     */
+    @Test
+    void testSearchDeclaration() {
+        final Bm25Index index = new Bm25Index();
+        index.updateFile("/p/MarkdownExporter.java", """
+                class MarkdownExporter {
+                    static Predicate<String> parseIgnorePatterns(String patterns) {
+                        final List<Pattern> list = split(patterns);
+                        return name -> list.stream().anyMatch(p -> p.matcher(name).matches());
+                    }
+                }
+                """);
+        index.updateFile("/p/CopyAction.java", """
+                class CopyAction {
+                    void export(String patterns) {
+                        final Predicate<String> ignoredNames = MarkdownExporter.parseIgnorePatterns(patterns);
+                    }
+                }
+                """);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3 * Bm25Index.CHUNK_LINES; i++) {
+            sb.append("    final String value").append(i).append(" = map.get(\"key\"); // final\n");
+        }
+        index.updateFile("/p/Values.java", sb);
+
+        final String query = "final Predicate<String> ignoredNames = MarkdownExporter.parseIgnorePatterns(patterns);";
+        final List<Bm25Index.Hit> hits = index.search(query, LlmCodeIndex.MAX_SNIPPETS,
+                chunk -> !chunk.path().equals("/p/CopyAction.java"));
+        assertEquals("/p/MarkdownExporter.java", hits.get(0).chunk().path());
+        assertTrue(hits.get(0).chunk().text().contains("parseIgnorePatterns"));
+        assertEquals(5, index.getNumDocuments());
+    }
+}
@@ -0,0 +1,130 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class BpeTokenizerTest {
+
+    /** vocabulary in byte-level encoding: "Ġ" is a blank, "Ã¤" is "ä" */
+    private static final String[] VOCAB = { "a", "b", "c", "Ġ", "Ã", "¤", "ab", "abc", "Ġa", "aa", "Ã¤" };
+    private static final String[] MERGES = { "a b", "ab c", "Ġ a", "a a", "Ã ¤" };
+    private static final int ID_FIM_PREFIX = 11;
+
+    @TempDir
+    Path tempDir;
+
+    private static String tokenizerJson(boolean mergesAsArrays) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"version\": \"1.0\",\n  \"added_tokens\": [{\"id\": ").append(ID_FIM_PREFIX)
+                .append(", \"content\": \"<|fim_prefix|>\", \"special\": true}],\n");
+        sb.append("  \"pre_tokenizer\": {\"type\": \"ByteLevel\", \"add_prefix_space\": false, \"use_regex\": true},\n");
+        sb.append("  \"post_processor\": {\"type\": \"TemplateProcessing\", \"ids\": [\n    0\n  ]},\n");
+        sb.append("  \"model\": {\"type\": \"BPE\", \"vocab\": {");
+        for (int i = 0; i < VOCAB.length; i++) {
+            sb.append((i > 0) ? ", " : "").append('"').append(VOCAB[i]).append("\": ").append(i);
+        }
+        sb.append("},\n    \"merges\": [");
+        for (int i = 0; i < MERGES.length; i++) {
+            sb.append((i > 0) ? ", " : "");
+            if (mergesAsArrays) {
+                sb.append("[\"").append(MERGES[i].replace(" ", "\", \"")).append("\"]");
+            } else {
+                sb.append('"').append(MERGES[i]).append('"');
+            }
+        }
+        sb.append("]}}\n");
+        return sb.toString();
+    }
+
+    private BpeTokenizer loadJson(boolean mergesAsArrays) throws IOException {
+        final Path file = tempDir.resolve("tokenizer.json");
+        Files.writeString(file, tokenizerJson(mergesAsArrays), StandardCharsets.UTF_8);
+        return BpeTokenizer.load(file);
+    }
+
+    @Test
+    void testMerges() throws IOException {
+        final BpeTokenizer tokenizer = loadJson(false);
+        assertEquals(12, tokenizer.getVocabSize());
+        // "abc" is merged by rank: (a b), (ab c); " ab" is merged into "Ġ" and "ab" because (a b) has the lower rank.
+        assertArrayEquals(new int[] { 7, 3, 6 }, tokenizer.encode("abc ab"));
+        // Equal pairs are merged from left to right.
+        assertArrayEquals(new int[] { 9, 0 }, tokenizer.encode("aaa"));
+        assertArrayEquals(new int[] { 10 }, tokenizer.encode("ä"));
+        assertArrayEquals(new int[] { 8, 3, 10 }, tokenizer.encode(" a ä"));
+    }
+
+    @Test
+    void testSpecialTokensAndDecode() throws IOException {
+        final BpeTokenizer tokenizer = loadJson(true);
+        final String text = "<|fim_prefix|>ab aa<|fim_prefix|>";
+        final int[] ids = tokenizer.encode(text);
+        assertArrayEquals(new int[] { ID_FIM_PREFIX, 6, 8, 0, ID_FIM_PREFIX }, ids);
+        assertEquals(text, tokenizer.decode(ids));
+        assertEquals(ids.length, tokenizer.countTokens(text, 0, text.length()));
+        assertEquals(2, tokenizer.countTokens(text, 14, 17));
+    }
+
+    @Test
+    void testGguf() throws IOException {
+        final Path file = tempDir.resolve("model.gguf");
+        Files.write(file, createGguf());
+        final BpeTokenizer tokenizer = BpeTokenizer.load(file);
+        final BpeTokenizer tokenizerJson = loadJson(false);
+        for (String text : new String[] { "abc ab", "aaa", " a ä", "<|fim_prefix|>ab aa" }) {
+            assertArrayEquals(tokenizerJson.encode(text), tokenizer.encode(text), text);
+        }
+    }
+
+    /**
+     * Creates the metadata of a GGUF-file (without tensors).
+     */
+    private static byte[] createGguf() {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final ByteBuffer buf = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put("GGUF".getBytes(StandardCharsets.US_ASCII)).putInt(3).putLong(0).putLong(6);
+        putString(buf, "general.architecture");
+        buf.putInt(8);
+        putString(buf, "qwen2");
+        putString(buf, "general.alignment");
+        buf.putInt(4).putInt(32);
+        putString(buf, "tokenizer.ggml.model");
+        buf.putInt(8);
+        putString(buf, "gpt2");
+        putString(buf, "tokenizer.ggml.tokens");
+        buf.putInt(9).putInt(8).putLong(VOCAB.length + 1);
+        for (String token : VOCAB) {
+            putString(buf, token);
+        }
+        putString(buf, "<|fim_prefix|>");
+        putString(buf, "tokenizer.ggml.token_type");
+        buf.putInt(9).putInt(5).putLong(VOCAB.length + 1);
+        for (int i = 0; i < VOCAB.length; i++) {
+            buf.putInt(1);
+        }
+        buf.putInt(3);
+        putString(buf, "tokenizer.ggml.merges");
+        buf.putInt(9).putInt(8).putLong(MERGES.length);
+        for (String merge : MERGES) {
+            putString(buf, merge);
+        }
+        baos.write(buf.array(), 0, buf.position());
+        return baos.toByteArray();
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf.putLong(bytes.length).put(bytes);
+    }
+}
@@ -0,0 +1,214 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the semantic index ({@link EmbeddingClient}, {@link EmbeddingVectorStore}, {@link EmbeddingIndex})
+ * against a local stub server computing bag-of-words vectors.
+ */
+public class EmbeddingIndexTest {
+    /** dimension of the vectors of the stub server */
+    private static final int DIM = 64;
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+
+    /** number of texts embedded by the stub server */
+    private final AtomicInteger numTexts = new AtomicInteger();
+
+    @AfterEach
+    void stopServer() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Computes a deterministic embedding: the counts of the terms hashed into {@link #DIM} components.
+     */
+    private static float[] embed(String text) {
+        final float[] vector = new float[DIM];
+        for (Map.Entry<String, Integer> entry : Bm25Index.countTerms(text).entrySet()) {
+            vector[Math.floorMod(entry.getKey().hashCode(), DIM)] += entry.getValue();
+        }
+        return vector;
+    }
+
+    /**
+     * Starts a stub server answering like llama.cpp without pooling (an embedding per token).
+     * @return base-URL
+     */
+    private String startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/embedding", exchange -> {
+            final String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            final List<Object> content = LightweightJsonHandler.getJsonArray(LightweightJsonHandler.parseJsonDict(request), "content");
+            final StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < content.size(); i++) {
+                final float[] vector = embed((String) content.get(i));
+                sb.append((i > 0) ? "," : "").append("{\"index\":").append(i).append(",\"embedding\":[[");
+                for (int j = 0; j < DIM; j++) {
+                    sb.append((j > 0) ? "," : "").append(vector[j]);
+                }
+                sb.append("]]}");
+            }
+            sb.append(']');
+            numTexts.addAndGet(content.size());
+            final byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.start();
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+    @Test
+    void testParseResponse() throws IOException {
+        List<float[]> embeddings = EmbeddingClient.parseResponse(
+                "[{\"index\":1,\"embedding\":[[1,2],[3,4]]},{\"index\":0,\"embedding\":[[0.5,-1]]}]", 2);
+        assertArrayEquals(new float[] {0.5f, -1f}, embeddings.get(0));
+        assertArrayEquals(new float[] {2f, 3f}, embeddings.get(1));
+        embeddings = EmbeddingClient.parseResponse("{\"embedding\":[1,0.25]}", 1);
+        assertArrayEquals(new float[] {1f, 0.25f}, embeddings.get(0));
+        embeddings = EmbeddingClient.parseResponse("{\"object\":\"list\",\"data\":[{\"index\":0,\"embedding\":[2,1]}]}", 1);
+        assertArrayEquals(new float[] {2f, 1f}, embeddings.get(0));
+        assertThrows(IOException.class, () -> EmbeddingClient.parseResponse("{\"embedding\":[1,2]}", 2));
+        assertThrows(IOException.class, () -> EmbeddingClient.parseResponse("{\"error\":\"no embeddings\"}", 1));
+    }
+
+    @Test
+    void testStore() throws IOException {
+        final Path file = tempDir.resolve("vectors.bin");
+        final float[] query = new float[DIM];
+        try (EmbeddingVectorStore store = new EmbeddingVectorStore(file, 42)) {
+            for (int i = 1; i <= 300; i++) {
+                final float[] vector = new float[DIM];
+                vector[i % DIM] = 1f;
+                vector[(i + 1) % DIM] = i / 300f;
+                store.put(i, vector);
+            }
+            assertEquals(300, store.size());
+            store.remove(7);
+            assertFalse(store.contains(7));
+        }
+        query[7] = 1f;
+        query[8] = 0.1f;
+        try (EmbeddingVectorStore store = new EmbeddingVectorStore(file, 42)) {
+            assertEquals(299, store.size());
+            assertEquals(DIM, store.getDimension());
+            final long[] keys = new long[3];
+            final float[] scores = new float[3];
+            assertEquals(3, store.search(query, 3, null, keys, scores));
+            // Slot 7 has been removed, the keys 71, 135, ... have the component 7, too.
+            assertEquals(71, keys[0]);
+            assertTrue(scores[0] > 0.95f && scores[0] >= scores[1] && scores[1] >= scores[2]);
+            assertEquals(1, store.search(query, 3, key -> key == 200, keys, scores));
+            assertEquals(200, keys[0]);
+        }
+        try (EmbeddingVectorStore store = new EmbeddingVectorStore(file, 43)) {
+            assertEquals(0, store.size());
+            assertEquals(0, store.getDimension());
+            // The file of the cleared store is reused, the old vectors mustn't reappear.
+            store.put(1, new float[] { 1f, 0f });
+            assertEquals(1, store.size());
+        }
+        try (EmbeddingVectorStore store = new EmbeddingVectorStore(file, 43)) {
+            assertEquals(1, store.size());
+            assertEquals(2, store.getDimension());
+        }
+    }
+
+    @Test
+    void testIncrementalEmbedding() throws IOException {
+        final String baseUrl = startServer();
+        final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+        final EmbeddingClient client = new EmbeddingClient(httpClient, baseUrl, Duration.ofSeconds(10));
+        final EmbeddingIndex.Embedder embedder = texts -> client.embed(texts, new EmptyProgressIndicator());
+        final Path file = tempDir.resolve("vectors.bin");
+        final Bm25Index bm25Index = new Bm25Index();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3 * Bm25Index.CHUNK_LINES; i++) {
+            sb.append("int counter").append(i % 7).append(" = value;\n");
+        }
+        try (EmbeddingIndex index = new EmbeddingIndex(new EmbeddingVectorStore(file, 1))) {
+            index.updateFile("/p/Cache.java", bm25Index.updateFile("/p/Cache.java",
+                    "class ResponseCache {\n  Entry getEntry(String key) { return lru.get(key); }\n}\n"));
+            index.updateFile("/p/Pool.java", bm25Index.updateFile("/p/Pool.java",
+                    "class EndpointPool {\n  Endpoint select() { return endpoints.get(0); }\n}\n"));
+            index.updateFile("/p/Values.java", bm25Index.updateFile("/p/Values.java", sb));
+            assertEquals(5, index.getNumPending());
+            while (index.embedPending(embedder, 2) > 0) {
+                // next batch
+            }
+            assertEquals(5, numTexts.get());
+            assertEquals(5, index.getNumVectors());
+
+            List<Bm25Index.Hit> hits = index.search(embed("cache entry of a key"), 2, null);
+            assertEquals("/p/Cache.java", hits.get(0).chunk().path());
+            hits = index.search(embed("select an endpoint of the pool"), 5, chunk -> !chunk.path().equals("/p/Pool.java"));
+            assertEquals(4, hits.size());
+            assertFalse(hits.stream().anyMatch(hit -> hit.chunk().path().equals("/p/Pool.java")));
+
+            // Only the changed chunk is embedded.
+            sb.setLength(sb.length() - 1);
+            sb.append(" // changed\n");
+            index.updateFile("/p/Values.java", bm25Index.updateFile("/p/Values.java", sb));
+            assertEquals(1, index.getNumPending());
+            index.embedPending(embedder, 16);
+            assertEquals(6, numTexts.get());
+            assertEquals(5, index.getNumVectors());
+
+            bm25Index.removeFiles(path -> path.equals("/p/Pool.java"));
+            index.removeFiles(path -> path.equals("/p/Pool.java"));
+            assertEquals(4, index.getNumVectors());
+        }
+
+        // The vectors of the last session are reused.
+        try (EmbeddingIndex index = new EmbeddingIndex(new EmbeddingVectorStore(file, 1))) {
+            bm25Index.forEachFile(index::updateFile);
+            index.updateFile("/p/New.java", List.of(new Bm25Index.Chunk("/p/New.java", 0, 1, "class New { }\n")));
+            assertEquals(1, index.getNumPending());
+            assertEquals(0, index.removeUnused());
+            index.resetModel(2);
+            assertEquals(0, index.getNumVectors());
+            assertEquals(5, index.getNumPending());
+        }
+    }
+
+    @Test
+    void testFuse() {
+        final Bm25Index.Chunk a = new Bm25Index.Chunk("/p/A.java", 0, 40, "a");
+        final Bm25Index.Chunk b = new Bm25Index.Chunk("/p/B.java", 0, 40, "b");
+        final Bm25Index.Chunk c = new Bm25Index.Chunk("/p/C.java", 0, 40, "c");
+        final List<Bm25Index.Hit> lexical = List.of(new Bm25Index.Hit(a, 12f), new Bm25Index.Hit(b, 3f));
+        final List<Bm25Index.Hit> semantic = List.of(new Bm25Index.Hit(c, 0.9f), new Bm25Index.Hit(b, 0.8f));
+        final List<Bm25Index.Hit> fused = LlmCodeIndex.fuse(lexical, semantic, 2);
+        assertEquals(List.of(b, a), fused.stream().map(Bm25Index.Hit::chunk).toList());
+    }
+}
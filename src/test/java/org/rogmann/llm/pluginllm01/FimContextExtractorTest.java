@@ -0,0 +1,83 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class FimContextExtractorTest {
+
+    /** one token per char, so the budgets are easy to check */
+    private static final FimContextExtractor.TokenCounter CHARS = (text, start, end) -> end - start;
+
+    private static final String SOURCE = """
+            package example;
+
+            public class Example {
+                private int counter;
+
+                public void increment() {
+                    counter++;
+                }
+
+                public int get() {
+                    return counter;
+                }
+            }
+            """;
+
+    @Test
+    void testSmallDocumentIsComplete() {
+        final int offset = SOURCE.indexOf("counter++");
+        final FimContextExtractor.FimContext context = new FimContextExtractor(SOURCE, CHARS).extract(offset, 10_000, 75);
+        assertEquals(0, context.prefixStart());
+        assertEquals(SOURCE.length(), context.suffixEnd());
+        assertEquals(SOURCE, context.fimBegin(SOURCE) + context.fimEnd(SOURCE));
+    }
+
+    @Test
+    void testBudgetAndLineBoundaries() {
+        final int offset = SOURCE.indexOf("counter++");
+        final FimContextExtractor.FimContext context = new FimContextExtractor(SOURCE, CHARS).extract(offset, 100, 75);
+        assertTrue(context.prefixTokens() + context.suffixTokens() <= 100);
+        assertTrue(context.prefixTokens() <= 75);
+        assertEquals(context.offset() - context.prefixStart(), context.prefixTokens());
+        // Both windows consist of complete lines.
+        assertEquals('\n', SOURCE.charAt(context.prefixStart() - 1));
+        assertEquals('\n', SOURCE.charAt(context.suffixEnd() - 1));
+    }
+
+    @Test
+    void testSnapToBlankLine() {
+        final String text = "a;\nb;\nc;\n\nd;\ne;\nf;\ng;\nh;\ni;\nj;\nk;\nX";
+        final int offset = text.indexOf('X');
+        // The prefix would start at "b;", it is moved to the blank line.
+        final FimContextExtractor.FimContext context = new FimContextExtractor(text, CHARS).extract(offset, offset - 3, 100);
+        assertEquals(text.indexOf("\n\n") + 1, context.prefixStart());
+        assertEquals(offset, context.suffixEnd());
+    }
+
+    @Test
+    void testRemainingBudgetGoesToSuffix() {
+        final int offset = SOURCE.indexOf("example;");
+        final FimContextExtractor.FimContext context = new FimContextExtractor(SOURCE, CHARS).extract(offset, 80, 75);
+        assertEquals(0, context.prefixStart());
+        assertTrue(context.suffixTokens() > 20, "suffix uses the budget of the prefix");
+        assertTrue(context.prefixTokens() + context.suffixTokens() <= 80);
+    }
+
+    @Test
+    void testLongCaretLineIsTrimmed() {
+        final String text = "a".repeat(1000) + "\n" + "b".repeat(1000);
+        final FimContextExtractor.FimContext context = new FimContextExtractor(text, CHARS).extract(500, 100, 50);
+        assertEquals(450, context.prefixStart());
+        assertEquals(550, context.suffixEnd());
+    }
+
+    @Test
+    void testApproximateCounter() {
+        assertEquals(0, FimContextExtractor.APPROXIMATE.countTokens("", 0, 0));
+        // "counter" (2), "++" (2), ";" (1), whitespace (1)
+        assertEquals(6, FimContextExtractor.APPROXIMATE.countTokens("counter++; ", 0, 11));
+    }
+}
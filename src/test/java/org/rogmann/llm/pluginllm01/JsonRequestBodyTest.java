@@ -0,0 +1,98 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class JsonRequestBodyTest {
+    /** text with escapes, umlauts, a surrogate-pair and control-characters */
+    private static final String SPECIAL = "Line \"1\"\\\n\tÄöü ß € 😀 \u0001\u007f\u0085 end";
+
+    private static byte[] readAll(InputStream is, int chunkSize) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final byte[] buf = new byte[chunkSize];
+        int len;
+        while ((len = is.read(buf, 0, chunkSize)) >= 0) {
+            baos.write(buf, 0, len);
+        }
+        return baos.toByteArray();
+    }
+
+    private static Map<String, Object> createRequest(String content) {
+        final Map<String, Object> msg = new LinkedHashMap<>();
+        msg.put("role", "user");
+        msg.put("content", content);
+        final Map<String, Object> request = new LinkedHashMap<>();
+        request.put("cache_prompt", true);
+        request.put("id_slot", 2);
+        request.put("messages", List.of(msg));
+        request.put("prompt", null);
+        return request;
+    }
+
+    @Test
+    void testSameAsDumpJson() throws IOException {
+        final Map<String, Object> request = createRequest("Say \"hello\"\n".repeat(100));
+        final StringBuilder sb = new StringBuilder();
+        LightweightJsonHandler.dumpJson(sb, request);
+        final JsonRequestBody body = JsonRequestBody.of(request);
+        final byte[] expected = sb.toString().getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, readAll(body.openStream(), 8192));
+        assertEquals(expected.length, body.getLength());
+    }
+
+    @Test
+    void testChunkBoundaries() throws IOException {
+        final String content = SPECIAL.repeat(40);
+        final JsonRequestBody body = JsonRequestBody.of(createRequest(content));
+        final byte[] expected = readAll(body.openStream(), 65536);
+        assertEquals(expected.length, body.getLength());
+        for (int chunkSize : new int[] { 1, 2, 3, 5, 7, 11, 13, 100 }) {
+            assertArrayEquals(expected, readAll(body.openStream(), chunkSize), "chunk-size " + chunkSize);
+        }
+        final String json = new String(expected, StandardCharsets.UTF_8);
+        final Map<String, Object> parsed = LightweightJsonHandler.parseJsonDict(json);
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> msg = (Map<String, Object>) ((List<Object>) parsed.get("messages")).get(0);
+        assertEquals(content, msg.get("content"));
+    }
+
+    @Test
+    void testShortStringsAreInlined() throws IOException {
+        final JsonRequestBody body = JsonRequestBody.of(createRequest(SPECIAL));
+        final byte[] json = readAll(body.openStream(), 4096);
+        assertEquals(json.length, body.getLength());
+        assertEquals(List.of(SPECIAL), List.of(((Map<?, ?>) ((List<?>) LightweightJsonHandler.parseJsonDict(
+                new String(json, StandardCharsets.UTF_8)).get("messages")).get(0)).get("content")));
+    }
+
+    @Test
+    void testUtf8Encoding() throws IOException {
+        final String text = SPECIAL + "\uD800 lone surrogate";
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Utf8StreamEncoder.write(baos, text);
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), baos.toByteArray());
+        assertEquals(baos.size(), Utf8StreamEncoder.encodedLength(text, false));
+    }
+
+    @Test
+    void testLlm1RequestLength() throws IOException {
+        for (int version = 1; version <= 2; version++) {
+            final LlmTask task = new LlmTask(LlmTaskType.FILL_IN_MIDDLE, "System ÄÖÜ", null,
+                    "x".repeat(300) + SPECIAL, "😀".repeat(50));
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            LlmBackgroundable.writeRequest(baos, task, version);
+            assertEquals(baos.size(), LlmBackgroundable.requestLength(task, version), "version " + version);
+            assertArrayEquals(baos.toByteArray(), LlmBackgroundable.openRequestStream(task, version).readAllBytes());
+        }
+    }
+}
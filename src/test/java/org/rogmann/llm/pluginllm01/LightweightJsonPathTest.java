@@ -0,0 +1,165 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of {@link LightweightJsonPath} with the chunks streamed by llama.cpp.
+ */
+public class LightweightJsonPathTest {
+
+    /** paths of a chunk of chat/completions (as in {@link LlmBackgroundableHttp}) */
+    private static final LightweightJsonPath QUERY_CHAT = LightweightJsonPath.compile(
+            "$.choices[0].delta.content", "$.choices[0].finish_reason",
+            "$.timings.prompt_n", "$.timings.prompt_ms", "$.timings.cache_n", "$.usage.prompt_tokens",
+            "$.timings.predicted_ms");
+
+    /** paths of a chunk of infill (as in {@link LlmBackgroundableHttp}) */
+    private static final LightweightJsonPath QUERY_INFILL = LightweightJsonPath.compile(
+            "$.content", "$.tokens", "$.stop",
+            "$.timings.prompt_n", "$.timings.prompt_ms", "$.timings.cache_n", "$.tokens_evaluated",
+            "$.timings.predicted_ms");
+
+    @Test
+    void testChatDelta() {
+        final LightweightJsonPath.Result result = QUERY_CHAT.newResult();
+        QUERY_CHAT.scan("{\"choices\":[{\"finish_reason\":null,\"index\":0,"
+                + "\"delta\":{\"content\":\"Hello \\\"w\\u00f6rld\\\"\\n\\ttab\\\\ \\/ \\ud83d\\ude00\"}}],"
+                + "\"created\":1739000000,\"id\":\"chatcmpl-abc\",\"model\":\"qwen\","
+                + "\"system_fingerprint\":\"b4600\",\"object\":\"chat.completion.chunk\"}", result);
+        assertEquals(LightweightJsonPath.Result.STRING, result.getKind(0));
+        assertEquals("Hello \"wörld\"\n\ttab\\ / 😀", result.getString(0));
+        assertEquals(LightweightJsonPath.Result.NULL, result.getKind(1));
+        assertTrue(result.isPresent(1));
+        assertNull(result.getString(1));
+        assertFalse(result.isPresent(2));
+        assertEquals(-1, result.getInt(2, -1));
+    }
+
+    @Test
+    void testChatFinalChunk() {
+        final LightweightJsonPath.Result result = QUERY_CHAT.newResult();
+        QUERY_CHAT.scan("{\"choices\":[{\"finish_reason\":\"stop\",\"index\":0,\"delta\":{}}],"
+                + "\"created\":1739000000,\"id\":\"chatcmpl-abc\",\"model\":\"qwen\",\"object\":\"chat.completion.chunk\","
+                + "\"usage\":{\"completion_tokens\":10,\"prompt_tokens\":120,\"total_tokens\":130},"
+                + "\"timings\":{\"prompt_n\":20,\"prompt_ms\":35.5,\"prompt_per_token_ms\":1.775,"
+                + "\"prompt_per_second\":563.38,\"predicted_n\":10,\"predicted_ms\":120.25,\"cache_n\":100}}", result);
+        assertFalse(result.isPresent(0));
+        assertNull(result.getString(0));
+        assertEquals("stop", result.getString(1));
+        assertEquals(20, result.getInt(2, -1));
+        assertEquals(LightweightJsonPath.Result.DECIMAL, result.getKind(3));
+        assertEquals(35.5, result.getDouble(3, 0), 1e-9);
+        assertEquals(100, result.getInt(4, -1));
+        assertEquals(120, result.getInt(5, -1));
+        assertEquals(120.25, result.getDouble(6, 0), 1e-9);
+
+        // The result is reset by the next scan.
+        QUERY_CHAT.scan("{\"choices\":[{\"delta\":{\"content\":\"x\"}}]}", result);
+        assertEquals("x", result.getString(0));
+        assertFalse(result.isPresent(1));
+        assertFalse(result.isPresent(4));
+    }
+
+    @Test
+    void testInfill() {
+        final LightweightJsonPath.Result result = QUERY_INFILL.newResult();
+        QUERY_INFILL.scan("{\"index\":0,\"content\":\"\\tint x;\",\"tokens\":[9707, -1 ,2147483647],"
+                + "\"stop\":false,\"id_slot\":-1,\"tokens_predicted\":6,\"tokens_evaluated\":23}", result);
+        assertEquals("\tint x;", result.getString(0));
+        assertEquals(LightweightJsonPath.Result.INT_ARRAY, result.getKind(1));
+        assertEquals(3, result.getIntCount(1));
+        assertEquals(9707, result.getIntAt(1, 0));
+        assertArrayEquals(new int[] { 9707, -1, Integer.MAX_VALUE }, result.getIntArray(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> result.getIntAt(1, 3));
+        assertFalse(result.getBoolean(2, true));
+        assertEquals(23, result.getInt(6, -1));
+        assertFalse(result.isPresent(3));
+    }
+
+    @Test
+    void testInfillFinalChunk() {
+        final LightweightJsonPath.Result result = QUERY_INFILL.newResult();
+        // The generation-settings (nested objects, arrays and strings with brackets) are skipped.
+        QUERY_INFILL.scan("{\"index\":0,\"content\":\"\",\"tokens\":[],\"id_slot\":0,\"stop\":true,\"model\":\"qwen\","
+                + "\"tokens_predicted\":216,\"tokens_evaluated\":23,"
+                + "\"generation_settings\":{\"n_predict\":-1,\"seed\":4294967295,\"temperature\":0.800000011920929,"
+                + "\"samplers\":[\"top_k\",\"top_p\"],\"logit_bias\":[[1,2.5],[2,-1e10]],"
+                + "\"grammar\":\"root ::= \\\"{\\\" [a-z]* \\\"}\\\"\",\"timings\":{\"prompt_n\":-7}},"
+                + "\"prompt\":\"<|fim_prefix|>\",\"has_new_line\":true,\"truncated\":false,"
+                + "\"timings\":{\"prompt_n\":23,\"prompt_ms\":12,\"cache_n\":0,\"predicted_n\":216,\"predicted_ms\":1.5e3}}",
+                result);
+        assertEquals("", result.getString(0));
+        assertEquals(LightweightJsonPath.Result.INT_ARRAY, result.getKind(1));
+        assertEquals(0, result.getIntCount(1));
+        assertArrayEquals(new int[0], result.getIntArray(1));
+        assertTrue(result.getBoolean(2, false));
+        assertEquals(23, result.getInt(3, -1));
+        assertEquals(LightweightJsonPath.Result.INTEGER, result.getKind(4));
+        assertEquals(12.0, result.getDouble(4, 0), 1e-9);
+        assertEquals(0, result.getInt(5, -1));
+        assertEquals(1500.0, result.getDouble(7, 0), 1e-9);
+    }
+
+    @Test
+    void testUnexpectedShapes() {
+        final LightweightJsonPath.Result result = QUERY_INFILL.newResult();
+        QUERY_INFILL.scan("{\"content\":{\"text\":\"a\",\"list\":[1,{\"b\":[]}]},\"tokens\":[1.5,2],\"stop\":\"yes\","
+                + "\"timings\":[1,2],\"tokens_evaluated\":[[1]]}", result);
+        assertEquals(LightweightJsonPath.Result.OTHER, result.getKind(0));
+        assertNull(result.getString(0));
+        assertEquals(LightweightJsonPath.Result.OTHER, result.getKind(1));
+        assertEquals(0, result.getIntCount(1));
+        assertNull(result.getIntArray(1));
+        assertEquals(LightweightJsonPath.Result.STRING, result.getKind(2));
+        assertTrue(result.getBoolean(2, true));
+        assertFalse(result.isPresent(3));
+        assertEquals(LightweightJsonPath.Result.OTHER, result.getKind(6));
+        assertEquals(-1, result.getInt(6, -1));
+
+        QUERY_INFILL.scan("{\"tokens\":[3000000000],\"content\":null,\"stop\":1}", result);
+        assertEquals(LightweightJsonPath.Result.OTHER, result.getKind(1));
+        assertEquals(LightweightJsonPath.Result.NULL, result.getKind(0));
+        assertFalse(result.getBoolean(2, false));
+        assertEquals(1, result.getLong(2, -1));
+    }
+
+    @Test
+    void testKeysAndDuplicates() {
+        final LightweightJsonPath query = LightweightJsonPath.compile("$.content", "$.a[1].b");
+        final LightweightJsonPath.Result result = query.newResult();
+        // An escaped key matches, the first value of a duplicate key is used.
+        query.scan("{\"con\\u0074ent\":\"first\",\"content\":\"second\",\"a\":[{\"b\":1},{\"c\":2,\"b\":3}]}", result);
+        assertEquals("first", result.getString(0));
+        assertEquals(3, result.getInt(1, -1));
+    }
+
+    @Test
+    void testEarlyStop() {
+        final LightweightJsonPath query = LightweightJsonPath.compile("$.content", "$.stop");
+        final LightweightJsonPath.Result result = query.newResult();
+        // The rest of the document isn't scanned when all paths have been found.
+        query.scan("{\"content\":\"a\",\"stop\":true,\"generation_settings\":{\"truncated", result);
+        assertEquals("a", result.getString(0));
+        assertTrue(result.getBoolean(1, false));
+
+        assertThrows(IllegalArgumentException.class, () -> query.scan("{\"content\":\"a\",\"tokens\":[1,", result));
+        assertThrows(IllegalArgumentException.class, () -> query.scan("{\"content\" \"a\"}", result));
+    }
+
+    @Test
+    void testCompile() {
+        assertThrows(IllegalArgumentException.class, () -> LightweightJsonPath.compile("content"));
+        assertThrows(IllegalArgumentException.class, () -> LightweightJsonPath.compile("$"));
+        assertThrows(IllegalArgumentException.class, () -> LightweightJsonPath.compile("$.a", "$.a.b"));
+        assertThrows(IllegalArgumentException.class, () -> LightweightJsonPath.compile("$.a", "$.a"));
+        assertThrows(IllegalArgumentException.class, () -> LightweightJsonPath.compile("$.a[x]"));
+        assertThrows(IllegalArgumentException.class, () -> LightweightJsonPath.compile("$..a"));
+    }
+}
@@ -0,0 +1,166 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.rogmann.llm.pluginllm01.LlmBackgroundable.ChunkType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class Llm1ProtocolTest {
+
+    private static final List<String> TOKENS = List.of("Hello", ",", " Wörld", " 😀", "\n", "E = mc²");
+
+    private Llm1NioTransport transport;
+
+    @BeforeEach
+    void setUp() {
+        transport = new Llm1NioTransport();
+    }
+
+    @AfterEach
+    void tearDown() {
+        transport.dispose();
+    }
+
+    @Test
+    void testVarintRoundTrip() throws IOException {
+        final long[] values = { 0, 1, 127, 128, 255, 300, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE };
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (long value : values) {
+            LlmBackgroundable.writeVarint(baos, value);
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(baos.toByteArray());
+        for (long value : values) {
+            assertEquals(value, Llm1ResponseDecoder.readVarint(buf));
+        }
+        assertFalse(buf.hasRemaining());
+
+        // An incomplete varint doesn't move the position.
+        final ByteBuffer bufIncomplete = ByteBuffer.wrap(new byte[] { (byte) 0x80, (byte) 0x80 });
+        assertEquals(-1, Llm1ResponseDecoder.readVarint(bufIncomplete));
+        assertEquals(0, bufIncomplete.position());
+    }
+
+    @Test
+    void testDecoderVersion2ByteByByte() throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(new byte[] { 'L', 'L', 'M', '2' });
+        Llm1ReferenceServer.writeTokensFrame(baos, TOKENS.subList(0, 3));
+        Llm1ReferenceServer.writeFrame(baos, ChunkType.CLOSE_CONNECTION, new byte[] { 1, 2, 3 });
+        Llm1ReferenceServer.writeTokensFrame(baos, TOKENS.subList(3, TOKENS.size()));
+        Llm1ReferenceServer.writeStatsFrame(baos, new Llm1ResponseDecoder.Stats(10, 2000, 6, 30000));
+        Llm1ReferenceServer.writeFrame(baos, ChunkType.END_OF_RESPONSE, new byte[0]);
+        final byte[] response = baos.toByteArray();
+
+        final List<String> tokens = new ArrayList<>();
+        final Llm1ResponseDecoder decoder = new Llm1ResponseDecoder(2, token -> tokens.add(token.toString()));
+        final ByteBuffer buf = ByteBuffer.allocate(response.length);
+        for (int i = 0; i < response.length; i++) {
+            assertFalse(decoder.isComplete());
+            buf.put(response[i]);
+            buf.flip();
+            decoder.feed(buf);
+            buf.compact();
+        }
+        assertTrue(decoder.isComplete());
+        assertEquals(TOKENS, tokens);
+        assertEquals(2, decoder.getVersion());
+        assertEquals(2, decoder.getNumFrames());
+        assertEquals(response.length, decoder.getNumBytes());
+        assertEquals(new Llm1ResponseDecoder.Stats(10, 2000, 6, 30000), decoder.getStats());
+    }
+
+    @Test
+    void testDecoderRejectsUnrequestedVersion() {
+        final Llm1ResponseDecoder decoder = new Llm1ResponseDecoder(1, token -> { });
+        final ByteBuffer buf = ByteBuffer.wrap(new byte[] { 'L', 'L', 'M', '2', 0 });
+        assertThrows(IOException.class, () -> decoder.feed(buf));
+    }
+
+    @Test
+    void testVersion1() throws Exception {
+        try (Llm1ReferenceServer server = new Llm1ReferenceServer(0, 1, TOKENS, 0)) {
+            final Llm1ResponseDecoder decoder = execute(server, 1, TOKENS);
+            assertEquals(1, decoder.getVersion());
+            assertNull(decoder.getStats());
+            assertEquals(1, server.getLastRequestedVersion());
+            assertEquals("Say hello", server.getLastRequest().get(ChunkType.PROMPT));
+        }
+    }
+
+    @Test
+    void testVersion2() throws Exception {
+        final List<String> tokens = new ArrayList<>(TOKENS);
+        // A token longer than 255 bytes can't be sent in version 1.
+        tokens.add("x".repeat(1000));
+        try (Llm1ReferenceServer server = new Llm1ReferenceServer(0, 2, tokens, 0)) {
+            final Llm1ResponseDecoder decoder = execute(server, 2, tokens);
+            assertEquals(2, decoder.getVersion());
+            assertTrue(decoder.getNumFrames() <= tokens.size());
+            final Llm1ResponseDecoder.Stats stats = decoder.getStats();
+            assertNotNull(stats);
+            assertEquals(2, stats.promptTokens());
+            assertEquals(tokens.size(), stats.generatedTokens());
+            assertEquals("Sei ein hilfreicher Assistent.", server.getLastRequest().get(ChunkType.SYSTEM_PROMPT));
+        }
+    }
+
+    @Test
+    void testVersion2DowngradedByServer() throws Exception {
+        try (Llm1ReferenceServer server = new Llm1ReferenceServer(0, 1, TOKENS, 0)) {
+            final Llm1ResponseDecoder decoder = execute(server, 2, TOKENS);
+            assertEquals(2, server.getLastRequestedVersion());
+            assertEquals(1, decoder.getVersion());
+            assertNull(decoder.getStats());
+        }
+    }
+
+    @Test
+    void testStreamedRequest() throws Exception {
+        // The prompt is larger than the pooled buffer and the send-buffer of the socket.
+        final String prompt = "Zeile ä 😀\n".repeat(100_000);
+        for (int version = 1; version <= 2; version++) {
+            try (Llm1ReferenceServer server = new Llm1ReferenceServer(0, version, TOKENS, 0)) {
+                final LlmTask task = new LlmTask(LlmTaskType.PROMPT, "System", prompt, null, null);
+                final StringBuilder sb = new StringBuilder();
+                final Llm1ResponseDecoder decoder = new Llm1ResponseDecoder(version, sb::append);
+                final Llm1NioTransport.Call call = transport.start(server.getAddress(),
+                        LlmBackgroundable.openRequestStream(task, version), decoder);
+                call.getDone().get(10, TimeUnit.SECONDS);
+                assertEquals(String.join("", TOKENS), sb.toString());
+                assertEquals(prompt, server.getLastRequest().get(ChunkType.PROMPT));
+            }
+        }
+    }
+
+    private Llm1ResponseDecoder execute(Llm1ReferenceServer server, int version, List<String> expectedTokens) throws Exception {
+        final LlmTask task = new LlmTask(LlmTaskType.PROMPT, "Sei ein hilfreicher Assistent.", "Say hello", null, null);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        LlmBackgroundable.writeRequest(baos, task, version);
+
+        final StringBuilder sb = new StringBuilder();
+        final Llm1ResponseDecoder decoder = new Llm1ResponseDecoder(version, sb::append);
+        final Llm1NioTransport.Call call = transport.start(server.getAddress(), ByteBuffer.wrap(baos.toByteArray()), decoder);
+        call.getDone().get(10, TimeUnit.SECONDS);
+
+        assertEquals(String.join("", expectedTokens), sb.toString());
+        assertEquals(expectedTokens.size(), decoder.getNumTokens());
+        final Map<ChunkType, String> request = server.getLastRequest();
+        assertEquals(Byte.toString(LlmTaskType.PROMPT.getId()), request.get(ChunkType.BEGIN_OF_REQUEST));
+        return decoder;
+    }
+}
@@ -0,0 +1,383 @@
+package org.rogmann.llm.pluginllm01;
+
+import org.rogmann.llm.pluginllm01.LlmBackgroundable.ChunkType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reference server of the LLM1-protocol (versions 1 and 2) which sends a fixed list of tokens.
+ * <p>
+ * The tokens are produced by a generator-thread (optionally with a delay per token) and written
+ * by the connection-thread. In version 2 all tokens which have been generated while the previous frame
+ * was written (e.g. because the client is slow) are packed into one frame.
+ * <p>
+ * The server can be started locally to test or benchmark the plugin:
+ * <pre>
+ * java Llm1ReferenceServer [port [max-version [number of tokens [delay in ms]]]]
+ * </pre>
+ * The plugin requests version 2 if it has been started with <code>-Dpluginllm01.protocolVersion=2</code>.
+ */
+public class Llm1ReferenceServer implements Closeable {
+    /** marks the end of the generated tokens */
+    private static final String END_OF_TOKENS = new String("<EOT>");
+
+    /** server-socket */
+    private final ServerSocket serverSocket;
+    /** highest protocol-version supported by the server */
+    private final int maxVersion;
+    /** tokens to be sent */
+    private final List<String> tokens;
+    /** delay in milliseconds before each token */
+    private final long delayMillis;
+
+    /** chunks of the last request */
+    private volatile Map<ChunkType, String> lastRequest;
+    /** protocol-version requested by the last request */
+    private volatile int lastRequestedVersion;
+    /** number of tokens generated for the last request */
+    private volatile int numGeneratedTokens;
+    /** completed when the generation of the last request has ended */
+    private volatile CompletableFuture<Void> generationDone = new CompletableFuture<>();
+
+    /**
+     * Starts the server.
+     * @param port port, 0 for an ephemeral port
+     * @param maxVersion highest supported protocol-version (1 or 2)
+     * @param tokens tokens to be sent
+     * @param delayMillis delay in milliseconds before each token
+     * @throws IOException if the server-socket can't be opened
+     */
+    public Llm1ReferenceServer(int port, int maxVersion, List<String> tokens, long delayMillis) throws IOException {
+        this.maxVersion = maxVersion;
+        this.tokens = tokens;
+        this.delayMillis = delayMillis;
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        final Thread acceptThread = new Thread(this::acceptConnections, "LLM1-Reference-Server");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Gets the address of the server.
+     * @return address
+     */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    }
+
+    /**
+     * Gets the chunks of the last request.
+     * @return map from chunk-type to text, <code>null</code> if there was no request
+     */
+    public Map<ChunkType, String> getLastRequest() {
+        return lastRequest;
+    }
+
+    /**
+     * Gets the protocol-version requested by the last request.
+     * @return version
+     */
+    public int getLastRequestedVersion() {
+        return lastRequestedVersion;
+    }
+
+    /**
+     * Gets the number of tokens generated for the last request. Like llama.cpp the server stops
+     * the generation if the client has closed the connection.
+     * @return number of tokens
+     */
+    public int getNumGeneratedTokens() {
+        return numGeneratedTokens;
+    }
+
+    /**
+     * Waits for the end of the generation of the last request.
+     * @param timeoutMillis timeout in milliseconds
+     * @throws Exception in case of a timeout
+     */
+    public void awaitGeneration(long timeoutMillis) throws Exception {
+        generationDone.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                final Thread thread = new Thread(() -> handleConnection(socket), "LLM1-Reference-Connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Accept failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (socket;
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             OutputStream os = new BufferedOutputStream(socket.getOutputStream())) {
+            final byte[] eyecatcher = new byte[4];
+            dis.readFully(eyecatcher);
+            if (eyecatcher[0] != 'L' || eyecatcher[1] != 'L' || eyecatcher[2] != 'M') {
+                throw new IOException("Invalid eyecatcher: " + new String(eyecatcher, StandardCharsets.ISO_8859_1));
+            }
+            final int requestedVersion = eyecatcher[3] - '0';
+            if (requestedVersion < 1) {
+                throw new IOException("Invalid protocol-version: " + requestedVersion);
+            }
+            lastRequestedVersion = requestedVersion;
+            lastRequest = readRequest(dis, requestedVersion);
+            final long tsRequest = System.nanoTime();
+
+            final int version = Math.min(requestedVersion, maxVersion);
+            final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            generationDone = done;
+            final Thread generator = new Thread(() -> generateTokens(queue, done), "LLM1-Reference-Generator");
+            generator.setDaemon(true);
+            generator.start();
+            try {
+                writeResponse(os, version, queue, tsRequest);
+            } finally {
+                // The generation is stopped if the connection is closed.
+                generator.interrupt();
+            }
+
+            final int close = dis.read();
+            if (close != ChunkType.CLOSE_CONNECTION.getId()) {
+                System.err.println("Unexpected close-byte: " + close);
+            }
+        } catch (IOException e) {
+            System.err.println("Connection failed: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the generated tokens and the end of the response.
+     * @param os output-stream
+     * @param version protocol-version of the response
+     * @param queue generated tokens
+     * @param tsRequest time the request has been received (nano-time)
+     * @throws IOException in case of an IO-error, e.g. the client closed the connection
+     * @throws InterruptedException if the thread has been interrupted
+     */
+    private void writeResponse(OutputStream os, int version, BlockingQueue<String> queue, long tsRequest)
+            throws IOException, InterruptedException {
+        os.write(new byte[] { 'L', 'L', 'M', (byte) ('0' + version) });
+        final List<String> batch = new ArrayList<>();
+        long tsFirstToken = 0;
+        boolean endOfTokens = false;
+        while (!endOfTokens) {
+            batch.clear();
+            batch.add(queue.take());
+            queue.drainTo(batch);
+            if (tsFirstToken == 0) {
+                tsFirstToken = System.nanoTime();
+            }
+            if (batch.get(batch.size() - 1) == END_OF_TOKENS) {
+                batch.remove(batch.size() - 1);
+                endOfTokens = true;
+            }
+            if (version >= 2) {
+                if (!batch.isEmpty()) {
+                    writeTokensFrame(os, batch);
+                }
+            }
+            else {
+                for (String token : batch) {
+                    writeTokenV1(os, token);
+                }
+            }
+            os.flush();
+        }
+        final long tsEnd = System.nanoTime();
+        if (version >= 2) {
+            final String prompt = lastRequest.getOrDefault(ChunkType.PROMPT, "");
+            final int promptTokens = prompt.isBlank() ? 0 : prompt.trim().split("\\s+").length;
+            writeStatsFrame(os, new Llm1ResponseDecoder.Stats(promptTokens, (tsFirstToken - tsRequest) / 1000,
+                    tokens.size(), (tsEnd - tsFirstToken) / 1000));
+            writeFrame(os, ChunkType.END_OF_RESPONSE, new byte[0]);
+        }
+        else {
+            os.write(0);
+        }
+        os.flush();
+    }
+
+    private void generateTokens(BlockingQueue<String> queue, CompletableFuture<Void> done) {
+        numGeneratedTokens = 0;
+        try {
+            for (String token : tokens) {
+                if (delayMillis > 0) {
+                    TimeUnit.MILLISECONDS.sleep(delayMillis);
+                }
+                queue.add(token);
+                numGeneratedTokens++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queue.add(END_OF_TOKENS);
+            done.complete(null);
+        }
+    }
+
+    /**
+     * Reads the chunks of a request until the end of the request.
+     * @param dis input-stream positioned behind the eyecatcher
+     * @param version requested protocol-version
+     * @return map from chunk-type to text
+     * @throws IOException in case of an IO-error or invalid request
+     */
+    static Map<ChunkType, String> readRequest(DataInputStream dis, int version) throws IOException {
+        if (dis.readByte() != ChunkType.BEGIN_OF_REQUEST.getId()) {
+            throw new IOException("Missing begin of request");
+        }
+        final byte taskTypeId = dis.readByte();
+        final Map<ChunkType, String> chunks = new EnumMap<>(ChunkType.class);
+        while (true) {
+            final byte typeId = dis.readByte();
+            if (typeId == ChunkType.END_OF_REQUEST.getId()) {
+                break;
+            }
+            final ChunkType chunkType = lookupChunkType(typeId);
+            final long len = (version >= 2) ? readVarint(dis) : dis.readInt();
+            final byte[] buf = new byte[(int) len];
+            dis.readFully(buf);
+            chunks.put(chunkType, new String(buf, StandardCharsets.UTF_8));
+        }
+        chunks.put(ChunkType.BEGIN_OF_REQUEST, Byte.toString(taskTypeId));
+        return chunks;
+    }
+
+    private static ChunkType lookupChunkType(byte id) throws IOException {
+        for (ChunkType chunkType : ChunkType.values()) {
+            if (chunkType.getId() == id) {
+                return chunkType;
+            }
+        }
+        throw new IOException("Unknown chunk-type " + id);
+    }
+
+    private static long readVarint(DataInputStream dis) throws IOException {
+        long value = 0;
+        for (int i = 0; i < Llm1ResponseDecoder.MAX_LEN_VARINT; i++) {
+            final int b = dis.readByte();
+            value |= (long) (b & 0x7f) << (7 * i);
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /**
+     * Writes a token of version 1.
+     * @param os output-stream
+     * @param token token (at most 255 bytes in UTF-8)
+     * @throws IOException in case of an IO-error
+     */
+    static void writeTokenV1(OutputStream os, String token) throws IOException {
+        final byte[] buf = token.getBytes(StandardCharsets.UTF_8);
+        if (buf.length == 0 || buf.length > 255) {
+            throw new IOException("Token can't be sent in version 1: length " + buf.length);
+        }
+        os.write(buf.length);
+        os.write(buf);
+    }
+
+    /**
+     * Writes a frame of tokens of version 2.
+     * @param os output-stream
+     * @param batch tokens
+     * @throws IOException in case of an IO-error
+     */
+    static void writeTokensFrame(OutputStream os, List<String> batch) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        LlmBackgroundable.writeVarint(baos, batch.size());
+        for (String token : batch) {
+            final byte[] buf = token.getBytes(StandardCharsets.UTF_8);
+            LlmBackgroundable.writeVarint(baos, buf.length);
+            baos.write(buf);
+        }
+        writeFrame(os, ChunkType.TOKENS, baos.toByteArray());
+    }
+
+    /**
+     * Writes the statistics-trailer of version 2.
+     * @param os output-stream
+     * @param stats statistics
+     * @throws IOException in case of an IO-error
+     */
+    static void writeStatsFrame(OutputStream os, Llm1ResponseDecoder.Stats stats) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        LlmBackgroundable.writeVarint(baos, stats.promptTokens());
+        LlmBackgroundable.writeVarint(baos, stats.promptEvalMicros());
+        LlmBackgroundable.writeVarint(baos, stats.generatedTokens());
+        LlmBackgroundable.writeVarint(baos, stats.generationMicros());
+        writeFrame(os, ChunkType.STATS_TRAILER, baos.toByteArray());
+    }
+
+    /**
+     * Writes a frame of version 2.
+     * @param os output-stream
+     * @param type type of the frame
+     * @param payload payload
+     * @throws IOException in case of an IO-error
+     */
+    static void writeFrame(OutputStream os, ChunkType type, byte[] payload) throws IOException {
+        os.write(type.getId());
+        LlmBackgroundable.writeVarint(os, payload.length);
+        os.write(payload);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * Starts the reference-server.
+     * @param args [port [max-version [number of tokens [delay in ms]]]]
+     * @throws IOException if the server can't be started
+     * @throws InterruptedException if the main-thread has been interrupted
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int port = (args.length > 0) ? Integer.parseInt(args[0]) : 8089;
+        final int maxVersion = (args.length > 1) ? Integer.parseInt(args[1]) : LlmBackgroundable.MAX_PROTOCOL_VERSION;
+        final int numTokens = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+        final long delayMillis = (args.length > 3) ? Long.parseLong(args[3]) : 0;
+        final List<String> tokens = new ArrayList<>(numTokens);
+        for (int i = 0; i < numTokens; i++) {
+            tokens.add((i % 16 == 15) ? "\n" : " token" + i);
+        }
+        try (Llm1ReferenceServer server = new Llm1ReferenceServer(port, maxVersion, tokens, delayMillis)) {
+            System.out.println(String.format("LLM1 reference-server (max. version %d, %d tokens, delay %d ms) at %s",
+                    maxVersion, numTokens, delayMillis, server.getAddress()));
+            Thread.currentThread().join();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Tests of the history of {@link LlmChatSession} and the file-format of {@link LlmChatStore}.
+ */
+public class LlmChatSessionTest {
+
+    /** four characters per token */
+    private static final FimContextExtractor.TokenCounter COUNTER = (text, start, end) -> (end - start) / 4;
+
+    /** text of 40 tokens (44 including the chat-template) */
+    private static String text(String prefix) {
+        return (prefix + " ".repeat(160)).substring(0, 160);
+    }
+
+    private static LlmChatSession createSession(int numTurns) {
+        final LlmChatSession session = new LlmChatSession(42L, "");
+        for (int i = 0; i < numTurns; i++) {
+            session.addTurn(new LlmChatSession.Turn(text("Q" + i), text("A" + i), 100 * i, 90 * i, 10 * i));
+        }
+        return session;
+    }
+
+    @Test
+    void testHistoryWithoutLimit() {
+        final LlmChatSession session = createSession(3);
+        final List<LlmChatSession.Message> history = session.buildHistory("Q3", 0, COUNTER);
+        assertEquals(6, history.size());
+        assertEquals("user", history.get(0).role());
+        assertEquals(text("Q0"), history.get(0).content());
+        assertEquals("assistant", history.get(5).role());
+        assertEquals(text("A2"), history.get(5).content());
+        assertEquals(0, session.getNumOmitted());
+    }
+
+    @Test
+    void testHistoryTruncation() {
+        final LlmChatSession session = createSession(5);
+        // system-prompt 4, question 4, 5 turns of 88 tokens: 448 tokens.
+        final List<LlmChatSession.Message> history = session.buildHistory("", 400, COUNTER);
+        // Target 300 tokens: turns 1 to 2 are omitted (272 tokens).
+        assertEquals(2, session.getNumOmitted());
+        assertEquals(6, history.size());
+        assertEquals(text("Q0"), history.get(0).content());
+        assertEquals(text("Q3"), history.get(2).content());
+
+        // The next request starts with the same messages.
+        session.addTurn(new LlmChatSession.Turn(text("Q5"), text("A5"), -1, -1, -1));
+        final List<LlmChatSession.Message> history2 = session.buildHistory("", 400, COUNTER);
+        assertEquals(2, session.getNumOmitted());
+        assertEquals(history, history2.subList(0, history.size()));
+        assertEquals(text("A5"), history2.get(7).content());
+
+        // The number of omitted turns doesn't shrink with a larger limit.
+        assertEquals(8, session.buildHistory("", 0, COUNTER).size());
+    }
+
+    @Test
+    void testStore() throws IOException {
+        final LlmChatSession session = createSession(2);
+        session.setNumOmitted(1);
+        final LlmChatSession empty = new LlmChatSession(43L, "System");
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        LlmChatStore.write(List.of(empty, session), baos);
+
+        final List<LlmChatSession> sessions = LlmChatStore.read(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals(1, sessions.size());
+        final LlmChatSession read = sessions.get(0);
+        assertEquals(42L, read.getId());
+        assertEquals("", read.getSystemPrompt());
+        assertEquals(1, read.getNumOmitted());
+        assertEquals(session.getTurns(), read.getTurns());
+        assertEquals("Q0", read.getTitle());
+    }
+}
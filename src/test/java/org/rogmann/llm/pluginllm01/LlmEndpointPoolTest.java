@@ -0,0 +1,287 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests of {@link LlmEndpointPool} against local stub servers.
+ */
+public class LlmEndpointPoolTest {
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+
+    @AfterEach
+    void stopServers() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Starts a stub server which answers with a fixed status and body.
+     * @param statusCode status of /completion
+     * @param slotsBody response of /slots or <code>null</code> if /slots isn't available
+     * @param healthBody response of /health
+     * @return base-URL
+     */
+    private String startServer(int statusCode, String slotsBody, String healthBody) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+            final int status;
+            final String body;
+            if ("/slots".equals(path)) {
+                status = (slotsBody != null) ? 200 : 501;
+                body = (slotsBody != null) ? slotsBody : "{\"error\":\"not supported\"}";
+            } else if ("/health".equals(path)) {
+                status = 200;
+                body = healthBody;
+            } else {
+                status = statusCode;
+                body = "answer of " + exchange.getLocalAddress().getPort();
+            }
+            final byte[] buf = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, buf.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(buf);
+            }
+        });
+        server.start();
+        servers.add(server);
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Gets an URL where no server is listening.
+     * @return base-URL
+     */
+    private static String closedUrl() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/";
+        }
+    }
+
+    /**
+     * Sends a request like the HTTP-transport: a failed connection or an overloaded server leads to a failover.
+     */
+    private String complete(LlmEndpointPool.Endpoint endpoint) throws IOException {
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(endpoint.getUrl() + "completion")).GET().build();
+        final HttpResponse<String> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (IOException e) {
+            throw new LlmEndpointPool.FailoverException("No response: " + e, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        if (response.statusCode() == 503) {
+            throw new LlmEndpointPool.FailoverException("Server error 503", null);
+        }
+        return response.body();
+    }
+
+    private LlmEndpointPool createPool(String config) {
+        return new LlmEndpointPool(() -> config, httpClient, clock::get);
+    }
+
+    @Test
+    void testParseEndpoints() {
+        final List<LlmEndpointPool.Endpoint> endpoints = LlmEndpointPool.parseEndpoints(
+                "http://a:8080/\n  http://b:8080 3\r\nhttp://c:8080/ x, http://a:8080/ 2\n\n");
+        assertEquals(3, endpoints.size());
+        assertEquals("http://a:8080/", endpoints.get(0).getUrl());
+        assertEquals(1, endpoints.get(0).getWeight());
+        assertEquals("http://b:8080/", endpoints.get(1).getUrl());
+        assertEquals(3, endpoints.get(1).getWeight());
+        assertEquals(1, endpoints.get(2).getWeight());
+        assertTrue(LlmEndpointPool.parseEndpoints(null).isEmpty());
+    }
+
+    @Test
+    void testLeastOutstandingRequests() throws IOException {
+        final LlmEndpointPool pool = createPool("http://a:8080/\nhttp://b:8080/ 2");
+        final List<LlmEndpointPool.Endpoint> endpoints = pool.getEndpoints();
+        final LlmEndpointPool.Endpoint a = endpoints.get(0);
+        final LlmEndpointPool.Endpoint b = endpoints.get(1);
+        // b has the larger weight: loads (0+1)/1 and (0+1)/2.
+        final String chosen = pool.execute(null, first -> {
+            assertSame(b, first);
+            return pool.execute(null, second -> {
+                // a: 1/1, b: 2/2, the first one wins.
+                assertSame(a, second);
+                return pool.execute(null, third -> {
+                    // a: 2/1, b: 2/2
+                    assertSame(b, third);
+                    return third.getUrl();
+                });
+            });
+        });
+        assertEquals(b.getUrl(), chosen);
+        assertEquals(0, a.getOutstanding());
+        assertEquals(0, b.getOutstanding());
+    }
+
+    @Test
+    void testAffinity() throws IOException {
+        final LlmEndpointPool pool = createPool("http://a:8080/\nhttp://b:8080/");
+        final LlmEndpointPool.Endpoint a = pool.getEndpoints().get(0);
+        final LlmEndpointPool.Endpoint b = pool.getEndpoints().get(1);
+        pool.execute(null, busyA -> {
+            assertSame(a, busyA);
+            assertSame(b, pool.execute("file1", endpoint -> endpoint));
+            return null;
+        });
+        // a and b are equally loaded, file1 stays at b although a is the first endpoint.
+        assertSame(a, pool.execute(null, endpoint -> endpoint));
+        assertSame(b, pool.execute("file1", endpoint -> endpoint));
+    }
+
+    @Test
+    void testFailoverBeforeFirstToken() throws IOException {
+        final String urlDown = closedUrl();
+        final String urlBusy = startServer(503, null, "{}");
+        final String urlOk = startServer(200, null, "{}");
+        final LlmEndpointPool pool = createPool(urlDown + '\n' + urlBusy + '\n' + urlOk);
+        final String port = urlOk.substring(urlOk.lastIndexOf(':') + 1, urlOk.length() - 1);
+        assertEquals("answer of " + port, pool.execute(null, this::complete));
+
+        // All endpoints fail: the last failure is reported.
+        final LlmEndpointPool poolFailing = createPool(urlDown + '\n' + urlBusy);
+        final IOException e = assertThrows(LlmEndpointPool.FailoverException.class, () -> poolFailing.execute(null, this::complete));
+        assertEquals("Server error 503", e.getMessage());
+    }
+
+    @Test
+    void testCircuitBreaker() throws IOException {
+        final String urlDown = closedUrl();
+        final String urlOk = startServer(200, null, "{}");
+        final LlmEndpointPool pool = createPool(urlDown + '\n' + urlOk);
+        final LlmEndpointPool.Endpoint down = pool.getEndpoints().get(0);
+        for (int i = 0; i < LlmEndpointPool.FAILURE_THRESHOLD; i++) {
+            assertFalse(down.isEjected());
+            // The down endpoint is tried first (same load, first in list).
+            pool.execute(null, this::complete);
+        }
+        assertTrue(down.isEjected());
+        final List<String> usedUrls = new ArrayList<>();
+        pool.execute(null, endpoint -> {
+            usedUrls.add(endpoint.getUrl());
+            return complete(endpoint);
+        });
+        assertEquals(List.of(urlOk), usedUrls);
+
+        // After the break a single trial request is sent to the ejected endpoint.
+        clock.addAndGet(LlmEndpointPool.BREAK_MILLIS);
+        assertSame(down, pool.choose(null, Set.of()));
+        assertFalse(down.isAvailable(clock.get(), false), "one trial request only");
+        down.recordFailure(clock.get());
+        clock.addAndGet(LlmEndpointPool.BREAK_MILLIS);
+        assertFalse(down.isAvailable(clock.get(), false), "break-time has been doubled");
+        clock.addAndGet(LlmEndpointPool.BREAK_MILLIS);
+        assertTrue(down.isAvailable(clock.get(), true));
+        down.recordSuccess();
+        assertFalse(down.isEjected());
+    }
+
+    @Test
+    void testSingleEjectedEndpointIsUsed() throws IOException {
+        final LlmEndpointPool pool = createPool("http://a:8080/");
+        final LlmEndpointPool.Endpoint a = pool.getEndpoints().get(0);
+        for (int i = 0; i < LlmEndpointPool.FAILURE_THRESHOLD; i++) {
+            a.recordFailure(clock.get());
+        }
+        assertTrue(a.isEjected());
+        assertSame(a, pool.choose(null, Set.of()));
+        assertNull(pool.choose(null, Set.of(a)));
+    }
+
+    @Test
+    void testHealthProbes() throws Exception {
+        final String urlSlotsBusy = startServer(200,
+                "[{\"id\":0,\"is_processing\":true},{\"id\":1,\"is_processing\":true}]", "{}");
+        final String urlHealthIdle = startServer(200, null,
+                "{\"status\":\"ok\",\"slots_idle\":3,\"slots_processing\":1}");
+        final String urlDown = closedUrl();
+        final LlmEndpointPool pool = createPool(urlSlotsBusy + '\n' + urlHealthIdle + '\n' + urlDown);
+        pool.probeAll().get(10, TimeUnit.SECONDS);
+        final List<LlmEndpointPool.Endpoint> endpoints = pool.getEndpoints();
+        assertEquals(0, endpoints.get(0).getIdleSlots());
+        assertEquals(3, endpoints.get(1).getIdleSlots());
+        assertTrue(endpoints.get(1).isHealthy());
+        assertFalse(endpoints.get(2).isHealthy());
+        // Busy slots of other clients: (2+1)/1 against (1+1)/1, the unhealthy endpoint isn't used.
+        assertSame(endpoints.get(1), pool.choose(null, Set.of()));
+        assertSame(endpoints.get(0), pool.choose(null, Set.of(endpoints.get(1))));
+    }
+
+    @Test
+    void testModelOfPrimaryEndpoint() throws IOException {
+        final String model = "/models/qwen2.5-coder-7b-q8_0.gguf";
+        final String url = startServer(200, null, "{}");
+        final LlmEndpointPool pool = createPool(url + "\nhttp://b:8080/");
+        final LlmEndpointPool.Endpoint primary = pool.getEndpoints().get(0);
+        // The stub server doesn't provide /props.
+        assertEquals("", pool.getPrimaryModel());
+
+        pool.processProps(primary, 200, "{\"default_generation_settings\":{\"n_ctx\":4096,\"samplers\":[\"top_k\"]},"
+                + "\"total_slots\":2,\"model_path\":\"" + model + "\",\"chat_template\":\"{{ x }}\"}");
+        assertEquals(model, primary.getModel());
+        // The properties are read again after the interval only.
+        assertEquals(model, pool.getPrimaryModel());
+        clock.addAndGet(LlmEndpointPool.PROPS_INTERVAL_MS);
+        assertEquals("", pool.getPrimaryModel());
+
+        pool.processProps(primary, 200, "{\"model_path\":" );
+        assertEquals("", primary.getModel());
+    }
+
+    @Test
+    void testSlotAffinityPerEndpoint() {
+        final LlmEndpointPool pool = createPool("http://a:8080/\nhttp://b:8080/");
+        final LlmEndpointPool.Endpoint a = pool.getEndpoints().get(0);
+        final LlmEndpointPool.Endpoint b = pool.getEndpoints().get(1);
+        pool.processProbe(b, 200, "[{\"id\":0,\"is_processing\":false},{\"id\":1,\"is_processing\":false}]");
+        assertEquals(0, pool.getSlot(a, "p:/src/A.java"));
+        assertEquals(1, pool.getSlot(a, "p:/src/B.java"));
+        // The slots of b are assigned independently of a.
+        assertEquals(0, pool.getSlot(b, "p:/src/B.java"));
+        assertEquals(1, pool.getSlot(b, "p:/src/C.java"));
+        // b has two slots only: the least recently used key (B) loses its slot.
+        assertEquals(1, pool.getSlot(b, "p:/src/C.java"));
+        assertEquals(0, pool.getSlot(b, "p:/src/D.java"));
+        assertEquals(1, pool.getSlot(a, "p:/src/B.java"));
+        assertEquals(-1, pool.getSlot(a, null));
+
+        // total_slots of /props limits the slots of a.
+        pool.processProps(a, 200, "{\"total_slots\":1,\"model_path\":\"m.gguf\"}");
+        assertEquals(0, pool.getSlot(a, "p:/src/B.java"));
+        assertEquals(0, pool.getSlot(a, "p:/src/A.java"));
+    }
+}
@@ -0,0 +1,110 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class LlmLatencyProfileTest {
+
+    @Test
+    void testParseDefaults() {
+        final Map<String, LlmLatencyProfile> profiles = LlmLatencyProfile.parseProfiles(LlmLatencyProfile.DEFAULT_PROFILES);
+        assertEquals(List.of("chat", "fim", "fim-line"), List.copyOf(profiles.keySet()));
+        final LlmLatencyProfile fim = profiles.get("fim");
+        assertEquals(256, fim.maxTokens());
+        assertEquals(List.of("\n\n"), fim.stop());
+        assertEquals(0.2, fim.temperature());
+        assertEquals(40, fim.topK());
+        assertEquals(0.9, fim.topP());
+        assertEquals(10000, fim.deadlineMillis());
+        final LlmLatencyProfile chat = profiles.get("chat");
+        assertEquals(List.of(), chat.stop());
+        assertEquals(-1, chat.topK());
+        assertEquals(0, chat.deadlineMillis());
+    }
+
+    @Test
+    void testParseEscapesAndInvalidEntries() {
+        final Map<String, LlmLatencyProfile> profiles = LlmLatencyProfile.parseProfiles(
+                "a: stop=\\s\\s}\\\\ stop=<|endoftext|> n_predict=x color=red top_k=5\r\n\n  b  : n_predict=3\n");
+        assertEquals(List.of("a", "b"), List.copyOf(profiles.keySet()));
+        final LlmLatencyProfile a = profiles.get("a");
+        assertEquals(List.of("  }\\", "<|endoftext|>"), a.stop());
+        assertEquals(-1, a.maxTokens());
+        assertEquals(5, a.topK());
+        assertEquals(LlmLatencyProfile.parseProfiles(a.toString()).get("a"), a);
+        assertEquals(new LlmLatencyProfile("b", 3, List.of(), -1, -1, -1, 0), profiles.get("b"));
+    }
+
+    @Test
+    void testAddToRequest() throws IOException {
+        final LlmLatencyProfile fim = LlmLatencyProfile.parseProfiles(LlmLatencyProfile.DEFAULT_PROFILES).get("fim");
+        final Map<String, Object> request = new LinkedHashMap<>();
+        fim.addToRequest(request, LlmTaskType.FILL_IN_MIDDLE);
+        final String json = new String(JsonRequestBody.of(request).openStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals("{\"n_predict\":256,\"stop\":[\"\\n\\n\"],\"temperature\":0.2,\"top_k\":40,\"top_p\":0.9}", json);
+
+        final Map<String, Object> chatRequest = new LinkedHashMap<>();
+        fim.addToRequest(chatRequest, LlmTaskType.PROMPT);
+        assertEquals(256, chatRequest.get("max_tokens"));
+        assertFalse(chatRequest.containsKey("n_predict"));
+
+        final Map<String, Object> noneRequest = new LinkedHashMap<>();
+        LlmLatencyProfile.NONE.addToRequest(noneRequest, LlmTaskType.FILL_IN_MIDDLE);
+        assertTrue(noneRequest.isEmpty());
+    }
+
+    @Test
+    void testIndexOfStop() {
+        final LlmLatencyProfile profile = LlmLatencyProfile.parseProfiles("p: stop=\\n\\n stop=}").get("p");
+        assertEquals(-1, profile.indexOfStop(new StringBuilder("int a;\n"), 0));
+        assertEquals(6, profile.indexOfStop(new StringBuilder("int a;\n\nint b;}"), 0));
+        assertEquals(14, profile.indexOfStop(new StringBuilder("int a;\n\nint b;}"), 8));
+    }
+
+    @Test
+    void testLengthOfStopPrefix() {
+        final LlmLatencyProfile profile = LlmLatencyProfile.parseProfiles("p: stop=\\n\\n stop=<|end|>").get("p");
+        assertEquals(0, profile.lengthOfStopPrefix("int a;"));
+        assertEquals(1, profile.lengthOfStopPrefix("int a;\n"));
+        assertEquals(3, profile.lengthOfStopPrefix("int a; <|e"));
+        assertEquals(0, profile.lengthOfStopPrefix("a <|x"));
+        assertEquals(0, LlmLatencyProfile.NONE.lengthOfStopPrefix("int a;\n"));
+    }
+
+    @Test
+    void testMetricsPerProfile() {
+        final LlmMetrics metrics = new LlmMetrics();
+        final LlmLatencyProfile fim = LlmLatencyProfile.parseProfiles("fim: deadline_ms=1").get("fim");
+        final LlmMetrics.Request request = metrics.startRequest(LlmMetrics.Transport.HTTP, fim);
+        request.token();
+        assertFalse(request.isDeadlineExceeded(0));
+        final long tsWait = System.nanoTime() + 2_000_000L;
+        while (System.nanoTime() < tsWait) {
+            Thread.onSpinWait();
+        }
+        assertTrue(request.isDeadlineExceeded(fim.deadlineMillis()));
+        request.finish(100, 200, false);
+        metrics.startRequest(LlmMetrics.Transport.HTTP, LlmLatencyProfile.NONE).finish(10, 20, true);
+
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        for (LlmMetrics.Row row : metrics.getRows()) {
+            counts.put(row.profile() + "/" + row.metric().name(), row.count());
+        }
+        assertEquals(1L, counts.get("fim/DEADLINE_EXCEEDED"));
+        assertEquals(1L, counts.get("fim/GENERATED_TOKENS"));
+        assertEquals(1L, counts.get("fim/FAILED_REQUEST"));
+        assertFalse(counts.containsKey("fim/REQUEST_DURATION"));
+        assertEquals(1L, counts.get("/REQUEST_DURATION"));
+        assertEquals(1L, counts.get("/BYTES_SENT"));
+        assertFalse(counts.containsKey("/DEADLINE_EXCEEDED"));
+    }
+}
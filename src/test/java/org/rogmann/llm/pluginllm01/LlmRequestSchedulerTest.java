@@ -0,0 +1,182 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+public class LlmRequestSchedulerTest {
+    private static final LlmMetrics.Transport HTTP = LlmMetrics.Transport.HTTP;
+
+    private static LlmResponseCache.Key key(String prompt) {
+        return LlmResponseCache.createKey("test", new LlmTask(LlmTaskType.PROMPT, null, prompt, null, null));
+    }
+
+    private static CompletableFuture<String> executeAsync(LlmRequestScheduler scheduler, LlmResponseCache.Key key,
+            LlmRequestScheduler.Priority priority, ProgressIndicator indicator, StringBuilder sbTokens,
+            LlmRequestScheduler.Call call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return scheduler.execute(HTTP, key, priority, indicator, sbTokens::append,
+                        () -> sbTokens.setLength(0), status -> { }, call);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        final long tsEnd = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < tsEnd, "timeout");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void testSingleFlight() throws Exception {
+        final LlmRequestScheduler scheduler = new LlmRequestScheduler(() -> 4, () -> 1);
+        final AtomicInteger numCalls = new AtomicInteger();
+        final CountDownLatch firstTokens = new CountDownLatch(1);
+        final CountDownLatch followerJoined = new CountDownLatch(1);
+        final LlmRequestScheduler.Call call = publisher -> {
+            numCalls.incrementAndGet();
+            publisher.accept("a");
+            publisher.accept("b");
+            firstTokens.countDown();
+            await(followerJoined);
+            publisher.accept("c");
+            return "abc";
+        };
+        final StringBuilder sbLeader = new StringBuilder();
+        final CompletableFuture<String> leader = executeAsync(scheduler, key("x"), LlmRequestScheduler.Priority.CHAT,
+                new EmptyProgressIndicator(), sbLeader, call);
+        await(firstTokens);
+        final StringBuilder sbFollower = new StringBuilder();
+        final CompletableFuture<String> follower = executeAsync(scheduler, key("x"), LlmRequestScheduler.Priority.CHAT,
+                new EmptyProgressIndicator(), sbFollower, call);
+        waitUntil(() -> sbFollower.length() == 2);
+        followerJoined.countDown();
+        assertEquals("abc", leader.get(10, TimeUnit.SECONDS));
+        assertEquals("abc", follower.get(10, TimeUnit.SECONDS));
+        assertEquals("abc", sbFollower.toString());
+        assertEquals(1, numCalls.get());
+        assertEquals(0, scheduler.getRunning(HTTP));
+    }
+
+    @Test
+    void testFollowerRetriesAfterFailure() throws Exception {
+        final LlmRequestScheduler scheduler = new LlmRequestScheduler(() -> 4, () -> 1);
+        final CountDownLatch leaderStarted = new CountDownLatch(1);
+        final CountDownLatch fail = new CountDownLatch(1);
+        final CompletableFuture<String> leader = executeAsync(scheduler, key("x"), LlmRequestScheduler.Priority.BATCH,
+                new EmptyProgressIndicator(), new StringBuilder(), publisher -> {
+                    publisher.accept("partial ");
+                    leaderStarted.countDown();
+                    await(fail);
+                    throw new IOException("connection reset");
+                });
+        await(leaderStarted);
+        final StringBuilder sbFollower = new StringBuilder();
+        final CompletableFuture<String> follower = executeAsync(scheduler, key("x"), LlmRequestScheduler.Priority.CHAT,
+                new EmptyProgressIndicator(), sbFollower, publisher -> {
+                    // A request streams its own tokens, the publisher serves identical requests.
+                    sbFollower.append("own response");
+                    return "own response";
+                });
+        waitUntil(() -> sbFollower.length() > 0);
+        fail.countDown();
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> leader.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause().getCause() instanceof IOException);
+        assertEquals("own response", follower.get(10, TimeUnit.SECONDS));
+        // The tokens of the failed request have been discarded before the request was sent again.
+        assertEquals("own response", sbFollower.toString());
+    }
+
+    @Test
+    void testPriorityOrder() throws Exception {
+        final LlmRequestScheduler scheduler = new LlmRequestScheduler(() -> 1, () -> 1);
+        final CountDownLatch holderStarted = new CountDownLatch(1);
+        final CountDownLatch releaseHolder = new CountDownLatch(1);
+        final CompletableFuture<String> holder = executeAsync(scheduler, key("holder"), LlmRequestScheduler.Priority.CHAT,
+                new EmptyProgressIndicator(), new StringBuilder(), publisher -> {
+                    holderStarted.countDown();
+                    await(releaseHolder);
+                    return "holder";
+                });
+        await(holderStarted);
+        final List<String> order = new ArrayList<>();
+        final List<CompletableFuture<String>> futures = new ArrayList<>();
+        final LlmRequestScheduler.Priority[] priorities = { LlmRequestScheduler.Priority.BATCH,
+                LlmRequestScheduler.Priority.CHAT, LlmRequestScheduler.Priority.INTERACTIVE };
+        for (int i = 0; i < priorities.length; i++) {
+            final String name = priorities[i].name();
+            futures.add(executeAsync(scheduler, key(name), priorities[i], new EmptyProgressIndicator(), new StringBuilder(),
+                    publisher -> {
+                        synchronized (order) {
+                            order.add(name);
+                        }
+                        return name;
+                    }));
+            final int numWaiting = i + 1;
+            waitUntil(() -> scheduler.getWaiting(HTTP) == numWaiting);
+        }
+        releaseHolder.countDown();
+        assertEquals("holder", holder.get(10, TimeUnit.SECONDS));
+        for (CompletableFuture<String> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(List.of("INTERACTIVE", "CHAT", "BATCH"), order);
+    }
+
+    @Test
+    void testPreemptionOfBatch() throws Exception {
+        final LlmRequestScheduler scheduler = new LlmRequestScheduler(() -> 1, () -> 1);
+        final EmptyProgressIndicator batchIndicator = new EmptyProgressIndicator();
+        final CountDownLatch batchStarted = new CountDownLatch(1);
+        final CompletableFuture<String> batch = CompletableFuture.supplyAsync(() -> {
+            try {
+                return scheduler.execute(HTTP, key("batch"), LlmRequestScheduler.Priority.BATCH, batchIndicator,
+                        token -> { }, () -> { }, status -> { }, publisher -> {
+                            batchStarted.countDown();
+                            while (!batchIndicator.isCanceled()) {
+                                Thread.onSpinWait();
+                            }
+                            throw new ProcessCanceledException();
+                        });
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        await(batchStarted);
+        final CompletableFuture<String> interactive = executeAsync(scheduler, key("fim"),
+                LlmRequestScheduler.Priority.INTERACTIVE, new EmptyProgressIndicator(), new StringBuilder(),
+                publisher -> "completion");
+        assertEquals("completion", interactive.get(10, TimeUnit.SECONDS));
+        assertTrue(batchIndicator.isCanceled());
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> batch.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ProcessCanceledException);
+    }
+}
@@ -0,0 +1,146 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+public class MarkdownExporterTest {
+
+    /** counter of tokens: one token per character */
+    private static final FimContextExtractor.TokenCounter COUNTER = (text, start, end) -> end - start;
+
+    /**
+     * File in memory which counts the read-accesses.
+     */
+    private static final class MemorySource implements MarkdownExporter.Source {
+        private final String name;
+        private final byte[] content;
+        private long stamp = 1;
+        private final AtomicInteger numReads = new AtomicInteger();
+
+        MemorySource(String name, byte[] content) {
+            this.name = name;
+            this.content = content;
+        }
+
+        MemorySource(String name, String content) {
+            this(name, content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getPath() {
+            return "/project/" + name;
+        }
+
+        @Override
+        public String getExtension() {
+            return name.substring(name.lastIndexOf('.') + 1);
+        }
+
+        @Override
+        public long getStamp() {
+            return stamp;
+        }
+
+        @Override
+        public long getLength() {
+            return content.length;
+        }
+
+        @Override
+        public byte[] read() {
+            numReads.incrementAndGet();
+            return content;
+        }
+    }
+
+    @Test
+    void testExportSkipsBinaryAndGenerated() {
+        final List<MemorySource> sources = List.of(
+                new MemorySource("src/A.java", "class A { }"),
+                new MemorySource("img/logo.png", new byte[] { (byte) 0x89, 'P', 'N', 'G', 0, 0, 0, 13 }),
+                new MemorySource("gen/Parser.java", "// This file was generated by ANTLR, do not edit.\nclass Parser { }"),
+                new MemorySource("web/app.js", "var a=1;".repeat(1000)),
+                new MemorySource("src/B.xml", "<b/>"));
+        final MarkdownExporter exporter = new MarkdownExporter(new MarkdownFragmentCache(1_000_000), COUNTER, 0, 4);
+        final MarkdownExporter.Result result = exporter.export(sources, new EmptyProgressIndicator());
+        assertEquals("## src/A.java\n\n```java\nclass A { }\n```\n\n\n## src/B.xml\n\n```xml\n<b/>\n```\n", result.markdown());
+        assertEquals(2, result.numExported());
+        assertEquals(3, result.numSkipped());
+        assertEquals(0, result.numOverBudget());
+    }
+
+    @Test
+    void testBudget() {
+        final List<MemorySource> sources = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            // 100 characters, the code-block has 112 tokens
+            sources.add(new MemorySource("F" + i + ".txt", Character.toString('a' + i).repeat(100)));
+        }
+        final MarkdownExporter exporter = new MarkdownExporter(new MarkdownFragmentCache(1_000_000), COUNTER, 500, 3);
+        final MarkdownExporter.Result result = exporter.export(sources, new EmptyProgressIndicator());
+        assertEquals(4, result.numExported());
+        assertEquals(6, result.numOverBudget());
+        assertEquals(4 * 112, result.numTokens());
+        assertTrue(result.markdown().endsWith("d".repeat(100) + "\n```\n"));
+    }
+
+    @Test
+    void testRepeatedExportUsesCache() {
+        final List<MemorySource> sources = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            sources.add(new MemorySource("F" + i + ".java", "class F" + i + " { }"));
+        }
+        final MarkdownFragmentCache cache = new MarkdownFragmentCache(1_000_000);
+        final MarkdownExporter exporter = new MarkdownExporter(cache, COUNTER, 0, 4);
+        final String first = exporter.export(sources, new EmptyProgressIndicator()).markdown();
+
+        sources.get(7).stamp++;
+        final MarkdownExporter.Result second = exporter.export(sources, new EmptyProgressIndicator());
+        assertEquals(first, second.markdown());
+        assertEquals(19, second.numFromCache());
+        for (int i = 0; i < sources.size(); i++) {
+            assertEquals((i == 7) ? 2 : 1, sources.get(i).numReads.get(), "reads of F" + i);
+        }
+    }
+
+    @Test
+    void testCacheEviction() {
+        final MarkdownFragmentCache cache = new MarkdownFragmentCache(100);
+        final MarkdownExporter.Fragment fragment = new MarkdownExporter.Fragment(MarkdownExporter.Kind.TEXT, "x".repeat(40), 40);
+        cache.put("/a", 1, fragment);
+        cache.put("/b", 1, fragment);
+        cache.get("/a", 1);
+        cache.put("/c", 1, fragment);
+        assertEquals(fragment, cache.get("/a", 1));
+        assertEquals(null, cache.get("/b", 1));
+        assertEquals(fragment, cache.get("/c", 1));
+        assertEquals(null, cache.get("/c", 2));
+    }
+
+    @Test
+    void testIgnorePatterns() {
+        final Predicate<String> ignored = MarkdownExporter.parseIgnorePatterns(LlmSettings.DEFAULT_EXPORT_IGNORE_PATTERNS);
+        assertTrue(ignored.test(".git"));
+        assertTrue(ignored.test("node_modules"));
+        assertTrue(ignored.test("jquery.min.js"));
+        assertTrue(ignored.test("package.lock"));
+        assertFalse(ignored.test("build.gradle.kts"));
+        assertFalse(ignored.test("Main.java"));
+        assertFalse(MarkdownExporter.parseIgnorePatterns("").test("build"));
+    }
+}
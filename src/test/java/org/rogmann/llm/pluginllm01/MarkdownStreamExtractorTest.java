@@ -0,0 +1,152 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class MarkdownStreamExtractorTest {
+
+    private static final Pattern P_THINK = Pattern.compile("<think>.*?</think>\\s*", Pattern.DOTALL);
+    private static final Pattern P_MARKDOWN = Pattern.compile("```[a-z0-9]+\r?\n(.*?\r?\n)```", Pattern.DOTALL);
+
+    private static final List<String> RESPONSES = List.of(
+            "Some simple text.\n",
+            "<think>\n    Cogito ergo sum.\n</think>\nE = mc²\n",
+            "<think>\nCogito\n</think>\n```java\n    public class Test {\n    }\n```\nDieser Text soll ignoriert werden.\n",
+            "Markdown only:\r\n```java\r\n    class Example {\r\n    }\r\n```\r\nIgnore me!\r\n",
+            "Intro with `inline` and ``double`` ticks:\n````java\nint a;\n```\n",
+            "```\nno language\n```\n```py\nprint(1)\n```\n```js\nx\n```",
+            "```java\n```python\nx = 1\n```\n",
+            "```java\nnot closed\n",
+            "Text <thin and <think> never closed ```java\nint a;\n```\n",
+            "Text before <think>\nhmm\n</think>   \t\n\nafter",
+            "<think>\nonly thinking\n</think>\n \n",
+            "```java\nint a; // ``` inline\n```",
+            "```java\n\n```");
+
+    /**
+     * Extraction of the former implementation by regular expressions.
+     */
+    private static String extractByRegex(String response) {
+        String text = response;
+        final Matcher mThink = P_THINK.matcher(response);
+        if (mThink.find()) {
+            text = mThink.replaceFirst("");
+        }
+        final Matcher mMarkdown = P_MARKDOWN.matcher(response);
+        if (mMarkdown.find()) {
+            text = mMarkdown.group(1);
+        }
+        return text;
+    }
+
+    private static String extractStreamed(String response, Random random) {
+        final MarkdownStreamExtractor extractor = new MarkdownStreamExtractor();
+        int pos = 0;
+        while (pos < response.length()) {
+            final int end = Math.min(response.length(), pos + 1 + random.nextInt(6));
+            extractor.feed(response.substring(pos, end));
+            pos = end;
+        }
+        return extractor.getResult();
+    }
+
+    @Test
+    void testSameAsRegularExpressions() {
+        for (String response : RESPONSES) {
+            final String expected = extractByRegex(response);
+            assertEquals(expected, MainForm.extractMarkdown(response), response);
+            for (int seed = 0; seed < 20; seed++) {
+                assertEquals(expected, extractStreamed(response, new Random(seed)), response + " (seed " + seed + ")");
+            }
+        }
+    }
+
+    @Test
+    void testThinkRoutedAside() {
+        final MarkdownStreamExtractor extractor = new MarkdownStreamExtractor();
+        for (String token : List.of("<th", "ink>", "Use ```java\nint x;\n``` here", "</thi", "nk>\n\n", "Answer\n", "```java\n",
+                "int y;\n", "``", "`\nRest")) {
+            extractor.feed(token);
+        }
+        assertEquals("Use ```java\nint x;\n``` here", extractor.getThinking());
+        assertEquals("int y;\n", extractor.getResult());
+
+        assertNull(new MarkdownStreamExtractor().getThinking());
+    }
+
+    @Test
+    void testFeedStopsAtClosingFence() {
+        final MarkdownStreamExtractor extractor = new MarkdownStreamExtractor();
+        assertFalse(extractor.feed("Here it is:\n``"));
+        assertFalse(extractor.feed("`kotlin"));
+        assertFalse(extractor.feed("\nval a = 1\n"));
+        assertFalse(extractor.feed("\n`"));
+        assertFalse(extractor.isBlockClosed());
+        assertTrue(extractor.feed("``"));
+        assertTrue(extractor.isBlockClosed());
+        assertTrue(extractor.feed("\nThe code declares a value."));
+        assertEquals(1, extractor.getNumTokensAfterBlock());
+        assertEquals("val a = 1\n\n", extractor.getResult());
+    }
+
+    @Test
+    void testGenerationStoppedAfterCodeBlock() throws Exception {
+        final List<String> tokens = new ArrayList<>(List.of("Here", " is", " the", " code", ":\n", "```", "java", "\n"));
+        for (int i = 0; i < 10; i++) {
+            tokens.add("int a" + i + " = " + i + ";\n");
+        }
+        tokens.add("```");
+        final int numTokensBlock = tokens.size();
+        for (int i = 0; i < 200; i++) {
+            tokens.add((i % 20 == 19) ? "\n" : " explanation");
+        }
+        final long delayMillis = 2;
+        final Llm1NioTransport transport = new Llm1NioTransport();
+        try (Llm1ReferenceServer server = new Llm1ReferenceServer(0, 2, tokens, delayMillis)) {
+            final LlmTask task = new LlmTask(LlmTaskType.PROMPT, null, "Write some code", null, null);
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            LlmBackgroundable.writeRequest(baos, task, 2);
+
+            // Same procedure as LlmBackgroundable with stopAfterCodeBlock.
+            final MarkdownStreamExtractor extractor = new MarkdownStreamExtractor();
+            final CompletableFuture<Void> codeBlockClosed = new CompletableFuture<>();
+            final Llm1ResponseDecoder decoder = new Llm1ResponseDecoder(2, token -> {
+                if (!codeBlockClosed.isDone() && extractor.feed(token)) {
+                    codeBlockClosed.complete(null);
+                }
+            });
+            final long tsStart = System.nanoTime();
+            final Llm1NioTransport.Call call = transport.start(server.getAddress(), ByteBuffer.wrap(baos.toByteArray()), decoder);
+            CompletableFuture.anyOf(call.getDone(), codeBlockClosed).get(10, TimeUnit.SECONDS);
+            assertTrue(codeBlockClosed.isDone());
+            call.cancel();
+            final long tsStop = System.nanoTime();
+            server.awaitGeneration(10_000);
+
+            assertEquals("int a0 = 0;\n".length() * 10, extractor.getResult().length());
+            final int numGenerated = server.getNumGeneratedTokens();
+            assertTrue(numGenerated >= numTokensBlock);
+            assertTrue(numGenerated < tokens.size(), "generated " + numGenerated + " tokens");
+            final double millisPerToken = (tsStop - tsStart) / 1_000_000.0 / numTokensBlock;
+            System.out.format("Server time saved: %d of %d tokens not generated, ~%.0f ms (%.1f ms per token)%n",
+                    tokens.size() - numGenerated, tokens.size(), (tokens.size() - numGenerated) * millisPerToken,
+                    millisPerToken);
+        } finally {
+            transport.dispose();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ResponseSegmentStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static CachedResponse record(String... tokens) {
+        final List<String> replayed = new ArrayList<>();
+        final CachedResponse.Recorder recorder = new CachedResponse.Recorder(replayed::add);
+        for (String token : tokens) {
+            recorder.accept(token);
+        }
+        assertEquals(List.of(tokens), replayed);
+        return recorder.toResponse();
+    }
+
+    private static LlmResponseCache.Key key(String prompt) {
+        return LlmResponseCache.createKey("http://localhost:8080/infill",
+                new LlmTask(LlmTaskType.PROMPT, "system", prompt, null, null));
+    }
+
+    @Test
+    void testPutGetAndReopen() throws IOException {
+        final CachedResponse response = record("public", " static", " void", " main", "(", "String", "[]", " args", ")", " äöü 😀");
+        final ResponseSegmentStore store = new ResponseSegmentStore(tempDir, 1024 * 1024, 4);
+        store.put(key("a"), response);
+        assertNull(store.get(key("b")));
+        store.close();
+
+        final ResponseSegmentStore storeReopened = new ResponseSegmentStore(tempDir, 1024 * 1024, 4);
+        final CachedResponse cached = storeReopened.get(key("a"));
+        assertNotNull(cached);
+        assertEquals(response.text(), cached.text());
+        assertArrayEquals(response.tokenEnds(), cached.tokenEnds());
+
+        final List<String> tokens = new ArrayList<>();
+        cached.replay(tokens::add);
+        assertEquals(" args", tokens.get(7));
+        assertEquals(10, tokens.size());
+        storeReopened.close();
+    }
+
+    @Test
+    void testOldestSegmentIsDeleted() throws IOException {
+        final ResponseSegmentStore store = new ResponseSegmentStore(tempDir, 200, 3);
+        final String text = "x".repeat(150);
+        for (int i = 0; i < 5; i++) {
+            store.put(key("p" + i), record(text, Integer.toString(i)));
+        }
+        assertNull(store.get(key("p0")));
+        assertNull(store.get(key("p1")));
+        assertEquals(text + "4", store.get(key("p4")).text());
+        assertEquals(3, store.size());
+        store.close();
+    }
+
+    @Test
+    void testTruncatedRecordIsIgnored() throws IOException {
+        final ResponseSegmentStore store = new ResponseSegmentStore(tempDir, 1024 * 1024, 4);
+        store.put(key("a"), record("Hello", ", World"));
+        store.put(key("b"), record("Truncated"));
+        store.close();
+
+        final Path segment = tempDir.resolve("segment-1.bin");
+        final long size = Files.size(segment);
+        try (FileChannel fc = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            fc.truncate(size - 3);
+        }
+
+        final ResponseSegmentStore storeReopened = new ResponseSegmentStore(tempDir, 1024 * 1024, 4);
+        assertEquals("Hello, World", storeReopened.get(key("a")).text());
+        assertNull(storeReopened.get(key("b")));
+
+        // New records are written into a new segment.
+        storeReopened.put(key("c"), record("New"));
+        assertEquals("New", storeReopened.get(key("c")).text());
+        storeReopened.close();
+    }
+
+    @Test
+    void testKeyDependsOnAllFields() {
+        final LlmTask task = new LlmTask(LlmTaskType.FILL_IN_MIDDLE, "", null, "ab", "c");
+        final LlmResponseCache.Key key = LlmResponseCache.createKey("server", task);
+        assertEquals(key, LlmResponseCache.createKey("server", new LlmTask(LlmTaskType.FILL_IN_MIDDLE, "", null, "ab", "c")));
+        assertNotEquals(key, LlmResponseCache.createKey("server2", task));
+        assertNotEquals(key, LlmResponseCache.createKey("server", new LlmTask(LlmTaskType.FILL_IN_MIDDLE, "", null, "a", "bc")));
+        assertNotEquals(key, LlmResponseCache.createKey("server", new LlmTask(LlmTaskType.FILL_IN_MIDDLE, "", "", "ab", "c")));
+        assertNotEquals(key, LlmResponseCache.createKey("server", new LlmTask(LlmTaskType.PROMPT, "", null, "ab", "c")));
+    }
+}
@@ -0,0 +1,66 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+public class RollingHistogramTest {
+
+    @Test
+    void testBuckets() {
+        int lastIndex = -1;
+        for (long value = 0; value < 100_000; value++) {
+            final int index = RollingHistogram.bucketIndex(value);
+            assertTrue(index == lastIndex || index == lastIndex + 1, "buckets are contiguous at " + value);
+            lastIndex = index;
+            final long middle = RollingHistogram.bucketMiddle(index);
+            assertTrue(Math.abs(middle - value) <= value / 16.0, "relative error at " + value);
+        }
+        assertEquals(RollingHistogram.NUM_BUCKETS - 1, RollingHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    void testPercentiles() {
+        final RollingHistogram histogram = new RollingHistogram(4, 1000, () -> 0L);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        final RollingHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.count());
+        assertEquals(1000, snapshot.max());
+        assertEquals(500.5, snapshot.mean(), 0.001);
+        assertEquals(500, snapshot.percentile(0.50), 500 / 16.0);
+        assertEquals(950, snapshot.percentile(0.95), 950 / 16.0);
+        assertEquals(990, snapshot.percentile(0.99), 990 / 16.0);
+    }
+
+    @Test
+    void testRollingWindows() {
+        final AtomicLong clock = new AtomicLong();
+        final RollingHistogram histogram = new RollingHistogram(3, 1000, clock::get);
+        histogram.record(10);
+        clock.set(1500);
+        histogram.record(20);
+        clock.set(2500);
+        assertEquals(2, histogram.snapshot().count());
+        // The window of the first value is outside of the time-range and reused.
+        clock.set(3100);
+        assertEquals(1, histogram.snapshot().count());
+        histogram.record(30);
+        assertEquals(2, histogram.snapshot().count());
+        assertEquals(30, histogram.snapshot().max());
+        histogram.clear();
+        assertEquals(0, histogram.snapshot().count());
+    }
+
+    @Test
+    void testConcurrentRecording() {
+        final RollingHistogram histogram = new RollingHistogram(4, 60_000, () -> 0L);
+        IntStream.range(0, 100_000).parallel().forEach(i -> histogram.record(i % 1000));
+        assertEquals(100_000, histogram.snapshot().count());
+    }
+}
@@ -0,0 +1,164 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests of {@link SseDecoder}, the stream is fed in chunks of random size.
+ */
+public class SseDecoderTest {
+
+    /** stream with CR, LF and CR LF line-ends, comments, several data-fields and events without data */
+    private static final byte[] STREAM = concat(new byte[] { (byte) 0xef, (byte) 0xbb, (byte) 0xbf },
+            (": keep-alive\r\n"
+            + "data: a\r\n"
+            + "data:b\r\n"
+            + "\r\n"
+            + "event: done\n"
+            + "id: 7\n"
+            + "retry: 1500\n"
+            + "data: {\"content\":\"ü€😀\"}\n"
+            + "\n"
+            + "data\r"
+            + "\r"
+            + "id: 8\n"
+            + "\n"
+            + "event: ignored\n"
+            + "\n"
+            + "error: oops\n"
+            + "data:  last\n"
+            + "\n"
+            + "data: incomplete").getBytes(StandardCharsets.UTF_8));
+
+    /** expected events: type, last event-id and data */
+    private static final List<String> EXPECTED = List.of(
+            "message||a\nb",
+            "done|7|{\"content\":\"ü€😀\"}",
+            "message|7|",
+            "message|8| last");
+
+    /**
+     * Listener collecting the events.
+     */
+    static class Collector implements SseDecoder.EventListener {
+        final List<String> events = new ArrayList<>();
+        final List<String> unknownFields = new ArrayList<>();
+        /** number of events after which the stream is complete, -1 for all */
+        int completeAfter = -1;
+
+        @Override
+        public boolean onEvent(String eventType, String lastEventId, CharSequence data) {
+            events.add(eventType + '|' + lastEventId + '|' + data);
+            return events.size() == completeAfter;
+        }
+
+        @Override
+        public void onUnknownField(String name, String value) {
+            unknownFields.add(name + '=' + value);
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.writeBytes(a);
+        baos.writeBytes(b);
+        return baos.toByteArray();
+    }
+
+    private static Collector decode(int[] chunkEnds, boolean direct) throws IOException {
+        final Collector collector = new Collector();
+        final SseDecoder decoder = new SseDecoder(collector);
+        int pos = 0;
+        for (int end : chunkEnds) {
+            final ByteBuffer chunk = direct ? ByteBuffer.allocateDirect(end - pos) : ByteBuffer.allocate(end - pos);
+            chunk.put(STREAM, pos, end - pos).flip();
+            assertFalse(decoder.feed(chunk));
+            assertEquals(chunk.limit(), chunk.position());
+            pos = end;
+        }
+        assertEquals("data: incomplete".length(), decoder.getPendingBytes());
+        assertFalse(decoder.finish());
+        assertEquals(0, decoder.getPendingBytes());
+        assertEquals(1500, decoder.getRetryMillis());
+        assertEquals(collector.events.size(), decoder.getNumEvents());
+        return collector;
+    }
+
+    @Test
+    void testSingleChunk() throws IOException {
+        final Collector collector = decode(new int[] { STREAM.length }, false);
+        assertEquals(EXPECTED, collector.events);
+        assertEquals(List.of("error=oops"), collector.unknownFields);
+    }
+
+    @Test
+    void testByteByByte() throws IOException {
+        final int[] chunkEnds = new int[STREAM.length];
+        for (int i = 0; i < STREAM.length; i++) {
+            chunkEnds[i] = i + 1;
+        }
+        assertEquals(EXPECTED, decode(chunkEnds, false).events);
+        assertEquals(EXPECTED, decode(chunkEnds, true).events);
+    }
+
+    @Test
+    void testRandomChunks() throws IOException {
+        final Random random = new Random(42);
+        for (int iteration = 0; iteration < 500; iteration++) {
+            final List<Integer> ends = new ArrayList<>();
+            int pos = 0;
+            while (pos < STREAM.length) {
+                pos = Math.min(STREAM.length, pos + 1 + random.nextInt(12));
+                ends.add(pos);
+            }
+            final int[] chunkEnds = ends.stream().mapToInt(Integer::intValue).toArray();
+            assertEquals(EXPECTED, decode(chunkEnds, (iteration & 1) == 1).events, "iteration " + iteration);
+        }
+    }
+
+    @Test
+    void testCompleted() throws IOException {
+        final Collector collector = new Collector();
+        collector.completeAfter = 2;
+        final SseDecoder decoder = new SseDecoder(collector);
+        assertTrue(decoder.feed(STREAM, 0, STREAM.length));
+        assertEquals(EXPECTED.subList(0, 2), collector.events);
+        assertTrue(decoder.feed(STREAM, 0, STREAM.length));
+        assertEquals(2, collector.events.size());
+        assertTrue(decoder.finish());
+    }
+
+    @Test
+    void testIndexOfLineEnd() {
+        final Random random = new Random(7);
+        final byte[] buf = new byte[64];
+        for (int iteration = 0; iteration < 10_000; iteration++) {
+            for (int i = 0; i < buf.length; i++) {
+                // Mostly bytes near CR/LF and bytes with the high bit set.
+                final int r = random.nextInt(40);
+                buf[i] = (byte) ((r == 0) ? '\n' : (r == 1) ? '\r' : (r < 10) ? r + 9 : 0x80 + random.nextInt(128));
+            }
+            final int from = random.nextInt(buf.length);
+            final int to = from + random.nextInt(buf.length - from + 1);
+            int expected = -1;
+            for (int i = from; i < to; i++) {
+                if (buf[i] == '\n' || buf[i] == '\r') {
+                    expected = i;
+                    break;
+                }
+            }
+            assertEquals(expected, SseDecoder.indexOfLineEnd(buf, from, to), "iteration " + iteration);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.rogmann.llm.pluginllm01;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of {@link TextSkeletonizer}, the ranges of {@link #testElide()} are those the Java-PSI would give.
+ */
+public class TextSkeletonizerTest {
+
+    private static final String SOURCE = """
+            /*
+             * License-header.
+             */
+            package org.example;
+
+            import java.util.List;
+            import java.util.Map;
+
+            /**
+             * Cache of entries.
+             */
+            public class Cache<K> implements Cloneable {
+                /** default size */
+                private static final int SIZE = 16;
+
+                /** names */
+                private static final Map<String, Integer> NAMES = Map.of(
+                        "a", 1,
+                        "b", 2);
+
+                static {
+                    System.out.println("init");
+                }
+
+                /**
+                 * Gets an entry.
+                 * @param key key
+                 * @return entry
+                 */
+                public List<K> get(K key) {
+                    if (key == null) {
+                        return null;
+                    }
+
+                    return List.of(key);
+                }
+
+                abstract void clear();
+
+                enum Mode {
+                    /** fast */
+                    FAST {
+                        @Override
+                        int level() {
+                            return 1;
+                        }
+                    },
+                    SLOW;
+
+                    int level() {
+                        return 0;
+                    }
+                }
+            }
+            """;
+
+    /**
+     * Gets the range of a block (matching braces) starting at the first brace after a marker.
+     */
+    private static TextSkeletonizer.Elision block(String marker, String replacement) {
+        final int start = SOURCE.indexOf('{', SOURCE.indexOf(marker));
+        int depth = 0;
+        for (int i = start; i < SOURCE.length(); i++) {
+            if (SOURCE.charAt(i) == '{') {
+                depth++;
+            } else if (SOURCE.charAt(i) == '}' && --depth == 0) {
+                return new TextSkeletonizer.Elision(start, i + 1, replacement);
+            }
+        }
+        throw new IllegalArgumentException(marker);
+    }
+
+    /**
+     * Gets the range of a comment starting at a marker.
+     */
+    private static TextSkeletonizer.Elision comment(String marker) {
+        final int start = SOURCE.indexOf(marker);
+        return new TextSkeletonizer.Elision(start, SOURCE.indexOf("*/", start) + 2, "");
+    }
+
+    @Test
+    void testElide() {
+        final List<TextSkeletonizer.Elision> elisions = new ArrayList<>();
+        elisions.add(comment("/*\n * License"));
+        elisions.add(comment("/**\n * Cache"));
+        elisions.add(comment("/** default"));
+        elisions.add(comment("/** names"));
+        final int startNames = SOURCE.indexOf("Map.of(");
+        elisions.add(new TextSkeletonizer.Elision(startNames, SOURCE.indexOf(';', startNames), TextSkeletonizer.ELIDED_INITIALIZER));
+        final TextSkeletonizer.Elision staticBlock = block("static {", "");
+        elisions.add(new TextSkeletonizer.Elision(SOURCE.indexOf("static {"), staticBlock.end(), ""));
+        elisions.add(comment("/**\n     * Gets"));
+        elisions.add(block("get(K key)", TextSkeletonizer.ELIDED_BODY));
+        elisions.add(comment("/** fast"));
+        elisions.add(block("FAST", TextSkeletonizer.ELIDED_BODY));
+        // The body of the method inside the enum-constant is part of the elided class.
+        elisions.add(block("int level() {\n                return 1", TextSkeletonizer.ELIDED_BODY));
+        elisions.add(block("int level() {\n            return 0", TextSkeletonizer.ELIDED_BODY));
+
+        final String skeleton = TextSkeletonizer.elide(SOURCE, elisions);
+        assertEquals("""
+                package org.example;
+
+                import java.util.List;
+                import java.util.Map;
+
+                public class Cache<K> implements Cloneable {
+                    private static final int SIZE = 16;
+
+                    private static final Map<String, Integer> NAMES = ...;
+
+                    public List<K> get(K key) { ... }
+
+                    abstract void clear();
+
+                    enum Mode {
+                        FAST { ... },
+                        SLOW;
+
+                        int level() { ... }
+                    }
+                }
+                """, skeleton);
+        assertTrue(skeleton.length() * 2 < SOURCE.length());
+        assertEquals("", TextSkeletonizer.elide("\n\n", List.of()));
+    }
+
+    @Test
+    void testComputeSkeleton() {
+        assertEquals("""
+                package org.example;
+
+                import java.util.List;
+                import java.util.Map;
+
+                public class Cache<K> implements Cloneable {
+                    private static final int SIZE = 16;
+
+                    private static final Map<String, Integer> NAMES = Map.of(
+                            "a", 1,
+                            "b", 2);
+
+                    static { ... }
+
+                    public List<K> get(K key) { ... }
+
+                    abstract void clear();
+
+                    enum Mode { ... }
+                }
+                """, TextSkeletonizer.computeSkeleton(SOURCE));
+        // Braces and comment-starts in literals.
+        assertEquals("""
+                class A {
+                    String s = "{ // }";
+                    char c = '{';
+                    String t = \"""
+                        }\""";
+                    void m() { ... }
+                }
+                """, TextSkeletonizer.computeSkeleton("""
+                class A {
+                    String s = "{ // }";
+                    char c = '{';
+                    String t = \"""
+                        }\""";
+                    void m() {
+                        if (s.isEmpty()) { return; } // }
+                    }
+                }
+                """));
+    }
+}